@@ -26,6 +26,7 @@
 package me.lucko.spark.api;
 
 import me.lucko.spark.api.gc.GarbageCollector;
+import me.lucko.spark.api.profiler.ProfileDiff;
 import me.lucko.spark.api.statistic.misc.DoubleAverageInfo;
 import me.lucko.spark.api.statistic.types.DoubleStatistic;
 import me.lucko.spark.api.statistic.types.GenericStatistic;
@@ -34,6 +35,8 @@ import org.checkerframework.checker.nullness.qual.NonNull;
 import org.checkerframework.checker.nullness.qual.Nullable;
 import org.jetbrains.annotations.Unmodifiable;
 
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.Map;
 
 import static me.lucko.spark.api.statistic.StatisticWindow.CpuUsage;
@@ -84,4 +87,17 @@ public interface Spark {
      */
     @NonNull @Unmodifiable Map<String, GarbageCollector> gc();
 
+    /**
+     * Compares two profiles which have been saved to files, e.g. using {@code --save-to-file}.
+     *
+     * <p>Frames are matched between the profiles in the same way that they are merged by
+     * the viewer by default (by class and method).</p>
+     *
+     * @param baseline the baseline profile file
+     * @param comparison the comparison profile file
+     * @return the diff
+     * @throws IOException if either profile could not be read
+     */
+    @NonNull ProfileDiff diffProfiles(@NonNull Path baseline, @NonNull Path comparison) throws IOException;
+
 }
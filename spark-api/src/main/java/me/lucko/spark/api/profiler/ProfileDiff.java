@@ -0,0 +1,132 @@
+/*
+ * This file is part of spark, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+
+package me.lucko.spark.api.profiler;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.jetbrains.annotations.Unmodifiable;
+
+import java.util.List;
+
+/**
+ * A comparison of two profiles, a baseline and a comparison.
+ *
+ * <p>Times are normalised by the total number of samples in each profile, and are expressed
+ * as a fraction (between 0 and 1) of that total. This means that profiles of different
+ * lengths, or with different sampling intervals, can be compared directly.</p>
+ */
+public interface ProfileDiff {
+
+    /**
+     * Gets the diff for each thread (or thread group) which appears in either profile.
+     *
+     * @return the threads
+     */
+    @NonNull @Unmodifiable List<Node> threads();
+
+    /**
+     * A node in the diff tree - either a thread, or a method called by its parent node.
+     */
+    interface Node {
+
+        /**
+         * Gets the name of the node - the thread name, or the class and method name.
+         *
+         * @return the name
+         */
+        @NonNull String name();
+
+        /**
+         * Gets the name of the class, if the node is a method.
+         *
+         * @return the class name, or null for a thread
+         */
+        @Nullable String className();
+
+        /**
+         * Gets the name of the method, if the node is a method.
+         *
+         * @return the method name, or null for a thread
+         */
+        @Nullable String methodName();
+
+        /**
+         * Gets the time spent in the node (including its children) in the baseline profile.
+         *
+         * @return the normalised total time
+         */
+        double baselineTotal();
+
+        /**
+         * Gets the time spent in the node (including its children) in the comparison profile.
+         *
+         * @return the normalised total time
+         */
+        double comparisonTotal();
+
+        /**
+         * Gets the time spent in the node itself (excluding its children) in the baseline profile.
+         *
+         * @return the normalised self time
+         */
+        double baselineSelf();
+
+        /**
+         * Gets the time spent in the node itself (excluding its children) in the comparison profile.
+         *
+         * @return the normalised self time
+         */
+        double comparisonSelf();
+
+        /**
+         * Gets the change in total time, from the baseline to the comparison.
+         *
+         * @return the total time delta, positive if more time was spent in the comparison
+         */
+        default double totalDelta() {
+            return comparisonTotal() - baselineTotal();
+        }
+
+        /**
+         * Gets the change in self time, from the baseline to the comparison.
+         *
+         * @return the self time delta, positive if more time was spent in the comparison
+         */
+        default double selfDelta() {
+            return comparisonSelf() - baselineSelf();
+        }
+
+        /**
+         * Gets the children of the node which appear in either profile.
+         *
+         * @return the children
+         */
+        @NonNull @Unmodifiable List<Node> children();
+
+    }
+
+}
@@ -93,7 +93,8 @@ public interface StatisticWindow {
 
         SECONDS_10(Duration.ofSeconds(10)),
         MINUTES_1(Duration.ofMinutes(1)),
-        MINUTES_5(Duration.ofMinutes(5));
+        MINUTES_5(Duration.ofMinutes(5)),
+        MINUTES_15(Duration.ofMinutes(15));
 
         private final Duration value;
 
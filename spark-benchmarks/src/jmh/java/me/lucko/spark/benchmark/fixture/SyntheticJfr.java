@@ -0,0 +1,363 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.benchmark.fixture;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Writes deterministic, synthetic JFR recordings in the format produced by async-profiler.
+ *
+ * <p>Only the parts of the format read by {@code JfrReader} are written: each chunk contains
+ * execution samples, followed by a constant pool with the threads, classes, methods,
+ * symbols and stack traces they reference, and the metadata describing those types.</p>
+ */
+public final class SyntheticJfr {
+    private SyntheticJfr() {}
+
+    private static final int CHUNK_SIGNATURE = 0x464c5200;
+    private static final int CHUNK_HEADER_SIZE = 68;
+    private static final int VERSION = 0x20000;
+
+    private static final int METADATA_EVENT = 0;
+    private static final int CONSTANT_POOL_EVENT = 1;
+
+    // type ids
+    private static final int T_STRING = 20;
+    private static final int T_LONG = 21;
+    private static final int T_INT = 22;
+    private static final int T_THREAD = 30;
+    private static final int T_CLASS = 31;
+    private static final int T_SYMBOL = 32;
+    private static final int T_METHOD = 33;
+    private static final int T_STACK_TRACE = 34;
+    private static final int T_FRAME_TYPE = 35;
+    private static final int T_THREAD_STATE = 36;
+    private static final int T_EXECUTION_SAMPLE = 100;
+
+    /**
+     * Writes a recording of execution samples.
+     *
+     * @param file the file to write to
+     * @param seed the random seed
+     * @param chunks the number of chunks
+     * @param samplesPerChunk the number of samples in each chunk
+     * @param threads the number of sampled threads
+     * @param stacks the number of distinct stack traces
+     * @throws IOException if an I/O error occurs
+     */
+    public static void write(Path file, long seed, int chunks, int samplesPerChunk, int threads, int stacks) throws IOException {
+        Random random = new Random(seed);
+        SyntheticStacks.Frame[][] stackTraces = SyntheticStacks.generate(seed, stacks, 48, 6);
+
+        byte[] metadata = metadata();
+        byte[] constantPool = constantPool(threads, stackTraces);
+
+        try (OutputStream out = Files.newOutputStream(file)) {
+            long time = 0;
+            for (int chunk = 0; chunk < chunks; chunk++) {
+                Buffer events = new Buffer();
+                long startTime = time;
+                for (int i = 0; i < samplesPerChunk; i++) {
+                    time += 1 + random.nextInt(1000);
+
+                    Buffer event = new Buffer();
+                    event.putVarint(T_EXECUTION_SAMPLE);
+                    event.putVarlong(time);
+                    event.putVarint(1 + random.nextInt(threads));
+                    event.putVarint(1 + random.nextInt(stacks));
+                    event.putVarint(0);
+                    events.putEvent(event);
+                }
+
+                long cpOffset = CHUNK_HEADER_SIZE + events.size();
+                long metaOffset = cpOffset + constantPool.length;
+                long chunkSize = metaOffset + metadata.length;
+
+                DataOutputStream header = new DataOutputStream(out);
+                header.writeInt(CHUNK_SIGNATURE);
+                header.writeInt(VERSION);
+                header.writeLong(chunkSize);
+                header.writeLong(cpOffset);
+                header.writeLong(metaOffset);
+                header.writeLong(startTime); // start nanos
+                header.writeLong(time - startTime); // duration nanos
+                header.writeLong(startTime); // start ticks
+                header.writeLong(1_000_000_000L); // ticks per second
+                header.writeInt(0); // features
+
+                events.writeTo(out);
+                out.write(constantPool);
+                out.write(metadata);
+            }
+        }
+    }
+
+    private static byte[] constantPool(int threads, SyntheticStacks.Frame[][] stackTraces) {
+        Map<String, Integer> symbols = new LinkedHashMap<>();
+        Map<String, Integer> classes = new LinkedHashMap<>();
+        Map<SyntheticStacks.Frame, Integer> methods = new IdentityHashMap<>();
+        List<SyntheticStacks.Frame> methodList = new ArrayList<>();
+
+        for (SyntheticStacks.Frame[] stack : stackTraces) {
+            for (SyntheticStacks.Frame frame : stack) {
+                if (!methods.containsKey(frame)) {
+                    methods.put(frame, methods.size() + 1);
+                    methodList.add(frame);
+
+                    String className = frame.className.replace('.', '/');
+                    symbols.putIfAbsent(className, symbols.size() + 1);
+                    symbols.putIfAbsent(frame.methodName, symbols.size() + 1);
+                    classes.putIfAbsent(className, classes.size() + 1);
+                }
+            }
+        }
+        symbols.putIfAbsent("()V", symbols.size() + 1);
+
+        Buffer pool = new Buffer();
+        pool.putVarint(CONSTANT_POOL_EVENT);
+        pool.putVarlong(0); // start
+        pool.putVarlong(0); // duration
+        pool.putVarlong(0); // delta to the next constant pool
+        pool.putVarint(0); // flush
+        pool.putVarint(7); // number of pools
+
+        pool.putVarint(T_THREAD);
+        pool.putVarint(threads);
+        for (int i = 1; i <= threads; i++) {
+            pool.putVarlong(i);
+            pool.putString("worker-" + i);
+            pool.putVarint(1000 + i);
+            pool.putString("Server Worker-" + i);
+            pool.putVarlong(i);
+        }
+
+        pool.putVarint(T_SYMBOL);
+        pool.putVarint(symbols.size());
+        for (Map.Entry<String, Integer> symbol : symbols.entrySet()) {
+            pool.putVarlong(symbol.getValue());
+            pool.putString(symbol.getKey());
+        }
+
+        pool.putVarint(T_CLASS);
+        pool.putVarint(classes.size());
+        for (Map.Entry<String, Integer> cls : classes.entrySet()) {
+            pool.putVarlong(cls.getValue());
+            pool.putVarlong(0); // class loader
+            pool.putVarlong(symbols.get(cls.getKey()));
+            pool.putVarlong(0); // package
+            pool.putVarint(1); // modifiers
+        }
+
+        pool.putVarint(T_METHOD);
+        pool.putVarint(methodList.size());
+        for (SyntheticStacks.Frame frame : methodList) {
+            pool.putVarlong(methods.get(frame));
+            pool.putVarlong(classes.get(frame.className.replace('.', '/')));
+            pool.putVarlong(symbols.get(frame.methodName));
+            pool.putVarlong(symbols.get("()V"));
+            pool.putVarint(1); // modifiers
+            pool.putVarint(0); // hidden
+        }
+
+        pool.putVarint(T_STACK_TRACE);
+        pool.putVarint(stackTraces.length);
+        for (int i = 0; i < stackTraces.length; i++) {
+            SyntheticStacks.Frame[] stack = stackTraces[i];
+            pool.putVarlong(i + 1);
+            pool.putVarint(0); // truncated
+            pool.putVarint(stack.length);
+            for (SyntheticStacks.Frame frame : stack) {
+                pool.putVarlong(methods.get(frame));
+                pool.putVarint(frame.lineNumber);
+                pool.putVarint(0); // bci
+                pool.write(0); // frame type
+            }
+        }
+
+        pool.putVarint(T_FRAME_TYPE);
+        pool.putVarint(1);
+        pool.putVarint(0);
+        pool.putString("Interpreted");
+
+        pool.putVarint(T_THREAD_STATE);
+        pool.putVarint(1);
+        pool.putVarint(0);
+        pool.putString("STATE_RUNNABLE");
+
+        Buffer out = new Buffer();
+        out.putEvent(pool);
+        return out.toByteArray();
+    }
+
+    private static byte[] metadata() {
+        Metadata meta = new Metadata();
+        meta.type(T_STRING, "java.lang.String");
+        meta.type(T_LONG, "long");
+        meta.type(T_INT, "int");
+        meta.type(T_THREAD, "java.lang.Thread",
+                "osName", T_STRING, "osThreadId", T_LONG, "javaName", T_STRING, "javaThreadId", T_LONG);
+        meta.type(T_CLASS, "java.lang.Class",
+                "classLoader", T_LONG, "name", T_SYMBOL, "package", T_LONG, "modifiers", T_INT);
+        meta.type(T_SYMBOL, "jdk.types.Symbol", "string", T_STRING);
+        meta.type(T_METHOD, "jdk.types.Method",
+                "type", T_CLASS, "name", T_SYMBOL, "descriptor", T_SYMBOL, "modifiers", T_INT, "hidden", T_INT);
+        meta.type(T_STACK_TRACE, "jdk.types.StackTrace", "truncated", T_INT);
+        meta.type(T_FRAME_TYPE, "jdk.types.FrameType", "description", T_STRING);
+        meta.type(T_THREAD_STATE, "jdk.types.ThreadState", "name", T_STRING);
+        meta.event(T_EXECUTION_SAMPLE, "jdk.ExecutionSample",
+                "startTime", T_LONG, "sampledThread", T_THREAD, "stackTrace", T_STACK_TRACE, "state", T_THREAD_STATE);
+
+        Buffer body = new Buffer();
+        body.putVarint(METADATA_EVENT);
+        body.putVarlong(0); // start
+        body.putVarlong(0); // duration
+        body.putVarlong(1); // metadata id
+        meta.writeTo(body);
+
+        Buffer out = new Buffer();
+        out.putEvent(body);
+        return out.toByteArray();
+    }
+
+    /**
+     * Builds the metadata element tree: a root element containing a class element for each type.
+     */
+    private static final class Metadata {
+        private final Map<String, Integer> strings = new LinkedHashMap<>();
+        private final Buffer elements = new Buffer();
+        private int count = 0;
+
+        void type(int id, String name, Object... fields) {
+            element(id, name, null, fields);
+        }
+
+        void event(int id, String name, Object... fields) {
+            element(id, name, "jdk.jfr.Event", fields);
+        }
+
+        private void element(int id, String name, String superType, Object[] fields) {
+            this.count++;
+            this.elements.putVarint(string("class"));
+            this.elements.putVarint(superType == null ? 2 : 3);
+            attribute("id", Integer.toString(id));
+            attribute("name", name);
+            if (superType != null) {
+                attribute("superType", superType);
+            }
+
+            this.elements.putVarint(fields.length / 2);
+            for (int i = 0; i < fields.length; i += 2) {
+                int type = (Integer) fields[i + 1];
+                boolean constantPool = type >= T_THREAD && type < T_EXECUTION_SAMPLE;
+
+                this.elements.putVarint(string("field"));
+                this.elements.putVarint(constantPool ? 3 : 2);
+                attribute("name", (String) fields[i]);
+                attribute("class", Integer.toString(type));
+                if (constantPool) {
+                    attribute("constantPool", "true");
+                }
+                this.elements.putVarint(0);
+            }
+        }
+
+        private void attribute(String key, String value) {
+            this.elements.putVarint(string(key));
+            this.elements.putVarint(string(value));
+        }
+
+        private int string(String s) {
+            return this.strings.computeIfAbsent(s, k -> this.strings.size());
+        }
+
+        void writeTo(Buffer out) {
+            int root = string("root");
+
+            out.putVarint(this.strings.size());
+            for (String s : this.strings.keySet()) {
+                out.putString(s);
+            }
+
+            out.putVarint(root);
+            out.putVarint(0); // attributes
+            out.putVarint(this.count);
+            this.elements.writeTo(out);
+        }
+    }
+
+    private static final class Buffer extends ByteArrayOutputStream {
+
+        void putVarint(int value) {
+            putVarlong(value & 0xffffffffL);
+        }
+
+        void putVarlong(long value) {
+            while ((value & ~0x7fL) != 0) {
+                write((int) (value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            write((int) value);
+        }
+
+        void putString(String s) {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            write(3); // utf-8
+            putVarint(bytes.length);
+            write(bytes, 0, bytes.length);
+        }
+
+        /**
+         * Writes an event, prefixed by its size (which includes the size field itself).
+         */
+        void putEvent(Buffer body) {
+            int size = body.size() + 1;
+            while (varintLength(size) + body.size() != size) {
+                size = body.size() + varintLength(size);
+            }
+            putVarint(size);
+            body.writeTo(this);
+        }
+
+        void writeTo(Buffer out) {
+            out.write(this.buf, 0, this.count);
+        }
+
+        private static int varintLength(int value) {
+            int length = 1;
+            while ((value >>>= 7) != 0) {
+                length++;
+            }
+            return length;
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.benchmark.fixture;
+
+import me.lucko.spark.common.sampler.node.DescriptionTable;
+import me.lucko.spark.common.sampler.node.StackTraceNode;
+
+import java.util.Random;
+
+/**
+ * Generates deterministic, synthetic stack traces.
+ *
+ * <p>Stacks are random walks through a fixed call graph, so that (like real stacks) they
+ * share common prefixes and a few paths are much hotter than the rest.</p>
+ */
+public final class SyntheticStacks {
+    private SyntheticStacks() {}
+
+    /** The minimum depth of a generated stack */
+    private static final int MIN_DEPTH = 8;
+
+    /**
+     * Generates {@code count} stacks, ordered like {@link Thread#getStackTrace()} (the
+     * top of the stack first).
+     *
+     * @param seed the random seed
+     * @param count the number of stacks
+     * @param maxDepth the maximum depth of a stack
+     * @param fanOut the number of methods that may be called at each depth
+     * @return the stacks
+     */
+    public static Frame[][] generate(long seed, int count, int maxDepth, int fanOut) {
+        Frame[][] callGraph = new Frame[maxDepth][fanOut];
+        for (int depth = 0; depth < maxDepth; depth++) {
+            for (int i = 0; i < fanOut; i++) {
+                int id = depth * fanOut + i;
+                callGraph[depth][i] = new Frame(
+                        "bench.module" + (id % 7) + ".Class" + (id / 3),
+                        "method" + id,
+                        10 + (id * 31) % 500
+                );
+            }
+        }
+
+        Random random = new Random(seed);
+        Frame[][] stacks = new Frame[count][];
+        for (int i = 0; i < count; i++) {
+            int depth = MIN_DEPTH + random.nextInt(maxDepth - MIN_DEPTH + 1);
+            Frame[] stack = new Frame[depth];
+            for (int d = 0; d < depth; d++) {
+                // most calls take the first (hot) path
+                int choice = random.nextInt(4) == 0 ? random.nextInt(fanOut) : 0;
+                stack[depth - 1 - d] = callGraph[d][choice];
+            }
+            stacks[i] = stack;
+        }
+        return stacks;
+    }
+
+    /**
+     * Creates a describer for synthetic frames, which behaves like the one used by the Java sampler.
+     *
+     * @param descriptions the description table
+     * @return the describer
+     */
+    public static StackTraceNode.Describer<Frame> describer(DescriptionTable descriptions) {
+        return (element, parent) -> {
+            int parentLineNumber = parent == null ? StackTraceNode.NULL_LINE_NUMBER : parent.lineNumber;
+            return descriptions.intern(element.className, element.methodName, element.lineNumber, parentLineNumber);
+        };
+    }
+
+    public static final class Frame {
+        public final String className;
+        public final String methodName;
+        public final int lineNumber;
+
+        Frame(String className, String methodName, int lineNumber) {
+            this.className = className;
+            this.methodName = methodName;
+            this.lineNumber = lineNumber;
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.monitor.tick;
+
+import me.lucko.spark.api.statistic.misc.DoubleAverageInfo;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks recording tick durations into, and querying percentiles from, the tick duration
+ * histogram, with the same windows as the tick statistics.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class TickDurationHistogramBenchmark {
+
+    private static final int TPS = 100;
+
+    private TickDurationHistogram histogram;
+    private double[] values;
+    private int next = 0;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(1);
+        this.values = new double[4096];
+        for (int i = 0; i < this.values.length; i++) {
+            this.values[i] = 5 + random.nextGaussian() * 2;
+        }
+
+        this.histogram = new TickDurationHistogram(TPS * 10, TPS * 60, TPS * 60 * 5, TPS * 60 * 15);
+        for (int i = 0; i < TPS * 60 * 15; i++) {
+            this.histogram.record(this.values[i % this.values.length]);
+        }
+    }
+
+    @Benchmark
+    public TickDurationHistogram record() {
+        this.histogram.record(this.values[this.next]);
+        this.next = (this.next + 1) & (this.values.length - 1);
+        return this.histogram;
+    }
+
+    @Benchmark
+    public double percentile() {
+        DoubleAverageInfo window = this.histogram.window(2);
+        return window.percentile(0.99);
+    }
+
+    @Benchmark
+    public double recordThenPercentile() {
+        record();
+        return this.histogram.window(2).percentile(0.99);
+    }
+
+}
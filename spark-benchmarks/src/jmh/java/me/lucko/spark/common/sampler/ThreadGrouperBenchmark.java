@@ -0,0 +1,81 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.sampler;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks grouping sampled threads, which happens for every thread in every sample.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ThreadGrouperBenchmark {
+    private static final int THREADS = 64;
+
+    @Param({"BY_POOL", "BY_NAME"})
+    public String grouper;
+
+    private ThreadGrouper threadGrouper;
+    private String[] names;
+    private int next = 0;
+
+    @Setup
+    public void setup() throws ReflectiveOperationException {
+        this.threadGrouper = (ThreadGrouper) ThreadGrouper.class.getField(this.grouper).get(null);
+
+        // a mix of pooled threads and threads which don't belong to a pool
+        this.names = new String[THREADS];
+        for (int i = 0; i < THREADS; i++) {
+            switch (i % 4) {
+                case 0:
+                    this.names[i] = "Server thread";
+                    break;
+                case 1:
+                    this.names[i] = "ForkJoinPool.commonPool-worker-" + i;
+                    break;
+                case 2:
+                    this.names[i] = "Netty Server IO #" + i;
+                    break;
+                default:
+                    this.names[i] = "pool-2-thread-" + i;
+                    break;
+            }
+        }
+    }
+
+    @Benchmark
+    public String getGroup() {
+        int i = this.next;
+        this.next = (i + 1) & (THREADS - 1);
+        return this.threadGrouper.getGroup(i, this.names[i]);
+    }
+
+}
@@ -0,0 +1,88 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.sampler.async;
+
+import me.lucko.spark.benchmark.fixture.SyntheticJfr;
+import me.lucko.spark.common.sampler.async.jfr.JfrReader;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks parsing the JFR output of async-profiler.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class JfrReaderBenchmark {
+    private static final int SAMPLES_PER_CHUNK = 250_000;
+
+    /** The number of chunks in the recording */
+    @Param({"1", "4"})
+    public int chunks;
+
+    private Path file;
+
+    @Setup
+    public void setup() throws IOException {
+        this.file = Files.createTempFile("spark-benchmark-", ".jfr");
+        SyntheticJfr.write(this.file, 1, this.chunks, SAMPLES_PER_CHUNK, 16, 5000);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(this.file);
+    }
+
+    @Benchmark
+    public void readEventsBuffered(Blackhole blackhole) throws IOException {
+        try (JfrReader reader = new JfrReader(this.file, false)) {
+            reader.readEvents(JfrReader.ExecutionSample.class, blackhole::consume);
+        }
+    }
+
+    @Benchmark
+    public void readEventsMapped(Blackhole blackhole) throws IOException {
+        try (JfrReader reader = new JfrReader(this.file, true)) {
+            reader.readEvents(JfrReader.ExecutionSample.class, blackhole::consume);
+        }
+    }
+
+    @Benchmark
+    public List<ProfileSegment> readSegments() throws IOException {
+        return AbstractProfilerJob.readSegments(this.file, new SampleCollector.Execution(4000));
+    }
+
+}
@@ -0,0 +1,69 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.sampler.node;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks looking up an existing child of a node.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class AbstractNodeBenchmark {
+
+    /** The number of children of the node */
+    @Param({"4", "64", "1024"})
+    public int children;
+
+    private ThreadNode node;
+    private StackTraceNode.Description[] descriptions;
+    private int next = 0;
+
+    @Setup
+    public void setup() {
+        DescriptionTable table = new DescriptionTable();
+
+        this.node = new ThreadNode("Server thread");
+        this.descriptions = new StackTraceNode.Description[this.children];
+        for (int i = 0; i < this.children; i++) {
+            this.descriptions[i] = table.intern("bench.module" + (i % 7) + ".Class" + i, "method" + i, 10 + i, StackTraceNode.NULL_LINE_NUMBER);
+            this.node.resolveChild(this.descriptions[i]);
+        }
+    }
+
+    @Benchmark
+    public StackTraceNode resolveChild() {
+        StackTraceNode.Description description = this.descriptions[this.next];
+        this.next = (this.next + 1) % this.descriptions.length;
+        return this.node.resolveChild(description);
+    }
+
+}
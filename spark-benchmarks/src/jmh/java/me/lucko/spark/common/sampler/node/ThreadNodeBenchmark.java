@@ -0,0 +1,94 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.sampler.node;
+
+import me.lucko.spark.benchmark.fixture.SyntheticStacks;
+import me.lucko.spark.common.sampler.window.ProtoTimeEncoder;
+import me.lucko.spark.common.util.MethodDisambiguator;
+import me.lucko.spark.proto.SparkSamplerProtos;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks inserting stacks into, and exporting, the call tree.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ThreadNodeBenchmark {
+    private static final int WINDOWS = 10;
+
+    /** The number of distinct stacks */
+    @Param({"1000", "20000"})
+    public int stacks;
+
+    private SyntheticStacks.Frame[][] stackData;
+    private StackTraceNode.Describer<SyntheticStacks.Frame> describer;
+
+    /** A tree which already contains every stack, for measuring steady-state inserts */
+    private ThreadNode populated;
+    private int next = 0;
+
+    private MergeMode mergeMode;
+    private ProtoTimeEncoder timeEncoder;
+
+    @Setup
+    public void setup() {
+        this.stackData = SyntheticStacks.generate(1, this.stacks, 64, 8);
+        this.describer = SyntheticStacks.describer(new DescriptionTable());
+
+        this.populated = new ThreadNode("Server thread");
+        for (int i = 0; i < this.stackData.length; i++) {
+            this.populated.log(this.describer, this.stackData[i], 1000, i % WINDOWS);
+        }
+        this.populated.setThreadLabel("Server thread");
+
+        this.mergeMode = MergeMode.sameMethod(new MethodDisambiguator());
+        this.timeEncoder = new ProtoTimeEncoder(time -> time / 1000d, Collections.singletonList(this.populated));
+        this.populated.toProto(this.mergeMode, this.timeEncoder); // resolve method descriptions up front
+    }
+
+    @Benchmark
+    public ThreadNode log() {
+        SyntheticStacks.Frame[] stack = this.stackData[this.next];
+        this.next = (this.next + 1) % this.stackData.length;
+
+        this.populated.log(this.describer, stack, 1000, this.next % WINDOWS);
+        return this.populated;
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public SparkSamplerProtos.ThreadNode toProto() {
+        return this.populated.toProto(this.mergeMode, this.timeEncoder);
+    }
+
+}
@@ -0,0 +1,102 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.sampler.node;
+
+import me.lucko.spark.benchmark.fixture.SyntheticStacks;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Measures the heap retained by the call trees of a long-running profile.
+ *
+ * <p>Logs 1M samples of 20k distinct stacks (8-50 frames deep) into 8 threads, spread over
+ * 60 windows. The retained heap is the used heap after a full GC, less the used heap before
+ * the samples were logged, so this should be run on the parallel collector.</p>
+ *
+ * <p>This isn't a JMH benchmark, as JMH can't report a single measurement per run. Run with:
+ * {@code ./gradlew :spark-benchmarks:footprint}</p>
+ */
+public final class ThreadNodeFootprint {
+    private static final int SAMPLES = 1_000_000;
+    private static final int STACKS = 20_000;
+    private static final int THREADS = 8;
+    private static final int WINDOWS = 60;
+    private static final int RUNS = 3;
+
+    public static void main(String[] args) {
+        SyntheticStacks.Frame[][] stackData = SyntheticStacks.generate(1, STACKS, 50, 8);
+        StackTraceNode.Describer<SyntheticStacks.Frame> describer = SyntheticStacks.describer(new DescriptionTable());
+
+        for (int run = 1; run <= RUNS; run++) {
+            run(run, stackData, describer);
+        }
+    }
+
+    private static void run(int run, SyntheticStacks.Frame[][] stackData, StackTraceNode.Describer<SyntheticStacks.Frame> describer) {
+        long heapBefore = usedHeapAfterGc();
+
+        ThreadNode[] threads = new ThreadNode[THREADS];
+        for (int i = 0; i < THREADS; i++) {
+            threads[i] = new ThreadNode("Worker-" + i);
+        }
+
+        long start = System.nanoTime();
+        Random random = new Random(1);
+        for (int i = 0; i < SAMPLES; i++) {
+            ThreadNode thread = threads[random.nextInt(THREADS)];
+            SyntheticStacks.Frame[] stack = stackData[random.nextInt(STACKS)];
+            thread.log(describer, stack, 10_000, (int) ((long) i * WINDOWS / SAMPLES));
+        }
+        double insertSeconds = (System.nanoTime() - start) / 1e9;
+
+        double retainedMiB = (usedHeapAfterGc() - heapBefore) / (1024d * 1024d);
+
+        // count after measuring, so the trees are still reachable when the heap is measured
+        long nodes = 0;
+        long windowEntries = 0;
+        Deque<AbstractNode> stack = new ArrayDeque<>();
+        for (ThreadNode thread : threads) {
+            stack.push(thread);
+        }
+        while (!stack.isEmpty()) {
+            AbstractNode node = stack.pop();
+            nodes++;
+            windowEntries += node.getTimeWindows().length;
+            stack.addAll(node.getChildren());
+        }
+
+        System.out.println(String.format(Locale.ROOT, "run %d: %.1f MiB retained, %.1f s to insert (%d nodes, %d window entries)",
+                run, retainedMiB, insertSeconds, nodes, windowEntries));
+    }
+
+    private static long usedHeapAfterGc() {
+        // the parallel collector does a full, stop-the-world collection on each call
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+}
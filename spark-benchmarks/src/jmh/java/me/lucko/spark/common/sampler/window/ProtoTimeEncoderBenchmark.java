@@ -0,0 +1,82 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.sampler.window;
+
+import me.lucko.spark.common.sampler.node.DescriptionTable;
+import me.lucko.spark.common.sampler.node.StackTraceNode;
+import me.lucko.spark.common.sampler.node.ThreadNode;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks encoding the times of a single node.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ProtoTimeEncoderBenchmark {
+    /** The number of windows in the export (one hour of history) */
+    private static final int KEYS = 60;
+
+    /** The number of windows the node has times for */
+    @Param({"1", "15", "60"})
+    public int size;
+
+    private ProtoTimeEncoder encoder;
+    private int[] windows;
+    private long[] times;
+
+    @Setup
+    public void setup() {
+        DescriptionTable descriptions = new DescriptionTable();
+        StackTraceNode.Describer<String> describer = (element, parent) -> descriptions.intern(element, "run", 1, StackTraceNode.NULL_LINE_NUMBER);
+
+        ThreadNode source = new ThreadNode("Server thread");
+        for (int i = 0; i < KEYS; i++) {
+            source.log(describer, new String[]{"bench.Task"}, 1, 1000 + i);
+        }
+        this.encoder = new ProtoTimeEncoder(time -> time / 1000d, Collections.singletonList(source));
+
+        // spread the node's windows evenly over the keys
+        this.windows = new int[this.size];
+        this.times = new long[this.size];
+        for (int i = 0; i < this.size; i++) {
+            this.windows[i] = 1000 + i * (KEYS / this.size);
+            this.times[i] = 50_000L * (i + 1);
+        }
+    }
+
+    @Benchmark
+    public double[] encode() {
+        return this.encoder.encode(this.windows, this.times, this.size);
+    }
+
+}
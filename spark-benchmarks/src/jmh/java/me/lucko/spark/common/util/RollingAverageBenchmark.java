@@ -0,0 +1,89 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.util;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks recording and querying tick durations.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class RollingAverageBenchmark {
+
+    /** The window size, 10 seconds and 5 minutes of ticks */
+    @Param({"1000", "30000"})
+    public int windowSize;
+
+    private RollingAverage average;
+    private double[] values;
+    private int next = 0;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(1);
+        this.values = new double[4096];
+        for (int i = 0; i < this.values.length; i++) {
+            this.values[i] = 5 + random.nextGaussian() * 2;
+        }
+
+        this.average = new RollingAverage(this.windowSize);
+        for (int i = 0; i < this.windowSize; i++) {
+            this.average.add(this.values[i % this.values.length]);
+        }
+    }
+
+    @Benchmark
+    public RollingAverage add() {
+        this.average.add(this.values[this.next]);
+        this.next = (this.next + 1) & (this.values.length - 1);
+        return this.average;
+    }
+
+    @Benchmark
+    public double mean() {
+        return this.average.mean();
+    }
+
+    @Benchmark
+    public double percentile() {
+        return this.average.percentile(0.95);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public double addThenPercentile() {
+        add();
+        return this.average.percentile(0.95);
+    }
+
+}
@@ -0,0 +1,165 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.sampler.java;
+
+import me.lucko.spark.common.sampler.ThreadGrouper;
+import me.lucko.spark.common.sampler.node.ThreadNode;
+import me.lucko.spark.common.sampler.window.WindowStatisticsCollector;
+import me.lucko.spark.common.tick.TickHook;
+
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Stress tests the tick buffers used by {@link TickedDataAggregator}.
+ *
+ * <p>Samples are only ever inserted by the sampling thread, so the concurrent writers are
+ * the threads pushing the tick in progress (as exports do), racing with the sampling thread
+ * appending to and sealing the same buffer while the tick is changed underneath them.</p>
+ */
+public class TickedDataAggregatorStressTest {
+    private static final int INTERVAL = 1000;
+    private static final int WINDOW = 1;
+    private static final int SAMPLES = 2_000_000;
+    private static final int PUSHERS = 3;
+
+    @Test
+    public void samplesAreNotLostOrDuplicated() throws Exception {
+        ManualTickHook tickHook = new ManualTickHook();
+        ExecutorService workerPool = Executors.newFixedThreadPool(2);
+
+        // a threshold of 0 includes every tick, so every sample inserted should be exported
+        TickedDataAggregator aggregator = new TickedDataAggregator(workerPool, ThreadGrouper.AS_ONE, INTERVAL, false, false, tickHook, 0);
+        aggregator.setTickCounter(new WindowStatisticsCollector(null).startCountingTicksExplicit(tickHook));
+
+        ThreadInfo sample = ManagementFactory.getThreadMXBean().getThreadInfo(Thread.currentThread().getId(), 8);
+
+        AtomicBoolean done = new AtomicBoolean(false);
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+
+        // the sampling thread, which also moves the tick on every so often
+        threads.add(new Thread(() -> {
+            await(start);
+            for (int i = 0; i < SAMPLES; i++) {
+                if ((i & 63) == 0) {
+                    tickHook.increment();
+                }
+                aggregator.insertData(sample, WINDOW);
+            }
+            done.set(true);
+        }, "sampler"));
+
+        // a game thread, changing the tick at the same time as the sampling thread
+        threads.add(new Thread(() -> {
+            await(start);
+            while (!done.get()) {
+                tickHook.increment();
+                Thread.yield();
+            }
+        }, "ticker"));
+
+        // exports, pushing the tick in progress from other threads
+        for (int i = 0; i < PUSHERS; i++) {
+            threads.add(new Thread(() -> {
+                await(start);
+                while (!done.get()) {
+                    aggregator.getMetadata();
+                }
+            }, "pusher-" + i));
+        }
+
+        for (Thread thread : threads) {
+            thread.setUncaughtExceptionHandler((t, e) -> error.compareAndSet(null, e));
+            thread.start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertNull(error.get());
+
+        List<ThreadNode> nodes = aggregator.exportData();
+        assertTrue(workerPool.isTerminated());
+
+        long time = 0;
+        for (ThreadNode node : nodes) {
+            time += node.getTime(WINDOW);
+        }
+        assertEquals(SAMPLES, time / INTERVAL);
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static final class ManualTickHook implements TickHook {
+        private final AtomicInteger tick = new AtomicInteger();
+
+        void increment() {
+            this.tick.incrementAndGet();
+        }
+
+        @Override
+        public void start() {
+
+        }
+
+        @Override
+        public void close() {
+
+        }
+
+        @Override
+        public int getCurrentTick() {
+            return this.tick.get();
+        }
+
+        @Override
+        public void addCallback(Callback runnable) {
+
+        }
+
+        @Override
+        public void removeCallback(Callback runnable) {
+
+        }
+    }
+}
@@ -33,6 +33,7 @@ import me.lucko.spark.common.command.Command;
 import me.lucko.spark.common.command.CommandModule;
 import me.lucko.spark.common.command.CommandResponseHandler;
 import me.lucko.spark.common.command.modules.*;
+import me.lucko.spark.common.heapdump.HeapHistogramRecorder;
 import me.lucko.spark.common.monitor.cpu.CpuMonitor;
 import me.lucko.spark.common.monitor.memory.GarbageCollectorStatistics;
 import me.lucko.spark.common.monitor.net.NetworkMonitor;
@@ -44,6 +45,8 @@ import me.lucko.spark.common.platform.PlatformStatisticsProvider;
 import me.lucko.spark.common.sampler.BackgroundSamplerManager;
 import me.lucko.spark.common.sampler.SamplerContainer;
 import me.lucko.spark.common.sampler.source.ClassSourceLookup;
+import me.lucko.spark.common.sampler.history.ProfilingHistory;
+import me.lucko.spark.common.sampler.spike.SpikeRecorder;
 import me.lucko.spark.common.tick.TickHook;
 import me.lucko.spark.common.tick.TickReporter;
 import me.lucko.spark.common.util.BytebinClient;
@@ -87,6 +90,9 @@ public class SparkPlatform {
     private final ActivityLog activityLog;
     private final SamplerContainer samplerContainer;
     private final BackgroundSamplerManager backgroundSamplerManager;
+    private final ProfilingHistory profilingHistory;
+    private final SpikeRecorder spikeRecorder;
+    private final HeapHistogramRecorder heapHistogramRecorder;
     private final TickHook tickHook;
     private final TickReporter tickReporter;
     private final TickStatistics tickStatistics;
@@ -115,6 +121,8 @@ public class SparkPlatform {
 
         this.commandModules = ImmutableList.of(
                 new SamplerModule(),
+                new HistoryModule(),
+                new SpikeModule(),
                 new HealthModule(),
                 new TickMonitoringModule(),
                 new GcMonitoringModule(),
@@ -133,6 +141,7 @@ public class SparkPlatform {
 
         this.samplerContainer = new SamplerContainer();
         this.backgroundSamplerManager = new BackgroundSamplerManager(this, this.configuration);
+        this.profilingHistory = new ProfilingHistory(this, this.configuration);
 
         TickStatistics tickStatistics = plugin.createTickStatistics();
         this.tickHook = plugin.createTickHook();
@@ -146,6 +155,8 @@ public class SparkPlatform {
         this.pingStatistics = pingProvider != null ? new PingStatistics(pingProvider) : null;
 
         this.statisticsProvider = new PlatformStatisticsProvider(this);
+        this.spikeRecorder = new SpikeRecorder(this, this.configuration);
+        this.heapHistogramRecorder = new HeapHistogramRecorder(this, this.configuration);
     }
 
     public void enable() {
@@ -153,17 +164,23 @@ public class SparkPlatform {
             throw new RuntimeException("Platform has already been enabled!");
         }
 
-        if (this.tickHook != null && this.tickStatistics instanceof SparkTickStatistics) {
-            this.tickHook.addCallback((TickHook.Callback) this.tickStatistics);
+        if (this.tickHook != null) {
+            if (this.tickStatistics instanceof SparkTickStatistics) {
+                this.tickHook.addCallback((TickHook.Callback) this.tickStatistics);
+            }
             this.tickHook.start();
         }
-        if (this.tickReporter != null&& this.tickStatistics instanceof SparkTickStatistics) {
-            this.tickReporter.addCallback((TickReporter.Callback) this.tickStatistics);
+        if (this.tickReporter != null) {
+            if (this.tickStatistics instanceof SparkTickStatistics) {
+                this.tickReporter.addCallback((TickReporter.Callback) this.tickStatistics);
+            }
             this.tickReporter.start();
         }
         if (this.pingStatistics != null) {
             this.pingStatistics.start();
         }
+        this.spikeRecorder.start();
+        this.heapHistogramRecorder.start();
         CpuMonitor.ensureMonitoring();
         NetworkMonitor.ensureMonitoring();
 
@@ -177,10 +194,13 @@ public class SparkPlatform {
         this.plugin.registerApi(api);
         SparkApi.register(api);
 
+        this.profilingHistory.start();
         this.backgroundSamplerManager.initialise();
     }
 
     public void disable() {
+        this.spikeRecorder.close();
+        this.heapHistogramRecorder.close();
         if (this.tickHook != null) {
             this.tickHook.close();
         }
@@ -196,6 +216,7 @@ public class SparkPlatform {
         }
 
         this.samplerContainer.close();
+        this.profilingHistory.close();
 
         SparkApi.unregister();
 
@@ -250,6 +271,18 @@ public class SparkPlatform {
         return this.backgroundSamplerManager;
     }
 
+    public ProfilingHistory getProfilingHistory() {
+        return this.profilingHistory;
+    }
+
+    public SpikeRecorder getSpikeRecorder() {
+        return this.spikeRecorder;
+    }
+
+    public HeapHistogramRecorder getHeapHistogramRecorder() {
+        return this.heapHistogramRecorder;
+    }
+
     public TickHook getTickHook() {
         return this.tickHook;
     }
@@ -107,6 +107,18 @@ public interface SparkPlugin {
         return ThreadDumper.ALL;
     }
 
+    /**
+     * Gets the {@link ThreadDumper} for the thread which runs the game loop, used by
+     * features which only look at ticks (e.g. the spike recorder).
+     *
+     * <p>Defaults to {@link #getDefaultThreadDumper()}.</p>
+     *
+     * @return the game thread dumper
+     */
+    default ThreadDumper getGameThreadDumper() {
+        return getDefaultThreadDumper();
+    }
+
     /**
      * Creates a tick hook for the platform, if supported.
      *
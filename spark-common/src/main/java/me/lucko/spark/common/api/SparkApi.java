@@ -25,6 +25,7 @@ import com.google.common.collect.ImmutableMap;
 import me.lucko.spark.api.Spark;
 import me.lucko.spark.api.SparkProvider;
 import me.lucko.spark.api.gc.GarbageCollector;
+import me.lucko.spark.api.profiler.ProfileDiff;
 import me.lucko.spark.api.statistic.misc.DoubleAverageInfo;
 import me.lucko.spark.api.statistic.types.DoubleStatistic;
 import me.lucko.spark.api.statistic.types.GenericStatistic;
@@ -32,11 +33,19 @@ import me.lucko.spark.common.SparkPlatform;
 import me.lucko.spark.common.monitor.cpu.CpuMonitor;
 import me.lucko.spark.common.monitor.memory.GarbageCollectorStatistics;
 import me.lucko.spark.common.monitor.tick.TickStatistics;
+import me.lucko.spark.common.sampler.diff.SamplerDiff;
+import me.lucko.spark.common.sampler.node.MergeMode;
+import me.lucko.spark.common.util.MethodDisambiguator;
+import me.lucko.spark.proto.SparkSamplerProtos.SamplerData;
 
 import org.checkerframework.checker.nullness.qual.NonNull;
 import org.checkerframework.checker.nullness.qual.Nullable;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -153,6 +162,8 @@ public class SparkApi implements Spark {
                         return stats.duration1Min();
                     case MINUTES_5:
                         return stats.duration5Min();
+                    case MINUTES_15:
+                        return stats.duration15Min();
                     default:
                         throw new AssertionError(window);
                 }
@@ -174,6 +185,19 @@ public class SparkApi implements Spark {
         return ImmutableMap.copyOf(map);
     }
 
+    @Override
+    public @NonNull ProfileDiff diffProfiles(@NonNull Path baseline, @NonNull Path comparison) throws IOException {
+        SamplerData baselineData;
+        try (InputStream in = Files.newInputStream(baseline)) {
+            baselineData = SamplerData.parseFrom(in);
+        }
+        SamplerData comparisonData;
+        try (InputStream in = Files.newInputStream(comparison)) {
+            comparisonData = SamplerData.parseFrom(in);
+        }
+        return SamplerDiff.compare(baselineData, comparisonData, MergeMode.sameMethod(new MethodDisambiguator()));
+    }
+
     public static void register(Spark spark) {
         try {
             SINGLETON_SET_METHOD.invoke(null, spark);
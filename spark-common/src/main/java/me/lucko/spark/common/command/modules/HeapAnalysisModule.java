@@ -20,6 +20,8 @@
 
 package me.lucko.spark.common.command.modules;
 
+import com.google.common.collect.Iterables;
+import me.lucko.spark.common.Data;
 import me.lucko.spark.common.SparkPlatform;
 import me.lucko.spark.common.activitylog.Activity;
 import me.lucko.spark.common.command.Arguments;
@@ -27,21 +29,27 @@ import me.lucko.spark.common.command.Command;
 import me.lucko.spark.common.command.CommandModule;
 import me.lucko.spark.common.command.CommandResponseHandler;
 import me.lucko.spark.common.heapdump.HeapDump;
+import me.lucko.spark.common.heapdump.HeapDumpAnalysis;
 import me.lucko.spark.common.heapdump.HeapDumpSummary;
+import me.lucko.spark.common.heapdump.HeapHistogramRecorder;
 import me.lucko.spark.common.util.Compression;
 import me.lucko.spark.common.util.FormatUtil;
 import me.lucko.spark.common.util.MediaTypes;
 import me.lucko.spark.proto.SparkHeapProtos;
+import me.lucko.spark.proto.SparkHeapProtos.HeapMetadata;
 import mindustry.gen.Player;
 
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Comparator;
 import java.util.Iterator;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
 import java.util.function.LongConsumer;
+import java.util.stream.Stream;
 
 
 public class HeapAnalysisModule implements CommandModule {
@@ -58,7 +66,33 @@ public class HeapAnalysisModule implements CommandModule {
         consumer.accept(Command.builder()
                 .aliases("heapdump")
                 .argumentUsage("compress", "type")
-                .executor((platform1, resp, arguments1, arguments12) -> heapDump(platform1, arguments1, arguments12))
+                .argumentUsage("analyse", null)
+                .executor(HeapAnalysisModule::heapDump)
+                .build()
+        );
+
+        consumer.accept(Command.builder()
+                .aliases("heapanalysis")
+                .argumentUsage("file", "name")
+                .argumentUsage("save-to-file", null)
+                .executor((platform, sender, resp, arguments) -> {
+                    String name = Iterables.getFirst(arguments.stringFlag("file"), null);
+                    Path file = name == null ? findLatestHeapDump(platform) : platform.getPlugin().getPluginDirectory().resolve(name);
+                    if (file == null || !Files.exists(file)) {
+                        resp.replyPrefixed("[red]Unable to find a heap dump" + (name == null ? "" : " called '" + name + "'") + ". Create one with /spark heapdump, or use --file <name>.");
+                        return;
+                    }
+                    heapAnalysis(platform, sender, resp, file, arguments.boolFlag("save-to-file"));
+                })
+                .build()
+        );
+
+        consumer.accept(Command.builder()
+                .aliases("heaphistogram", "leaks")
+                .allowSubCommand(true)
+                .argumentUsage("sample", "", null)
+                .argumentUsage("class", "name")
+                .executor(HeapAnalysisModule::heapHistogram)
                 .build()
         );
     }
@@ -118,7 +152,68 @@ public class HeapAnalysisModule implements CommandModule {
 
     }
 
-    private static void heapDump(SparkPlatform platform, CommandResponseHandler resp, Arguments arguments) {
+    private static void heapHistogram(SparkPlatform platform, Player sender, CommandResponseHandler resp, Arguments arguments) {
+        HeapHistogramRecorder recorder = platform.getHeapHistogramRecorder();
+        if (!recorder.isRunning()) {
+            resp.replyPrefixed("[red]The heap histogram recorder is not running.");
+            resp.replyPrefixed("It can be enabled with the 'heapHistogram' config option.");
+            return;
+        }
+
+        String subCommand = arguments.subCommand() == null ? "" : arguments.subCommand();
+        if (subCommand.equals("sample") || arguments.boolFlag("sample")) {
+            resp.broadcastPrefixed("Running garbage collector and taking a heap histogram, please wait...");
+            recorder.sampleNow().join();
+        }
+
+        long samples = recorder.getSampleCount();
+        if (samples == 0) {
+            resp.replyPrefixed("No heap histograms have been taken yet. They are taken after the old generation is garbage collected, or can be taken now (which runs a full GC) with:");
+            resp.replyPrefixed("  [white]/" + platform.getPlugin().getCommandName() + " heaphistogram sample");
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        String className = Iterables.getFirst(arguments.stringFlag("class"), null);
+        if (className != null) {
+            HeapHistogramRecorder.Series series = recorder.getSeries(className);
+            if (series == null) {
+                resp.replyPrefixed("[red]The class '" + className + "' is not being tracked (only large classes are).");
+                return;
+            }
+
+            resp.replyPrefixed("[gold]Heap histograms[gray] for [white]" + series.getClassName() + "[gray]:");
+            for (int i = 0; i < series.size(); i++) {
+                long ago = (now - series.getTime(i)) / 1000L;
+                long bytes = series.getBytes(i);
+                resp.replyPrefixed("  " + FormatUtil.formatSeconds(ago) + " ago - " + (bytes < 0
+                        ? "not tracked yet"
+                        : "[white]" + FormatUtil.formatBytes(bytes) + "[gray] (" + series.getInstances(i) + " instances)"));
+            }
+            return;
+        }
+
+        long ago = (now - recorder.getLastSampleTime()) / 1000L;
+        resp.replyPrefixed("[gold]" + samples + "[gray] heap histograms taken, the last " + FormatUtil.formatSeconds(ago) + " ago.");
+
+        List<HeapHistogramRecorder.Series> leaks = recorder.getSuspectedLeaks();
+        int leakSamples = recorder.getLeakSamples();
+        if (leaks.isEmpty()) {
+            resp.replyPrefixed("[green]No classes have grown in each of the last " + leakSamples + " histograms.");
+            return;
+        }
+
+        resp.replyPrefixed("[red]Possible leaks[gray] (grown in each of the last " + leakSamples + " histograms):");
+        for (HeapHistogramRecorder.Series series : leaks) {
+            int last = series.size() - 1;
+            resp.replyPrefixed("  [white]" + series.getClassName() + "[gray] +" + FormatUtil.formatBytes(series.getGrowth(leakSamples)) +
+                    ", now [white]" + FormatUtil.formatBytes(series.getBytes(last)) + "[gray] (" + series.getInstances(last) + " instances)");
+        }
+        resp.replyPrefixed("For the full history of a class, run:");
+        resp.replyPrefixed("  [white]/" + platform.getPlugin().getCommandName() + " heaphistogram --class <name>");
+    }
+
+    private static void heapDump(SparkPlatform platform, Player sender, CommandResponseHandler resp, Arguments arguments) {
         Path file = platform.resolveSaveFile("heap", HeapDump.isOpenJ9() ? "phd" : "hprof");
 
         boolean liveOnly = !arguments.boolFlag("include-non-live");
@@ -128,41 +223,129 @@ public class HeapAnalysisModule implements CommandModule {
             System.gc();
         }
 
+        Compression compressionMethod = null;
+        Iterator<String> compressArgs = arguments.stringFlag("compress").iterator();
+        if (compressArgs.hasNext()) {
+            try {
+                compressionMethod = Compression.valueOf(compressArgs.next().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                // ignore
+            }
+        }
+
+        boolean analyse = arguments.boolFlag("analyse") && !HeapDump.isOpenJ9();
+
+        // gzip the dump as it is written where the JVM supports it, unless it needs to be analysed first
+        int compressionLevel = compressionMethod == Compression.GZIP && !analyse
+                ? platform.getConfiguration().getInteger("heapDumpCompressionLevel", 1)
+                : 0;
+        int threads = platform.getConfiguration().getInteger("heapDumpThreads", 0);
+
         resp.broadcastPrefixed("Creating a new heap dump, please wait...");
 
+        HeapDump.Result result;
         try {
-            HeapDump.dumpHeap(file, liveOnly);
+            result = HeapDump.dumpHeap(file, liveOnly, compressionLevel, threads);
         } catch (Exception e) {
             resp.broadcastPrefixed("[red]An error occurred whilst creating a heap dump.");
             e.printStackTrace();
             return;
         }
+        file = result.getFile();
 
         resp.broadcastPrefixed("[gold]Heap dump written to: [gray]" + file.toString());
+        resp.broadcastPrefixed("[gray]The server was paused for [gold]" + result.getPauseMillis() + "ms[gray] (the dump took [gold]" + String.format("%.1fs", result.getDurationMillis() / 1000d) + "[gray])");
         platform.getActivityLog().addToLog(Activity.fileActivity(System.currentTimeMillis(), "Heap dump", file.toString()));
 
+        if (analyse) {
+            heapAnalysis(platform, sender, resp, file, arguments.boolFlag("save-to-file"));
+        }
 
-        Compression compressionMethod = null;
-        Iterator<String> compressArgs = arguments.stringFlag("compress").iterator();
-        if (compressArgs.hasNext()) {
+        if (compressionMethod != null && !result.isCompressed()) {
             try {
-                compressionMethod = Compression.valueOf(compressArgs.next().toUpperCase());
-            } catch (IllegalArgumentException e) {
-                // ignore
+                heapDumpCompress(platform, resp, file, compressionMethod);
+            } catch (IOException e) {
+                e.printStackTrace();
             }
         }
+    }
+
+    private static void heapAnalysis(SparkPlatform platform, Player sender, CommandResponseHandler resp, Path file, boolean saveToFile) {
+        resp.broadcastPrefixed("Analysing heap dump [gold]" + file.getFileName() + "[gray], please wait...");
+
+        HeapDumpAnalysis analysis;
+        try {
+            analysis = HeapDumpAnalysis.analyse(file, stage -> resp.broadcastPrefixed("[gray]" + stage));
+        } catch (IllegalStateException e) {
+            resp.broadcastPrefixed("[red]" + e.getMessage() + ".");
+            resp.broadcastPrefixed("[gray]Copy the heap dump and spark jar to a machine with more memory, and run: [white]java -Xmx<size> -cp <spark jar> " + HeapDumpAnalysis.class.getName() + " <heap dump>");
+            return;
+        } catch (Exception e) {
+            resp.broadcastPrefixed("[red]An error occurred whilst analysing the heap dump.");
+            e.printStackTrace();
+            return;
+        }
+
+        resp.broadcastPrefixed("[gold]" + analysis.getObjectCount() + "[gray] objects, [gold]" + FormatUtil.formatBytes(analysis.getReachableSize()) + "[gray] reachable. Largest retained sizes:");
+        for (HeapDumpAnalysis.RetainedObject object : Iterables.limit(analysis.getDominators(), 5)) {
+            resp.broadcast("[gray]  [gold]" + FormatUtil.formatBytes(object.getRetainedSize()) + "[white] " + object.getType());
+        }
+
+        HeapMetadata.Builder metadata = HeapMetadata.newBuilder()
+                .setPlatformMetadata(platform.getPlugin().getPlatformInfo().toData().toProto());
+        if (sender == null) {
+            metadata.setCreator(new Data("mindustry server", null).toProto());
+        } else {
+            metadata.setCreator(new Data(sender.name(), sender.uuid()).toProto());
+        }
+        SparkHeapProtos.HeapData output = analysis.toProto(metadata.build());
 
-        if (compressionMethod != null) {
+        if (!saveToFile) {
             try {
-                heapDumpCompress(platform, resp, file, compressionMethod);
+                String key = platform.getBytebinClient().postContent(output, MediaTypes.SPARK_HEAP_MEDIA_TYPE).key();
+                String url = platform.getViewerUrl() + key;
+
+                resp.broadcastPrefixed("[gold]Heap dump analysis output:");
+                resp.broadcast("[gray]" + url);
+
+                platform.getActivityLog().addToLog(Activity.urlActivity(System.currentTimeMillis(), "Heap dump analysis", url));
+            } catch (Exception e) {
+                resp.broadcastPrefixed("[red]An error occurred whilst uploading the data. Attempting to save to disk instead.");
+                e.printStackTrace();
+                saveToFile = true;
+            }
+        }
+
+        if (saveToFile) {
+            Path outputFile = platform.resolveSaveFile("heapanalysis", "sparkheap");
+            try {
+                Files.write(outputFile, output.toByteArray());
+
+                resp.broadcastPrefixed("Heap dump analysis written to: [gold]" + outputFile.toString() + "[gray]");
+                resp.broadcastPrefixed("[gray]You can read the heap dump analysis file using the viewer web-app - " + platform.getViewerUrl());
+
+                platform.getActivityLog().addToLog(Activity.fileActivity(System.currentTimeMillis(), "Heap dump analysis", outputFile.toString()));
             } catch (IOException e) {
+                resp.broadcastPrefixed("[red]An error occurred whilst saving the data.");
                 e.printStackTrace();
             }
         }
     }
 
+    private static Path findLatestHeapDump(SparkPlatform platform) {
+        try (Stream<Path> files = Files.list(platform.getPlugin().getPluginDirectory())) {
+            return files.filter(file -> file.getFileName().toString().endsWith(".hprof"))
+                    .max(Comparator.comparing(Path::getFileName))
+                    .orElse(null);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
     private static void heapDumpCompress(SparkPlatform platform, CommandResponseHandler resp, Path file, Compression method) throws IOException {
-        resp.broadcastPrefixed("Compressing heap dump, please wait...");
+        // by default leave half of the cores for the server
+        int threads = platform.getConfiguration().getInteger("heapDumpCompressionThreads", Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+        resp.broadcastPrefixed("Compressing heap dump using " + threads + " thread(s), please wait...");
 
         long size = Files.size(file);
         AtomicLong lastReport = new AtomicLong(System.currentTimeMillis());
@@ -178,7 +361,7 @@ public class HeapAnalysisModule implements CommandModule {
             }
         };
 
-        Path compressedFile = method.compress(file, progressHandler);
+        Path compressedFile = method.compress(file, threads, progressHandler);
         long compressedSize = Files.size(compressedFile);
 
         resp.broadcastPrefixed("[gray]Compression complete: [gold]" + FormatUtil.formatBytes(size) + "[gray] --> [gold]" + FormatUtil.formatBytes(compressedSize) + "[gray] ([green]" + FormatUtil.percent(compressedSize, size) + "[gray])");
@@ -0,0 +1,237 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.command.modules;
+
+import com.google.common.collect.Iterables;
+
+import me.lucko.spark.common.SparkPlatform;
+import me.lucko.spark.common.activitylog.Activity;
+import me.lucko.spark.common.command.Arguments;
+import me.lucko.spark.common.command.Command;
+import me.lucko.spark.common.command.CommandModule;
+import me.lucko.spark.common.command.CommandResponseHandler;
+import me.lucko.spark.common.sampler.Sampler;
+import me.lucko.spark.common.sampler.history.HistoryProfile;
+import me.lucko.spark.common.sampler.history.ProfilingHistory;
+import me.lucko.spark.common.util.FormatUtil;
+import me.lucko.spark.common.util.MediaTypes;
+import me.lucko.spark.proto.SparkSamplerProtos;
+import mindustry.gen.Player;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class HistoryModule implements CommandModule {
+
+    private static final Pattern RELATIVE_TIME = Pattern.compile("^(\\d+)([mhd])$");
+    private static final DateTimeFormatter DATE_TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm", Locale.ENGLISH);
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("HH:mm", Locale.ENGLISH);
+
+    @Override
+    public void registerCommands(Consumer<Command> consumer) {
+        consumer.accept(Command.builder()
+                .aliases("history")
+                .allowSubCommand(true)
+                .argumentUsage("export", "from", "time")
+                .argumentUsage("export", "to", "time")
+                .argumentUsage("export", "comment", "comment")
+                .argumentUsage("export", "separate-parent-calls", null)
+                .argumentUsage("export", "save-to-file", null)
+                .executor(this::history)
+                .build()
+        );
+    }
+
+    private void history(SparkPlatform platform, Player sender, CommandResponseHandler resp, Arguments arguments) {
+        ProfilingHistory history = platform.getProfilingHistory();
+        if (!history.isEnabled()) {
+            resp.replyPrefixed("[red]The profiling history is not enabled.");
+            resp.replyPrefixed("It records the background profiler to disk, and can be enabled with the 'profilingHistory' config option.");
+            return;
+        }
+
+        String subCommand = arguments.subCommand() == null ? "" : arguments.subCommand();
+        if (subCommand.equals("export") || arguments.boolFlag("export")) {
+            historyExport(platform, resp, arguments, history);
+        } else {
+            historyInfo(platform, resp, history);
+        }
+    }
+
+    private void historyInfo(SparkPlatform platform, CommandResponseHandler resp, ProfilingHistory history) {
+        ProfilingHistory.Summary summary;
+        try {
+            summary = history.summarise();
+        } catch (IOException e) {
+            resp.replyPrefixed("[red]An error occurred whilst reading the profiling history.");
+            e.printStackTrace();
+            return;
+        }
+
+        if (summary.segments() == 0) {
+            resp.replyPrefixed("The profiling history is empty. Windows are written to it as the background profiler completes them.");
+            return;
+        }
+
+        long ago = (System.currentTimeMillis() - summary.oldestTime()) / 1000L;
+        resp.replyPrefixed("[gold]Profiling history:");
+        resp.replyPrefixed("  [white]" + FormatUtil.formatSeconds(ago) + "[gray] of data, using [white]" + FormatUtil.formatBytes(summary.size()) + "[gray] in " + summary.segments() + " segments");
+        resp.replyPrefixed("  [gray]Stored in " + history.getDirectory());
+        resp.replyPrefixed("To export a time range, run:");
+        resp.replyPrefixed("  [white]/" + platform.getPlugin().getCommandName() + " history export --from <time> [--to <time>]");
+        resp.replyPrefixed("[gray]Times can be given as 'HH:mm', 'yyyy-MM-dd HH:mm', or relative to now, e.g. '90m' or '2h'.");
+    }
+
+    private void historyExport(SparkPlatform platform, CommandResponseHandler resp, Arguments arguments, ProfilingHistory history) {
+        long now = System.currentTimeMillis();
+
+        String fromArgument = Iterables.getFirst(arguments.stringFlag("from"), null);
+        String toArgument = Iterables.getFirst(arguments.stringFlag("to"), null);
+        if (fromArgument == null) {
+            resp.replyPrefixed("[red]Please provide the start of the time range with '--from <time>'.");
+            return;
+        }
+
+        long from = parseTime(fromArgument, now);
+        long to = toArgument == null ? now : parseTime(toArgument, now);
+        if (from == -1 || to == -1) {
+            resp.replyPrefixed("[red]Invalid time, expected 'HH:mm', 'yyyy-MM-dd HH:mm', or a time relative to now, e.g. '90m' or '2h'.");
+            return;
+        }
+        if (from > to && fromArgument.length() == 5) {
+            // e.g. '--from 23:00 --to 01:00', the start is on the day before
+            from -= TimeUnit.DAYS.toMillis(1);
+        }
+        if (from > to) {
+            resp.replyPrefixed("[red]The start of the time range must be before the end.");
+            return;
+        }
+
+        HistoryProfile profile;
+        try {
+            profile = history.read(from, to);
+        } catch (IOException e) {
+            resp.replyPrefixed("[red]An error occurred whilst reading the profiling history.");
+            e.printStackTrace();
+            return;
+        }
+
+        if (profile == null) {
+            resp.replyPrefixed("There is no profiling history between those times.");
+            return;
+        }
+
+        Sampler.ExportProps exportProps = SamplerModule.getExportProps(platform, resp, arguments);
+        if (exportProps.comment() == null) {
+            exportProps.comment("Profiling history from " + formatTime(profile.getStartTime()) + " to " + formatTime(to));
+        }
+        SparkSamplerProtos.SamplerData output = profile.toProto(platform, exportProps);
+
+        boolean saveToFile = arguments.boolFlag("save-to-file");
+        if (!saveToFile) {
+            try {
+                String key = platform.getBytebinClient().postContent(output, MediaTypes.SPARK_SAMPLER_MEDIA_TYPE).key();
+                String url = platform.getViewerUrl() + key;
+
+                resp.broadcastPrefixed("[gold]Profiling history upload complete!");
+                resp.broadcast("[gray]" + url);
+
+                platform.getActivityLog().addToLog(Activity.urlActivity(System.currentTimeMillis(), "Profiling history", url));
+            } catch (Exception e) {
+                resp.broadcastPrefixed("[red]An error occurred whilst uploading the results. Attempting to save to disk instead.");
+                e.printStackTrace();
+                saveToFile = true;
+            }
+        }
+
+        if (saveToFile) {
+            Path file = platform.resolveSaveFile("history", "sparkprofile");
+            try {
+                Files.write(file, output.toByteArray());
+
+                resp.broadcastPrefixed("[gold]Profiling history save complete!");
+                resp.broadcastPrefixed("Data has been written to: " + file);
+                resp.broadcastPrefixed("[gray]You can view the profile file using the web app @ " + platform.getViewerUrl());
+
+                platform.getActivityLog().addToLog(Activity.fileActivity(System.currentTimeMillis(), "Profiling history", file.toString()));
+            } catch (IOException e) {
+                resp.broadcastPrefixed("[red]An error occurred whilst saving the data.");
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Parses a time argument.
+     *
+     * <p>A time of day refers to the most recent occurrence of that time.</p>
+     *
+     * @param argument the argument
+     * @param now the current time
+     * @return the time in unix millis, or -1 if the argument is invalid
+     */
+    static long parseTime(String argument, long now) {
+        Matcher matcher = RELATIVE_TIME.matcher(argument);
+        if (matcher.matches()) {
+            long amount = Long.parseLong(matcher.group(1));
+            switch (matcher.group(2)) {
+                case "m":
+                    return now - TimeUnit.MINUTES.toMillis(amount);
+                case "h":
+                    return now - TimeUnit.HOURS.toMillis(amount);
+                default:
+                    return now - TimeUnit.DAYS.toMillis(amount);
+            }
+        }
+
+        ZoneId zone = ZoneId.systemDefault();
+        try {
+            return LocalDateTime.parse(argument, DATE_TIME_FORMAT).atZone(zone).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            // try the next format
+        }
+
+        try {
+            LocalTime time = LocalTime.parse(argument, TIME_FORMAT);
+            long today = LocalDateTime.of(LocalDate.now(zone), time).atZone(zone).toInstant().toEpochMilli();
+            return today > now ? today - TimeUnit.DAYS.toMillis(1) : today;
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+
+    private static String formatTime(long time) {
+        return DATE_TIME_FORMAT.format(LocalDateTime.ofInstant(Instant.ofEpochMilli(time), ZoneId.systemDefault()));
+    }
+}
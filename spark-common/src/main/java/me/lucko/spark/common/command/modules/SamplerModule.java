@@ -20,8 +20,11 @@
 
 package me.lucko.spark.common.command.modules;
 
+import com.google.common.base.Suppliers;
 import com.google.common.collect.Iterables;
+import com.google.gson.stream.JsonWriter;
 import me.lucko.bytesocks.client.BytesocksClient;
+import me.lucko.spark.api.profiler.ProfileDiff;
 import me.lucko.spark.common.Data;
 import me.lucko.spark.common.SparkPlatform;
 import me.lucko.spark.common.activitylog.Activity;
@@ -31,6 +34,9 @@ import me.lucko.spark.common.command.CommandModule;
 import me.lucko.spark.common.command.CommandResponseHandler;
 import me.lucko.spark.common.sampler.*;
 import me.lucko.spark.common.sampler.async.AsyncSampler;
+import me.lucko.spark.common.sampler.async.FlightRecorderSampler;
+import me.lucko.spark.common.sampler.diff.SamplerDiff;
+import me.lucko.spark.common.sampler.history.HistoryProfile;
 import me.lucko.spark.common.sampler.node.MergeMode;
 import me.lucko.spark.common.sampler.source.ClassSourceLookup;
 import me.lucko.spark.common.tick.TickHook;
@@ -42,7 +48,10 @@ import me.lucko.spark.proto.SparkSamplerProtos;
 import mindustry.gen.Player;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
@@ -66,6 +75,8 @@ public class SamplerModule implements CommandModule {
                 .argumentUsage("start", "alloc", null)
                 .argumentUsage("stop", "", null)
                 .argumentUsage("cancel", "", null)
+                .argumentUsage("diff", "baseline", "source")
+                .argumentUsage("diff", "comparison", "source")
                 .executor(this::profiler)
                 .build()
         );
@@ -104,6 +115,11 @@ public class SamplerModule implements CommandModule {
             return;
         }
 
+        if (subCommand.equals("diff") || arguments.boolFlag("diff")) {
+            profilerDiff(platform, resp, arguments);
+            return;
+        }
+
         if (arguments.raw().isEmpty()) {
             profilerInfo(platform, resp);
         } else {
@@ -149,6 +165,7 @@ public class SamplerModule implements CommandModule {
         boolean ignoreSleeping = arguments.boolFlag("ignore-sleeping");
         boolean ignoreNative = arguments.boolFlag("ignore-native");
         boolean forceJavaSampler = arguments.boolFlag("force-java-sampler");
+        boolean forceJfrSampler = arguments.boolFlag("force-jfr-sampler");
 
         Set<String> threads = arguments.stringFlag("thread");
         ThreadDumper threadDumper;
@@ -198,6 +215,7 @@ public class SamplerModule implements CommandModule {
         builder.ignoreSleeping(ignoreSleeping);
         builder.ignoreNative(ignoreNative);
         builder.forceJavaSampler(forceJavaSampler);
+        builder.forceFlightRecorder(forceJfrSampler);
         builder.allocLiveOnly(allocLiveOnly);
         if (ticksOver != -1) {
             builder.ticksOver(ticksOver, tickHook);
@@ -213,7 +231,10 @@ public class SamplerModule implements CommandModule {
 
         platform.getSamplerContainer().setActiveSampler(sampler);
 
-        resp.broadcastPrefixed("[gold]" + (mode == SamplerMode.ALLOCATION ? "Allocation Profiler" : "Profiler") + " is now running! [gray](" + (sampler instanceof AsyncSampler ? "async" : "built-in java") + ")");
+        resp.broadcastPrefixed("[gold]" + (mode == SamplerMode.ALLOCATION ? "Allocation Profiler" : "Profiler") + " is now running! [gray](" + (sampler instanceof FlightRecorderSampler ? "flight recorder" : sampler instanceof AsyncSampler ? "async" : "built-in java") + ")");
+        if (sampler instanceof FlightRecorderSampler && mode == SamplerMode.EXECUTION) {
+            resp.broadcastPrefixed("[red]" + FlightRecorderSampler.THREAD_LIMIT_WARNING);
+        }
 
         if (timeoutSeconds == -1) {
             resp.broadcastPrefixed("It will run in the background until it is stopped by an admin.");
@@ -266,6 +287,8 @@ public class SamplerModule implements CommandModule {
                 resp.replyPrefixed("So far, it has profiled for " + FormatUtil.formatSeconds(runningTime) + ".");
             }
 
+            sendOverheadInfo(resp, sampler);
+
             resp.replyPrefixed("To view the profiler while it's running, run:");
             resp.replyPrefixed(cmdPrompt("/" + platform.getPlugin().getCommandName() + " profiler open"));
 
@@ -283,6 +306,38 @@ public class SamplerModule implements CommandModule {
         }
     }
 
+    private static void sendOverheadInfo(CommandResponseHandler resp, Sampler sampler) {
+        SamplerOverhead overhead = sampler.getOverhead();
+        long runningTimeMillis = System.currentTimeMillis() - sampler.getStartTime();
+        if (runningTimeMillis <= 0) {
+            return;
+        }
+
+        long cpuTime = overhead.getCpuTime();
+        if (cpuTime != -1) {
+            double percentOfCore = (cpuTime / 1_000_000d) * 100d / runningTimeMillis;
+            double percentOfTotal = percentOfCore / Runtime.getRuntime().availableProcessors();
+            resp.replyPrefixed("Self overhead: [white]" + String.format(Locale.ENGLISH, "%.2f", percentOfTotal) + "%[gray] of total CPU " +
+                    "(" + String.format(Locale.ENGLISH, "%.2f", percentOfCore) + "% of one core)");
+        }
+
+        long allocatedBytes = overhead.getAllocatedBytes();
+        if (allocatedBytes != -1) {
+            resp.replyPrefixed("Allocated by the profiler: " + FormatUtil.formatBytes(allocatedBytes, "white", "") +
+                    "[gray] (" + FormatUtil.formatBytes((long) (allocatedBytes / (runningTimeMillis / 1000d))) + "/s)");
+        }
+
+        for (SamplerOverhead.Operation operation : SamplerOverhead.Operation.values()) {
+            long count = overhead.getCount(operation);
+            if (count == 0) {
+                continue;
+            }
+            double meanMillis = overhead.getMeanTime(operation) / 1_000_000d;
+            resp.replyPrefixed("  [white]" + operation.name().toLowerCase(Locale.ROOT).replace('_', ' ') + "[gray]: " +
+                    String.format(Locale.ENGLISH, "%.3f", meanMillis) + "ms avg over " + count + " calls");
+        }
+    }
+
     private void profilerOpen(SparkPlatform platform, CommandResponseHandler resp, Arguments arguments) {
         BytesocksClient bytesocksClient = platform.getBytesocksClient();
         if (bytesocksClient == null) {
@@ -421,15 +476,141 @@ public class SamplerModule implements CommandModule {
         }
     }
 
-    private Sampler.ExportProps getExportProps(SparkPlatform platform, CommandResponseHandler resp, Arguments arguments) {
+    private void profilerDiff(SparkPlatform platform, CommandResponseHandler resp, Arguments arguments) {
+        String baselineSource = Iterables.getFirst(arguments.stringFlag("baseline"), null);
+        String comparisonSource = Iterables.getFirst(arguments.stringFlag("comparison"), "live");
+        if (baselineSource == null) {
+            resp.replyPrefixed("Please provide the profile to compare against with '--baseline <source>'.");
+            resp.replyPrefixed("A source can be the name of a saved .sparkprofile file, 'live' for the active profiler, " +
+                    "or 'history:<from>..<to>' for a time range from the profiling history.");
+            return;
+        }
+
+        Sampler.ExportProps exportProps = getExportProps(platform, resp, arguments);
+        SparkSamplerProtos.SamplerData baseline = readDiffSource(platform, resp, baselineSource, exportProps);
+        if (baseline == null) {
+            return;
+        }
+        SparkSamplerProtos.SamplerData comparison = readDiffSource(platform, resp, comparisonSource, exportProps);
+        if (comparison == null) {
+            return;
+        }
+
+        SamplerDiff diff = SamplerDiff.compare(baseline, comparison, exportProps.mergeMode().get());
+
+        resp.replyPrefixed("[gold]Profile diff[gray] between [white]" + baselineSource + "[gray] and [white]" + comparisonSource + "[gray] (% of all samples):");
+        resp.replyPrefixed("[gold]Threads:");
+        for (ProfileDiff.Node thread : diff.threads().subList(0, Math.min(5, diff.threads().size()))) {
+            resp.replyPrefixed("  " + formatDelta(thread.totalDelta()) + " [white]" + thread.name() + "[gray] " +
+                    formatPercent(thread.baselineTotal()) + " -> " + formatPercent(thread.comparisonTotal()));
+        }
+
+        // self time is summed for each method wherever it appears in the tree
+        Map<String, double[]> selfTimes = new HashMap<>();
+        for (ProfileDiff.Node thread : diff.threads()) {
+            sumSelfTimes(thread.children(), selfTimes);
+        }
+        List<Map.Entry<String, double[]>> methods = new ArrayList<>(selfTimes.entrySet());
+        methods.sort(Comparator.comparingDouble((Map.Entry<String, double[]> e) -> Math.abs(e.getValue()[1] - e.getValue()[0])).reversed());
+
+        resp.replyPrefixed("[gold]Biggest changes in self time:");
+        for (Map.Entry<String, double[]> method : methods.subList(0, Math.min(10, methods.size()))) {
+            double[] times = method.getValue();
+            resp.replyPrefixed("  " + formatDelta(times[1] - times[0]) + " [white]" + method.getKey() + "[gray] " +
+                    formatPercent(times[0]) + " -> " + formatPercent(times[1]));
+        }
+
+        if (arguments.boolFlag("save-to-file")) {
+            Path file = platform.resolveSaveFile("diff", "json");
+            try (JsonWriter writer = new JsonWriter(Files.newBufferedWriter(file, StandardCharsets.UTF_8))) {
+                diff.writeJson(writer);
+                resp.replyPrefixed("The full diff tree has been written to: " + file);
+            } catch (IOException e) {
+                resp.replyPrefixed("[red]An error occurred whilst saving the diff.");
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static SparkSamplerProtos.SamplerData readDiffSource(SparkPlatform platform, CommandResponseHandler resp, String source, Sampler.ExportProps exportProps) {
+        if (source.equals("live")) {
+            Sampler sampler = platform.getSamplerContainer().getActiveSampler();
+            if (sampler == null) {
+                resp.replyPrefixed("[red]There isn't an active profiler running.");
+                return null;
+            }
+            return sampler.toProto(platform, exportProps);
+        }
+
+        if (source.startsWith("history:")) {
+            String[] range = source.substring("history:".length()).split("\\.\\.", 2);
+            long now = System.currentTimeMillis();
+            long from = HistoryModule.parseTime(range[0].trim(), now);
+            long to = range.length == 2 ? HistoryModule.parseTime(range[1].trim(), now) : now;
+            if (from == -1 || to == -1 || from > to) {
+                resp.replyPrefixed("[red]Invalid time range '" + source + "', expected e.g. 'history:03:00..03:30' or 'history:2h..1h'.");
+                return null;
+            }
+
+            try {
+                HistoryProfile profile = platform.getProfilingHistory().read(from, to);
+                if (profile == null) {
+                    resp.replyPrefixed("[red]There is no profiling history for '" + source + "'.");
+                    return null;
+                }
+                return profile.toProto(platform, exportProps);
+            } catch (IOException e) {
+                resp.replyPrefixed("[red]An error occurred whilst reading the profiling history.");
+                e.printStackTrace();
+                return null;
+            }
+        }
+
+        // a saved profile, relative to the plugin directory unless an absolute path is given
+        Path file = platform.getPlugin().getPluginDirectory().resolve(source);
+        if (!Files.exists(file) && !source.endsWith(".sparkprofile")) {
+            file = platform.getPlugin().getPluginDirectory().resolve(source + ".sparkprofile");
+        }
+        try (InputStream in = Files.newInputStream(file)) {
+            return SparkSamplerProtos.SamplerData.parseFrom(in);
+        } catch (NoSuchFileException e) {
+            resp.replyPrefixed("[red]Unable to find a saved profile called '" + source + "'.");
+            return null;
+        } catch (IOException e) {
+            resp.replyPrefixed("[red]An error occurred whilst reading the profile '" + source + "'.");
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private static void sumSelfTimes(List<ProfileDiff.Node> nodes, Map<String, double[]> selfTimes) {
+        for (ProfileDiff.Node node : nodes) {
+            double[] times = selfTimes.computeIfAbsent(node.name(), n -> new double[2]);
+            times[0] += node.baselineSelf();
+            times[1] += node.comparisonSelf();
+            sumSelfTimes(node.children(), selfTimes);
+        }
+    }
+
+    private static String formatPercent(double fraction) {
+        return String.format(Locale.ENGLISH, "%.2f%%", fraction * 100);
+    }
+
+    private static String formatDelta(double delta) {
+        String color = delta > 0 ? "[red]" : "[green]";
+        return color + String.format(Locale.ENGLISH, "%+.2f%%", delta * 100);
+    }
+
+    static Sampler.ExportProps getExportProps(SparkPlatform platform, CommandResponseHandler resp, Arguments arguments) {
         Sampler.ExportProps exportProps = new Sampler.ExportProps()
                 .comment(Iterables.getFirst(arguments.stringFlag("comment"), null))
-                .mergeMode(() -> {
+                .mergeMode(Suppliers.memoize(() -> {
+                    // shared between exports (e.g. by the live viewer), so classes are only read once
                     MethodDisambiguator methodDisambiguator = new MethodDisambiguator();
                     return arguments.boolFlag("separate-parent-calls")
                             ? MergeMode.separateParentCalls(methodDisambiguator)
                             : MergeMode.sameMethod(methodDisambiguator);
-                })
+                }))
                 .classSourceLookup(() -> ClassSourceLookup.create(platform));
         if (resp.sender() == null){
             exportProps.creator(new Data("mindustry server", null));
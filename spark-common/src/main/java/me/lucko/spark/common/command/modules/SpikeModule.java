@@ -0,0 +1,153 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.command.modules;
+
+import me.lucko.spark.common.SparkPlatform;
+import me.lucko.spark.common.activitylog.Activity;
+import me.lucko.spark.common.command.Arguments;
+import me.lucko.spark.common.command.Command;
+import me.lucko.spark.common.command.CommandModule;
+import me.lucko.spark.common.command.CommandResponseHandler;
+import me.lucko.spark.common.sampler.Sampler;
+import me.lucko.spark.common.sampler.spike.SpikeProfile;
+import me.lucko.spark.common.sampler.spike.SpikeRecorder;
+import me.lucko.spark.common.util.FormatUtil;
+import me.lucko.spark.common.util.MediaTypes;
+import me.lucko.spark.proto.SparkSamplerProtos;
+import mindustry.gen.Player;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.Consumer;
+
+public class SpikeModule implements CommandModule {
+
+    @Override
+    public void registerCommands(Consumer<Command> consumer) {
+        consumer.accept(Command.builder()
+                .aliases("spikes", "spike")
+                .allowSubCommand(true)
+                .argumentUsage("upload", "id", "spike id")
+                .argumentUsage("upload", "save-to-file", null)
+                .argumentUsage("clear", "", null)
+                .executor(this::spikes)
+                .build()
+        );
+    }
+
+    private void spikes(SparkPlatform platform, Player sender, CommandResponseHandler resp, Arguments arguments) {
+        SpikeRecorder recorder = platform.getSpikeRecorder();
+        if (!recorder.isRunning()) {
+            resp.replyPrefixed("[red]The spike recorder is not running.");
+            resp.replyPrefixed("It needs a platform which reports tick durations, and can be enabled with the 'spikeRecorder' config option.");
+            return;
+        }
+
+        String subCommand = arguments.subCommand() == null ? "" : arguments.subCommand();
+        if (subCommand.equals("upload") || arguments.boolFlag("upload")) {
+            spikesUpload(platform, resp, arguments, recorder);
+        } else if (subCommand.equals("clear") || arguments.boolFlag("clear")) {
+            recorder.clearSpikes();
+            resp.replyPrefixed("Cleared the recorded spikes.");
+        } else {
+            spikesList(platform, resp, recorder);
+        }
+    }
+
+    private void spikesList(SparkPlatform platform, CommandResponseHandler resp, SpikeRecorder recorder) {
+        List<SpikeProfile> spikes = recorder.getSpikes();
+        if (spikes.isEmpty()) {
+            resp.replyPrefixed("No ticks over " + recorder.getThreshold() + "ms have been recorded yet.");
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        resp.replyPrefixed("[gold]Recorded lag spikes[gray] (ticks over " + recorder.getThreshold() + "ms):");
+        for (int i = 0; i < spikes.size(); i++) {
+            SpikeProfile spike = spikes.get(i);
+            long ago = (now - spike.getStartTime()) / 1000L;
+            resp.replyPrefixed(String.format(Locale.ENGLISH, "  [white]#%d[gray] %s ago - slowest tick [white]%.1fms[gray]%s",
+                    i + 1, FormatUtil.formatSeconds(ago), spike.getMaxDuration(),
+                    spike.getSlowTicks() > 1 ? " (" + spike.getSlowTicks() + " slow ticks)" : ""
+            ));
+        }
+        resp.replyPrefixed("To upload a spike, run:");
+        resp.replyPrefixed("  [white]/" + platform.getPlugin().getCommandName() + " spikes upload --id <id>");
+    }
+
+    private void spikesUpload(SparkPlatform platform, CommandResponseHandler resp, Arguments arguments, SpikeRecorder recorder) {
+        List<SpikeProfile> spikes = recorder.getSpikes();
+        if (spikes.isEmpty()) {
+            resp.replyPrefixed("No ticks over " + recorder.getThreshold() + "ms have been recorded yet.");
+            return;
+        }
+
+        // defaults to the most recent spike
+        int id = arguments.intFlag("id");
+        if (id == -1) {
+            id = spikes.size();
+        }
+        if (id < 1 || id > spikes.size()) {
+            resp.replyPrefixed("[red]Unknown spike id " + id + ", expected a value between 1 and " + spikes.size() + ".");
+            return;
+        }
+
+        SpikeProfile spike = spikes.get(id - 1);
+        Sampler.ExportProps exportProps = SamplerModule.getExportProps(platform, resp, arguments);
+        SparkSamplerProtos.SamplerData output = spike.toProto(platform, exportProps);
+
+        boolean saveToFile = arguments.boolFlag("save-to-file");
+        if (!saveToFile) {
+            try {
+                String key = platform.getBytebinClient().postContent(output, MediaTypes.SPARK_SAMPLER_MEDIA_TYPE).key();
+                String url = platform.getViewerUrl() + key;
+
+                resp.broadcastPrefixed("[gold]Lag spike profile upload complete!");
+                resp.broadcast("[gray]" + url);
+
+                platform.getActivityLog().addToLog(Activity.urlActivity(System.currentTimeMillis(), "Lag spike", url));
+            } catch (Exception e) {
+                resp.broadcastPrefixed("[red]An error occurred whilst uploading the results. Attempting to save to disk instead.");
+                e.printStackTrace();
+                saveToFile = true;
+            }
+        }
+
+        if (saveToFile) {
+            Path file = platform.resolveSaveFile("spike", "sparkprofile");
+            try {
+                Files.write(file, output.toByteArray());
+
+                resp.broadcastPrefixed("[gold]Lag spike profile save complete!");
+                resp.broadcastPrefixed("Data has been written to: " + file);
+                resp.broadcastPrefixed("[gray]You can view the profile file using the web app @ " + platform.getViewerUrl());
+
+                platform.getActivityLog().addToLog(Activity.fileActivity(System.currentTimeMillis(), "Lag spike", file.toString()));
+            } catch (IOException e) {
+                resp.broadcastPrefixed("[red]An error occurred whilst saving the data.");
+                e.printStackTrace();
+            }
+        }
+    }
+}
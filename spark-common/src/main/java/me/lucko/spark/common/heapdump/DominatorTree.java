@@ -0,0 +1,184 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.heapdump;
+
+import java.util.Arrays;
+
+/**
+ * Computes the immediate dominators of an object graph, using the Lengauer-Tarjan algorithm.
+ *
+ * <p>The graph is given in compressed form: the successors of node {@code n} are
+ * {@code edges[edgeStart[n]]} to {@code edges[edgeStart[n + 1] - 1]}. Every array is indexed
+ * by int, and the depth-first search and path compression are iterative, so heap graphs with
+ * tens of millions of nodes (and reference chains just as long) can be processed.</p>
+ */
+public final class DominatorTree {
+
+    /** The immediate dominator of each node, or -1 for the root and unreachable nodes */
+    private final int[] idom;
+    /** The reachable nodes, in depth-first order (dominators always come before the nodes they dominate) */
+    private final int[] order;
+
+    private DominatorTree(int[] idom, int[] order) {
+        this.idom = idom;
+        this.order = order;
+    }
+
+    public int[] getImmediateDominators() {
+        return this.idom;
+    }
+
+    public int[] getOrder() {
+        return this.order;
+    }
+
+    /**
+     * Computes the dominator tree of a graph.
+     *
+     * @param nodes the number of nodes
+     * @param edgeStart the index into {@code edges} of each node's first successor, with a final entry for the end
+     * @param edges the successors of each node
+     * @param root the root node
+     * @return the dominator tree
+     */
+    public static DominatorTree compute(int nodes, int[] edgeStart, int[] edges, int root) {
+        // predecessors, in the same compressed form
+        int[] predStart = new int[nodes + 1];
+        for (int i = 0; i < edgeStart[nodes]; i++) {
+            predStart[edges[i] + 1]++;
+        }
+        for (int i = 0; i < nodes; i++) {
+            predStart[i + 1] += predStart[i];
+        }
+        int[] preds = new int[edgeStart[nodes]];
+        int[] cursor = Arrays.copyOf(predStart, nodes);
+        for (int n = 0; n < nodes; n++) {
+            for (int i = edgeStart[n]; i < edgeStart[n + 1]; i++) {
+                preds[cursor[edges[i]]++] = n;
+            }
+        }
+        cursor = null;
+
+        // depth-first numbering; from here on nodes are referred to by their number
+        int[] number = new int[nodes]; // node -> number + 1, or 0 if unreachable
+        int[] vertex = new int[nodes]; // number -> node
+        int[] parent = new int[nodes];
+        int count = 0;
+        {
+            int[] stack = new int[nodes];
+            int[] stackEdge = new int[nodes];
+            int depth = 0;
+            stack[0] = root;
+            stackEdge[0] = edgeStart[root];
+            number[root] = ++count;
+            vertex[0] = root;
+            parent[0] = -1;
+            while (depth >= 0) {
+                int n = stack[depth];
+                if (stackEdge[depth] == edgeStart[n + 1]) {
+                    depth--;
+                    continue;
+                }
+                int next = edges[stackEdge[depth]++];
+                if (number[next] == 0) {
+                    vertex[count] = next;
+                    parent[count] = number[n] - 1;
+                    number[next] = ++count;
+                    depth++;
+                    stack[depth] = next;
+                    stackEdge[depth] = edgeStart[next];
+                }
+            }
+        }
+
+        int[] semi = new int[count];
+        int[] label = new int[count];
+        int[] ancestor = new int[count];
+        int[] dom = new int[count];
+        int[] bucketHead = new int[count];
+        int[] bucketNext = new int[count];
+        for (int v = 0; v < count; v++) {
+            semi[v] = v;
+            label[v] = v;
+        }
+        Arrays.fill(ancestor, -1);
+        Arrays.fill(bucketHead, -1);
+        int[] compressStack = new int[Math.max(count, 1)];
+
+        for (int w = count - 1; w > 0; w--) {
+            int node = vertex[w];
+            for (int i = predStart[node]; i < predStart[node + 1]; i++) {
+                int p = number[preds[i]] - 1;
+                if (p < 0) {
+                    continue;
+                }
+                int u = eval(p, ancestor, label, semi, compressStack);
+                if (semi[u] < semi[w]) {
+                    semi[w] = semi[u];
+                }
+            }
+            bucketNext[w] = bucketHead[semi[w]];
+            bucketHead[semi[w]] = w;
+
+            int p = parent[w];
+            ancestor[w] = p;
+
+            for (int v = bucketHead[p]; v != -1; v = bucketNext[v]) {
+                int u = eval(v, ancestor, label, semi, compressStack);
+                dom[v] = semi[u] < semi[v] ? u : p;
+            }
+            bucketHead[p] = -1;
+        }
+        for (int w = 1; w < count; w++) {
+            if (dom[w] != semi[w]) {
+                dom[w] = dom[dom[w]];
+            }
+        }
+
+        int[] idom = new int[nodes];
+        Arrays.fill(idom, -1);
+        for (int w = 1; w < count; w++) {
+            idom[vertex[w]] = vertex[dom[w]];
+        }
+        return new DominatorTree(idom, Arrays.copyOf(vertex, count));
+    }
+
+    private static int eval(int v, int[] ancestor, int[] label, int[] semi, int[] stack) {
+        if (ancestor[v] == -1) {
+            return v;
+        }
+
+        // path compression, from the top of the chain down
+        int size = 0;
+        for (int x = v; ancestor[ancestor[x]] != -1; x = ancestor[x]) {
+            stack[size++] = x;
+        }
+        while (size > 0) {
+            int x = stack[--size];
+            int a = ancestor[x];
+            if (semi[label[a]] < semi[label[x]]) {
+                label[x] = label[a];
+            }
+            ancestor[x] = ancestor[a];
+        }
+        return label[v];
+    }
+}
@@ -20,12 +20,26 @@
 
 package me.lucko.spark.common.heapdump;
 
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.lang.management.ManagementFactory;
 import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
+import javax.management.Descriptor;
 import javax.management.JMX;
+import javax.management.MBeanOperationInfo;
 import javax.management.MBeanServer;
 import javax.management.ObjectName;
 
@@ -37,6 +51,10 @@ public enum HeapDump {
 
     /** The object name of the com.sun.management.HotSpotDiagnosticMXBean */
     private static final String DIAGNOSTIC_BEAN = "com.sun.management:type=HotSpotDiagnostic";
+    /** The object name of the com.sun.management.DiagnosticCommandMBean */
+    private static final String DIAGNOSTIC_COMMAND_BEAN = "com.sun.management:type=DiagnosticCommand";
+    /** The name of the diagnostic command which creates heap dumps */
+    private static final String HEAP_DUMP_COMMAND = "GC.heap_dump";
 
     /**
      * Creates a heap dump at the given output path.
@@ -55,6 +73,107 @@ public enum HeapDump {
         }
     }
 
+    /**
+     * Creates a heap dump at the given output path, using the {@value #HEAP_DUMP_COMMAND}
+     * diagnostic command where the JVM provides it.
+     *
+     * <p>Unlike {@link #dumpHeap(Path, boolean)}, the diagnostic command can gzip the dump
+     * as it is written (JDK 15+), and write it using several threads (JDK 21+), so the file
+     * doesn't need to be read back afterwards to compress it. Options which the JVM doesn't
+     * support are left out, and if the command isn't available at all the dump is created
+     * using {@link #dumpHeap(Path, boolean)} instead.</p>
+     *
+     * <p>The command is invoked through the DiagnosticCommandMBean if it is exported there,
+     * otherwise by running the JDK's jcmd tool against this process.</p>
+     *
+     * @param outputPath the path to write the snapshot to. ".gz" is appended if the dump is compressed
+     * @param live if true dump only live objects i.e. objects that are reachable from others
+     * @param compressionLevel the gzip compression level (1-9), or 0 to not compress the dump
+     * @param threads the number of threads to write the dump with, or 0 to let the JVM decide
+     * @return the result
+     * @throws Exception catch all
+     */
+    public static Result dumpHeap(Path outputPath, boolean live, int compressionLevel, int threads) throws Exception {
+        DiagnosticCommand command = isOpenJ9() ? null : findHeapDumpCommand();
+
+        List<String> args = new ArrayList<>();
+        boolean compressed = false;
+        if (command != null && !live && !command.getOptions().contains("-all")) {
+            // older JVMs can only dump live objects using the command
+            command = null;
+        }
+        if (command != null) {
+            Set<String> options = command.getOptions();
+            if (!live) {
+                args.add("-all");
+            }
+            if (compressionLevel > 0 && options.contains("-gz")) {
+                args.add("-gz=" + Math.min(compressionLevel, 9));
+                compressed = true;
+            }
+            if (threads > 0 && options.contains("-parallel")) {
+                args.add("-parallel=" + threads);
+            }
+        }
+
+        Path file = compressed ? outputPath.resolveSibling(outputPath.getFileName() + ".gz") : outputPath;
+        String outputPathString = file.toAbsolutePath().normalize().toString();
+        args.add(outputPathString);
+
+        PauseTimer pauseTimer = new PauseTimer();
+        long start = System.nanoTime();
+        try {
+            if (command != null) {
+                boolean existed = Files.exists(file);
+                try {
+                    command.execute(args.toArray(new String[0]));
+                } catch (Exception e) {
+                    // e.g. the attach mechanism is disabled, fall back to the MXBean
+                    if (!existed) {
+                        Files.deleteIfExists(file);
+                    }
+                    file = outputPath;
+                    compressed = false;
+                    dumpHeap(file, live);
+                }
+            } else {
+                dumpHeap(file, live);
+            }
+        } finally {
+            pauseTimer.stop();
+        }
+        long duration = System.nanoTime() - start;
+
+        return new Result(file, compressed, TimeUnit.NANOSECONDS.toMillis(pauseTimer.getLongestPause()), TimeUnit.NANOSECONDS.toMillis(duration));
+    }
+
+    private static DiagnosticCommand findHeapDumpCommand() {
+        try {
+            MBeanServer beanServer = ManagementFactory.getPlatformMBeanServer();
+            ObjectName commandBeanName = ObjectName.getInstance(DIAGNOSTIC_COMMAND_BEAN);
+            for (MBeanOperationInfo operation : beanServer.getMBeanInfo(commandBeanName).getOperations()) {
+                Descriptor descriptor = operation.getDescriptor();
+                if (HEAP_DUMP_COMMAND.equals(descriptor.getFieldValue("dcmd.name"))) {
+                    Object arguments = descriptor.getFieldValue("dcmd.arguments");
+                    Set<String> options = new HashSet<>();
+                    if (arguments instanceof Descriptor) {
+                        options.addAll(Arrays.asList(((Descriptor) arguments).getFieldNames()));
+                    }
+                    return new MBeanDiagnosticCommand(beanServer, commandBeanName, operation.getName(), options);
+                }
+            }
+        } catch (Exception e) {
+            // ignore
+        }
+
+        // most JVMs don't export the heap dump command over JMX, but jcmd can run it
+        try {
+            return JcmdDiagnosticCommand.create();
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
     private static void dumpOpenJ9(String outputPathString) throws Exception {
         Class<?> dumpClass = Class.forName("com.ibm.jvm.Dump");
         Method heapDumpMethod = dumpClass.getMethod("heapDumpToFile", String.class);
@@ -82,4 +201,221 @@ public enum HeapDump {
         void dumpHeap(String outputFile, boolean live) throws IOException;
     }
 
+    /**
+     * The result of a heap dump created by {@link #dumpHeap(Path, boolean, int, int)}.
+     */
+    public static final class Result {
+        private final Path file;
+        private final boolean compressed;
+        private final long pauseMillis;
+        private final long durationMillis;
+
+        Result(Path file, boolean compressed, long pauseMillis, long durationMillis) {
+            this.file = file;
+            this.compressed = compressed;
+            this.pauseMillis = pauseMillis;
+            this.durationMillis = durationMillis;
+        }
+
+        /**
+         * Gets the file the heap dump was written to.
+         *
+         * @return the file
+         */
+        public Path getFile() {
+            return this.file;
+        }
+
+        /**
+         * Gets if the heap dump was gzipped as it was written.
+         *
+         * @return if the dump is compressed
+         */
+        public boolean isCompressed() {
+            return this.compressed;
+        }
+
+        /**
+         * Gets the longest time application threads were stopped for whilst the dump
+         * was created, in milliseconds.
+         *
+         * @return the pause duration
+         */
+        public long getPauseMillis() {
+            return this.pauseMillis;
+        }
+
+        /**
+         * Gets how long it took to create the dump, in milliseconds.
+         *
+         * @return the duration
+         */
+        public long getDurationMillis() {
+            return this.durationMillis;
+        }
+    }
+
+    /**
+     * A diagnostic command, and the options it accepts.
+     */
+    private interface DiagnosticCommand {
+        Set<String> getOptions();
+
+        String execute(String... args) throws Exception;
+    }
+
+    private static final class MBeanDiagnosticCommand implements DiagnosticCommand {
+        private final MBeanServer beanServer;
+        private final ObjectName beanName;
+        private final String operation;
+        private final Set<String> options;
+
+        MBeanDiagnosticCommand(MBeanServer beanServer, ObjectName beanName, String operation, Set<String> options) {
+            this.beanServer = beanServer;
+            this.beanName = beanName;
+            this.operation = operation;
+            this.options = options;
+        }
+
+        @Override
+        public Set<String> getOptions() {
+            return this.options;
+        }
+
+        @Override
+        public String execute(String... args) throws Exception {
+            return (String) this.beanServer.invoke(this.beanName, this.operation, new Object[]{args}, new String[]{String[].class.getName()});
+        }
+    }
+
+    private static final class JcmdDiagnosticCommand implements DiagnosticCommand {
+        private final String executable;
+        private final String pid;
+        private final Set<String> options;
+
+        private JcmdDiagnosticCommand(String executable, String pid, Set<String> options) {
+            this.executable = executable;
+            this.pid = pid;
+            this.options = options;
+        }
+
+        static JcmdDiagnosticCommand create() throws IOException {
+            String name = System.getProperty("os.name").startsWith("Windows") ? "jcmd.exe" : "jcmd";
+            Path javaHome = Paths.get(System.getProperty("java.home"));
+
+            // on Java 8, java.home points at the jre directory inside the JDK
+            Path executable = javaHome.resolve("bin").resolve(name);
+            if (!Files.isExecutable(executable) && javaHome.getParent() != null) {
+                executable = javaHome.getParent().resolve("bin").resolve(name);
+            }
+            if (!Files.isExecutable(executable)) {
+                throw new IOException("jcmd not found");
+            }
+
+            String runtimeName = ManagementFactory.getRuntimeMXBean().getName();
+            String pid = runtimeName.substring(0, runtimeName.indexOf('@'));
+
+            // the help output lists options as "\t-name : [optional] description (TYPE, default)"
+            Set<String> options = new HashSet<>();
+            for (String line : run(executable.toString(), pid, "help", HEAP_DUMP_COMMAND)) {
+                line = line.trim();
+                int separator = line.indexOf(" : ");
+                if (line.startsWith("-") && separator != -1) {
+                    options.add(line.substring(0, separator));
+                }
+            }
+            if (options.isEmpty()) {
+                throw new IOException("Unable to read " + HEAP_DUMP_COMMAND + " options");
+            }
+
+            return new JcmdDiagnosticCommand(executable.toString(), pid, options);
+        }
+
+        @Override
+        public Set<String> getOptions() {
+            return this.options;
+        }
+
+        @Override
+        public String execute(String... args) throws Exception {
+            List<String> command = new ArrayList<>();
+            command.add(this.executable);
+            command.add(this.pid);
+            command.add(HEAP_DUMP_COMMAND);
+            command.addAll(Arrays.asList(args));
+
+            String output = String.join("\n", run(command.toArray(new String[0])));
+            // jcmd reports most errors from the target JVM on stdout with a zero exit code
+            if (!output.contains("Heap dump file created")) {
+                throw new IOException(output);
+            }
+            return output;
+        }
+
+        private static List<String> run(String... command) throws IOException {
+            Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+            List<String> lines = new ArrayList<>();
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    lines.add(line);
+                }
+            }
+
+            try {
+                if (process.waitFor() != 0) {
+                    throw new IOException(String.join("\n", lines));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            }
+            return lines;
+        }
+    }
+
+    /**
+     * Measures the longest stop-the-world pause over a period of time.
+     *
+     * <p>A thread repeatedly parks for a short interval. During a safepoint it can't resume
+     * running Java code, so the longest gap between its wake ups is (within the interval)
+     * the longest time that application threads were stopped for.</p>
+     */
+    private static final class PauseTimer implements Runnable {
+        private static final long INTERVAL = TimeUnit.MILLISECONDS.toNanos(1);
+
+        private final Thread thread;
+        private volatile boolean running = true;
+        private volatile long longestPause = 0;
+
+        PauseTimer() {
+            this.thread = new Thread(this, "spark-heap-dump-pause-timer");
+            this.thread.setDaemon(true);
+            this.thread.start();
+        }
+
+        @Override
+        public void run() {
+            long last = System.nanoTime();
+            while (this.running) {
+                LockSupport.parkNanos(INTERVAL);
+                long now = System.nanoTime();
+                long pause = now - last - INTERVAL;
+                if (pause > this.longestPause) {
+                    this.longestPause = pause;
+                }
+                last = now;
+            }
+        }
+
+        void stop() throws InterruptedException {
+            this.running = false;
+            this.thread.join();
+        }
+
+        long getLongestPause() {
+            return this.longestPause;
+        }
+    }
+
 }
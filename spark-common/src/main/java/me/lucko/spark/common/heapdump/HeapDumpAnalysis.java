@@ -0,0 +1,308 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.heapdump;
+
+import me.lucko.spark.common.Data;
+import me.lucko.spark.proto.SparkHeapProtos.HeapData;
+import me.lucko.spark.proto.SparkHeapProtos.HeapEntry;
+import me.lucko.spark.proto.SparkHeapProtos.HeapMetadata;
+import me.lucko.spark.proto.SparkHeapProtos.HeapObject;
+import me.lucko.spark.proto.SparkHeapProtos.HeapPathElement;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * The result of analysing a .hprof heap dump.
+ *
+ * <p>Unlike a {@link HeapDumpSummary}, which only knows the shallow size of each type of object,
+ * the analysis computes the dominator tree of the heap, so it can tell how much memory each
+ * object (and each class of objects) is keeping alive, and through which references.</p>
+ *
+ * <p>Object sizes are estimated from the contents of the dump, which doesn't record the exact
+ * layout (e.g. compressed pointers) the VM used.</p>
+ */
+public final class HeapDumpAnalysis {
+
+    /**
+     * Analyses a heap dump.
+     *
+     * @param file the .hprof file
+     * @param progress receives a message as each stage of the analysis starts
+     * @return the analysis
+     * @throws IOException if the file could not be read
+     * @throws IllegalStateException if there isn't enough memory available to analyse the dump
+     */
+    public static HeapDumpAnalysis analyse(Path file, Consumer<String> progress) throws IOException {
+        try (HprofReader reader = new HprofReader(file)) {
+            return new HprofAnalyser(reader, progress).analyse();
+        }
+    }
+
+    /** The classes in the heap, ordered by retained size */
+    private final List<Entry> entries;
+    /** The objects at the top of the dominator tree with the largest retained sizes */
+    private final List<RetainedObject> dominators;
+    private final int objectCount;
+    private final long reachableSize;
+
+    HeapDumpAnalysis(List<Entry> entries, List<RetainedObject> dominators, int objectCount, long reachableSize) {
+        this.entries = entries;
+        this.dominators = dominators;
+        this.objectCount = objectCount;
+        this.reachableSize = reachableSize;
+    }
+
+    public List<Entry> getEntries() {
+        return this.entries;
+    }
+
+    public List<RetainedObject> getDominators() {
+        return this.dominators;
+    }
+
+    public int getObjectCount() {
+        return this.objectCount;
+    }
+
+    public long getReachableSize() {
+        return this.reachableSize;
+    }
+
+    public HeapData toProto(HeapMetadata metadata) {
+        HeapData.Builder proto = HeapData.newBuilder();
+        proto.setMetadata(metadata);
+
+        int order = 1;
+        for (Entry entry : this.entries) {
+            proto.addEntries(entry.toProto(order++));
+        }
+        for (RetainedObject object : this.dominators) {
+            proto.addDominators(object.toProto());
+        }
+        return proto.build();
+    }
+
+    /**
+     * Analyses a heap dump outside of the server, e.g. when it is too large to analyse in-process.
+     *
+     * <p>Usage: {@code java -cp spark.jar me.lucko.spark.common.heapdump.HeapDumpAnalysis <file.hprof> [output.sparkheap]}</p>
+     *
+     * @param args the arguments
+     * @throws Exception if the analysis failed
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0) {
+            System.err.println("Usage: java -cp spark.jar " + HeapDumpAnalysis.class.getName() + " <file.hprof> [output.sparkheap]");
+            System.exit(1);
+        }
+
+        Path file = Paths.get(args[0]);
+        Path output = args.length > 1 ? Paths.get(args[1]) : file.resolveSibling(file.getFileName() + ".sparkheap");
+
+        HeapDumpAnalysis analysis = analyse(file, System.out::println);
+        System.out.println(analysis.getObjectCount() + " objects, " + (analysis.getReachableSize() >> 20) + "MB reachable");
+        for (RetainedObject object : analysis.getDominators()) {
+            System.out.println("  " + (object.getRetainedSize() >> 10) + "KB  " + object.getType());
+        }
+
+        HeapMetadata metadata = HeapMetadata.newBuilder()
+                .setCreator(new Data("offline analysis", null).toProto())
+                .build();
+        Files.write(output, analysis.toProto(metadata).toByteArray());
+        System.out.println("Written to " + output + ", which can be opened with the viewer web-app");
+    }
+
+    public static final class Entry {
+        static final Comparator<Entry> BY_RETAINED_SIZE = Comparator.comparingLong(Entry::getRetainedBytes)
+                .thenComparingLong(Entry::getBytes)
+                .reversed();
+
+        private final int instances;
+        private final long bytes;
+        private final long retainedBytes;
+        private final String type;
+
+        Entry(int instances, long bytes, long retainedBytes, String type) {
+            this.instances = instances;
+            this.bytes = bytes;
+            this.retainedBytes = retainedBytes;
+            this.type = type;
+        }
+
+        public int getInstances() {
+            return this.instances;
+        }
+
+        public long getBytes() {
+            return this.bytes;
+        }
+
+        /**
+         * Gets the memory retained by all instances of the type together, not counting
+         * instances which are retained by another instance.
+         *
+         * @return the retained size
+         */
+        public long getRetainedBytes() {
+            return this.retainedBytes;
+        }
+
+        public String getType() {
+            return this.type;
+        }
+
+        public HeapEntry toProto(int order) {
+            return HeapEntry.newBuilder()
+                    .setOrder(order)
+                    .setInstances(this.instances)
+                    .setSize(this.bytes)
+                    .setRetainedSize(this.retainedBytes)
+                    .setType(this.type)
+                    .build();
+        }
+    }
+
+    /**
+     * An object in the dominator tree, and the path to it from a GC root.
+     */
+    public static final class RetainedObject {
+        private final String type;
+        private final long id;
+        private final long size;
+        private final long retainedSize;
+        private final String rootType;
+        private final List<PathElement> path;
+        private final List<RetainedObject> children;
+
+        RetainedObject(String type, long id, long size, long retainedSize, String rootType, List<PathElement> path, List<RetainedObject> children) {
+            this.type = type;
+            this.id = id;
+            this.size = size;
+            this.retainedSize = retainedSize;
+            this.rootType = rootType;
+            this.path = path;
+            this.children = children;
+        }
+
+        public String getType() {
+            return this.type;
+        }
+
+        public long getId() {
+            return this.id;
+        }
+
+        public long getSize() {
+            return this.size;
+        }
+
+        public long getRetainedSize() {
+            return this.retainedSize;
+        }
+
+        public String getRootType() {
+            return this.rootType;
+        }
+
+        public List<PathElement> getPath() {
+            return this.path;
+        }
+
+        public List<RetainedObject> getChildren() {
+            return this.children;
+        }
+
+        public HeapObject toProto() {
+            HeapObject.Builder proto = HeapObject.newBuilder()
+                    .setType(this.type)
+                    .setId(this.id)
+                    .setSize(this.size)
+                    .setRetainedSize(this.retainedSize);
+            if (this.rootType != null) {
+                proto.setRootType(this.rootType);
+            }
+            for (PathElement element : this.path) {
+                proto.addPath(element.toProto());
+            }
+            for (RetainedObject child : this.children) {
+                proto.addChildren(child.toProto());
+            }
+            return proto.build();
+        }
+    }
+
+    /**
+     * An object on the path from a GC root to a {@link RetainedObject}.
+     */
+    public static final class PathElement {
+        private final String type;
+        private final long id;
+        private final String field;
+        private final String rootType;
+
+        PathElement(String type, long id, String field, String rootType) {
+            this.type = type;
+            this.id = id;
+            this.field = field;
+            this.rootType = rootType;
+        }
+
+        public String getType() {
+            return this.type;
+        }
+
+        public long getId() {
+            return this.id;
+        }
+
+        /**
+         * Gets the field (or array index) of this object which refers to the next object on the path.
+         *
+         * @return the field, or null if unknown
+         */
+        public String getField() {
+            return this.field;
+        }
+
+        public String getRootType() {
+            return this.rootType;
+        }
+
+        public HeapPathElement toProto() {
+            HeapPathElement.Builder proto = HeapPathElement.newBuilder()
+                    .setType(this.type)
+                    .setId(this.id);
+            if (this.field != null) {
+                proto.setField(this.field);
+            }
+            if (this.rootType != null) {
+                proto.setRootType(this.rootType);
+            }
+            return proto.build();
+        }
+    }
+}
@@ -30,12 +30,8 @@ import mindustry.gen.Player;
 import org.objectweb.asm.Type;
 
 import java.lang.management.ManagementFactory;
-import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Objects;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-import java.util.stream.Collectors;
 
 import javax.management.JMX;
 import javax.management.MBeanServer;
@@ -51,21 +47,20 @@ public final class HeapDumpSummary {
 
     /** The object name of the com.sun.management.DiagnosticCommandMBean */
     private static final String DIAGNOSTIC_BEAN = "com.sun.management:type=DiagnosticCommand";
-    /** A regex pattern representing the expected format of the raw heap output */
-    private static final Pattern OUTPUT_FORMAT = Pattern.compile("^\\s*(\\d+):\\s*(\\d+)\\s*(\\d+)\\s*([^\\s]+).*$");
 
     /**
      * Obtains the raw heap data output from the DiagnosticCommandMBean.
      *
+     * @param args the arguments to pass to the GC.class_histogram command
      * @return the raw output
      * @throws Exception lots could go wrong!
      */
-    private static String getRawHeapData() throws Exception {
+    static String getRawHeapData(String... args) throws Exception {
         MBeanServer beanServer = ManagementFactory.getPlatformMBeanServer();
         ObjectName diagnosticBeanName = ObjectName.getInstance(DIAGNOSTIC_BEAN);
 
         DiagnosticCommandMXBean proxy = JMX.newMXBeanProxy(beanServer, diagnosticBeanName, DiagnosticCommandMXBean.class);
-        return proxy.gcClassHistogram(new String[0]);
+        return proxy.gcClassHistogram(args);
     }
 
     /**
@@ -74,7 +69,7 @@ public final class HeapDumpSummary {
      * @param type the type
      * @return the class name
      */
-    private static String typeToClassName(String type) {
+    static String typeToClassName(String type) {
         try {
             return Type.getType(type).getClassName();
         } catch (IllegalArgumentException e) {
@@ -96,27 +91,11 @@ public final class HeapDumpSummary {
             throw new RuntimeException("Unable to get heap dump", e);
         }
 
-        return new HeapDumpSummary(Arrays.stream(rawOutput.split("\n"))
-                .map(line -> {
-                    Matcher matcher = OUTPUT_FORMAT.matcher(line);
-                    if (!matcher.matches()) {
-                        return null;
-                    }
-
-                    try {
-                        return new Entry(
-                                Integer.parseInt(matcher.group(1)),
-                                Integer.parseInt(matcher.group(2)),
-                                Long.parseLong(matcher.group(3)),
-                                typeToClassName(matcher.group(4))
-                        );
-                    } catch (Exception e) {
-                        new IllegalArgumentException("Exception parsing line: " + line, e).printStackTrace();
-                        return null;
-                    }
-                })
-                .filter(Objects::nonNull)
-                .collect(Collectors.toList()));
+        List<Entry> entries = new ArrayList<>();
+        HeapHistogramParser.parse(rawOutput, (order, instances, bytes, output, nameStart, nameEnd) ->
+                entries.add(new Entry(order, (int) instances, bytes, typeToClassName(output.substring(nameStart, nameEnd))))
+        );
+        return new HeapDumpSummary(entries);
     }
 
     /** The entries in this heap dump */
@@ -0,0 +1,125 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.heapdump;
+
+/**
+ * Parses the output of the GC.class_histogram diagnostic command.
+ *
+ * <p>The output is scanned line by line in place - nothing is allocated for a line unless the
+ * visitor asks for it - so histograms with thousands of classes can be parsed repeatedly
+ * without producing much garbage of their own.</p>
+ */
+final class HeapHistogramParser {
+    private HeapHistogramParser() {
+    }
+
+    /**
+     * Parses the entries in a histogram. Lines which aren't entries (the header, the total) are skipped.
+     *
+     * <p>The expected format of an entry is {@code "   1:    12345    1234567  [B (java.base@17)"}.</p>
+     *
+     * @param output the histogram output
+     * @param visitor the visitor to call for each entry
+     */
+    static void parse(String output, Visitor visitor) {
+        int length = output.length();
+        int pos = 0;
+        while (pos < length) {
+            int lineEnd = output.indexOf('\n', pos);
+            if (lineEnd == -1) {
+                lineEnd = length;
+            }
+            parseLine(output, pos, lineEnd, visitor);
+            pos = lineEnd + 1;
+        }
+    }
+
+    private static void parseLine(String s, int pos, int end, Visitor visitor) {
+        pos = skipWhitespace(s, pos, end);
+        int orderEnd = skipDigits(s, pos, end);
+        if (orderEnd == pos || orderEnd == end || s.charAt(orderEnd) != ':') {
+            return;
+        }
+        int order = (int) parseLong(s, pos, orderEnd);
+
+        pos = skipWhitespace(s, orderEnd + 1, end);
+        int instancesEnd = skipDigits(s, pos, end);
+        if (instancesEnd == pos) {
+            return;
+        }
+        long instances = parseLong(s, pos, instancesEnd);
+
+        pos = skipWhitespace(s, instancesEnd, end);
+        int bytesEnd = skipDigits(s, pos, end);
+        if (bytesEnd == pos) {
+            return;
+        }
+        long bytes = parseLong(s, pos, bytesEnd);
+
+        pos = skipWhitespace(s, bytesEnd, end);
+        int nameEnd = pos;
+        while (nameEnd < end && !Character.isWhitespace(s.charAt(nameEnd))) {
+            nameEnd++;
+        }
+        if (nameEnd == pos) {
+            return;
+        }
+
+        visitor.visit(order, instances, bytes, s, pos, nameEnd);
+    }
+
+    private static int skipWhitespace(String s, int pos, int end) {
+        while (pos < end && Character.isWhitespace(s.charAt(pos))) {
+            pos++;
+        }
+        return pos;
+    }
+
+    private static int skipDigits(String s, int pos, int end) {
+        while (pos < end && s.charAt(pos) >= '0' && s.charAt(pos) <= '9') {
+            pos++;
+        }
+        return pos;
+    }
+
+    private static long parseLong(String s, int start, int end) {
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            value = value * 10 + (s.charAt(i) - '0');
+        }
+        return value;
+    }
+
+    interface Visitor {
+
+        /**
+         * Visits an entry in the histogram.
+         *
+         * @param order the rank of the entry
+         * @param instances the number of instances
+         * @param bytes the total size of the instances
+         * @param output the histogram output
+         * @param nameStart the index in the output where the (internal) class name starts
+         * @param nameEnd the index in the output where the class name ends
+         */
+        void visit(int order, long instances, long bytes, String output, int nameStart, int nameEnd);
+    }
+}
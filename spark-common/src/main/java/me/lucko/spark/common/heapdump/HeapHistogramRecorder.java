@@ -0,0 +1,451 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.heapdump;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+import me.lucko.spark.common.SparkPlatform;
+import me.lucko.spark.common.monitor.memory.GarbageCollectionMonitor;
+import me.lucko.spark.common.platform.PlatformInfo;
+import me.lucko.spark.common.util.Configuration;
+import me.lucko.spark.common.util.FormatUtil;
+import me.lucko.spark.common.util.SparkThreadFactory;
+
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * Records a time series of class histograms, to find classes which leak.
+ *
+ * <p>A histogram (of all objects, so without forcing a GC) is taken shortly after the old generation
+ * has been collected (at most once every few minutes), when the heap holds less garbage than usual.
+ * That is a full GC for the serial and parallel collectors, a mixed collection or concurrent cleanup
+ * for G1, and a concurrent cycle for ZGC and Shenandoah.</p>
+ *
+ * <p>Samples can also be forced if none has been taken for a while. A forced sample requests a
+ * live histogram, which makes the VM run a stop-the-world full GC - on a large heap this pauses
+ * the server for as long as a full GC takes (often seconds). This is off by default, and can be
+ * enabled with {@code heapHistogramMaxIntervalMinutes}.</p>
+ *
+ * <p>Only classes with a significant footprint are tracked. Their instance and byte counts are
+ * kept in fixed-size rings, and a class whose size has grown in every one of the last few
+ * samples is reported as a possible leak.</p>
+ */
+public class HeapHistogramRecorder implements GarbageCollectionMonitor.Listener, AutoCloseable {
+
+    private static final String OPTION_ENABLED = "heapHistogram";
+    private static final String OPTION_MIN_INTERVAL = "heapHistogramMinIntervalMinutes";
+    private static final String OPTION_MAX_INTERVAL = "heapHistogramMaxIntervalMinutes";
+    private static final String OPTION_SAMPLES = "heapHistogramSamples";
+    private static final String OPTION_LEAK_SAMPLES = "heapHistogramLeakSamples";
+    private static final String OPTION_MIN_CLASS_SIZE = "heapHistogramMinClassSizeKb";
+
+    /** The minimum total growth (in bytes) across the leak detection samples for a class to be reported */
+    private static final long MIN_LEAK_GROWTH = 1024 * 1024;
+
+    private final SparkPlatform platform;
+    private final boolean enabled;
+
+    /** The minimum time between samples, in milliseconds */
+    private final long minInterval;
+    /** The time after which a sample is forced if none has been taken, in milliseconds, or 0 to never force one */
+    private final long maxInterval;
+    /** The number of consecutive samples a class must grow in to be reported */
+    private final int leakSamples;
+    /** The size (in bytes) a class must reach for it to be tracked */
+    private final long minClassSize;
+
+    /** The time each sample was taken, indexed by sample number modulo the ring size */
+    private final long[] times;
+    private long sampleCount = 0;
+
+    /** The tracked classes, in the order they were first seen */
+    private final List<ClassSeries> series = new ArrayList<>();
+    /** Open-addressed table of the tracked classes, keyed by their (internal) name */
+    private ClassSeries[] table = new ClassSeries[256];
+
+    private final HeapHistogramParser.Visitor visitor = this::visit;
+
+    private volatile long lastSampleTime = 0;
+    private GarbageCollectionMonitor gcMonitor;
+    private ScheduledExecutorService executor;
+
+    public HeapHistogramRecorder(SparkPlatform platform, Configuration configuration) {
+        this.platform = platform;
+
+        PlatformInfo.Type type = platform.getPlugin().getPlatformInfo().getType();
+        this.enabled = type != PlatformInfo.Type.CLIENT && configuration.getBoolean(OPTION_ENABLED, type == PlatformInfo.Type.SERVER);
+
+        this.minInterval = TimeUnit.MINUTES.toMillis(Math.max(1, configuration.getInteger(OPTION_MIN_INTERVAL, 10)));
+        this.maxInterval = TimeUnit.MINUTES.toMillis(Math.max(0, configuration.getInteger(OPTION_MAX_INTERVAL, 0)));
+        this.leakSamples = Math.max(3, configuration.getInteger(OPTION_LEAK_SAMPLES, 6));
+        this.minClassSize = Math.max(0, configuration.getInteger(OPTION_MIN_CLASS_SIZE, 256)) * 1024L;
+        this.times = new long[Math.max(this.leakSamples, configuration.getInteger(OPTION_SAMPLES, 48))];
+    }
+
+    /**
+     * Starts recording, if enabled.
+     */
+    public void start() {
+        if (!this.enabled) {
+            return;
+        }
+
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("spark-heap-histogram")
+                .setDaemon(true)
+                .setUncaughtExceptionHandler(SparkThreadFactory.EXCEPTION_HANDLER)
+                .build()
+        );
+        this.lastSampleTime = System.currentTimeMillis();
+        if (this.maxInterval > 0) {
+            this.executor.scheduleAtFixedRate(() -> {
+                if (System.currentTimeMillis() - this.lastSampleTime >= this.maxInterval) {
+                    sample(true);
+                }
+            }, 1, 1, TimeUnit.MINUTES);
+        }
+
+        this.gcMonitor = new GarbageCollectionMonitor();
+        this.gcMonitor.addListener(this);
+    }
+
+    @Override
+    public void close() {
+        if (this.executor != null) {
+            this.gcMonitor.close();
+            this.gcMonitor = null;
+            this.executor.shutdown();
+            this.executor = null;
+        }
+    }
+
+    public boolean isRunning() {
+        return this.executor != null;
+    }
+
+    public int getLeakSamples() {
+        return this.leakSamples;
+    }
+
+    @Override
+    public void onGc(GarbageCollectionNotificationInfo data) {
+        if (!isOldGenerationCollected(data)) {
+            return;
+        }
+
+        ScheduledExecutorService executor = this.executor;
+        if (executor != null && System.currentTimeMillis() - this.lastSampleTime >= this.minInterval) {
+            // the old generation has just been (at least partly) cleared of garbage, so
+            // take a histogram of all objects rather than forcing another GC
+            this.lastSampleTime = System.currentTimeMillis();
+            executor.execute(() -> sample(false));
+        }
+    }
+
+    /**
+     * Gets if a collection reclaimed garbage from the old generation.
+     *
+     * <p>Full GCs are reported as major GCs, but G1 rarely runs one - it clears the old generation
+     * in mixed collections (reported as minor GCs) and concurrent cleanup instead, which are
+     * detected by the old generation having shrunk. ZGC and Shenandoah report each concurrent
+     * cycle, which (apart from generational ZGC's minor cycles) covers the whole heap.</p>
+     *
+     * @param data the notification
+     * @return true if the old generation was collected
+     */
+    private static boolean isOldGenerationCollected(GarbageCollectionNotificationInfo data) {
+        String action = data.getGcAction();
+        if (action.equals("end of major GC")) {
+            return true;
+        }
+        if (action.equals("end of GC cycle")) {
+            return !data.getGcName().contains("Minor");
+        }
+
+        Map<String, MemoryUsage> before = data.getGcInfo().getMemoryUsageBeforeGc();
+        Map<String, MemoryUsage> after = data.getGcInfo().getMemoryUsageAfterGc();
+        for (Map.Entry<String, MemoryUsage> entry : after.entrySet()) {
+            String pool = entry.getKey();
+            if (!pool.contains("Old Gen") && !pool.contains("Tenured")) {
+                continue;
+            }
+
+            MemoryUsage usageBefore = before.get(pool);
+            if (usageBefore != null && entry.getValue().getUsed() < usageBefore.getUsed()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Takes a sample now, forcing a full GC first.
+     *
+     * @return a future completed once the sample has been taken
+     */
+    public CompletableFuture<Void> sampleNow() {
+        return CompletableFuture.runAsync(() -> sample(true), this.executor);
+    }
+
+    private void sample(boolean live) {
+        try {
+            this.lastSampleTime = System.currentTimeMillis();
+            String output = HeapDumpSummary.getRawHeapData(live ? new String[0] : new String[]{"-all"});
+            record(output, System.currentTimeMillis());
+        } catch (Throwable e) {
+            e.printStackTrace();
+        }
+    }
+
+    synchronized void record(String output, long time) {
+        int slot = slot(this.sampleCount);
+        this.times[slot] = time;
+        HeapHistogramParser.parse(output, this.visitor);
+
+        for (ClassSeries series : this.series) {
+            if (series.lastSample != this.sampleCount) {
+                // no instances left
+                series.instances[slot] = 0;
+                series.bytes[slot] = 0;
+            }
+        }
+        this.sampleCount++;
+
+        for (ClassSeries series : this.series) {
+            boolean growing = isGrowing(series);
+            if (growing && !series.flagged) {
+                long first = series.bytes[slot(this.sampleCount - this.leakSamples)];
+                long last = series.bytes[slot(this.sampleCount - 1)];
+                this.platform.getPlugin().log(Level.WARNING, "Possible memory leak: " + series.name + " has grown after each of the last " +
+                        this.leakSamples + " heap histograms, from " + FormatUtil.formatBytes(first) + " to " + FormatUtil.formatBytes(last) +
+                        " (" + series.instances[slot(this.sampleCount - 1)] + " instances)");
+            }
+            series.flagged = growing;
+        }
+    }
+
+    private void visit(int order, long instances, long bytes, String output, int nameStart, int nameEnd) {
+        int hash = hash(output, nameStart, nameEnd);
+        int mask = this.table.length - 1;
+        int index = hash & mask;
+        ClassSeries series;
+        while ((series = this.table[index]) != null) {
+            if (series.hash == hash && series.rawName.length() == nameEnd - nameStart && output.startsWith(series.rawName, nameStart)) {
+                break;
+            }
+            index = (index + 1) & mask;
+        }
+
+        if (series == null) {
+            if (bytes < this.minClassSize) {
+                return;
+            }
+            series = new ClassSeries(output.substring(nameStart, nameEnd), hash, this.times.length);
+            this.table[index] = series;
+            this.series.add(series);
+            if (this.series.size() * 2 > this.table.length) {
+                rehash();
+            }
+        }
+
+        int slot = slot(this.sampleCount);
+        series.instances[slot] = (int) Math.min(Integer.MAX_VALUE, instances);
+        series.bytes[slot] = bytes;
+        series.lastSample = this.sampleCount;
+    }
+
+    private void rehash() {
+        this.table = new ClassSeries[this.table.length * 2];
+        int mask = this.table.length - 1;
+        for (ClassSeries series : this.series) {
+            int index = series.hash & mask;
+            while (this.table[index] != null) {
+                index = (index + 1) & mask;
+            }
+            this.table[index] = series;
+        }
+    }
+
+    private static int hash(String s, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + s.charAt(i);
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    private int slot(long sample) {
+        return (int) (sample % this.times.length);
+    }
+
+    private boolean isGrowing(ClassSeries series) {
+        if (this.sampleCount < this.leakSamples) {
+            return false;
+        }
+
+        long previous = -1;
+        for (long sample = this.sampleCount - this.leakSamples; sample < this.sampleCount; sample++) {
+            long bytes = series.bytes[slot(sample)];
+            if (bytes < 0 || (previous != -1 && bytes <= previous)) {
+                return false;
+            }
+            previous = bytes;
+        }
+        return previous - series.bytes[slot(this.sampleCount - this.leakSamples)] >= MIN_LEAK_GROWTH;
+    }
+
+    /**
+     * Gets the classes which have grown in each of the last {@link #getLeakSamples()} samples.
+     *
+     * @return the suspected leaks, largest growth first
+     */
+    public synchronized List<Series> getSuspectedLeaks() {
+        List<Series> leaks = new ArrayList<>();
+        for (ClassSeries series : this.series) {
+            if (series.flagged) {
+                leaks.add(export(series));
+            }
+        }
+        leaks.sort((a, b) -> Long.compare(b.getGrowth(this.leakSamples), a.getGrowth(this.leakSamples)));
+        return leaks;
+    }
+
+    /**
+     * Gets the recorded samples for a class.
+     *
+     * @param className the name of the class
+     * @return the samples, or null if the class isn't tracked
+     */
+    public synchronized Series getSeries(String className) {
+        for (ClassSeries series : this.series) {
+            if (series.name.equals(className) || series.rawName.equals(className)) {
+                return export(series);
+            }
+        }
+        return null;
+    }
+
+    public synchronized long getSampleCount() {
+        return this.sampleCount;
+    }
+
+    public synchronized long getLastSampleTime() {
+        return this.sampleCount == 0 ? -1 : this.times[slot(this.sampleCount - 1)];
+    }
+
+    private Series export(ClassSeries series) {
+        int count = (int) Math.min(this.sampleCount, this.times.length);
+        long[] times = new long[count];
+        int[] instances = new int[count];
+        long[] bytes = new long[count];
+        for (int i = 0; i < count; i++) {
+            int slot = slot(this.sampleCount - count + i);
+            times[i] = this.times[slot];
+            instances[i] = series.instances[slot];
+            bytes[i] = series.bytes[slot];
+        }
+        return new Series(series.name, times, instances, bytes);
+    }
+
+    private static final class ClassSeries {
+        final String rawName;
+        final String name;
+        final int hash;
+        final int[] instances;
+        /** The total size of the instances in each sample, or -1 if the class wasn't tracked yet */
+        final long[] bytes;
+        long lastSample = -1;
+        boolean flagged = false;
+
+        ClassSeries(String rawName, int hash, int capacity) {
+            this.rawName = rawName;
+            this.name = HeapDumpSummary.typeToClassName(rawName);
+            this.hash = hash;
+            this.instances = new int[capacity];
+            this.bytes = new long[capacity];
+            Arrays.fill(this.bytes, -1);
+        }
+    }
+
+    /**
+     * The recorded samples for a class, oldest first.
+     */
+    public static final class Series {
+        private final String className;
+        private final long[] times;
+        private final int[] instances;
+        private final long[] bytes;
+
+        Series(String className, long[] times, int[] instances, long[] bytes) {
+            this.className = className;
+            this.times = times;
+            this.instances = instances;
+            this.bytes = bytes;
+        }
+
+        public String getClassName() {
+            return this.className;
+        }
+
+        public int size() {
+            return this.times.length;
+        }
+
+        public long getTime(int i) {
+            return this.times[i];
+        }
+
+        public int getInstances(int i) {
+            return this.instances[i];
+        }
+
+        /**
+         * Gets the total size of the instances in a sample.
+         *
+         * @param i the sample
+         * @return the size in bytes, or -1 if the class wasn't tracked when the sample was taken
+         */
+        public long getBytes(int i) {
+            return this.bytes[i];
+        }
+
+        /**
+         * Gets the growth in size over the last few samples.
+         *
+         * @param samples the number of samples
+         * @return the growth in bytes
+         */
+        public long getGrowth(int samples) {
+            int from = Math.max(0, this.bytes.length - samples);
+            return this.bytes[this.bytes.length - 1] - Math.max(0, this.bytes[from]);
+        }
+    }
+}
@@ -0,0 +1,1023 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.heapdump;
+
+import org.objectweb.asm.Type;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Parses a .hprof heap dump into an object graph, and computes its dominator tree.
+ *
+ * <p>Objects are numbered in the order they appear in the file, and everything the analysis
+ * needs to know about them is held in primitive arrays indexed by that number. The dump itself
+ * is never loaded: it's streamed through (via {@link HprofReader}) once to find the objects,
+ * once to find the references between them, and once more at the end to name the fields on
+ * the reported paths.</p>
+ */
+final class HprofAnalyser {
+
+    // record tags
+    private static final int TAG_UTF8 = 0x01;
+    private static final int TAG_LOAD_CLASS = 0x02;
+    private static final int TAG_HEAP_DUMP = 0x0C;
+    private static final int TAG_HEAP_DUMP_SEGMENT = 0x1C;
+
+    // heap dump sub-record tags
+    private static final int ROOT_UNKNOWN = 0xFF;
+    private static final int ROOT_JNI_GLOBAL = 0x01;
+    private static final int ROOT_JNI_LOCAL = 0x02;
+    private static final int ROOT_JAVA_FRAME = 0x03;
+    private static final int ROOT_NATIVE_STACK = 0x04;
+    private static final int ROOT_STICKY_CLASS = 0x05;
+    private static final int ROOT_THREAD_BLOCK = 0x06;
+    private static final int ROOT_MONITOR_USED = 0x07;
+    private static final int ROOT_THREAD_OBJECT = 0x08;
+    private static final int CLASS_DUMP = 0x20;
+    private static final int INSTANCE_DUMP = 0x21;
+    private static final int OBJECT_ARRAY_DUMP = 0x22;
+    private static final int PRIMITIVE_ARRAY_DUMP = 0x23;
+
+    private static final int TYPE_OBJECT = 2;
+
+    /** Roughly how much memory the analysis needs for each object in the dump, at its peak */
+    static final long BYTES_PER_OBJECT = 80;
+
+    /** The number of objects reported at the top level of the dominator tree */
+    private static final int TOP_LEVEL_OBJECTS = 20;
+    /** The number of dominated objects reported under each object */
+    private static final int CHILD_OBJECTS = 10;
+    /** Dominated objects are only reported if they retain at least this fraction of the heap */
+    private static final double CHILD_MIN_FRACTION = 0.01;
+    private static final int MAX_DEPTH = 12;
+    /** Paths to GC roots longer than this have their middle section omitted */
+    private static final int MAX_PATH_LENGTH = 32;
+
+    // placeholder types, resolved once all classes have been read
+    private static final int TYPE_PLACEHOLDER_CLASS = -1;
+    private static final int TYPE_PLACEHOLDER_PRIMITIVE_ARRAY = -100;
+
+    private final HprofReader reader;
+    private final int idSize;
+    private final Consumer<String> progress;
+
+    /** String id -> position (upper 40 bits) and length (lower 24 bits) of the string */
+    private final Map<Long, Long> strings = new HashMap<>();
+    /** Class object id -> name string id */
+    private final Map<Long, Long> classNameIds = new HashMap<>();
+    private final List<ClassInfo> classes = new ArrayList<>();
+    /** Class object id -> index into {@link #classes} */
+    private final Map<Long, Integer> classIndexes = new HashMap<>();
+    /** Object number -> class, for class objects */
+    private final Map<Integer, ClassInfo> classObjects = new HashMap<>();
+
+    // objects, by number
+    private int count = 0;
+    private long[] ids = new long[1 << 16];
+    private int[] types = new int[1 << 16];
+    private int[] sizes = new int[1 << 16];
+    /** Open-addressed table of object number + 1, keyed by id */
+    private int[] idTable;
+
+    private int rootCount = 0;
+    private long[] rootIds = new long[1024];
+    private byte[] rootTags = new byte[1024];
+
+    HprofAnalyser(HprofReader reader, Consumer<String> progress) {
+        this.reader = reader;
+        this.idSize = reader.getIdSize();
+        this.progress = progress;
+    }
+
+    HeapDumpAnalysis analyse() throws IOException {
+        this.progress.accept("Reading objects...");
+        walk(new ObjectScanner());
+        resolveClasses();
+
+        Runtime runtime = Runtime.getRuntime();
+        long required = this.count * BYTES_PER_OBJECT;
+        long available = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+        if (required > available) {
+            throw new IllegalStateException("The heap dump contains " + this.count + " objects, analysing it needs around " +
+                    (required >> 20) + "MB of memory but only " + (available >> 20) + "MB is available");
+        }
+
+        this.progress.accept("Reading references between " + this.count + " objects...");
+        buildIdTable();
+        int nodes = this.count + 1;
+        int root = this.count;
+        ReferenceScanner references = new ReferenceScanner(nodes);
+        walk(references);
+        if (references.node != this.count) {
+            throw new IOException("Heap dump changed while it was being read");
+        }
+        byte[] rootTags = references.addRoots();
+        int[] edgeStart = references.edgeStart;
+        int[] edges = references.edges;
+        references = null;
+        this.idTable = null;
+
+        this.progress.accept("Computing dominator tree...");
+        DominatorTree tree = DominatorTree.compute(nodes, edgeStart, edges, root);
+        int[] idom = tree.getImmediateDominators();
+        int[] order = tree.getOrder();
+        tree = null;
+
+        long[] retained = new long[nodes];
+        for (int i = 0; i < this.count; i++) {
+            retained[i] = this.sizes[i];
+        }
+        for (int i = order.length - 1; i > 0; i--) {
+            int node = order[i];
+            retained[idom[node]] += retained[node];
+        }
+
+        // the dominator tree, in the same compressed form as the graph
+        int[] childStart = new int[nodes + 1];
+        for (int i = 1; i < order.length; i++) {
+            childStart[idom[order[i]] + 1]++;
+        }
+        for (int i = 0; i < nodes; i++) {
+            childStart[i + 1] += childStart[i];
+        }
+        int[] children = new int[Math.max(order.length - 1, 0)];
+        {
+            int[] cursor = Arrays.copyOf(childStart, nodes);
+            for (int i = 1; i < order.length; i++) {
+                int node = order[i];
+                children[cursor[idom[node]]++] = node;
+            }
+        }
+        idom = null;
+
+        List<HeapDumpAnalysis.Entry> entries = computeClassEntries(childStart, children, retained, root);
+
+        this.progress.accept("Finding paths to GC roots...");
+        List<Candidate> dominators = new ArrayList<>();
+        for (int node : top(root, TOP_LEVEL_OBJECTS, 0, childStart, children, retained)) {
+            dominators.add(candidate(node, 1, (long) (retained[root] * CHILD_MIN_FRACTION), childStart, children, retained));
+        }
+        childStart = null;
+        children = null;
+
+        int[] bfsParent = shortestPaths(nodes, edgeStart, edges, root);
+        edgeStart = null;
+        edges = null;
+
+        Map<Integer, List<Integer>> referrers = new HashMap<>();
+        for (Candidate candidate : dominators) {
+            candidate.findPath(bfsParent, root, referrers);
+        }
+        Map<Long, String> fieldNames = describeReferences(referrers);
+
+        List<HeapDumpAnalysis.RetainedObject> objects = new ArrayList<>();
+        for (Candidate candidate : dominators) {
+            objects.add(candidate.toRetainedObject(rootTags, fieldNames));
+        }
+        return new HeapDumpAnalysis(entries, objects, this.count, retained[root]);
+    }
+
+    private void walk(HeapVisitor visitor) throws IOException {
+        HprofReader reader = this.reader;
+        reader.rewind();
+        while (reader.hasRemaining()) {
+            int tag = reader.u1();
+            reader.skip(4);
+            long length = reader.u4() & 0xFFFFFFFFL;
+            long end = reader.position() + length;
+            if (end > reader.getSize()) {
+                throw new IOException("Heap dump is truncated");
+            }
+
+            if (tag == TAG_UTF8) {
+                long id = reader.id();
+                visitor.utf8(id, reader.position(), (int) (end - reader.position()));
+            } else if (tag == TAG_LOAD_CLASS) {
+                reader.skip(4);
+                long classId = reader.id();
+                reader.skip(4);
+                visitor.loadClass(classId, reader.id());
+            } else if (tag == TAG_HEAP_DUMP || tag == TAG_HEAP_DUMP_SEGMENT) {
+                walkHeapDump(visitor, end);
+            }
+            reader.position(end);
+        }
+    }
+
+    private void walkHeapDump(HeapVisitor visitor, long end) throws IOException {
+        HprofReader reader = this.reader;
+        while (reader.position() < end) {
+            int tag = reader.u1();
+            switch (tag) {
+                case ROOT_UNKNOWN:
+                case ROOT_STICKY_CLASS:
+                case ROOT_MONITOR_USED:
+                    visitor.root(tag, reader.id());
+                    break;
+                case ROOT_JNI_GLOBAL:
+                    visitor.root(tag, reader.id());
+                    reader.skip(this.idSize);
+                    break;
+                case ROOT_JNI_LOCAL:
+                case ROOT_JAVA_FRAME:
+                case ROOT_THREAD_OBJECT:
+                    visitor.root(tag, reader.id());
+                    reader.skip(8);
+                    break;
+                case ROOT_NATIVE_STACK:
+                case ROOT_THREAD_BLOCK:
+                    visitor.root(tag, reader.id());
+                    reader.skip(4);
+                    break;
+                case CLASS_DUMP:
+                    visitor.classDump(readClassDump());
+                    break;
+                case INSTANCE_DUMP: {
+                    long id = reader.id();
+                    reader.skip(4);
+                    long classId = reader.id();
+                    int bytes = reader.u4();
+                    long data = reader.position();
+                    visitor.instance(id, classId, data, bytes);
+                    reader.position(data + bytes);
+                    break;
+                }
+                case OBJECT_ARRAY_DUMP: {
+                    long id = reader.id();
+                    reader.skip(4);
+                    int length = reader.u4();
+                    long classId = reader.id();
+                    long data = reader.position();
+                    visitor.objectArray(id, classId, data, length);
+                    reader.position(data + (long) length * this.idSize);
+                    break;
+                }
+                case PRIMITIVE_ARRAY_DUMP: {
+                    long id = reader.id();
+                    reader.skip(4);
+                    int length = reader.u4();
+                    int type = reader.u1();
+                    long data = reader.position();
+                    visitor.primitiveArray(id, type, length);
+                    reader.position(data + (long) length * valueSize(type));
+                    break;
+                }
+                default:
+                    throw new IOException("Unknown heap dump sub-record 0x" + Integer.toHexString(tag) + " at " + (reader.position() - 1));
+            }
+        }
+    }
+
+    private ClassInfo readClassDump() throws IOException {
+        HprofReader reader = this.reader;
+        ClassInfo info = new ClassInfo(reader.id());
+        reader.skip(4);
+        info.superId = reader.id();
+        info.loaderId = reader.id();
+        reader.skip(4L * this.idSize); // signers, protection domain, reserved
+        reader.skip(4); // instance size
+
+        int constants = reader.u2();
+        for (int i = 0; i < constants; i++) {
+            reader.skip(2);
+            reader.skip(valueSize(reader.u1()));
+        }
+
+        int statics = reader.u2();
+        List<Long> staticRefs = new ArrayList<>();
+        List<Long> staticRefNames = new ArrayList<>();
+        for (int i = 0; i < statics; i++) {
+            long name = reader.id();
+            int type = reader.u1();
+            info.staticBytes += valueSize(type);
+            if (type == TYPE_OBJECT) {
+                long value = reader.id();
+                if (value != 0) {
+                    staticRefs.add(value);
+                    staticRefNames.add(name);
+                }
+            } else {
+                reader.skip(valueSize(type));
+            }
+        }
+        info.staticRefs = toArray(staticRefs);
+        info.staticRefNames = toArray(staticRefNames);
+
+        int fields = reader.u2();
+        info.fieldNames = new long[fields];
+        info.fieldTypes = new byte[fields];
+        for (int i = 0; i < fields; i++) {
+            info.fieldNames[i] = reader.id();
+            info.fieldTypes[i] = (byte) reader.u1();
+        }
+        return info;
+    }
+
+    private int valueSize(int type) throws IOException {
+        switch (type) {
+            case TYPE_OBJECT: return this.idSize;
+            case 4: case 8: return 1; // boolean, byte
+            case 5: case 9: return 2; // char, short
+            case 6: case 10: return 4; // float, int
+            case 7: case 11: return 8; // double, long
+            default: throw new IOException("Unknown basic type " + type);
+        }
+    }
+
+    private static String primitiveArrayName(int type) {
+        switch (type) {
+            case 4: return "boolean[]";
+            case 5: return "char[]";
+            case 6: return "float[]";
+            case 7: return "double[]";
+            case 8: return "byte[]";
+            case 9: return "short[]";
+            case 10: return "int[]";
+            case 11: return "long[]";
+            default: return "unknown[]";
+        }
+    }
+
+    private static String rootName(int tag) {
+        switch (tag & 0xFF) {
+            case ROOT_JNI_GLOBAL: return "JNI global";
+            case ROOT_JNI_LOCAL: return "JNI local";
+            case ROOT_JAVA_FRAME: return "Java frame";
+            case ROOT_NATIVE_STACK: return "native stack";
+            case ROOT_STICKY_CLASS: return "system class";
+            case ROOT_THREAD_BLOCK: return "thread block";
+            case ROOT_MONITOR_USED: return "busy monitor";
+            case ROOT_THREAD_OBJECT: return "thread";
+            default: return "unknown";
+        }
+    }
+
+    /**
+     * Converts the internal name of a class (e.g. java/lang/String or [I) to its class name.
+     *
+     * @param name the internal name
+     * @return the class name
+     */
+    private static String className(String name) {
+        if (name.startsWith("[")) {
+            try {
+                return Type.getType(name.replace('.', '/')).getClassName();
+            } catch (IllegalArgumentException e) {
+                return name;
+            }
+        }
+        return name.replace('/', '.');
+    }
+
+    private String string(long id) {
+        Long location = this.strings.get(id);
+        if (location == null) {
+            return "0x" + Long.toHexString(id);
+        }
+        return this.reader.utf8(location >>> 24, (int) (location & 0xFFFFFF));
+    }
+
+    private int classIndex(long classId) {
+        Integer index = this.classIndexes.get(classId);
+        if (index == null) {
+            // the class dump hasn't been read yet
+            index = this.classes.size();
+            this.classes.add(new ClassInfo(classId));
+            this.classIndexes.put(classId, index);
+        }
+        return index;
+    }
+
+    private int addObject(long id, int type, long size) {
+        if (this.count == this.ids.length) {
+            int capacity = this.ids.length * 2;
+            if (capacity < 0) {
+                throw new IllegalStateException("Too many objects in heap dump");
+            }
+            this.ids = Arrays.copyOf(this.ids, capacity);
+            this.types = Arrays.copyOf(this.types, capacity);
+            this.sizes = Arrays.copyOf(this.sizes, capacity);
+        }
+        int number = this.count++;
+        this.ids[number] = id;
+        this.types[number] = type;
+        this.sizes[number] = (int) Math.min(Integer.MAX_VALUE, (size + 7) & ~7L);
+        return number;
+    }
+
+    /**
+     * Names the classes and replaces the placeholder types given to class objects and primitive arrays.
+     */
+    private void resolveClasses() {
+        Map<String, Integer> byName = new HashMap<>();
+        for (int i = 0; i < this.classes.size(); i++) {
+            ClassInfo info = this.classes.get(i);
+            Long nameId = this.classNameIds.get(info.id);
+            info.name = nameId == null ? "unknown class 0x" + Long.toHexString(info.id) : className(string(nameId));
+            byName.putIfAbsent(info.name, i);
+        }
+
+        Map<Integer, Integer> placeholders = new HashMap<>();
+        for (int i = 0; i < this.count; i++) {
+            int type = this.types[i];
+            if (type >= 0) {
+                continue;
+            }
+
+            Integer resolved = placeholders.get(type);
+            if (resolved == null) {
+                String name = type == TYPE_PLACEHOLDER_CLASS
+                        ? "java.lang.Class"
+                        : primitiveArrayName(TYPE_PLACEHOLDER_PRIMITIVE_ARRAY - type);
+                resolved = byName.get(name);
+                if (resolved == null) {
+                    ClassInfo synthetic = new ClassInfo(0);
+                    synthetic.name = name;
+                    resolved = this.classes.size();
+                    this.classes.add(synthetic);
+                    byName.put(name, resolved);
+                }
+                placeholders.put(type, resolved);
+            }
+            this.types[i] = resolved;
+        }
+    }
+
+    private void buildIdTable() {
+        int capacity = Integer.highestOneBit(Math.max(2, this.count + this.count / 2)) << 1;
+        int mask = capacity - 1;
+        int[] table = new int[capacity];
+        for (int i = 0; i < this.count; i++) {
+            int slot = hash(this.ids[i]) & mask;
+            while (table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = i + 1;
+        }
+        this.idTable = table;
+    }
+
+    private int lookup(long id) {
+        int[] table = this.idTable;
+        int mask = table.length - 1;
+        int slot = hash(id) & mask;
+        int entry;
+        while ((entry = table[slot]) != 0) {
+            if (this.ids[entry - 1] == id) {
+                return entry - 1;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private static int hash(long id) {
+        long h = id * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private ClassInfo superclass(ClassInfo info) {
+        Integer index = this.classIndexes.get(info.superId);
+        return index == null ? null : this.classes.get(index);
+    }
+
+    /**
+     * Gets the offsets of the reference fields in instances of a class, which hold the
+     * fields declared by the class, followed by those of its superclass, and so on.
+     *
+     * @param info the class
+     */
+    private void computeLayout(ClassInfo info) throws IOException {
+        List<Integer> offsets = new ArrayList<>();
+        List<Long> names = new ArrayList<>();
+        int offset = 0;
+        for (ClassInfo c = info; c != null; c = superclass(c)) {
+            for (int i = 0; i < c.fieldTypes.length; i++) {
+                if (c.fieldTypes[i] == TYPE_OBJECT) {
+                    offsets.add(offset);
+                    names.add(c.fieldNames[i]);
+                }
+                offset += valueSize(c.fieldTypes[i]);
+            }
+        }
+        info.refOffsets = offsets.stream().mapToInt(Integer::intValue).toArray();
+        info.refNames = toArray(names);
+    }
+
+    private static long[] toArray(List<Long> list) {
+        return list.stream().mapToLong(Long::longValue).toArray();
+    }
+
+    private List<HeapDumpAnalysis.Entry> computeClassEntries(int[] childStart, int[] children, long[] retained, int root) {
+        int classCount = this.classes.size();
+        int[] instances = new int[classCount];
+        long[] shallow = new long[classCount];
+        long[] retainedByClass = new long[classCount];
+        for (int i = 0; i < this.count; i++) {
+            instances[this.types[i]]++;
+            shallow[this.types[i]] += this.sizes[i];
+        }
+
+        // walk the dominator tree, so that an object is only counted towards its class's retained
+        // size if it isn't already dominated by another instance of the same class
+        int[] active = new int[classCount];
+        int[] stack = new int[64];
+        int[] cursor = new int[64];
+        int depth = 0;
+        stack[0] = root;
+        cursor[0] = childStart[root];
+        while (depth >= 0) {
+            int node = stack[depth];
+            if (cursor[depth] == childStart[node + 1]) {
+                if (node != root) {
+                    active[this.types[node]]--;
+                }
+                depth--;
+                continue;
+            }
+
+            int child = children[cursor[depth]++];
+            int type = this.types[child];
+            if (active[type]++ == 0) {
+                retainedByClass[type] += retained[child];
+            }
+
+            if (++depth == stack.length) {
+                stack = Arrays.copyOf(stack, depth * 2);
+                cursor = Arrays.copyOf(cursor, depth * 2);
+            }
+            stack[depth] = child;
+            cursor[depth] = childStart[child];
+        }
+
+        List<HeapDumpAnalysis.Entry> entries = new ArrayList<>();
+        for (int i = 0; i < classCount; i++) {
+            if (instances[i] != 0) {
+                entries.add(new HeapDumpAnalysis.Entry(instances[i], shallow[i], retainedByClass[i], this.classes.get(i).name));
+            }
+        }
+        entries.sort(HeapDumpAnalysis.Entry.BY_RETAINED_SIZE);
+        return entries;
+    }
+
+    /**
+     * Selects the children of a node in the dominator tree with the largest retained sizes.
+     */
+    private static int[] top(int node, int limit, long minRetained, int[] childStart, int[] children, long[] retained) {
+        int[] top = new int[limit];
+        int size = 0;
+        for (int i = childStart[node]; i < childStart[node + 1]; i++) {
+            int child = children[i];
+            long value = retained[child];
+            if (value < minRetained || (size == limit && value <= retained[top[size - 1]])) {
+                continue;
+            }
+
+            int j = size == limit ? size - 1 : size++;
+            while (j > 0 && retained[top[j - 1]] < value) {
+                top[j] = top[j - 1];
+                j--;
+            }
+            top[j] = child;
+        }
+        return Arrays.copyOf(top, size);
+    }
+
+    private Candidate candidate(int node, int depth, long minRetained, int[] childStart, int[] children, long[] retained) {
+        Candidate candidate = new Candidate(node, retained[node]);
+        if (depth >= MAX_DEPTH) {
+            return candidate;
+        }
+
+        for (int child : top(node, CHILD_OBJECTS, minRetained, childStart, children, retained)) {
+            if (this.types[child] == this.types[node] && !this.classObjects.containsKey(child)) {
+                // a linked structure (list nodes, tree nodes...), each dominating the next - only report the first
+                candidate.children.add(new Candidate(child, retained[child]));
+            } else {
+                candidate.children.add(candidate(child, depth + 1, minRetained, childStart, children, retained));
+            }
+        }
+        return candidate;
+    }
+
+    /**
+     * Runs a breadth-first search from the root, so that the shortest path from a GC root
+     * to any object can be followed backwards from the object.
+     *
+     * @return the parent of each node in the search
+     */
+    private static int[] shortestPaths(int nodes, int[] edgeStart, int[] edges, int root) {
+        int[] parent = new int[nodes];
+        Arrays.fill(parent, -1);
+        int[] queue = new int[nodes];
+        int head = 0;
+        int tail = 0;
+        queue[tail++] = root;
+        parent[root] = root;
+        while (head < tail) {
+            int node = queue[head++];
+            for (int i = edgeStart[node]; i < edgeStart[node + 1]; i++) {
+                int next = edges[i];
+                if (parent[next] == -1) {
+                    parent[next] = node;
+                    queue[tail++] = next;
+                }
+            }
+        }
+        return parent;
+    }
+
+    /**
+     * Names the fields through which objects on the reported paths refer to the next object.
+     *
+     * @param referrers the referring objects, mapped to the objects they refer to
+     * @return the field names, keyed by {@link #referenceKey(int, int)}
+     */
+    private Map<Long, String> describeReferences(Map<Integer, List<Integer>> referrers) throws IOException {
+        Map<Long, String> names = new HashMap<>();
+        boolean rescan = false;
+        for (Map.Entry<Integer, List<Integer>> entry : referrers.entrySet()) {
+            ClassInfo info = this.classObjects.get(entry.getKey());
+            if (info == null) {
+                rescan = true;
+                continue;
+            }
+
+            for (int next : entry.getValue()) {
+                long id = this.ids[next];
+                String name = null;
+                for (int i = 0; i < info.staticRefs.length && name == null; i++) {
+                    if (info.staticRefs[i] == id) {
+                        name = string(info.staticRefNames[i]);
+                    }
+                }
+                if (name == null) {
+                    name = id == info.loaderId ? "<classloader>" : id == info.superId ? "<superclass>" : null;
+                }
+                if (name != null) {
+                    names.put(referenceKey(entry.getKey(), next), name);
+                }
+            }
+        }
+
+        if (rescan) {
+            walk(new ReferenceDescriber(referrers, names));
+        }
+        return names;
+    }
+
+    private static long referenceKey(int from, int to) {
+        return ((long) from << 32) | (to & 0xFFFFFFFFL);
+    }
+
+    private String describe(int node) {
+        ClassInfo info = this.classObjects.get(node);
+        return info != null ? "class " + info.name : this.classes.get(this.types[node]).name;
+    }
+
+    private static abstract class HeapVisitor {
+        void utf8(long id, long position, int length) {}
+        void loadClass(long classId, long nameId) {}
+        void root(int tag, long id) {}
+        abstract void classDump(ClassInfo info) throws IOException;
+        abstract void instance(long id, long classId, long data, int bytes) throws IOException;
+        abstract void objectArray(long id, long classId, long data, int length) throws IOException;
+        abstract void primitiveArray(long id, int type, int length) throws IOException;
+    }
+
+    /**
+     * The first pass, which reads the classes and numbers the objects.
+     */
+    private final class ObjectScanner extends HeapVisitor {
+        private final long objectHeader = 2L * HprofAnalyser.this.idSize;
+        private final long arrayHeader = this.objectHeader + 4;
+
+        @Override
+        void utf8(long id, long position, int length) {
+            if (length <= 0xFFFFFF) {
+                HprofAnalyser.this.strings.put(id, (position << 24) | length);
+            }
+        }
+
+        @Override
+        void loadClass(long classId, long nameId) {
+            HprofAnalyser.this.classNameIds.put(classId, nameId);
+        }
+
+        @Override
+        void root(int tag, long id) {
+            HprofAnalyser analyser = HprofAnalyser.this;
+            if (analyser.rootCount == analyser.rootIds.length) {
+                analyser.rootIds = Arrays.copyOf(analyser.rootIds, analyser.rootCount * 2);
+                analyser.rootTags = Arrays.copyOf(analyser.rootTags, analyser.rootCount * 2);
+            }
+            analyser.rootIds[analyser.rootCount] = id;
+            analyser.rootTags[analyser.rootCount++] = (byte) tag;
+        }
+
+        @Override
+        void classDump(ClassInfo info) {
+            int index = classIndex(info.id);
+            HprofAnalyser.this.classes.set(index, info);
+            int number = addObject(info.id, TYPE_PLACEHOLDER_CLASS, this.objectHeader + info.staticBytes);
+            HprofAnalyser.this.classObjects.put(number, info);
+        }
+
+        @Override
+        void instance(long id, long classId, long data, int bytes) {
+            addObject(id, classIndex(classId), this.objectHeader + bytes);
+        }
+
+        @Override
+        void objectArray(long id, long classId, long data, int length) {
+            addObject(id, classIndex(classId), this.arrayHeader + (long) length * HprofAnalyser.this.idSize);
+        }
+
+        @Override
+        void primitiveArray(long id, int type, int length) throws IOException {
+            addObject(id, TYPE_PLACEHOLDER_PRIMITIVE_ARRAY - type, this.arrayHeader + (long) length * valueSize(type));
+        }
+    }
+
+    /**
+     * The second pass, which reads the references from each object into a compressed edge list.
+     */
+    private final class ReferenceScanner extends HeapVisitor {
+        private final int[] edgeStart;
+        private int[] edges;
+        private int edgeCount = 0;
+        private int node = 0;
+
+        ReferenceScanner(int nodes) {
+            this.edgeStart = new int[nodes + 1];
+            this.edges = new int[Math.max(16, HprofAnalyser.this.count)];
+        }
+
+        private void add(long id) {
+            if (id == 0) {
+                return;
+            }
+            int target = lookup(id);
+            if (target < 0) {
+                return;
+            }
+            if (this.edgeCount == this.edges.length) {
+                int capacity = this.edges.length + (this.edges.length >> 1);
+                if (capacity < 0) {
+                    throw new IllegalStateException("Too many references in heap dump");
+                }
+                this.edges = Arrays.copyOf(this.edges, capacity);
+            }
+            this.edges[this.edgeCount++] = target;
+        }
+
+        @Override
+        void classDump(ClassInfo dump) {
+            this.edgeStart[this.node++] = this.edgeCount;
+            add(dump.superId);
+            add(dump.loaderId);
+            for (long ref : dump.staticRefs) {
+                add(ref);
+            }
+        }
+
+        @Override
+        void instance(long id, long classId, long data, int bytes) throws IOException {
+            ClassInfo info = HprofAnalyser.this.classes.get(HprofAnalyser.this.types[this.node]);
+            this.edgeStart[this.node++] = this.edgeCount;
+            if (info.refOffsets == null) {
+                computeLayout(info);
+            }
+
+            HprofReader reader = HprofAnalyser.this.reader;
+            for (int offset : info.refOffsets) {
+                if (offset + HprofAnalyser.this.idSize > bytes) {
+                    break;
+                }
+                reader.position(data + offset);
+                add(reader.id());
+            }
+        }
+
+        @Override
+        void objectArray(long id, long classId, long data, int length) {
+            this.edgeStart[this.node++] = this.edgeCount;
+            HprofReader reader = HprofAnalyser.this.reader;
+            for (int i = 0; i < length; i++) {
+                add(reader.id());
+            }
+        }
+
+        @Override
+        void primitiveArray(long id, int type, int length) {
+            this.edgeStart[this.node++] = this.edgeCount;
+        }
+
+        /**
+         * Adds the edges from the root node (the last node) to each distinct GC root.
+         *
+         * @return the type of GC root, for each object which is one
+         */
+        byte[] addRoots() {
+            HprofAnalyser analyser = HprofAnalyser.this;
+            byte[] tags = new byte[analyser.count];
+            this.edgeStart[this.node] = this.edgeCount;
+            for (int i = 0; i < analyser.rootCount; i++) {
+                int target = lookup(analyser.rootIds[i]);
+                if (target >= 0 && tags[target] == 0) {
+                    tags[target] = analyser.rootTags[i];
+                    add(analyser.rootIds[i]);
+                }
+            }
+            this.edgeStart[this.node + 1] = this.edgeCount;
+            analyser.rootIds = null;
+            analyser.rootTags = null;
+            return tags;
+        }
+    }
+
+    /**
+     * The final pass, which names the fields (or array elements) that paths pass through.
+     */
+    private final class ReferenceDescriber extends HeapVisitor {
+        private final Map<Integer, List<Integer>> referrers;
+        private final Map<Long, String> names;
+        private int node = 0;
+
+        ReferenceDescriber(Map<Integer, List<Integer>> referrers, Map<Long, String> names) {
+            this.referrers = referrers;
+            this.names = names;
+        }
+
+        @Override
+        void classDump(ClassInfo info) {
+            this.node++;
+        }
+
+        @Override
+        void instance(long id, long classId, long data, int bytes) throws IOException {
+            int node = this.node++;
+            List<Integer> targets = this.referrers.get(node);
+            if (targets == null) {
+                return;
+            }
+
+            ClassInfo info = HprofAnalyser.this.classes.get(HprofAnalyser.this.types[node]);
+            if (info.refOffsets == null) {
+                computeLayout(info);
+            }
+            HprofReader reader = HprofAnalyser.this.reader;
+            for (int i = 0; i < info.refOffsets.length; i++) {
+                if (info.refOffsets[i] + HprofAnalyser.this.idSize > bytes) {
+                    break;
+                }
+                reader.position(data + info.refOffsets[i]);
+                long ref = reader.id();
+                for (int target : targets) {
+                    if (HprofAnalyser.this.ids[target] == ref) {
+                        this.names.putIfAbsent(referenceKey(node, target), string(info.refNames[i]));
+                    }
+                }
+            }
+        }
+
+        @Override
+        void objectArray(long id, long classId, long data, int length) {
+            int node = this.node++;
+            List<Integer> targets = this.referrers.get(node);
+            if (targets == null) {
+                return;
+            }
+
+            HprofReader reader = HprofAnalyser.this.reader;
+            for (int i = 0; i < length; i++) {
+                long ref = reader.id();
+                for (int target : targets) {
+                    if (HprofAnalyser.this.ids[target] == ref) {
+                        this.names.putIfAbsent(referenceKey(node, target), "[" + i + "]");
+                    }
+                }
+            }
+        }
+
+        @Override
+        void primitiveArray(long id, int type, int length) {
+            this.node++;
+        }
+    }
+
+    private static final class ClassInfo {
+        final long id;
+        String name;
+        long superId;
+        long loaderId;
+        int staticBytes;
+        long[] staticRefs = new long[0];
+        long[] staticRefNames = new long[0];
+        long[] fieldNames = new long[0];
+        byte[] fieldTypes = new byte[0];
+
+        /** Offsets of the reference fields within an instance's data, computed on demand */
+        int[] refOffsets;
+        long[] refNames;
+
+        ClassInfo(long id) {
+            this.id = id;
+        }
+    }
+
+    /**
+     * An object selected from the dominator tree to be reported.
+     */
+    private final class Candidate {
+        private final int node;
+        private final long retained;
+        private final List<Candidate> children = new ArrayList<>();
+        /** The path from a GC root, ending with the object which refers to this one, or -1 for an omitted section */
+        private int[] path;
+
+        Candidate(int node, long retained) {
+            this.node = node;
+            this.retained = retained;
+        }
+
+        void findPath(int[] bfsParent, int root, Map<Integer, List<Integer>> referrers) {
+            List<Integer> path = new ArrayList<>();
+            for (int p = bfsParent[this.node]; p != root && p != -1; p = bfsParent[p]) {
+                path.add(p);
+            }
+            Collections.reverse(path);
+
+            if (path.size() > MAX_PATH_LENGTH) {
+                int omitted = path.size() - MAX_PATH_LENGTH + 1;
+                List<Integer> shortened = new ArrayList<>(path.subList(0, 1));
+                shortened.add(-omitted);
+                shortened.addAll(path.subList(1 + omitted, path.size()));
+                path = shortened;
+            }
+            this.path = path.stream().mapToInt(Integer::intValue).toArray();
+
+            for (int i = 0; i < this.path.length; i++) {
+                int next = i + 1 < this.path.length ? this.path[i + 1] : this.node;
+                if (this.path[i] >= 0 && next >= 0) {
+                    referrers.computeIfAbsent(this.path[i], k -> new ArrayList<>(1)).add(next);
+                }
+            }
+
+            for (Candidate child : this.children) {
+                child.findPath(bfsParent, root, referrers);
+            }
+        }
+
+        HeapDumpAnalysis.RetainedObject toRetainedObject(byte[] rootTags, Map<Long, String> fieldNames) {
+            List<HeapDumpAnalysis.PathElement> path = new ArrayList<>();
+            for (int i = 0; i < this.path.length; i++) {
+                int node = this.path[i];
+                if (node < 0) {
+                    path.add(new HeapDumpAnalysis.PathElement("(" + -node + " more)", 0, null, null));
+                    continue;
+                }
+
+                int next = i + 1 < this.path.length ? this.path[i + 1] : this.node;
+                String rootType = i == 0 && rootTags[node] != 0 ? rootName(rootTags[node]) : null;
+                String field = next < 0 ? null : fieldNames.get(referenceKey(node, next));
+                path.add(new HeapDumpAnalysis.PathElement(describe(node), HprofAnalyser.this.ids[node], field, rootType));
+            }
+
+            List<HeapDumpAnalysis.RetainedObject> children = new ArrayList<>();
+            for (Candidate child : this.children) {
+                children.add(child.toRetainedObject(rootTags, fieldNames));
+            }
+
+            int node = this.node;
+            String rootType = rootTags[node] != 0 ? rootName(rootTags[node]) : null;
+            return new HeapDumpAnalysis.RetainedObject(describe(node), HprofAnalyser.this.ids[node],
+                    HprofAnalyser.this.sizes[node], this.retained, rootType, path, children);
+        }
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.heapdump;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Sequential reader for the records in a .hprof heap dump.
+ *
+ * <p>The file is memory-mapped in chunks of up to 1GB rather than read into the heap, so dumps
+ * much larger than the available memory can be streamed through (several times, if need be)
+ * without copying.</p>
+ */
+public final class HprofReader implements AutoCloseable {
+    private static final int CHUNK_SHIFT = 30;
+    private static final long CHUNK_SIZE = 1L << CHUNK_SHIFT;
+    private static final long CHUNK_MASK = CHUNK_SIZE - 1;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer[] chunks;
+    private final long size;
+
+    /** The size of object identifiers in the dump, either 4 or 8 bytes */
+    private final int idSize;
+    /** The position of the first record, just after the header */
+    private final long recordsStart;
+
+    private long position = 0;
+
+    public HprofReader(Path file) throws IOException {
+        this.channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            this.size = this.channel.size();
+            this.chunks = new MappedByteBuffer[(int) ((this.size + CHUNK_MASK) >>> CHUNK_SHIFT)];
+            for (int i = 0; i < this.chunks.length; i++) {
+                long start = (long) i << CHUNK_SHIFT;
+                this.chunks[i] = this.channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(CHUNK_SIZE, this.size - start));
+            }
+
+            // header: "JAVA PROFILE 1.0.x\0", u4 identifier size, u8 timestamp
+            StringBuilder format = new StringBuilder();
+            int c;
+            while (this.position < this.size && (c = u1()) != 0) {
+                format.append((char) c);
+            }
+            if (!format.toString().startsWith("JAVA PROFILE 1.0")) {
+                throw new IOException("Not a hprof heap dump (format: '" + format + "')");
+            }
+
+            this.idSize = u4();
+            if (this.idSize != 4 && this.idSize != 8) {
+                throw new IOException("Unsupported identifier size: " + this.idSize);
+            }
+            skip(8);
+            this.recordsStart = this.position;
+        } catch (IOException | RuntimeException e) {
+            this.channel.close();
+            throw e;
+        }
+    }
+
+    public int getIdSize() {
+        return this.idSize;
+    }
+
+    public long getSize() {
+        return this.size;
+    }
+
+    /**
+     * Moves the reader back to the first record in the file.
+     */
+    public void rewind() {
+        this.position = this.recordsStart;
+    }
+
+    public long position() {
+        return this.position;
+    }
+
+    public void position(long position) {
+        this.position = position;
+    }
+
+    public boolean hasRemaining() {
+        return this.position < this.size;
+    }
+
+    public void skip(long bytes) {
+        this.position += bytes;
+    }
+
+    public int u1() {
+        long pos = this.position++;
+        return this.chunks[(int) (pos >>> CHUNK_SHIFT)].get((int) (pos & CHUNK_MASK)) & 0xFF;
+    }
+
+    public int u2() {
+        int offset = (int) (this.position & CHUNK_MASK);
+        if (offset + 2 <= CHUNK_SIZE) {
+            int value = this.chunks[(int) (this.position >>> CHUNK_SHIFT)].getShort(offset) & 0xFFFF;
+            this.position += 2;
+            return value;
+        }
+        return (u1() << 8) | u1();
+    }
+
+    public int u4() {
+        int offset = (int) (this.position & CHUNK_MASK);
+        if (offset + 4 <= CHUNK_SIZE) {
+            int value = this.chunks[(int) (this.position >>> CHUNK_SHIFT)].getInt(offset);
+            this.position += 4;
+            return value;
+        }
+        return (u2() << 16) | u2();
+    }
+
+    public long u8() {
+        int offset = (int) (this.position & CHUNK_MASK);
+        if (offset + 8 <= CHUNK_SIZE) {
+            long value = this.chunks[(int) (this.position >>> CHUNK_SHIFT)].getLong(offset);
+            this.position += 8;
+            return value;
+        }
+        return ((long) u4() << 32) | (u4() & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Reads an object identifier.
+     *
+     * @return the identifier
+     */
+    public long id() {
+        return this.idSize == 4 ? u4() & 0xFFFFFFFFL : u8();
+    }
+
+    /**
+     * Reads a string (HPROF uses modified UTF-8, which decodes the same for class and field names).
+     *
+     * @param position the position of the string
+     * @param length the length of the string in bytes
+     * @return the string
+     */
+    public String utf8(long position, int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            long pos = position + i;
+            bytes[i] = this.chunks[(int) (pos >>> CHUNK_SHIFT)].get((int) (pos & CHUNK_MASK));
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void close() throws IOException {
+        // the mappings themselves are released once they are garbage collected
+        this.channel.close();
+    }
+}
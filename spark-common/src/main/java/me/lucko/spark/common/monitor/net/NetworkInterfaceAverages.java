@@ -38,10 +38,10 @@ public final class NetworkInterfaceAverages {
     }
 
     void accept(NetworkInterfaceInfo info, RateCalculator rateCalculator) {
-        this.rxBytesPerSecond.add(rateCalculator.calculate(info.getReceivedBytes()));
-        this.txBytesPerSecond.add(rateCalculator.calculate(info.getTransmittedBytes()));
-        this.rxPacketsPerSecond.add(rateCalculator.calculate(info.getReceivedPackets()));
-        this.txPacketsPerSecond.add(rateCalculator.calculate(info.getTransmittedPackets()));
+        this.rxBytesPerSecond.add(rateCalculator.calculate(info.getReceivedBytes()).doubleValue());
+        this.txBytesPerSecond.add(rateCalculator.calculate(info.getTransmittedBytes()).doubleValue());
+        this.rxPacketsPerSecond.add(rateCalculator.calculate(info.getReceivedPackets()).doubleValue());
+        this.txPacketsPerSecond.add(rateCalculator.calculate(info.getTransmittedPackets()).doubleValue());
     }
 
     interface RateCalculator {
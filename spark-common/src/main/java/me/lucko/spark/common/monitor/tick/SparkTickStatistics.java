@@ -23,7 +23,6 @@ package me.lucko.spark.common.monitor.tick;
 import me.lucko.spark.api.statistic.misc.DoubleAverageInfo;
 import me.lucko.spark.common.tick.TickHook;
 import me.lucko.spark.common.tick.TickReporter;
-import me.lucko.spark.common.util.RollingAverage;
 
 import java.math.BigDecimal;
 import java.math.RoundingMode;
@@ -43,25 +42,47 @@ import java.util.concurrent.TimeUnit;
 public class SparkTickStatistics implements TickHook.Callback, TickReporter.Callback, TickStatistics {
 
     private static final long SEC_IN_NANO = TimeUnit.SECONDS.toNanos(1);
-    private static final int TPS = 100;
-    private static final int TPS_SAMPLE_INTERVAL = 100;
-    private static final BigDecimal TPS_BASE = new BigDecimal(SEC_IN_NANO).multiply(new BigDecimal(TPS_SAMPLE_INTERVAL));
+    private static final int DEFAULT_TPS = 100;
 
-    private final TpsRollingAverage tps5Sec = new TpsRollingAverage(5);
-    private final TpsRollingAverage tps10Sec = new TpsRollingAverage(10);
-    private final TpsRollingAverage tps1Min = new TpsRollingAverage(60);
-    private final TpsRollingAverage tps5Min = new TpsRollingAverage(60 * 5);
-    private final TpsRollingAverage tps15Min = new TpsRollingAverage(60 * 15);
-    private final TpsRollingAverage[] tpsAverages = {this.tps5Sec, this.tps10Sec, this.tps1Min, this.tps5Min, this.tps15Min};
+    private final int tps;
+    private final BigDecimal tpsBase;
+
+    private final TpsRollingAverage tps5Sec;
+    private final TpsRollingAverage tps10Sec;
+    private final TpsRollingAverage tps1Min;
+    private final TpsRollingAverage tps5Min;
+    private final TpsRollingAverage tps15Min;
+    private final TpsRollingAverage[] tpsAverages;
 
     private boolean durationSupported = false;
-    private final RollingAverage tickDuration10Sec = new RollingAverage(TPS * 10);
-    private final RollingAverage tickDuration1Min = new RollingAverage(TPS * 60);
-    private final RollingAverage tickDuration5Min = new RollingAverage(TPS * 60 * 5);
-    private final RollingAverage[] tickDurationAverages = {this.tickDuration10Sec, this.tickDuration1Min, this.tickDuration5Min};
+    private final TickDurationHistogram tickDurations;
 
     private long last = 0;
 
+    public SparkTickStatistics() {
+        this(DEFAULT_TPS);
+    }
+
+    /**
+     * Creates a new tick statistics instance.
+     *
+     * @param tps the number of ticks per second the platform aims to run at
+     */
+    public SparkTickStatistics(int tps) {
+        this.tps = tps;
+        // the tps is sampled once every 'tps' ticks, i.e. roughly once per second
+        this.tpsBase = new BigDecimal(SEC_IN_NANO).multiply(new BigDecimal(tps));
+
+        this.tps5Sec = new TpsRollingAverage(tps, 5);
+        this.tps10Sec = new TpsRollingAverage(tps, 10);
+        this.tps1Min = new TpsRollingAverage(tps, 60);
+        this.tps5Min = new TpsRollingAverage(tps, 60 * 5);
+        this.tps15Min = new TpsRollingAverage(tps, 60 * 15);
+        this.tpsAverages = new TpsRollingAverage[]{this.tps5Sec, this.tps10Sec, this.tps1Min, this.tps5Min, this.tps15Min};
+
+        this.tickDurations = new TickDurationHistogram(tps * 10, tps * 60, tps * 60 * 5, tps * 60 * 15);
+    }
+
     @Override
     public boolean isDurationSupported() {
         return this.durationSupported;
@@ -69,7 +90,7 @@ public class SparkTickStatistics implements TickHook.Callback, TickReporter.Call
 
     @Override
     public void onTick(int currentTick) {
-        if (currentTick % TPS_SAMPLE_INTERVAL != 0) {
+        if (currentTick % this.tps != 0) {
             return;
         }
 
@@ -81,7 +102,7 @@ public class SparkTickStatistics implements TickHook.Callback, TickReporter.Call
         }
 
         long diff = now - this.last;
-        BigDecimal currentTps = TPS_BASE.divide(new BigDecimal(diff), 30, RoundingMode.HALF_UP);
+        BigDecimal currentTps = this.tpsBase.divide(new BigDecimal(diff), 30, RoundingMode.HALF_UP);
         BigDecimal total = currentTps.multiply(new BigDecimal(diff));
 
         for (TpsRollingAverage rollingAverage : this.tpsAverages) {
@@ -94,10 +115,7 @@ public class SparkTickStatistics implements TickHook.Callback, TickReporter.Call
     @Override
     public void onTick(double duration) {
         this.durationSupported = true;
-        BigDecimal decimal = new BigDecimal(duration);
-        for (RollingAverage rollingAverage : this.tickDurationAverages) {
-            rollingAverage.add(decimal);
-        }
+        this.tickDurations.record(duration);
     }
 
     @Override
@@ -130,7 +148,7 @@ public class SparkTickStatistics implements TickHook.Callback, TickReporter.Call
         if (!this.durationSupported) {
             return null;
         }
-        return this.tickDuration10Sec;
+        return this.tickDurations.window(0);
     }
 
     @Override
@@ -138,7 +156,7 @@ public class SparkTickStatistics implements TickHook.Callback, TickReporter.Call
         if (!this.durationSupported) {
             return null;
         }
-        return this.tickDuration1Min;
+        return this.tickDurations.window(1);
     }
 
     @Override
@@ -146,7 +164,15 @@ public class SparkTickStatistics implements TickHook.Callback, TickReporter.Call
         if (!this.durationSupported) {
             return null;
         }
-        return this.tickDuration5Min;
+        return this.tickDurations.window(2);
+    }
+
+    @Override
+    public DoubleAverageInfo duration15Min() {
+        if (!this.durationSupported) {
+            return null;
+        }
+        return this.tickDurations.window(3);
     }
 
 
@@ -165,14 +191,14 @@ public class SparkTickStatistics implements TickHook.Callback, TickReporter.Call
         private final BigDecimal[] samples;
         private final long[] times;
 
-        TpsRollingAverage(int size) {
+        TpsRollingAverage(int tps, int size) {
             this.size = size;
             this.time = size * SEC_IN_NANO;
-            this.total = new BigDecimal(TPS).multiply(new BigDecimal(SEC_IN_NANO)).multiply(new BigDecimal(size));
+            this.total = new BigDecimal(tps).multiply(new BigDecimal(SEC_IN_NANO)).multiply(new BigDecimal(size));
             this.samples = new BigDecimal[size];
             this.times = new long[size];
             for (int i = 0; i < size; i++) {
-                this.samples[i] = new BigDecimal(TPS);
+                this.samples[i] = new BigDecimal(tps);
                 this.times[i] = SEC_IN_NANO;
             }
         }
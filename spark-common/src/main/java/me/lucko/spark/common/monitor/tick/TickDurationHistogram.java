@@ -0,0 +1,275 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.monitor.tick;
+
+import me.lucko.spark.api.statistic.misc.DoubleAverageInfo;
+
+/**
+ * Records tick durations into log-bucketed (HDR-style) histograms, one for each of a number of
+ * windows over the most recent ticks.
+ *
+ * <p>Durations are stored in microseconds. Values under 64µs get a bucket each; above that,
+ * each power of two is split into 32 buckets, so a bucket's width is at most 1/32 of its
+ * value. Percentiles are reported as the midpoint of their bucket, i.e. to within ~1.6%, and
+ * the mean, the min and the max are exact (to the microsecond).</p>
+ *
+ * <p>Recording a duration updates each window in (amortised) constant time, without allocating
+ * once warmed up: the duration is added to every window, and the duration which has just fallen
+ * out of each window is removed from it. The min and max are tracked by keeping the durations
+ * which could still become the min or max of the window in a {@link MonotonicQueue}.</p>
+ */
+public final class TickDurationHistogram {
+
+    /** The number of buckets per power of two, above the range where every value has its own bucket */
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /** The largest duration that can be recorded, in microseconds (~33 seconds), larger durations are clamped */
+    private static final long MAX_VALUE = (1L << 25) - 1;
+
+    /** The number of buckets needed to hold values up to {@link #MAX_VALUE} */
+    private static final int BUCKETS = bucketIndex(MAX_VALUE) + 1;
+
+    /** Ring buffer of the most recent durations, in microseconds */
+    private final int[] durations;
+    /** The total number of durations ever recorded */
+    private long count = 0;
+
+    private final Window[] windows;
+
+    /**
+     * Creates a new histogram.
+     *
+     * @param windowSizes the number of ticks in each window
+     */
+    public TickDurationHistogram(int... windowSizes) {
+        int maxSize = 0;
+        this.windows = new Window[windowSizes.length];
+        for (int i = 0; i < windowSizes.length; i++) {
+            if (windowSizes[i] <= 0) {
+                throw new IllegalArgumentException("Invalid window size " + windowSizes[i]);
+            }
+            this.windows[i] = new Window(windowSizes[i]);
+            maxSize = Math.max(maxSize, windowSizes[i]);
+        }
+        this.durations = new int[maxSize];
+    }
+
+    /**
+     * Records the duration of a tick.
+     *
+     * @param durationMillis the duration, in milliseconds
+     */
+    public void record(double durationMillis) {
+        long value = Math.max(0, Math.min(MAX_VALUE, Math.round(durationMillis * 1000d)));
+        int bucket = bucketIndex(value);
+
+        synchronized (this) {
+            int ringSize = this.durations.length;
+            long index = this.count++;
+
+            int position = (int) (index % ringSize);
+
+            for (Window window : this.windows) {
+                if (index >= window.size) {
+                    // the duration recorded 'size' ticks ago has just left the window
+                    // (removed first, as it may share a position in the ring with the new duration)
+                    int removedPosition = (int) ((index - window.size) % ringSize);
+                    long removed = this.durations[removedPosition];
+                    window.remove(bucketIndex(removed), removed, removedPosition);
+                }
+                window.add(bucket, value, position);
+            }
+
+            this.durations[position] = (int) value;
+        }
+    }
+
+    /**
+     * Gets the statistics for a window.
+     *
+     * @param index the index of the window, in the order passed to the constructor
+     * @return the window
+     */
+    public DoubleAverageInfo window(int index) {
+        return this.windows[index];
+    }
+
+    static int bucketIndex(long value) {
+        if (value < SUB_BUCKETS * 2) {
+            return (int) value;
+        }
+        // shift so that the top SUB_BUCKET_BITS + 1 bits remain, i.e. [SUB_BUCKETS, SUB_BUCKETS * 2)
+        int shift = (63 - Long.numberOfLeadingZeros(value)) - SUB_BUCKET_BITS;
+        return SUB_BUCKETS * shift + (int) (value >>> shift);
+    }
+
+    static long bucketLowerBound(int bucket) {
+        if (bucket < SUB_BUCKETS * 2) {
+            return bucket;
+        }
+        int shift = (bucket >> SUB_BUCKET_BITS) - 1;
+        return (long) (bucket - SUB_BUCKETS * shift) << shift;
+    }
+
+    static long bucketUpperBound(int bucket) {
+        return bucket + 1 == BUCKETS ? MAX_VALUE : bucketLowerBound(bucket + 1) - 1;
+    }
+
+    /**
+     * Gets the value that represents a bucket, in milliseconds.
+     */
+    private static double bucketValue(int bucket) {
+        return (bucketLowerBound(bucket) + bucketUpperBound(bucket)) / 2d / 1000d;
+    }
+
+    private final class Window implements DoubleAverageInfo {
+        private final int size;
+        private final int[] counts = new int[BUCKETS];
+        private int total = 0;
+        private long sum = 0;
+        private final MonotonicQueue maxQueue = new MonotonicQueue(true);
+        private final MonotonicQueue minQueue = new MonotonicQueue(false);
+
+        Window(int size) {
+            this.size = size;
+        }
+
+        void add(int bucket, long value, int position) {
+            this.counts[bucket]++;
+            this.total++;
+            this.sum += value;
+            this.maxQueue.add(TickDurationHistogram.this.durations, position, value);
+            this.minQueue.add(TickDurationHistogram.this.durations, position, value);
+        }
+
+        void remove(int bucket, long value, int position) {
+            this.counts[bucket]--;
+            this.total--;
+            this.sum -= value;
+            this.maxQueue.remove(position);
+            this.minQueue.remove(position);
+        }
+
+        @Override
+        public double mean() {
+            synchronized (TickDurationHistogram.this) {
+                return this.total == 0 ? 0 : this.sum / 1000d / this.total;
+            }
+        }
+
+        @Override
+        public double max() {
+            synchronized (TickDurationHistogram.this) {
+                return this.total == 0 ? 0 : this.maxQueue.peek(TickDurationHistogram.this.durations) / 1000d;
+            }
+        }
+
+        @Override
+        public double min() {
+            synchronized (TickDurationHistogram.this) {
+                return this.total == 0 ? 0 : this.minQueue.peek(TickDurationHistogram.this.durations) / 1000d;
+            }
+        }
+
+        @Override
+        public double percentile(double percentile) {
+            if (percentile < 0 || percentile > 1) {
+                throw new IllegalArgumentException("Invalid percentile " + percentile);
+            }
+
+            synchronized (TickDurationHistogram.this) {
+                if (this.total == 0) {
+                    return 0;
+                }
+
+                // the same rank as RollingAverage: the value at index ceil(p * (n - 1)) of the sorted samples
+                long rank = (long) Math.ceil(percentile * (this.total - 1));
+                long seen = 0;
+                for (int i = 0; i < BUCKETS; i++) {
+                    seen += this.counts[i];
+                    if (seen > rank) {
+                        return bucketValue(i);
+                    }
+                }
+                throw new AssertionError();
+            }
+        }
+    }
+
+    /**
+     * A queue of the positions (in the ring of durations) of the durations which could still
+     * become the max (or min) of a window, oldest first.
+     *
+     * <p>A duration can never be the max of a window once a newer duration at least as large has
+     * been recorded, as the newer one will stay in the window for longer. Such durations are
+     * dropped when the newer one is added, so the queue is in decreasing order of value and
+     * its head is the max of the window. The same applies to the min, in increasing order.</p>
+     */
+    private static final class MonotonicQueue {
+        private final boolean max;
+        /** Ring buffer of positions, its length is always a power of two */
+        private int[] positions = new int[16];
+        private int head = 0;
+        private int size = 0;
+
+        MonotonicQueue(boolean max) {
+            this.max = max;
+        }
+
+        void add(int[] durations, int position, long value) {
+            int mask = this.positions.length - 1;
+            while (this.size != 0) {
+                long last = durations[this.positions[(this.head + this.size - 1) & mask]];
+                if (this.max ? last > value : last < value) {
+                    break;
+                }
+                this.size--;
+            }
+
+            if (this.size == this.positions.length) {
+                int[] positions = new int[this.positions.length * 2];
+                for (int i = 0; i < this.size; i++) {
+                    positions[i] = this.positions[(this.head + i) & mask];
+                }
+                this.positions = positions;
+                this.head = 0;
+                mask = positions.length - 1;
+            }
+            this.positions[(this.head + this.size) & mask] = position;
+            this.size++;
+        }
+
+        void remove(int position) {
+            // only the oldest duration can leave the window, and it is only still
+            // in the queue if nothing newer has replaced it
+            if (this.size != 0 && this.positions[this.head] == position) {
+                this.head = (this.head + 1) & (this.positions.length - 1);
+                this.size--;
+            }
+        }
+
+        long peek(int[] durations) {
+            return durations[this.positions[this.head]];
+        }
+    }
+
+}
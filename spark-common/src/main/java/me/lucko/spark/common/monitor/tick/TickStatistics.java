@@ -38,5 +38,6 @@ public interface TickStatistics {
     DoubleAverageInfo duration10Sec();
     DoubleAverageInfo duration1Min();
     DoubleAverageInfo duration5Min();
+    DoubleAverageInfo duration15Min();
 
 }
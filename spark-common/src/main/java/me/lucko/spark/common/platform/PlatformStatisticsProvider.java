@@ -170,6 +170,8 @@ public class PlatformStatisticsProvider {
                 builder.setMspt(PlatformStatistics.Mspt.newBuilder()
                         .setLast1M(rollingAvgProto(tickStatistics.duration1Min()))
                         .setLast5M(rollingAvgProto(tickStatistics.duration5Min()))
+                        .setLast10S(rollingAvgProto(tickStatistics.duration10Sec()))
+                        .setLast15M(rollingAvgProto(tickStatistics.duration15Min()))
                         .build()
                 );
             }
@@ -213,6 +215,8 @@ public class PlatformStatisticsProvider {
                 .setMin(info.min())
                 .setMedian(info.median())
                 .setPercentile95(info.percentile95th())
+                .setPercentile99(info.percentile(0.99))
+                .setPercentile999(info.percentile(0.999))
                 .build();
     }
 
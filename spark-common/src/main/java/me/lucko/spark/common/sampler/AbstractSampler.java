@@ -26,16 +26,19 @@ import me.lucko.spark.common.monitor.memory.GarbageCollectorStatistics;
 import me.lucko.spark.common.platform.MetadataProvider;
 import me.lucko.spark.common.platform.serverconfig.ServerConfigProvider;
 import me.lucko.spark.common.sampler.aggregator.DataAggregator;
+import me.lucko.spark.common.sampler.history.ProfilingHistory;
 import me.lucko.spark.common.sampler.node.MergeMode;
 import me.lucko.spark.common.sampler.node.ThreadNode;
 import me.lucko.spark.common.sampler.source.ClassSourceLookup;
 import me.lucko.spark.common.sampler.source.SourceMetadata;
 import me.lucko.spark.common.sampler.window.ProtoTimeEncoder;
 import me.lucko.spark.common.sampler.window.WindowStatisticsCollector;
+import me.lucko.spark.common.ws.SamplerDeltaEncoder;
 import me.lucko.spark.common.ws.ViewerSocket;
 import me.lucko.spark.proto.SparkProtos;
 import me.lucko.spark.proto.SparkSamplerProtos.SamplerData;
 import me.lucko.spark.proto.SparkSamplerProtos.SamplerMetadata;
+import me.lucko.spark.proto.SparkWebSocketProtos.ServerUpdateSamplerDelta;
 import mindustry.gen.Player;
 
 import java.util.Collection;
@@ -81,6 +84,12 @@ public abstract class AbstractSampler implements Sampler {
     /** A set of viewer sockets linked to the sampler */
     protected List<ViewerSocket> viewerSockets = new CopyOnWriteArrayList<>();
 
+    /** If the sampler has been stopped */
+    protected volatile boolean stopped = false;
+
+    /** Accounts for the resources used by the sampler itself */
+    protected final SamplerOverhead overhead = new SamplerOverhead();
+
     protected AbstractSampler(SparkPlatform platform, SamplerSettings settings) {
         this.platform = platform;
         this.interval = settings.interval();
@@ -113,6 +122,11 @@ public abstract class AbstractSampler implements Sampler {
         return this.future;
     }
 
+    @Override
+    public SamplerOverhead getOverhead() {
+        return this.overhead;
+    }
+
     protected void recordInitialGcStats() {
         this.initialGcStats = GarbageCollectorStatistics.pollStats();
     }
@@ -121,6 +135,15 @@ public abstract class AbstractSampler implements Sampler {
         return this.initialGcStats;
     }
 
+    /**
+     * Gets the time the sampler's data ends at, written to exported profiles.
+     *
+     * @return the end time
+     */
+    protected long getEndTime() {
+        return System.currentTimeMillis();
+    }
+
     @Override
     public void start() {
         this.startTime = System.currentTimeMillis();
@@ -128,6 +151,7 @@ public abstract class AbstractSampler implements Sampler {
 
     @Override
     public void stop(boolean cancelled) {
+        this.stopped = true;
         this.windowStatisticsCollector.stop();
         for (ViewerSocket viewerSocket : this.viewerSockets) {
             viewerSocket.processSamplerStopped(this);
@@ -155,6 +179,25 @@ public abstract class AbstractSampler implements Sampler {
         });
     }
 
+    /**
+     * Writes the data for a window which has just been completed to the profiling history,
+     * if this is the background sampler.
+     *
+     * @param window the completed window
+     */
+    protected void writeWindowToHistory(int window) {
+        ProfilingHistory history = this.platform.getProfilingHistory();
+        if (!this.background || !history.isEnabled()) {
+            return;
+        }
+
+        try {
+            history.write(window, getMode(), this.interval, this.threadDumper.getMetadata(), getDataAggregator(), this.windowStatisticsCollector.export().get(window));
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
     protected void sendStatisticsToSocket() {
         try {
             this.viewerSockets.removeIf(socket -> !socket.isOpen());
@@ -173,13 +216,41 @@ public abstract class AbstractSampler implements Sampler {
         }
     }
 
+    /**
+     * Gets the data aggregator used by the sampler.
+     *
+     * @return the data aggregator
+     */
+    protected abstract DataAggregator getDataAggregator();
+
+    /**
+     * Exports the changes to the sampler data since the previous payload produced
+     * for the given {@code encoder}.
+     *
+     * @param encoder the delta encoder
+     * @return the delta
+     */
+    public ServerUpdateSamplerDelta toDeltaProto(SamplerDeltaEncoder encoder) {
+        long exportStart = System.nanoTime();
+
+        // the sampler is still running, so don't finish the aggregator
+        List<ThreadNode> data = getDataAggregator().snapshotData();
+        int[] timeWindows = new ProtoTimeEncoder(getMode().valueTransformer(), data).getKeys();
+        this.windowStatisticsCollector.ensureHasStatisticsForAllWindows(timeWindows);
+
+        ServerUpdateSamplerDelta delta = encoder.encode(data, timeWindows, getMode().valueTransformer(), this.windowStatisticsCollector.export());
+        this.overhead.record(SamplerOverhead.Operation.EXPORT, exportStart);
+        return delta;
+    }
+
     protected void writeMetadataToProto(SamplerData.Builder proto,  SparkPlatform platform, Data creator, String comment, DataAggregator dataAggregator) {
+        long endTime = getEndTime();
         SamplerMetadata.Builder metadata = SamplerMetadata.newBuilder()
                 .setSamplerMode(getMode().asProto())
                 .setPlatformMetadata(platform.getPlugin().getPlatformInfo().toData().toProto())
                 .setCreator(creator.toProto())
                 .setStartTime(this.startTime)
-                .setEndTime(System.currentTimeMillis())
+                .setEndTime(endTime)
                 .setInterval(this.interval)
                 .setThreadDumper(this.threadDumper.getMetadata())
                 .setDataAggregator(dataAggregator.getMetadata());
@@ -188,6 +259,12 @@ public abstract class AbstractSampler implements Sampler {
             metadata.setComment(comment);
         }
 
+        try {
+            metadata.setSelfOverhead(this.overhead.toProto(endTime - this.startTime));
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+
         int totalTicks = this.windowStatisticsCollector.getTotalTicks();
         if (totalTicks != -1) {
             metadata.setNumberOfTicks(totalTicks);
@@ -232,7 +309,9 @@ public abstract class AbstractSampler implements Sampler {
     }
 
     protected void writeDataToProto(SamplerData.Builder proto, DataAggregator dataAggregator, MergeMode mergeMode, ClassSourceLookup classSourceLookup) {
-        List<ThreadNode> data = dataAggregator.exportData();
+        // only finish the aggregator once the sampler has stopped, a running sampler
+        // can be exported (e.g. for a diff or the live viewer) and must keep sampling
+        List<ThreadNode> data = this.stopped ? dataAggregator.exportData() : dataAggregator.snapshotData();
         data.sort(Comparator.comparing(ThreadNode::getThreadLabel));
 
         ClassSourceLookup.Visitor classSourceVisitor = ClassSourceLookup.createVisitor(classSourceLookup);
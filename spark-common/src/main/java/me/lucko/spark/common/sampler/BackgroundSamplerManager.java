@@ -22,6 +22,7 @@ package me.lucko.spark.common.sampler;
 
 import me.lucko.spark.common.SparkPlatform;
 import me.lucko.spark.common.platform.PlatformInfo;
+import me.lucko.spark.common.sampler.async.FlightRecorderSampler;
 import me.lucko.spark.common.util.Configuration;
 
 import java.util.logging.Level;
@@ -101,7 +102,9 @@ public class BackgroundSamplerManager {
     }
 
     private void startSampler() {
-        boolean forceJavaEngine = this.configuration.getString(OPTION_ENGINE, "async").equals("java");
+        String engine = this.configuration.getString(OPTION_ENGINE, "async");
+        boolean forceJavaEngine = engine.equals("java");
+        boolean forceJfrEngine = engine.equals("jfr");
 
         ThreadGrouper threadGrouper = ThreadGrouper.parseConfigSetting(this.configuration.getString(OPTION_THREAD_GROUPER, "by-pool"));
         ThreadDumper threadDumper = ThreadDumper.parseConfigSetting(this.configuration.getString(OPTION_THREAD_DUMPER, "default"));
@@ -117,8 +120,13 @@ public class BackgroundSamplerManager {
               .threadGrouper(threadGrouper)
               .samplingInterval(interval)
               .forceJavaSampler(forceJavaEngine)
+              .forceFlightRecorder(forceJfrEngine)
               .start(this.platform);
 
+        if (sampler instanceof FlightRecorderSampler && sampler.getMode() == SamplerMode.EXECUTION) {
+            this.platform.getPlugin().log(Level.WARNING, "The background profiler is using Flight Recorder. " + FlightRecorderSampler.THREAD_LIMIT_WARNING);
+        }
+
         this.platform.getSamplerContainer().setActiveSampler(sampler);
     }
 
@@ -97,6 +97,13 @@ public interface Sampler {
      */
     CompletableFuture<Sampler> getFuture();
 
+    /**
+     * Gets the object which accounts for the resources used by the sampler itself.
+     *
+     * @return the sampler overhead
+     */
+    SamplerOverhead getOverhead();
+
     // Methods used to export the sampler data to the web viewer.
     SamplerData toProto(SparkPlatform platform, ExportProps exportProps);
 
@@ -23,6 +23,8 @@ package me.lucko.spark.common.sampler;
 import me.lucko.spark.common.SparkPlatform;
 import me.lucko.spark.common.sampler.async.AsyncProfilerAccess;
 import me.lucko.spark.common.sampler.async.AsyncSampler;
+import me.lucko.spark.common.sampler.async.FlightRecorderAccess;
+import me.lucko.spark.common.sampler.async.FlightRecorderSampler;
 import me.lucko.spark.common.sampler.async.SampleCollector;
 import me.lucko.spark.common.sampler.java.JavaSampler;
 import me.lucko.spark.common.tick.TickHook;
@@ -40,6 +42,7 @@ public class SamplerBuilder {
     private boolean ignoreSleeping = false;
     private boolean ignoreNative = false;
     private boolean useAsyncProfiler = true;
+    private boolean useFlightRecorder = true;
     private boolean allocLiveOnly = false;
     private long autoEndTime = -1;
     private boolean background = false;
@@ -103,6 +106,23 @@ public class SamplerBuilder {
 
     public SamplerBuilder forceJavaSampler(boolean forceJavaSampler) {
         this.useAsyncProfiler = !forceJavaSampler;
+        this.useFlightRecorder = !forceJavaSampler;
+        return this;
+    }
+
+    /**
+     * Uses the Flight Recorder engine even if async-profiler is available.
+     *
+     * <p>Otherwise, the Flight Recorder engine is only used when async-profiler can't be loaded.</p>
+     *
+     * @param forceFlightRecorder if the Flight Recorder engine should be used
+     * @return this builder
+     */
+    public SamplerBuilder forceFlightRecorder(boolean forceFlightRecorder) {
+        if (forceFlightRecorder) {
+            this.useAsyncProfiler = false;
+            this.useFlightRecorder = true;
+        }
         return this;
     }
 
@@ -117,13 +137,26 @@ public class SamplerBuilder {
         }
 
         boolean onlyTicksOverMode = this.ticksOver != -1 && this.tickHook != null;
+        boolean canUseSamplingEngine = !onlyTicksOverMode && !(this.ignoreSleeping || this.ignoreNative);
         boolean canUseAsyncProfiler = this.useAsyncProfiler &&
-                !onlyTicksOverMode &&
-                !(this.ignoreSleeping || this.ignoreNative) &&
+                canUseSamplingEngine &&
                 AsyncProfilerAccess.getInstance(platform).checkSupported(platform);
+        boolean canUseFlightRecorder = this.useFlightRecorder &&
+                canUseSamplingEngine &&
+                !canUseAsyncProfiler &&
+                FlightRecorderAccess.getInstance().checkSupported(platform);
 
-        if (this.mode == SamplerMode.ALLOCATION && (!canUseAsyncProfiler || !AsyncProfilerAccess.getInstance(platform).checkAllocationProfilingSupported(platform))) {
-            throw new UnsupportedOperationException("Allocation profiling is not supported on your system. Check the console for more info.");
+        if (this.mode == SamplerMode.ALLOCATION) {
+            boolean supported;
+            if (canUseAsyncProfiler) {
+                supported = AsyncProfilerAccess.getInstance(platform).checkAllocationProfilingSupported(platform);
+            } else {
+                // Flight Recorder can't track which allocations are still live
+                supported = canUseFlightRecorder && !this.allocLiveOnly && FlightRecorderAccess.getInstance().checkAllocationProfilingSupported(platform);
+            }
+            if (!supported) {
+                throw new UnsupportedOperationException("Allocation profiling is not supported on your system. Check the console for more info.");
+            }
         }
 
         int interval = (int) (this.mode == SamplerMode.EXECUTION ?
@@ -131,13 +164,23 @@ public class SamplerBuilder {
                 this.samplingInterval
         );
 
+        if (this.mode == SamplerMode.EXECUTION && canUseFlightRecorder) {
+            // Flight Recorder can't sample more often than once per millisecond
+            interval = Math.max(1000, interval / 1000 * 1000);
+        }
+
         SamplerSettings settings = new SamplerSettings(interval, this.threadDumper, this.threadGrouper, this.autoEndTime, this.background);
 
         Sampler sampler;
-        if (this.mode == SamplerMode.ALLOCATION) {
+        if (this.mode == SamplerMode.ALLOCATION && canUseAsyncProfiler) {
             sampler = new AsyncSampler(platform, settings, new SampleCollector.Allocation(interval, this.allocLiveOnly));
+        } else if (this.mode == SamplerMode.ALLOCATION) {
+            sampler = new FlightRecorderSampler(platform, settings, new SampleCollector.Allocation(interval, false));
         } else if (canUseAsyncProfiler) {
             sampler = new AsyncSampler(platform, settings, new SampleCollector.Execution(interval));
+        } else if (canUseFlightRecorder) {
+            // under-reports times when many threads are busy, but is still better than the safepoint-biased java sampler
+            sampler = new FlightRecorderSampler(platform, settings, new SampleCollector.Execution(interval));
         } else if (onlyTicksOverMode) {
             sampler = new JavaSampler(platform, settings, this.ignoreSleeping, this.ignoreNative, this.tickHook, this.ticksOver);
         } else {
@@ -22,6 +22,7 @@ package me.lucko.spark.common.sampler;
 
 import me.lucko.spark.proto.SparkSamplerProtos.SamplerMetadata;
 
+import java.util.function.DoubleToLongFunction;
 import java.util.function.LongToDoubleFunction;
 
 public enum SamplerMode {
@@ -31,6 +32,10 @@ public enum SamplerMode {
                 // convert the duration from microseconds -> milliseconds
                 return value / 1000d;
             },
+            value -> {
+                // convert the duration from milliseconds -> microseconds
+                return Math.round(value * 1000d);
+            },
             4, // ms
             SamplerMetadata.SamplerMode.EXECUTION
     ),
@@ -40,16 +45,19 @@ public enum SamplerMode {
                 // do nothing
                 return value;
             },
+            Math::round,
             524287, // 512 KiB
             SamplerMetadata.SamplerMode.ALLOCATION
     );
 
     private final LongToDoubleFunction valueTransformer;
+    private final DoubleToLongFunction inverseValueTransformer;
     private final int defaultInterval;
     private final SamplerMetadata.SamplerMode proto;
 
-    SamplerMode(LongToDoubleFunction valueTransformer, int defaultInterval, SamplerMetadata.SamplerMode proto) {
+    SamplerMode(LongToDoubleFunction valueTransformer, DoubleToLongFunction inverseValueTransformer, int defaultInterval, SamplerMetadata.SamplerMode proto) {
         this.valueTransformer = valueTransformer;
+        this.inverseValueTransformer = inverseValueTransformer;
         this.defaultInterval = defaultInterval;
         this.proto = proto;
     }
@@ -58,6 +66,16 @@ public enum SamplerMode {
         return this.valueTransformer;
     }
 
+    /**
+     * Gets a function to convert the exported values back to the values logged by the sampler,
+     * used when reading a profile which was previously exported.
+     *
+     * @return the inverse of the {@link #valueTransformer()}
+     */
+    public DoubleToLongFunction inverseValueTransformer() {
+        return this.inverseValueTransformer;
+    }
+
     public int defaultInterval() {
         return this.defaultInterval;
     }
@@ -71,4 +89,19 @@ public enum SamplerMode {
         return this.proto;
     }
 
+    /**
+     * Gets the sampler mode for the given metadata enum instance.
+     *
+     * @param proto the proto metadata
+     * @return the sampler mode, defaulting to {@link #EXECUTION} if unknown
+     */
+    public static SamplerMode fromProto(SamplerMetadata.SamplerMode proto) {
+        for (SamplerMode mode : values()) {
+            if (mode.proto == proto) {
+                return mode;
+            }
+        }
+        return EXECUTION;
+    }
+
 }
@@ -0,0 +1,279 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.sampler;
+
+import me.lucko.spark.proto.SparkSamplerProtos.SamplerMetadata;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Accounts for the resources consumed by a sampler itself (its "self-overhead").
+ *
+ * <p>CPU time and allocated bytes are measured for the threads created by the sampler,
+ * using the {@link ThreadMXBean}. Wall time is measured for each {@link Operation}
+ * performed by the sampler, and recorded in a histogram.</p>
+ */
+public class SamplerOverhead {
+
+    /** The number of buckets in each histogram - bucket i holds durations of [2^(i-1), 2^i) microseconds */
+    private static final int HISTOGRAM_BUCKETS = 32;
+
+    /** The thread management interface for the current JVM */
+    private static final ThreadMXBean THREAD_BEAN = ManagementFactory.getThreadMXBean();
+
+    /**
+     * An operation performed by a sampler.
+     */
+    public enum Operation {
+        /** Obtaining a thread dump (Java sampler) */
+        THREAD_DUMP,
+        /** Inserting sampled stacks into the call tree */
+        INSERT,
+        /** Reading & aggregating the JFR output from async-profiler */
+        JFR_AGGREGATE,
+        /** Exporting the data to a proto */
+        EXPORT;
+
+        String id() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    /** The threads that belong to the sampler - guarded by 'this' */
+    private final List<TrackedThread> threads = new ArrayList<>();
+
+    /** Timings for each operation */
+    private final Map<Operation, Timer> timers = new EnumMap<>(Operation.class);
+
+    public SamplerOverhead() {
+        for (Operation operation : Operation.values()) {
+            this.timers.put(operation, new Timer());
+        }
+    }
+
+    /**
+     * Creates a {@link ThreadFactory} which records the threads it creates as belonging to the sampler.
+     *
+     * @return the thread factory
+     */
+    public ThreadFactory threadFactory() {
+        ThreadFactory backing = Executors.defaultThreadFactory();
+        return runnable -> {
+            Thread thread = backing.newThread(runnable);
+            synchronized (this) {
+                this.threads.add(new TrackedThread(thread.getId()));
+            }
+            return thread;
+        };
+    }
+
+    /**
+     * Records the time taken by an operation.
+     *
+     * @param operation the operation
+     * @param startNanos the {@link System#nanoTime()} when the operation started
+     */
+    public void record(Operation operation, long startNanos) {
+        this.timers.get(operation).record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Polls the CPU time and allocated bytes of the sampler threads, so the latest values are
+     * retained after the threads have terminated.
+     *
+     * <p>Should be called before the sampler's executors are shutdown.</p>
+     */
+    public synchronized void poll() {
+        boolean cpuSupported = isCpuTimeSupported();
+        com.sun.management.ThreadMXBean allocBean = getAllocatedBytesBean();
+
+        for (TrackedThread thread : this.threads) {
+            if (cpuSupported) {
+                long cpuTime = THREAD_BEAN.getThreadCpuTime(thread.id);
+                if (cpuTime >= 0) { // -1 once the thread has terminated
+                    thread.cpuTime = cpuTime;
+                }
+            }
+            if (allocBean != null) {
+                long allocatedBytes = allocBean.getThreadAllocatedBytes(thread.id);
+                if (allocatedBytes >= 0) {
+                    thread.allocatedBytes = allocatedBytes;
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets the total CPU time consumed by the sampler threads, in nanoseconds.
+     *
+     * @return the cpu time, or -1 if not supported
+     */
+    public synchronized long getCpuTime() {
+        if (!isCpuTimeSupported()) {
+            return -1;
+        }
+        poll();
+
+        long total = 0;
+        for (TrackedThread thread : this.threads) {
+            total += thread.cpuTime;
+        }
+        return total;
+    }
+
+    /**
+     * Gets the total number of bytes allocated by the sampler threads.
+     *
+     * @return the allocated bytes, or -1 if not supported
+     */
+    public synchronized long getAllocatedBytes() {
+        if (getAllocatedBytesBean() == null) {
+            return -1;
+        }
+        poll();
+
+        long total = 0;
+        for (TrackedThread thread : this.threads) {
+            total += thread.allocatedBytes;
+        }
+        return total;
+    }
+
+    /**
+     * Gets the mean time taken by an operation, in nanoseconds.
+     *
+     * @param operation the operation
+     * @return the mean time, or 0 if the operation has not been recorded
+     */
+    public long getMeanTime(Operation operation) {
+        return this.timers.get(operation).mean();
+    }
+
+    /**
+     * Gets the number of times an operation has been recorded.
+     *
+     * @param operation the operation
+     * @return the count
+     */
+    public long getCount(Operation operation) {
+        return this.timers.get(operation).count.get();
+    }
+
+    public SamplerMetadata.SelfOverhead toProto(long wallTimeMillis) {
+        SamplerMetadata.SelfOverhead.Builder proto = SamplerMetadata.SelfOverhead.newBuilder()
+                .setCpuTime(getCpuTime())
+                .setAllocatedBytes(getAllocatedBytes())
+                .setWallTime(wallTimeMillis);
+
+        synchronized (this) {
+            proto.setThreads(this.threads.size());
+        }
+
+        for (Map.Entry<Operation, Timer> entry : this.timers.entrySet()) {
+            Timer timer = entry.getValue();
+            if (timer.count.get() == 0) {
+                continue;
+            }
+            proto.putOperations(entry.getKey().id(), timer.toProto());
+        }
+
+        return proto.build();
+    }
+
+    private static boolean isCpuTimeSupported() {
+        return THREAD_BEAN.isThreadCpuTimeSupported() && THREAD_BEAN.isThreadCpuTimeEnabled();
+    }
+
+    private static com.sun.management.ThreadMXBean getAllocatedBytesBean() {
+        if (!(THREAD_BEAN instanceof com.sun.management.ThreadMXBean)) {
+            return null;
+        }
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) THREAD_BEAN;
+        if (!bean.isThreadAllocatedMemorySupported() || !bean.isThreadAllocatedMemoryEnabled()) {
+            return null;
+        }
+        return bean;
+    }
+
+    private static final class TrackedThread {
+        private final long id;
+        private long cpuTime = 0;
+        private long allocatedBytes = 0;
+
+        TrackedThread(long id) {
+            this.id = id;
+        }
+    }
+
+    private static final class Timer {
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong totalTime = new AtomicLong();
+        private final AtomicLong maxTime = new AtomicLong();
+        private final AtomicLongArray histogram = new AtomicLongArray(HISTOGRAM_BUCKETS);
+
+        void record(long nanos) {
+            this.count.incrementAndGet();
+            this.totalTime.addAndGet(nanos);
+
+            long max;
+            while (nanos > (max = this.maxTime.get()) && !this.maxTime.compareAndSet(max, nanos)) {
+                // retry
+            }
+
+            long micros = nanos / 1000;
+            int bucket = Math.min(HISTOGRAM_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+            this.histogram.incrementAndGet(bucket);
+        }
+
+        long mean() {
+            long count = this.count.get();
+            return count == 0 ? 0 : this.totalTime.get() / count;
+        }
+
+        SamplerMetadata.SelfOverhead.Operation toProto() {
+            SamplerMetadata.SelfOverhead.Operation.Builder proto = SamplerMetadata.SelfOverhead.Operation.newBuilder()
+                    .setCount(this.count.get())
+                    .setTotalTime(this.totalTime.get())
+                    .setMaxTime(this.maxTime.get());
+
+            // trim trailing empty buckets
+            int length = HISTOGRAM_BUCKETS;
+            while (length > 0 && this.histogram.get(length - 1) == 0) {
+                length--;
+            }
+            for (int i = 0; i < length; i++) {
+                proto.addHistogram(this.histogram.get(i));
+            }
+            return proto.build();
+        }
+    }
+
+}
@@ -21,6 +21,7 @@
 package me.lucko.spark.common.sampler.aggregator;
 
 import me.lucko.spark.common.sampler.ThreadGrouper;
+import me.lucko.spark.common.sampler.node.DescriptionTable;
 import me.lucko.spark.common.sampler.node.ThreadNode;
 
 import java.util.ArrayList;
@@ -40,6 +41,9 @@ public abstract class AbstractDataAggregator implements DataAggregator {
     /** The instance used to group threads together */
     protected final ThreadGrouper threadGrouper;
 
+    /** Interns the descriptions of stack frames, shared by all threads */
+    protected final DescriptionTable descriptions = new DescriptionTable();
+
     protected AbstractDataAggregator(ThreadGrouper threadGrouper) {
         this.threadGrouper = threadGrouper;
     }
@@ -59,6 +63,11 @@ public abstract class AbstractDataAggregator implements DataAggregator {
 
     @Override
     public List<ThreadNode> exportData() {
+        return snapshotData();
+    }
+
+    @Override
+    public List<ThreadNode> snapshotData() {
         List<ThreadNode> data = new ArrayList<>(this.threadData.values());
         for (ThreadNode node : data) {
             node.setThreadLabel(this.threadGrouper.getLabel(node.getThreadGroup()));
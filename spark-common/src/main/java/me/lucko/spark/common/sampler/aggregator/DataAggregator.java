@@ -38,6 +38,19 @@ public interface DataAggregator {
      */
     List<ThreadNode> exportData();
 
+    /**
+     * Forms the output data from what has been aggregated so far, without finishing
+     * the aggregator, so it can be called whilst the sampler is still running.
+     *
+     * <p>Unlike {@link #exportData()}, data which is still waiting to be inserted
+     * may not be included.</p>
+     *
+     * @return the output data
+     */
+    default List<ThreadNode> snapshotData() {
+        return exportData();
+    }
+
     /**
      * Prunes windows of data from this aggregator if the given {@code timeWindowPredicate} returns true.
      *
@@ -0,0 +1,220 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.sampler.async;
+
+import me.lucko.spark.common.SparkPlatform;
+import me.lucko.spark.common.sampler.ThreadDumper;
+import me.lucko.spark.common.sampler.async.jfr.JfrReader;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Represents a profiling job which records samples for a single window to a JFR file.
+ *
+ * <p>Subclasses are responsible for starting and stopping whatever produces the file,
+ * the file is then read and aggregated in the same way for all of them.</p>
+ */
+public abstract class AbstractProfilerJob {
+
+    // Set on init
+    /** The platform */
+    protected SparkPlatform platform;
+    /** The sample collector */
+    protected SampleCollector<?> sampleCollector;
+    /** The thread dumper */
+    protected ThreadDumper threadDumper;
+    /** The profiling window */
+    protected int window;
+    /** If the profiler should run in quiet mode */
+    protected boolean quiet;
+
+    /** The file used by the profiler to output data */
+    protected Path outputFile;
+
+    // Initialise the job
+    public void init(SparkPlatform platform, SampleCollector<?> collector, ThreadDumper threadDumper, int window, boolean quiet) {
+        this.platform = platform;
+        this.sampleCollector = collector;
+        this.threadDumper = threadDumper;
+        this.window = window;
+        this.quiet = quiet;
+    }
+
+    /**
+     * Starts the job.
+     */
+    public abstract void start();
+
+    /**
+     * Stops the job.
+     */
+    public abstract void stop();
+
+    /**
+     * Creates a new temporary file for the profiler to output data to.
+     *
+     * @return the file
+     */
+    protected Path createOutputFile() {
+        try {
+            return this.platform.getTemporaryFiles().create("spark-", "-profile-data.jfr.tmp");
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to create temporary output file", e);
+        }
+    }
+
+    /**
+     * Aggregates the collected data.
+     */
+    public void aggregate(AsyncDataAggregator dataAggregator) {
+        // read the jfr file produced by the profiler
+        try {
+            for (ProfileSegment segment : readSegments(this.outputFile, this.sampleCollector, canMemoryMapOutputFile())) {
+                // thread dumpers match on Java thread ids, only fall back to the id in the recording if there isn't one
+                long threadId = segment.getJavaThreadId() != -1 ? segment.getJavaThreadId() : segment.getNativeThreadId();
+                if (this.threadDumper.isThreadIncluded(threadId, segment.getThreadName())) {
+                    dataAggregator.insertData(segment, this.window);
+                }
+            }
+        } catch (Exception e) {
+            boolean fileExists;
+            try {
+                fileExists = Files.exists(this.outputFile) && Files.size(this.outputFile) != 0;
+            } catch (IOException ex) {
+                fileExists = false;
+            }
+
+            if (fileExists) {
+                throw new JfrParsingException("Error parsing JFR data from profiler output", e);
+            } else {
+                throw new JfrParsingException("Error parsing JFR data from profiler output - file " + this.outputFile + " does not exist!", e);
+            }
+        }
+
+        deleteOutputFile();
+    }
+
+    /**
+     * Gets if the output file can be memory-mapped when it is read.
+     *
+     * <p>A mapped file stays mapped until the buffer is garbage collected, and on some
+     * platforms (e.g. Windows) it can't be deleted until then.</p>
+     *
+     * @return if the output file can be memory-mapped
+     */
+    protected boolean canMemoryMapOutputFile() {
+        return true;
+    }
+
+    public void deleteOutputFile() {
+        try {
+            Files.deleteIfExists(this.outputFile);
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    /**
+     * Reads the unique segments from a JFR file.
+     *
+     * <p>If the file contains more than one chunk, the chunks are parsed in parallel
+     * on the common fork-join pool. The results are returned in chunk order.</p>
+     *
+     * @param file the file
+     * @param collector the sample collector
+     * @return the segments
+     * @throws IOException if an I/O error occurs
+     */
+    static List<ProfileSegment> readSegments(Path file, SampleCollector<?> collector) throws IOException {
+        return readSegments(file, collector, true);
+    }
+
+    /**
+     * Reads the unique segments from a JFR file.
+     *
+     * <p>If {@code memoryMap} is false, the file is read sequentially through a buffer.</p>
+     *
+     * @param file the file
+     * @param collector the sample collector
+     * @param memoryMap whether the file can be memory-mapped
+     * @return the segments
+     * @throws IOException if an I/O error occurs
+     * @see #readSegments(Path, SampleCollector)
+     */
+    static List<ProfileSegment> readSegments(Path file, SampleCollector<?> collector, boolean memoryMap) throws IOException {
+        if (!memoryMap) {
+            try (JfrReader reader = new JfrReader(file)) {
+                return readSegments(reader, collector);
+            }
+        }
+
+        long[] chunks = JfrReader.readChunkOffsets(file);
+        if (chunks.length <= 2) {
+            // memory-mapped, to avoid copying large allocation profiles through a buffer
+            try (JfrReader reader = new JfrReader(file, true)) {
+                return readSegments(reader, collector);
+            }
+        }
+
+        List<ForkJoinTask<List<ProfileSegment>>> tasks = new ArrayList<>(chunks.length - 1);
+        for (int i = 0; i < chunks.length - 1; i++) {
+            long chunkStart = chunks[i];
+            long chunkEnd = chunks[i + 1];
+            tasks.add(ForkJoinPool.commonPool().submit(() -> {
+                try (JfrReader reader = new JfrReader(file, chunkStart, chunkEnd)) {
+                    return readSegments(reader, collector);
+                }
+            }));
+        }
+
+        List<ProfileSegment> segments = new ArrayList<>();
+        for (ForkJoinTask<List<ProfileSegment>> task : tasks) {
+            segments.addAll(task.join());
+        }
+        return segments;
+    }
+
+    private static <E extends JfrReader.Event> List<ProfileSegment> readSegments(JfrReader reader, SampleCollector<E> collector) throws IOException {
+        // sum the values of samples with the same thread and stack trace as they are read
+        SegmentTable table = new SegmentTable();
+        reader.readEvents(collector.eventClass(), sample -> table.add(sample.tid, sample.stackTraceId, collector.measure(sample)));
+
+        // then parse each unique segment once
+        List<ProfileSegment> segments = new ArrayList<>(table.size());
+        table.forEach((tid, stackTraceId, value) -> {
+            String threadName = reader.threads.get((long) tid);
+            if (threadName != null) {
+                segments.add(ProfileSegment.parseSegment(reader, tid, stackTraceId, threadName, value));
+            }
+        });
+        return segments;
+    }
+
+    public int getWindow() {
+        return this.window;
+    }
+}
@@ -32,8 +32,8 @@ import me.lucko.spark.proto.SparkSamplerProtos.SamplerMetadata;
 public class AsyncDataAggregator extends AbstractDataAggregator {
 
     /** A describer for async-profiler stack trace elements. */
-    private static final StackTraceNode.Describer<AsyncStackTraceElement> STACK_TRACE_DESCRIBER = (element, parent) ->
-            new StackTraceNode.Description(element.getClassName(), element.getMethodName(), element.getMethodDescription());
+    private final StackTraceNode.Describer<AsyncStackTraceElement> stackTraceDescriber = (element, parent) ->
+            this.descriptions.intern(element.getClassName(), element.getMethodName(), element.getMethodDescription());
 
     protected AsyncDataAggregator(ThreadGrouper threadGrouper) {
         super(threadGrouper);
@@ -50,7 +50,7 @@ public class AsyncDataAggregator extends AbstractDataAggregator {
     public void insertData(ProfileSegment element, int window) {
         try {
             ThreadNode node = getNode(this.threadGrouper.getGroup(element.getNativeThreadId(), element.getThreadName()));
-            node.log(STACK_TRACE_DESCRIBER, element.getStackTrace(), element.getValue(), window);
+            node.log(this.stackTraceDescriber, element.getStackTrace(), element.getValue(), window);
         } catch (Exception e) {
             e.printStackTrace();
         }
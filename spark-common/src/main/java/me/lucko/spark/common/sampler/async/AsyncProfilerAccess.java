@@ -115,7 +115,7 @@ public class AsyncProfilerAccess {
         if (this.setupException != null) {
             if (this.setupException instanceof UnsupportedSystemException) {
                 platform.getPlugin().log(Level.INFO, "The async-profiler engine is not supported for your os/arch (" +
-                        this.setupException.getMessage() + "), so the built-in Java engine will be used instead.");
+                        this.setupException.getMessage() + "), so a built-in engine will be used instead.");
             } else if (this.setupException instanceof NativeLoadingException && this.setupException.getCause().getMessage().contains("libstdc++")) {
                 platform.getPlugin().log(Level.WARNING, "Unable to initialise the async-profiler engine because libstdc++ is not installed.");
                 platform.getPlugin().log(Level.WARNING, "Please see here for more information: https://spark.lucko.me/docs/misc/Using-async-profiler#install-libstdc");
@@ -22,17 +22,12 @@ package me.lucko.spark.common.sampler.async;
 
 import com.google.common.collect.ImmutableList;
 
-import me.lucko.spark.common.SparkPlatform;
 import me.lucko.spark.common.sampler.ThreadDumper;
-import me.lucko.spark.common.sampler.async.jfr.JfrReader;
 
 import one.profiler.AsyncProfiler;
 
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Path;
 import java.util.Collection;
-import java.util.List;
 import java.util.concurrent.atomic.AtomicReference;
 
 /**
@@ -41,7 +36,7 @@ import java.util.concurrent.atomic.AtomicReference;
  * <p>Only one job can be running at a time. This is guarded by
  * {@link #createNew(AsyncProfilerAccess, AsyncProfiler)}.</p>
  */
-public class AsyncProfilerJob {
+public class AsyncProfilerJob extends AbstractProfilerJob {
 
     /**
      * The currently active job.
@@ -75,21 +70,6 @@ public class AsyncProfilerJob {
     /** The async-profiler instance */
     private final AsyncProfiler profiler;
 
-    // Set on init
-    /** The platform */
-    private SparkPlatform platform;
-    /** The sample collector */
-    private SampleCollector<?> sampleCollector;
-    /** The thread dumper */
-    private ThreadDumper threadDumper;
-    /** The profiling window */
-    private int window;
-    /** If the profiler should run in quiet mode */
-    private boolean quiet;
-
-    /** The file used by async-profiler to output data */
-    private Path outputFile;
-
     private AsyncProfilerJob(AsyncProfilerAccess access, AsyncProfiler profiler) {
         this.access = access;
         this.profiler = profiler;
@@ -118,28 +98,13 @@ public class AsyncProfilerJob {
         }
     }
 
-    // Initialise the job
-    public void init(SparkPlatform platform, SampleCollector<?> collector, ThreadDumper threadDumper, int window, boolean quiet) {
-        this.platform = platform;
-        this.sampleCollector = collector;
-        this.threadDumper = threadDumper;
-        this.window = window;
-        this.quiet = quiet;
-    }
-
-    /**
-     * Starts the job.
-     */
+    @Override
     public void start() {
         checkActive();
 
         try {
             // create a new temporary output file
-            try {
-                this.outputFile = this.platform.getTemporaryFiles().create("spark-", "-profile-data.jfr.tmp");
-            } catch (IOException e) {
-                throw new RuntimeException("Unable to create temporary output file", e);
-            }
+            this.outputFile = createOutputFile();
 
             // construct a command to send to async-profiler
             ImmutableList.Builder<String> command = ImmutableList.<String>builder()
@@ -181,9 +146,7 @@ public class AsyncProfilerJob {
         }
     }
 
-    /**
-     * Stops the job.
-     */
+    @Override
     public void stop() {
         checkActive();
 
@@ -198,63 +161,6 @@ public class AsyncProfilerJob {
         }
     }
 
-    /**
-     * Aggregates the collected data.
-     */
-    public void aggregate(AsyncDataAggregator dataAggregator) {
-        // read the jfr file produced by async-profiler
-        try (JfrReader reader = new JfrReader(this.outputFile)) {
-            readSegments(reader, this.sampleCollector, dataAggregator);
-        } catch (Exception e) {
-            boolean fileExists;
-            try {
-                fileExists = Files.exists(this.outputFile) && Files.size(this.outputFile) != 0;
-            } catch (IOException ex) {
-                fileExists = false;
-            }
-
-            if (fileExists) {
-                throw new JfrParsingException("Error parsing JFR data from profiler output", e);
-            } else {
-                throw new JfrParsingException("Error parsing JFR data from profiler output - file " + this.outputFile + " does not exist!", e);
-            }
-        }
-
-        deleteOutputFile();
-    }
-
-    public void deleteOutputFile() {
-        try {
-            Files.deleteIfExists(this.outputFile);
-        } catch (IOException e) {
-            // ignore
-        }
-    }
-
-    private <E extends JfrReader.Event> void readSegments(JfrReader reader, SampleCollector<E> collector, AsyncDataAggregator dataAggregator) throws IOException {
-        List<E> samples = reader.readAllEvents(collector.eventClass());
-        for (E sample : samples) {
-            String threadName = reader.threads.get((long) sample.tid);
-            if (threadName == null) {
-                continue;
-            }
-
-            if (!this.threadDumper.isThreadIncluded(sample.tid, threadName)) {
-                continue;
-            }
-
-            long value = collector.measure(sample);
-
-            // parse the segment and give it to the data aggregator
-            ProfileSegment segment = ProfileSegment.parseSegment(reader, sample, threadName, value);
-            dataAggregator.insertData(segment, this.window);
-        }
-    }
-
-    public int getWindow() {
-        return this.window;
-    }
-
     private void close() {
         ACTIVE.compareAndSet(this, null);
     }
@@ -25,7 +25,9 @@ import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import me.lucko.spark.common.SparkPlatform;
 import me.lucko.spark.common.sampler.AbstractSampler;
 import me.lucko.spark.common.sampler.SamplerMode;
+import me.lucko.spark.common.sampler.SamplerOverhead;
 import me.lucko.spark.common.sampler.SamplerSettings;
+import me.lucko.spark.common.sampler.aggregator.DataAggregator;
 import me.lucko.spark.common.sampler.window.ProfilingWindowUtils;
 import me.lucko.spark.common.tick.TickHook;
 import me.lucko.spark.common.util.SparkThreadFactory;
@@ -37,6 +39,7 @@ import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.function.IntPredicate;
+import java.util.function.Supplier;
 
 /**
  * A sampler implementation using async-profiler.
@@ -46,8 +49,8 @@ public class AsyncSampler extends AbstractSampler {
     /** Function to collect and measure samples - either execution or allocation */
     private final SampleCollector<?> sampleCollector;
 
-    /** Object that provides access to the async-profiler API */
-    private final AsyncProfilerAccess profilerAccess;
+    /** Starts new profiler jobs */
+    private final Supplier<? extends AbstractProfilerJob> jobFactory;
 
     /** Responsible for aggregating and then outputting collected sampling data */
     private final AsyncDataAggregator dataAggregator;
@@ -56,7 +59,7 @@ public class AsyncSampler extends AbstractSampler {
     private final Object[] currentJobMutex = new Object[0];
 
     /** Current profiler job */
-    private AsyncProfilerJob currentJob;
+    private AbstractProfilerJob currentJob;
 
     /** The executor used for scheduling and management */
     private ScheduledExecutorService scheduler;
@@ -65,14 +68,19 @@ public class AsyncSampler extends AbstractSampler {
     private ScheduledFuture<?> socketStatisticsTask;
 
     public AsyncSampler(SparkPlatform platform, SamplerSettings settings, SampleCollector<?> collector) {
+        this(platform, settings, collector, AsyncProfilerAccess.getInstance(platform)::startNewProfilerJob);
+    }
+
+    protected AsyncSampler(SparkPlatform platform, SamplerSettings settings, SampleCollector<?> collector, Supplier<? extends AbstractProfilerJob> jobFactory) {
         super(platform, settings);
         this.sampleCollector = collector;
-        this.profilerAccess = AsyncProfilerAccess.getInstance(platform);
+        this.jobFactory = jobFactory;
         this.dataAggregator = new AsyncDataAggregator(settings.threadGrouper());
         this.scheduler = Executors.newSingleThreadScheduledExecutor(
                 new ThreadFactoryBuilder()
                         .setNameFormat("spark-async-sampler-worker-thread")
                         .setUncaughtExceptionHandler(SparkThreadFactory.EXCEPTION_HANDLER)
+                        .setThreadFactory(this.overhead.threadFactory())
                         .build()
         );
     }
@@ -91,7 +99,7 @@ public class AsyncSampler extends AbstractSampler {
 
         int window = ProfilingWindowUtils.windowNow();
 
-        AsyncProfilerJob job = this.profilerAccess.startNewProfilerJob();
+        AbstractProfilerJob job = this.jobFactory.get();
         job.init(this.platform, this.sampleCollector, this.threadDumper, window, this.background);
         job.start();
         this.windowStatisticsCollector.recordWindowStartTime(window);
@@ -115,7 +123,7 @@ public class AsyncSampler extends AbstractSampler {
     private void rotateProfilerJob() {
         try {
             synchronized (this.currentJobMutex) {
-                AsyncProfilerJob previousJob = this.currentJob;
+                AbstractProfilerJob previousJob = this.currentJob;
                 if (previousJob == null) {
                     return;
                 }
@@ -129,7 +137,7 @@ public class AsyncSampler extends AbstractSampler {
 
                 // start a new job
                 int window = previousJob.getWindow() + 1;
-                AsyncProfilerJob newJob = this.profilerAccess.startNewProfilerJob();
+                AbstractProfilerJob newJob = this.jobFactory.get();
                 newJob.init(this.platform, this.sampleCollector, this.threadDumper, window, this.background);
                 newJob.start();
                 this.windowStatisticsCollector.recordWindowStartTime(window);
@@ -143,13 +151,19 @@ public class AsyncSampler extends AbstractSampler {
                 }
 
                 // aggregate the output of the previous job
+                long aggregateStart = System.nanoTime();
                 previousJob.aggregate(this.dataAggregator);
+                this.overhead.record(SamplerOverhead.Operation.JFR_AGGREGATE, aggregateStart);
 
                 // prune data older than the history size
                 IntPredicate predicate = ProfilingWindowUtils.keepHistoryBefore(window);
                 this.dataAggregator.pruneData(predicate);
                 this.windowStatisticsCollector.pruneStatistics(predicate);
 
+                // persist the previous window before it is eventually pruned
+                int previousWindow = previousJob.getWindow();
+                this.scheduler.execute(() -> writeWindowToHistory(previousWindow));
+
                 this.scheduler.execute(this::processWindowRotate);
             }
         } catch (Throwable e) {
@@ -184,7 +198,9 @@ public class AsyncSampler extends AbstractSampler {
             this.currentJob.stop();
             if (!cancelled) {
                 this.windowStatisticsCollector.measureNow(this.currentJob.getWindow());
+                long aggregateStart = System.nanoTime();
                 this.currentJob.aggregate(this.dataAggregator);
+                this.overhead.record(SamplerOverhead.Operation.JFR_AGGREGATE, aggregateStart);
             } else {
                 this.currentJob.deleteOutputFile();
             }
@@ -196,6 +212,8 @@ public class AsyncSampler extends AbstractSampler {
         }
 
         if (this.scheduler != null) {
+            // record the final cpu/allocation values before the sampler thread terminates
+            this.overhead.poll();
             this.scheduler.shutdown();
             this.scheduler = null;
         }
@@ -215,14 +233,21 @@ public class AsyncSampler extends AbstractSampler {
         return this.sampleCollector.getMode();
     }
 
+    @Override
+    protected DataAggregator getDataAggregator() {
+        return this.dataAggregator;
+    }
+
     @Override
     public SamplerData toProto(SparkPlatform platform, ExportProps exportProps) {
+        long exportStart = System.nanoTime();
         SamplerData.Builder proto = SamplerData.newBuilder();
         if (exportProps.channelInfo() != null) {
             proto.setChannelInfo(exportProps.channelInfo());
         }
         writeMetadataToProto(proto, platform, exportProps.creator(), exportProps.comment(), this.dataAggregator);
         writeDataToProto(proto, this.dataAggregator, exportProps.mergeMode().get(), exportProps.classSourceLookup().get());
+        this.overhead.record(SamplerOverhead.Operation.EXPORT, exportStart);
         return proto.build();
     }
 
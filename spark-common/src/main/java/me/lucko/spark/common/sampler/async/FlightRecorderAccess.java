@@ -0,0 +1,164 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.sampler.async;
+
+import me.lucko.spark.common.SparkPlatform;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.management.JMX;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+
+/**
+ * Provides a bridge between spark and the JVM's built-in Flight Recorder.
+ *
+ * <p>Used as a fallback engine when async-profiler can't be loaded. Samples are
+ * recorded using the jdk.ExecutionSample and jdk.ObjectAllocationSample events,
+ * which (unlike the built-in Java engine) aren't biased towards safepoints.</p>
+ */
+public class FlightRecorderAccess {
+    private static FlightRecorderAccess instance;
+
+    public static synchronized FlightRecorderAccess getInstance() {
+        if (instance == null) {
+            instance = new FlightRecorderAccess();
+        }
+        return instance;
+    }
+
+    /** The object name of the jdk.management.jfr.FlightRecorderMXBean */
+    private static final String FLIGHT_RECORDER_BEAN = "jdk.management.jfr:type=FlightRecorder";
+    /** The object name of the com.sun.management.DiagnosticCommandMBean */
+    private static final String DIAGNOSTIC_COMMAND_BEAN = "com.sun.management:type=DiagnosticCommand";
+
+    /** The event used for allocation profiling, only available on Java 16+ */
+    private static final String ALLOCATION_SAMPLE_EVENT = "jdk.ObjectAllocationSample";
+
+    /** The stack depth to record, the same as async-profiler's default (JFR's default is only 64) */
+    private static final int STACK_DEPTH = 2048;
+    private static final Pattern STACK_DEPTH_PATTERN = Pattern.compile("Stack depth: (\\d+)");
+
+    /** The Flight Recorder MXBean */
+    private final FlightRecorderMXBean recorder;
+
+    /** If the allocation profiling event is supported */
+    private final boolean allocationProfilingSupported;
+
+    /** If recorder is null, contains the reason why setup failed */
+    private final Exception setupException;
+
+    FlightRecorderAccess() {
+        FlightRecorderMXBean recorder = null;
+        boolean allocationProfilingSupported = false;
+        Exception setupException = null;
+
+        try {
+            MBeanServer beanServer = ManagementFactory.getPlatformMBeanServer();
+            ObjectName recorderBeanName = ObjectName.getInstance(FLIGHT_RECORDER_BEAN);
+            if (!beanServer.isRegistered(recorderBeanName)) {
+                throw new UnsupportedOperationException("Flight Recorder is not available");
+            }
+
+            // must happen before the recorder is first used
+            configureStackDepth(beanServer);
+
+            recorder = JMX.newMXBeanProxy(beanServer, recorderBeanName, FlightRecorderMXBean.class);
+            for (CompositeData eventType : (CompositeData[]) beanServer.getAttribute(recorderBeanName, "EventTypes")) {
+                if (ALLOCATION_SAMPLE_EVENT.equals(eventType.get("name"))) {
+                    allocationProfilingSupported = true;
+                }
+            }
+        } catch (Exception e) {
+            recorder = null;
+            setupException = e;
+        }
+
+        this.recorder = recorder;
+        this.allocationProfilingSupported = allocationProfilingSupported;
+        this.setupException = setupException;
+    }
+
+    public FlightRecorderJob startNewRecordingJob() {
+        if (this.recorder == null) {
+            throw new UnsupportedOperationException("Flight Recorder not supported", this.setupException);
+        }
+        return new FlightRecorderJob(this.recorder);
+    }
+
+    public boolean checkSupported(SparkPlatform platform) {
+        if (this.setupException != null) {
+            platform.getPlugin().log(Level.INFO, "The Flight Recorder engine is not supported by your JVM (" +
+                    this.setupException.getMessage() + "), so the built-in Java engine will be used instead.");
+        }
+        return this.recorder != null;
+    }
+
+    public boolean checkAllocationProfilingSupported(SparkPlatform platform) {
+        if (!this.allocationProfilingSupported && this.recorder != null) {
+            platform.getPlugin().log(Level.WARNING, "The allocation profiling mode of the Flight Recorder engine requires Java 16 or newer.");
+        }
+        return this.allocationProfilingSupported;
+    }
+
+    /**
+     * Raises the depth of the stack traces recorded by Flight Recorder, unless
+     * it has already been configured to be deeper.
+     *
+     * @param beanServer the bean server
+     */
+    private static void configureStackDepth(MBeanServer beanServer) {
+        try {
+            ObjectName commandBeanName = ObjectName.getInstance(DIAGNOSTIC_COMMAND_BEAN);
+            String[] signature = {String[].class.getName()};
+
+            String configuration = (String) beanServer.invoke(commandBeanName, "jfrConfigure", new Object[]{new String[0]}, signature);
+            Matcher matcher = STACK_DEPTH_PATTERN.matcher(configuration);
+            if (matcher.find() && Integer.parseInt(matcher.group(1)) < STACK_DEPTH) {
+                beanServer.invoke(commandBeanName, "jfrConfigure", new Object[]{new String[]{"stackdepth=" + STACK_DEPTH}}, signature);
+            }
+        } catch (Exception e) {
+            // ignore, the stack traces will just be truncated
+        }
+    }
+
+    public interface FlightRecorderMXBean {
+        long newRecording();
+
+        void setRecordingOptions(long recordingId, Map<String, String> options);
+
+        void setRecordingSettings(long recordingId, Map<String, String> settings);
+
+        void startRecording(long recordingId);
+
+        boolean stopRecording(long recordingId);
+
+        void copyTo(long recordingId, String outputFile) throws IOException;
+
+        void closeRecording(long recordingId) throws IOException;
+    }
+}
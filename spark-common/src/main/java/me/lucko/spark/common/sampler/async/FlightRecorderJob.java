@@ -0,0 +1,99 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.sampler.async;
+
+import com.google.common.collect.ImmutableMap;
+
+import me.lucko.spark.common.sampler.async.FlightRecorderAccess.FlightRecorderMXBean;
+
+import java.io.IOException;
+
+/**
+ * Represents a profiling job which records samples using a Flight Recorder recording.
+ *
+ * <p>Each job creates a new recording, which is copied to the output file when the
+ * job is stopped. Other recordings may be running at the same time, so the file can
+ * contain events which weren't enabled by spark - these are skipped when it is read.</p>
+ */
+public class FlightRecorderJob extends AbstractProfilerJob {
+
+    /** The Flight Recorder MXBean */
+    private final FlightRecorderMXBean recorder;
+
+    /** The id of the current recording, or -1 if there isn't one */
+    private long recordingId = -1;
+
+    FlightRecorderJob(FlightRecorderMXBean recorder) {
+        this.recorder = recorder;
+    }
+
+    @Override
+    public void start() {
+        // create a new temporary output file
+        this.outputFile = createOutputFile();
+
+        try {
+            this.recordingId = this.recorder.newRecording();
+            this.recorder.setRecordingOptions(this.recordingId, ImmutableMap.of("name", "spark-" + this.window));
+            this.recorder.setRecordingSettings(this.recordingId, this.sampleCollector.recordingSettings());
+            this.recorder.startRecording(this.recordingId);
+        } catch (Exception e) {
+            close();
+            throw e;
+        }
+    }
+
+    @Override
+    public void stop() {
+        if (this.recordingId == -1) {
+            return;
+        }
+
+        try {
+            this.recorder.stopRecording(this.recordingId);
+            this.recorder.copyTo(this.recordingId, this.outputFile.toString());
+        } catch (IOException e) {
+            throw new RuntimeException("Exception whilst writing recording", e);
+        } finally {
+            close();
+        }
+    }
+
+    @Override
+    protected boolean canMemoryMapOutputFile() {
+        // Flight Recorder is also used on Windows, where a mapped file can't be deleted
+        // until the mapping is garbage collected
+        return false;
+    }
+
+    private void close() {
+        if (this.recordingId == -1) {
+            return;
+        }
+
+        try {
+            this.recorder.closeRecording(this.recordingId);
+        } catch (Exception e) {
+            // ignore
+        }
+        this.recordingId = -1;
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.sampler.async;
+
+import me.lucko.spark.common.SparkPlatform;
+import me.lucko.spark.common.sampler.SamplerSettings;
+
+/**
+ * A sampler implementation using the JVM's built-in Flight Recorder.
+ *
+ * <p>Recordings are read and aggregated in the same way as async-profiler's output.</p>
+ *
+ * <p>Unlike async-profiler, the JVM's execution sampler only records a handful of threads
+ * running Java code in each period (5 in current JDKs), taking turns between them. When more
+ * threads than that are busy, each is sampled less often than the interval, but every sample
+ * is still weighted by the interval, so their times are under-reported. Execution profiles
+ * are still useful for comparing methods within a thread, but not for absolute times.</p>
+ */
+public class FlightRecorderSampler extends AsyncSampler {
+
+    /** Explains the execution sampler's thread limit to the user, see the class doc */
+    public static final String THREAD_LIMIT_WARNING = "Flight Recorder only samples up to 5 running threads at a time, so times may be under-reported when more threads than that are busy.";
+
+    public FlightRecorderSampler(SparkPlatform platform, SamplerSettings settings, SampleCollector<?> collector) {
+        super(platform, settings, collector, FlightRecorderAccess.getInstance()::startNewRecordingJob);
+    }
+
+}
@@ -33,6 +33,8 @@ public class ProfileSegment {
 
     /** The native thread id (does not correspond to Thread#getId) */
     private final int nativeThreadId;
+    /** The Java thread id (corresponds to Thread#getId), or -1 if not known */
+    private final long javaThreadId;
     /** The name of the thread */
     private final String threadName;
     /** The stack trace for this segment */
@@ -40,8 +42,9 @@ public class ProfileSegment {
     /** The time spent executing this segment in microseconds */
     private final long value;
 
-    public ProfileSegment(int nativeThreadId, String threadName, AsyncStackTraceElement[] stackTrace, long value) {
+    public ProfileSegment(int nativeThreadId, long javaThreadId, String threadName, AsyncStackTraceElement[] stackTrace, long value) {
         this.nativeThreadId = nativeThreadId;
+        this.javaThreadId = javaThreadId;
         this.threadName = threadName;
         this.stackTrace = stackTrace;
         this.value = value;
@@ -51,6 +54,10 @@ public class ProfileSegment {
         return this.nativeThreadId;
     }
 
+    public long getJavaThreadId() {
+        return this.javaThreadId;
+    }
+
     public String getThreadName() {
         return this.threadName;
     }
@@ -63,16 +70,30 @@ public class ProfileSegment {
         return this.value;
     }
 
-    public static ProfileSegment parseSegment(JfrReader reader, JfrReader.Event sample, String threadName, long value) {
-        JfrReader.StackTrace stackTrace = reader.stackTraces.get(sample.stackTraceId);
+    public static ProfileSegment parseSegment(JfrReader reader, int tid, int stackTraceId, String threadName, long value) {
+        long javaThreadId = reader.javaThreadIds.getOrDefault((long) tid, -1L);
+        return new ProfileSegment(tid, javaThreadId, threadName, parseStackTrace(reader, stackTraceId), value);
+    }
+
+    private static AsyncStackTraceElement[] parseStackTrace(JfrReader reader, int stackTraceId) {
+        // the same stack trace is usually seen on more than one thread, so share the parsed result
+        AsyncStackTraceElement[] result = reader.stackTraceElements.get(stackTraceId);
+        if (result != null) {
+            return result;
+        }
+
+        JfrReader.StackTrace stackTrace = reader.stackTraces.get(stackTraceId);
         int len = stackTrace != null ? stackTrace.methods.length : 0;
 
-        AsyncStackTraceElement[] stack = new AsyncStackTraceElement[len];
+        result = new AsyncStackTraceElement[len];
         for (int i = 0; i < len; i++) {
-            stack[i] = parseStackFrame(reader, stackTrace.methods[i]);
+            result[i] = parseStackFrame(reader, stackTrace.methods[i]);
         }
 
-        return new ProfileSegment(sample.tid, threadName, stack, value);
+        if (stackTraceId != 0) {
+            reader.stackTraceElements.put(stackTraceId, result);
+        }
+        return result;
     }
 
     private static AsyncStackTraceElement parseStackFrame(JfrReader reader, long methodId) {
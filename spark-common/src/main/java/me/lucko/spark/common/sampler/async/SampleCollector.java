@@ -21,6 +21,7 @@
 package me.lucko.spark.common.sampler.async;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 
 import me.lucko.spark.common.sampler.SamplerMode;
 import me.lucko.spark.common.sampler.async.AsyncProfilerAccess.ProfilingEvent;
@@ -29,6 +30,7 @@ import me.lucko.spark.common.sampler.async.jfr.JfrReader.Event;
 import me.lucko.spark.common.sampler.async.jfr.JfrReader.ExecutionSample;
 
 import java.util.Collection;
+import java.util.Map;
 import java.util.Objects;
 
 /**
@@ -46,6 +48,13 @@ public interface SampleCollector<E extends Event> {
      */
     Collection<String> initArguments(AsyncProfilerAccess access);
 
+    /**
+     * Gets the settings to start a Flight Recorder recording with.
+     *
+     * @return the recording settings
+     */
+    Map<String, String> recordingSettings();
+
     /**
      * Gets the event class processed by this sample collector.
      *
@@ -89,6 +98,16 @@ public interface SampleCollector<E extends Event> {
             );
         }
 
+        @Override
+        public Map<String, String> recordingSettings() {
+            // the JFR sampler only supports millisecond periods, and only records a few threads
+            // in each period - see FlightRecorderSampler
+            return ImmutableMap.of(
+                    "jdk.ExecutionSample#enabled", "true",
+                    "jdk.ExecutionSample#period", Math.max(1, this.interval / 1000) + " ms"
+            );
+        }
+
         @Override
         public Class<ExecutionSample> eventClass() {
             return ExecutionSample.class;
@@ -135,6 +154,16 @@ public interface SampleCollector<E extends Event> {
             return builder.build();
         }
 
+        @Override
+        public Map<String, String> recordingSettings() {
+            // JFR samples allocations at a fixed rate instead of every n bytes, but each sample
+            // is weighted by the bytes allocated since the last one, so the totals are similar
+            return ImmutableMap.of(
+                    "jdk.ObjectAllocationSample#enabled", "true",
+                    "jdk.ObjectAllocationSample#throttle", "300/s"
+            );
+        }
+
         @Override
         public Class<AllocationSample> eventClass() {
             return AllocationSample.class;
@@ -0,0 +1,130 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package me.lucko.spark.common.sampler.async;
+
+/**
+ * Sums sample values by native thread id and stack trace id.
+ *
+ * <p>Most samples in a profiling window share a stack trace with an earlier sample
+ * on the same thread. Reducing them first means the call tree only has to be walked
+ * once for each unique {@link ProfileSegment}.</p>
+ */
+final class SegmentTable {
+    private static final int INITIAL_CAPACITY = 1024;
+
+    /** The keys, formed from the thread id (high bits) and stack trace id (low bits) */
+    private long[] keys;
+    /** The summed value for each key */
+    private long[] values;
+    /** Whether each slot is in use */
+    private boolean[] used;
+    /** The number of unique keys */
+    private int size;
+
+    SegmentTable() {
+        this.keys = new long[INITIAL_CAPACITY];
+        this.values = new long[INITIAL_CAPACITY];
+        this.used = new boolean[INITIAL_CAPACITY];
+    }
+
+    /**
+     * Adds a sample value.
+     *
+     * @param tid the native thread id
+     * @param stackTraceId the stack trace id
+     * @param value the value
+     */
+    public void add(int tid, int stackTraceId, long value) {
+        long key = ((long) tid << 32) | (stackTraceId & 0xffffffffL);
+
+        int mask = this.keys.length - 1;
+        int i = hash(key) & mask;
+        while (this.used[i]) {
+            if (this.keys[i] == key) {
+                this.values[i] += value;
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+
+        this.keys[i] = key;
+        this.values[i] = value;
+        this.used[i] = true;
+
+        if (++this.size * 2 > this.keys.length) {
+            resize(this.keys.length * 2);
+        }
+    }
+
+    /**
+     * Gets the number of unique (thread, stack trace) combinations.
+     *
+     * @return the size
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * Calls the visitor once for each unique (thread, stack trace) combination.
+     *
+     * @param visitor the visitor
+     */
+    public void forEach(Visitor visitor) {
+        for (int i = 0; i < this.keys.length; i++) {
+            if (this.used[i]) {
+                long key = this.keys[i];
+                visitor.visit((int) (key >>> 32), (int) key, this.values[i]);
+            }
+        }
+    }
+
+    private void resize(int newCapacity) {
+        long[] newKeys = new long[newCapacity];
+        long[] newValues = new long[newCapacity];
+        boolean[] newUsed = new boolean[newCapacity];
+        int mask = newCapacity - 1;
+
+        for (int i = 0; i < this.keys.length; i++) {
+            if (this.used[i]) {
+                int j = hash(this.keys[i]) & mask;
+                while (newUsed[j]) {
+                    j = (j + 1) & mask;
+                }
+                newKeys[j] = this.keys[i];
+                newValues[j] = this.values[i];
+                newUsed[j] = true;
+            }
+        }
+
+        this.keys = newKeys;
+        this.values = newValues;
+        this.used = newUsed;
+    }
+
+    private static int hash(long key) {
+        key *= 0xc6a4a7935bd1e995L;
+        return (int) (key ^ (key >>> 32));
+    }
+
+    public interface Visitor {
+        void visit(int tid, int stackTraceId, long value);
+    }
+}
@@ -30,16 +30,20 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Consumer;
 
 /**
  * Parses JFR output produced by async-profiler.
  */
 public class JfrReader implements Closeable {
     private static final int BUFFER_SIZE = 2 * 1024 * 1024;
+    private static final int MAP_SEGMENT_SIZE = 256 * 1024 * 1024; // spark
     private static final int CHUNK_HEADER_SIZE = 68;
     private static final int CHUNK_SIGNATURE = 0x464c5200;
 
     private final FileChannel ch;
+    private final boolean mapped; // spark
+    private final long fileSize; // spark
     private ByteBuffer buf;
     private long filePosition;
 
@@ -52,11 +56,13 @@ public class JfrReader implements Closeable {
     public final Dictionary<JfrClass> types = new Dictionary<>();
     public final Map<String, JfrClass> typesByName = new HashMap<>();
     public final Map<Long, String> threads = new HashMap<>(); // spark
+    public final Map<Long, Long> javaThreadIds = new HashMap<>(); // spark
     public final Dictionary<ClassRef> classes = new Dictionary<>();
     public final Dictionary<byte[]> symbols = new Dictionary<>();
     public final Dictionary<MethodRef> methods = new Dictionary<>();
     public final Dictionary<StackTrace> stackTraces = new Dictionary<>();
     public final Dictionary<AsyncStackTraceElement> stackFrames = new Dictionary<>(); // spark
+    public final Dictionary<AsyncStackTraceElement[]> stackTraceElements = new Dictionary<>(); // spark
     public final Map<Integer, String> frameTypes = new HashMap<>();
     public final Map<Integer, String> threadStates = new HashMap<>();
     public final Map<String, String> settings = new HashMap<>();
@@ -72,15 +78,104 @@ public class JfrReader implements Closeable {
     private boolean activeSettingHasStack;
 
     public JfrReader(Path path) throws IOException { // spark - Path instead of String
-        this.ch = FileChannel.open(path, StandardOpenOption.READ); // spark - Path instead of String
-        this.buf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        this(path, false);
+    }
+
+    /**
+     * Opens a JFR file for reading.
+     *
+     * <p>If {@code memoryMap} is true, the file is read through {@link FileChannel#map} in
+     * segments of up to {@link #MAP_SEGMENT_SIZE} bytes, instead of being copied into a
+     * direct buffer.</p>
+     *
+     * @param path the path of the file
+     * @param memoryMap whether to memory-map the file
+     * @throws IOException if an I/O error occurs
+     */
+    public JfrReader(Path path, boolean memoryMap) throws IOException { // spark - memory mapped mode
+        this(FileChannel.open(path, StandardOpenOption.READ), memoryMap, 0, -1);
+    }
+
+    /**
+     * Opens a single chunk of a JFR file for reading. The chunk is memory-mapped.
+     *
+     * @param path the path of the file
+     * @param chunkStart the offset of the chunk header
+     * @param chunkEnd the offset at which the chunk ends
+     * @throws IOException if an I/O error occurs
+     * @see #readChunkOffsets(Path)
+     */
+    public JfrReader(Path path, long chunkStart, long chunkEnd) throws IOException { // spark
+        this(FileChannel.open(path, StandardOpenOption.READ), true, chunkStart, chunkEnd);
+    }
+
+    private JfrReader(FileChannel ch, boolean memoryMap, long start, long end) throws IOException { // spark
+        this.ch = ch;
+        this.mapped = memoryMap;
+
+        try {
+            this.fileSize = end >= 0 ? end : ch.size();
+
+            if (mapped) {
+                map(start, CHUNK_HEADER_SIZE);
+            } else {
+                this.buf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+                buf.flip();
+            }
 
-        buf.flip();
-        ensureBytes(CHUNK_HEADER_SIZE);
-        if (!readChunk(0)) {
-            throw new IOException("Incomplete JFR file");
+            ensureBytes(CHUNK_HEADER_SIZE);
+            if (!readChunk(0)) {
+                throw new IOException("Incomplete JFR file");
+            }
+        } catch (IOException | RuntimeException e) {
+            ch.close();
+            throw e;
+        }
+    }
+
+    // spark start
+    /**
+     * Reads the start offset of each complete chunk in a JFR file, without parsing them.
+     *
+     * <p>The returned array has one more element than there are chunks: the last
+     * element is the offset at which the final complete chunk ends.</p>
+     *
+     * @param path the path of the file
+     * @return the chunk offsets
+     * @throws IOException if an I/O error occurs
+     */
+    public static long[] readChunkOffsets(Path path) throws IOException {
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = ch.size();
+            ByteBuffer header = ByteBuffer.allocate(CHUNK_HEADER_SIZE);
+
+            List<Long> offsets = new ArrayList<>();
+            long pos = 0;
+            while (pos + CHUNK_HEADER_SIZE <= size) {
+                header.clear();
+                while (header.hasRemaining() && ch.read(header, pos + header.position()) > 0) {
+                    // keep reading
+                }
+
+                long chunkSize = header.getLong(8);
+                boolean complete = header.getLong(16) != 0 && header.getLong(24) != 0;
+                if (header.getInt(0) != CHUNK_SIGNATURE || !complete || chunkSize <= 0 || pos + chunkSize > size) {
+                    break;
+                }
+
+                offsets.add(pos);
+                pos += chunkSize;
+            }
+            offsets.add(pos);
+
+            long[] result = new long[offsets.size()];
+            for (int i = 0; i < result.length; i++) {
+                result[i] = offsets.get(i);
+            }
+            return result;
         }
     }
+    // spark end
 
     @Override
     public void close() throws IOException {
@@ -104,6 +199,14 @@ public class JfrReader implements Closeable {
         return events;
     }
 
+    // spark start
+    public <E extends Event> void readEvents(Class<E> cls, Consumer<? super E> consumer) throws IOException {
+        for (E event; (event = readEvent(cls)) != null; ) {
+            consumer.accept(event);
+        }
+    }
+    // spark end
+
     public Event readEvent() throws IOException {
         return readEvent(null);
     }
@@ -298,7 +401,7 @@ public class JfrReader implements Closeable {
                 buf.position(buf.position() + (CHUNK_HEADER_SIZE + 3));
                 break;
             case "java.lang.Thread":
-                readThreads(type.field("group") != null);
+                readThreads(type); // spark
                 break;
             case "java.lang.Class":
                 readClasses(type.field("hidden") != null);
@@ -323,7 +426,9 @@ public class JfrReader implements Closeable {
         }
     }
 
-    private void readThreads(boolean hasGroup) {
+    private void readThreads(JfrClass type) { // spark - skip fields added by newer JDKs (e.g. 'virtual' in JFR recordings)
+        boolean hasGroup = type.field("group") != null;
+        int extraFields = type.fields.size() - (hasGroup ? 5 : 4);
         int count = getVarint(); //threads.preallocate(getVarint());
         for (int i = 0; i < count; i++) {
             long id = getVarlong();
@@ -332,7 +437,9 @@ public class JfrReader implements Closeable {
             String javaName = getString();
             long javaThreadId = getVarlong();
             if (hasGroup) getVarlong();
+            for (int j = 0; j < extraFields; j++) getVarlong();
             threads.put(id, javaName != null ? javaName : osName);
+            if (javaThreadId != 0) javaThreadIds.put(id, javaThreadId); // spark
         }
     }
 
@@ -501,6 +608,13 @@ public class JfrReader implements Closeable {
     }
 
     private void seek(long pos) throws IOException {
+        // spark start
+        if (mapped) {
+            map(pos, 0);
+            return;
+        }
+        // spark end
+
         filePosition = pos;
         ch.position(pos);
         buf.rewind().flip();
@@ -511,6 +625,16 @@ public class JfrReader implements Closeable {
             return true;
         }
 
+        // spark start
+        if (mapped) {
+            long pos = filePosition + buf.position();
+            if (pos + buf.remaining() < fileSize) {
+                map(pos, needed);
+            }
+            return buf.hasRemaining();
+        }
+        // spark end
+
         filePosition += buf.position();
 
         if (buf.capacity() < needed) {
@@ -528,6 +652,14 @@ public class JfrReader implements Closeable {
         return buf.limit() > 0;
     }
 
+    // spark start
+    private void map(long pos, int needed) throws IOException {
+        long size = Math.min(Math.max(MAP_SEGMENT_SIZE, needed), fileSize - pos);
+        filePosition = pos;
+        buf = ch.map(FileChannel.MapMode.READ_ONLY, pos, Math.max(size, 0));
+    }
+    // spark end
+
     public static class ClassRef {
         public final long name;
 
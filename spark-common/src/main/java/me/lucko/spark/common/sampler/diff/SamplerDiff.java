@@ -0,0 +1,166 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.sampler.diff;
+
+import com.google.common.collect.ImmutableList;
+import com.google.gson.stream.JsonWriter;
+
+import me.lucko.spark.api.profiler.ProfileDiff;
+import me.lucko.spark.common.sampler.SamplerMode;
+import me.lucko.spark.common.sampler.node.MergeMode;
+import me.lucko.spark.common.sampler.node.ThreadNode;
+import me.lucko.spark.proto.SparkSamplerProtos;
+import me.lucko.spark.proto.SparkSamplerProtos.SamplerData;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.DoubleToLongFunction;
+
+/**
+ * A comparison of two profiles, built from their {@link ThreadNode} trees.
+ *
+ * <p>Frames are matched between the two profiles using the same {@link MergeMode} rules
+ * that are used to merge frames when a profile is exported, and times are normalised by
+ * the total number of samples in each profile.</p>
+ */
+public class SamplerDiff implements ProfileDiff {
+
+    private final List<ProfileDiff.Node> threads;
+
+    private SamplerDiff(List<ProfileDiff.Node> threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * Compares two exported profiles.
+     *
+     * @param baseline the baseline profile
+     * @param comparison the comparison profile
+     * @param mergeMode the merge mode used to match frames
+     * @return the diff
+     */
+    public static SamplerDiff compare(SamplerData baseline, SamplerData comparison, MergeMode mergeMode) {
+        return compare(readThreads(baseline), readThreads(comparison), mergeMode);
+    }
+
+    /**
+     * Compares two sets of threads.
+     *
+     * @param baseline the baseline threads
+     * @param comparison the comparison threads
+     * @param mergeMode the merge mode used to match frames
+     * @return the diff
+     */
+    public static SamplerDiff compare(List<ThreadNode> baseline, List<ThreadNode> comparison, MergeMode mergeMode) {
+        Map<String, ThreadNode> baselineThreads = byLabel(baseline);
+        Map<String, ThreadNode> comparisonThreads = byLabel(comparison);
+
+        SamplerDiffNode.Context context = new SamplerDiffNode.Context(
+                mergeMode,
+                totalSamples(baselineThreads.values()),
+                totalSamples(comparisonThreads.values())
+        );
+
+        Map<String, ThreadNode> allThreads = new LinkedHashMap<>(baselineThreads);
+        comparisonThreads.forEach(allThreads::putIfAbsent);
+
+        List<SamplerDiffNode> threads = new ArrayList<>();
+        for (String label : allThreads.keySet()) {
+            threads.add(SamplerDiffNode.thread(context, label, baselineThreads.get(label), comparisonThreads.get(label)));
+        }
+        threads.sort(SamplerDiffNode.LARGEST_FIRST);
+        return new SamplerDiff(ImmutableList.<ProfileDiff.Node>copyOf(threads));
+    }
+
+    /**
+     * Reads the threads from an exported profile.
+     *
+     * @param data the profile
+     * @return the threads
+     */
+    public static List<ThreadNode> readThreads(SamplerData data) {
+        DoubleToLongFunction valueTransformer = SamplerMode.fromProto(data.getMetadata().getSamplerMode()).inverseValueTransformer();
+        List<Integer> timeWindows = data.getTimeWindowsList();
+
+        List<ThreadNode> threads = new ArrayList<>(data.getThreadsCount());
+        for (SparkSamplerProtos.ThreadNode thread : data.getThreadsList()) {
+            threads.add(ThreadNode.fromProto(thread, timeWindows, valueTransformer));
+        }
+        return threads;
+    }
+
+    private static Map<String, ThreadNode> byLabel(List<ThreadNode> threads) {
+        Map<String, ThreadNode> map = new LinkedHashMap<>();
+        for (ThreadNode thread : threads) {
+            map.putIfAbsent(thread.getThreadLabel(), thread);
+        }
+        return map;
+    }
+
+    private static long totalSamples(Iterable<ThreadNode> threads) {
+        long total = 0;
+        for (ThreadNode thread : threads) {
+            total += SamplerDiffNode.totalTime(thread);
+        }
+        return total;
+    }
+
+    @Override
+    public @NonNull List<ProfileDiff.Node> threads() {
+        return this.threads;
+    }
+
+    /**
+     * Writes the diff tree as json.
+     *
+     * @param writer the writer
+     * @throws IOException if an error occurs writing the json
+     */
+    public void writeJson(JsonWriter writer) throws IOException {
+        writer.beginObject();
+        writer.name("threads");
+        writeJson(writer, this.threads);
+        writer.endObject();
+    }
+
+    private static void writeJson(JsonWriter writer, List<ProfileDiff.Node> nodes) throws IOException {
+        writer.beginArray();
+        for (ProfileDiff.Node node : nodes) {
+            writer.beginObject();
+            writer.name("name").value(node.name());
+            writer.name("baselineTotal").value(node.baselineTotal());
+            writer.name("comparisonTotal").value(node.comparisonTotal());
+            writer.name("baselineSelf").value(node.baselineSelf());
+            writer.name("comparisonSelf").value(node.comparisonSelf());
+            if (!node.children().isEmpty()) {
+                writer.name("children");
+                writeJson(writer, node.children());
+            }
+            writer.endObject();
+        }
+        writer.endArray();
+    }
+}
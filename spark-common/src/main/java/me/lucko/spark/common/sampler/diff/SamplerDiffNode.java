@@ -0,0 +1,193 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.sampler.diff;
+
+import com.google.common.collect.ImmutableList;
+
+import me.lucko.spark.api.profiler.ProfileDiff;
+import me.lucko.spark.common.sampler.node.AbstractNode;
+import me.lucko.spark.common.sampler.node.MergeMode;
+import me.lucko.spark.common.sampler.node.StackTraceNode;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A node in a {@link SamplerDiff} tree.
+ */
+public final class SamplerDiffNode implements ProfileDiff.Node {
+
+    static final Comparator<SamplerDiffNode> LARGEST_FIRST = Comparator.comparingDouble((SamplerDiffNode n) -> Math.max(n.baselineTotal, n.comparisonTotal)).reversed();
+
+    private final String name;
+    private final String className;
+    private final String methodName;
+
+    private final double baselineTotal;
+    private final double comparisonTotal;
+    private final double baselineSelf;
+    private final double comparisonSelf;
+
+    private final List<ProfileDiff.Node> children;
+
+    private SamplerDiffNode(String name, String className, String methodName, double baselineTotal, double comparisonTotal, double baselineSelf, double comparisonSelf, List<ProfileDiff.Node> children) {
+        this.name = name;
+        this.className = className;
+        this.methodName = methodName;
+        this.baselineTotal = baselineTotal;
+        this.comparisonTotal = comparisonTotal;
+        this.baselineSelf = baselineSelf;
+        this.comparisonSelf = comparisonSelf;
+        this.children = children;
+    }
+
+    static SamplerDiffNode thread(Context context, String name, AbstractNode baseline, AbstractNode comparison) {
+        return create(context, name, null, null, baseline, comparison);
+    }
+
+    private static SamplerDiffNode frame(Context context, StackTraceNode baseline, StackTraceNode comparison) {
+        StackTraceNode node = baseline != null ? baseline : comparison;
+        String name = node.getClassName() + "." + node.getMethodName() + "()";
+        return create(context, name, node.getClassName(), node.getMethodName(), baseline, comparison);
+    }
+
+    private static SamplerDiffNode create(Context context, String name, String className, String methodName, AbstractNode baseline, AbstractNode comparison) {
+        List<StackTraceNode> baselineChildren = baseline == null ? Collections.emptyList() : baseline.exportChildren(context.mergeMode);
+        List<StackTraceNode> comparisonChildren = comparison == null ? Collections.emptyList() : new ArrayList<>(comparison.exportChildren(context.mergeMode));
+
+        List<SamplerDiffNode> children = new ArrayList<>(Math.max(baselineChildren.size(), comparisonChildren.size()));
+        long baselineChildrenTime = 0;
+        long comparisonChildrenTime = 0;
+
+        for (StackTraceNode baselineChild : baselineChildren) {
+            // find the matching frame in the comparison, if there is one
+            StackTraceNode comparisonChild = null;
+            for (int i = 0; i < comparisonChildren.size(); i++) {
+                if (context.mergeMode.shouldMerge(baselineChild, comparisonChildren.get(i))) {
+                    comparisonChild = comparisonChildren.remove(i);
+                    break;
+                }
+            }
+
+            children.add(frame(context, baselineChild, comparisonChild));
+            baselineChildrenTime += totalTime(baselineChild);
+            if (comparisonChild != null) {
+                comparisonChildrenTime += totalTime(comparisonChild);
+            }
+        }
+
+        // frames which only appear in the comparison
+        for (StackTraceNode comparisonChild : comparisonChildren) {
+            children.add(frame(context, null, comparisonChild));
+            comparisonChildrenTime += totalTime(comparisonChild);
+        }
+
+        children.sort(LARGEST_FIRST);
+
+        long baselineTime = baseline == null ? 0 : totalTime(baseline);
+        long comparisonTime = comparison == null ? 0 : totalTime(comparison);
+
+        return new SamplerDiffNode(
+                name, className, methodName,
+                context.normaliseBaseline(baselineTime),
+                context.normaliseComparison(comparisonTime),
+                context.normaliseBaseline(Math.max(0, baselineTime - baselineChildrenTime)),
+                context.normaliseComparison(Math.max(0, comparisonTime - comparisonChildrenTime)),
+                ImmutableList.<ProfileDiff.Node>copyOf(children)
+        );
+    }
+
+    static long totalTime(AbstractNode node) {
+        long total = 0;
+        for (int window : node.getTimeWindows()) {
+            total += node.getTime(window);
+        }
+        return total;
+    }
+
+    @Override
+    public @NonNull String name() {
+        return this.name;
+    }
+
+    @Override
+    public @Nullable String className() {
+        return this.className;
+    }
+
+    @Override
+    public @Nullable String methodName() {
+        return this.methodName;
+    }
+
+    @Override
+    public double baselineTotal() {
+        return this.baselineTotal;
+    }
+
+    @Override
+    public double comparisonTotal() {
+        return this.comparisonTotal;
+    }
+
+    @Override
+    public double baselineSelf() {
+        return this.baselineSelf;
+    }
+
+    @Override
+    public double comparisonSelf() {
+        return this.comparisonSelf;
+    }
+
+    @Override
+    public @NonNull List<ProfileDiff.Node> children() {
+        return this.children;
+    }
+
+    /**
+     * The state shared while building the diff tree.
+     */
+    static final class Context {
+        private final MergeMode mergeMode;
+        private final long baselineSamples;
+        private final long comparisonSamples;
+
+        Context(MergeMode mergeMode, long baselineSamples, long comparisonSamples) {
+            this.mergeMode = mergeMode;
+            this.baselineSamples = baselineSamples;
+            this.comparisonSamples = comparisonSamples;
+        }
+
+        double normaliseBaseline(long time) {
+            return this.baselineSamples == 0 ? 0 : (double) time / this.baselineSamples;
+        }
+
+        double normaliseComparison(long time) {
+            return this.comparisonSamples == 0 ? 0 : (double) time / this.comparisonSamples;
+        }
+    }
+}
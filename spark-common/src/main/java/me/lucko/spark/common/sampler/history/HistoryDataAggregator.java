@@ -0,0 +1,125 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.sampler.history;
+
+import me.lucko.spark.common.sampler.aggregator.DataAggregator;
+import me.lucko.spark.common.sampler.node.DescriptionTable;
+import me.lucko.spark.common.sampler.node.ThreadNode;
+import me.lucko.spark.proto.SparkProtos.WindowStatistics;
+import me.lucko.spark.proto.SparkSamplerProtos.HistoryThreadNode;
+import me.lucko.spark.proto.SparkSamplerProtos.HistoryWindow;
+import me.lucko.spark.proto.SparkSamplerProtos.SamplerMetadata;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.IntPredicate;
+
+/**
+ * {@link DataAggregator} for the windows read back from the {@link ProfilingHistory}.
+ *
+ * <p>Threads are stored under their label, as they were already grouped when the
+ * windows were written.</p>
+ */
+class HistoryDataAggregator implements DataAggregator {
+
+    private final Map<String, ThreadNode> threadData = new HashMap<>();
+    private final DescriptionTable descriptions = new DescriptionTable();
+
+    /** The statistics for each window which has been merged */
+    private final Map<Integer, WindowStatistics> statistics = new TreeMap<>();
+
+    /** The sampler mode of the first window merged */
+    private SamplerMetadata.SamplerMode mode = null;
+
+    /** The most recent window which has been merged */
+    private HistoryWindow latest = null;
+
+    /** The earliest window which has been merged */
+    private int firstWindow = Integer.MAX_VALUE;
+
+    /**
+     * Merges a window into the aggregator.
+     *
+     * <p>Windows recorded in a different sampler mode to the first window merged are ignored.</p>
+     *
+     * @param window the window
+     */
+    void merge(HistoryWindow window) {
+        if (this.mode == null) {
+            this.mode = window.getSamplerMode();
+        } else if (this.mode != window.getSamplerMode()) {
+            return;
+        }
+
+        List<String> strings = window.getStringsList();
+        for (HistoryThreadNode thread : window.getThreadsList()) {
+            this.threadData.computeIfAbsent(thread.getName(), ThreadNode::new)
+                    .mergeHistoryProto(thread, window.getWindow(), strings, this.descriptions);
+        }
+
+        if (window.hasStatistics()) {
+            this.statistics.put(window.getWindow(), window.getStatistics());
+        }
+        if (this.latest == null || window.getWindow() >= this.latest.getWindow()) {
+            this.latest = window;
+        }
+        this.firstWindow = Math.min(this.firstWindow, window.getWindow());
+    }
+
+    boolean isEmpty() {
+        return this.threadData.isEmpty();
+    }
+
+    /**
+     * Gets the most recent window which has been merged, used for the sampler metadata.
+     *
+     * @return the latest window
+     */
+    HistoryWindow getLatest() {
+        return this.latest;
+    }
+
+    int getFirstWindow() {
+        return this.firstWindow;
+    }
+
+    Map<Integer, WindowStatistics> getStatistics() {
+        return this.statistics;
+    }
+
+    @Override
+    public List<ThreadNode> exportData() {
+        return new ArrayList<>(this.threadData.values());
+    }
+
+    @Override
+    public void pruneData(IntPredicate timeWindowPredicate) {
+        this.threadData.values().removeIf(node -> node.removeTimeWindowsRecursively(timeWindowPredicate));
+    }
+
+    @Override
+    public SamplerMetadata.DataAggregator getMetadata() {
+        return this.latest.getDataAggregator();
+    }
+}
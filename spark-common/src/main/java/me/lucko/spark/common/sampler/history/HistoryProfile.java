@@ -0,0 +1,131 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.sampler.history;
+
+import me.lucko.spark.common.SparkPlatform;
+import me.lucko.spark.common.sampler.AbstractSampler;
+import me.lucko.spark.common.sampler.SamplerMode;
+import me.lucko.spark.common.sampler.SamplerSettings;
+import me.lucko.spark.common.sampler.ThreadDumper;
+import me.lucko.spark.common.sampler.ThreadGrouper;
+import me.lucko.spark.common.sampler.aggregator.DataAggregator;
+import me.lucko.spark.common.sampler.window.ProfilingWindowUtils;
+import me.lucko.spark.proto.SparkProtos.WindowStatistics;
+import me.lucko.spark.proto.SparkSamplerProtos.HistoryWindow;
+import me.lucko.spark.proto.SparkSamplerProtos.SamplerData;
+import me.lucko.spark.proto.SparkSamplerProtos.SamplerMetadata;
+
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.Map;
+
+/**
+ * A range of windows read back from the {@link ProfilingHistory}, which can be exported
+ * like any other {@link me.lucko.spark.common.sampler.Sampler}.
+ *
+ * <p>The profile is complete as soon as it is created, so it can't be started or stopped.</p>
+ */
+public class HistoryProfile extends AbstractSampler {
+
+    private final HistoryDataAggregator dataAggregator;
+    private final SamplerMode mode;
+
+    /** The end of the last window in the profile */
+    private final long endTime;
+
+    HistoryProfile(SparkPlatform platform, HistoryDataAggregator dataAggregator) {
+        super(platform, settings(dataAggregator.getLatest()));
+        this.dataAggregator = dataAggregator;
+        this.mode = SamplerMode.fromProto(dataAggregator.getLatest().getSamplerMode());
+
+        long windowMillis = ProfilingWindowUtils.WINDOW_SIZE_SECONDS * 1000L;
+        this.startTime = dataAggregator.getFirstWindow() * windowMillis;
+        this.endTime = Math.min(System.currentTimeMillis(), (dataAggregator.getLatest().getWindow() + 1) * windowMillis);
+
+        for (Map.Entry<Integer, WindowStatistics> entry : dataAggregator.getStatistics().entrySet()) {
+            this.windowStatisticsCollector.recordStatistics(entry.getKey(), entry.getValue());
+        }
+        this.future.complete(this);
+    }
+
+    private static SamplerSettings settings(HistoryWindow latest) {
+        return new SamplerSettings(latest.getInterval(), new Recorded(latest.getThreadDumper()), ThreadGrouper.BY_POOL, -1, false);
+    }
+
+    @Override
+    public void start() {
+        throw new UnsupportedOperationException("History profiles are read from the profiling history");
+    }
+
+    @Override
+    public void stop(boolean cancelled) {
+        // already complete
+    }
+
+    @Override
+    protected long getEndTime() {
+        return this.endTime;
+    }
+
+    @Override
+    protected DataAggregator getDataAggregator() {
+        return this.dataAggregator;
+    }
+
+    @Override
+    public SamplerData toProto(SparkPlatform platform, ExportProps exportProps) {
+        SamplerData.Builder proto = SamplerData.newBuilder();
+        writeMetadataToProto(proto, platform, exportProps.creator(), exportProps.comment(), this.dataAggregator);
+        writeDataToProto(proto, this.dataAggregator, exportProps.mergeMode().get(), exportProps.classSourceLookup().get());
+        return proto.build();
+    }
+
+    @Override
+    public SamplerMode getMode() {
+        return this.mode;
+    }
+
+    /**
+     * Stands in for the thread dumper which was used when the windows were recorded.
+     */
+    private static final class Recorded implements ThreadDumper {
+        private final SamplerMetadata.ThreadDumper metadata;
+
+        Recorded(SamplerMetadata.ThreadDumper metadata) {
+            this.metadata = metadata;
+        }
+
+        @Override
+        public ThreadInfo[] dumpThreads(ThreadMXBean threadBean) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean isThreadIncluded(long threadId, String threadName) {
+            return true;
+        }
+
+        @Override
+        public SamplerMetadata.ThreadDumper getMetadata() {
+            return this.metadata;
+        }
+    }
+}
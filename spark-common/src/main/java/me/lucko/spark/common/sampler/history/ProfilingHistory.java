@@ -0,0 +1,458 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.sampler.history;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import me.lucko.spark.common.SparkPlatform;
+import me.lucko.spark.common.platform.PlatformInfo;
+import me.lucko.spark.common.sampler.SamplerMode;
+import me.lucko.spark.common.sampler.aggregator.DataAggregator;
+import me.lucko.spark.common.sampler.node.ThreadNode;
+import me.lucko.spark.common.sampler.window.ProfilingWindowUtils;
+import me.lucko.spark.common.util.Configuration;
+import me.lucko.spark.common.util.SparkThreadFactory;
+import me.lucko.spark.proto.SparkProtos.WindowStatistics;
+import me.lucko.spark.proto.SparkSamplerProtos.HistoryThreadNode;
+import me.lucko.spark.proto.SparkSamplerProtos.HistoryWindow;
+import me.lucko.spark.proto.SparkSamplerProtos.SamplerMetadata;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Persists the windows of the background profiler to disk, so that past time ranges can be
+ * exported long after they have been pruned from memory (or the server has restarted).
+ *
+ * <p>The history is an append-only log, split into segments which each cover up to
+ * {@link #SEGMENT_WINDOWS} windows. Each record is a deflated {@link HistoryWindow}, preceded
+ * by its window and length so that windows outside of a requested range can be skipped without
+ * being decompressed. Whole segments are deleted once they are older than the maximum age, or
+ * when the history grows over the maximum size.</p>
+ *
+ * <p>Windows are encoded on the sampler thread which completed them (the tree is still being
+ * written to, so it can't be handed off), but are compressed and written to disk on the
+ * history's own thread.</p>
+ */
+public class ProfilingHistory implements AutoCloseable {
+
+    private static final String OPTION_ENABLED = "profilingHistory";
+    private static final String OPTION_MAX_AGE = "profilingHistoryMaxAgeHours";
+    private static final String OPTION_MAX_SIZE = "profilingHistoryMaxSizeMb";
+
+    /** The number of windows covered by each segment (1 hour) */
+    private static final int SEGMENT_WINDOWS = 60;
+
+    private static final String FILE_EXTENSION = ".sparkhistory";
+    private static final int MAGIC = 0x53504B48; // SPKH
+    private static final int VERSION = 1;
+
+    private final SparkPlatform platform;
+    private final Path directory;
+    private final boolean enabled;
+
+    /** The maximum age of the history, in milliseconds */
+    private final long maxAge;
+
+    /** The maximum size of the history, in bytes */
+    private final long maxSize;
+
+    private ExecutorService executor;
+
+    /** The segment currently being written to, only accessed by the history thread */
+    private Segment current = null;
+
+    public ProfilingHistory(SparkPlatform platform, Configuration configuration) {
+        this.platform = platform;
+        this.directory = platform.getPlugin().getPluginDirectory().resolve("history");
+
+        PlatformInfo.Type type = platform.getPlugin().getPlatformInfo().getType();
+        this.enabled = type != PlatformInfo.Type.CLIENT && configuration.getBoolean(OPTION_ENABLED, type == PlatformInfo.Type.SERVER);
+        this.maxAge = TimeUnit.HOURS.toMillis(Math.max(1, configuration.getInteger(OPTION_MAX_AGE, 72)));
+        this.maxSize = Math.max(1, configuration.getInteger(OPTION_MAX_SIZE, 256)) * 1024L * 1024L;
+    }
+
+    /**
+     * Starts accepting windows to write, if enabled.
+     */
+    public void start() {
+        if (!this.enabled) {
+            return;
+        }
+
+        this.executor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("spark-profiling-history")
+                .setDaemon(true)
+                .setUncaughtExceptionHandler(SparkThreadFactory.EXCEPTION_HANDLER)
+                .build()
+        );
+        this.executor.execute(this::applyRetention);
+    }
+
+    @Override
+    public void close() {
+        if (this.executor == null) {
+            return;
+        }
+
+        // finish writing any queued windows before closing the segment
+        this.executor.execute(this::closeSegment);
+        this.executor.shutdown();
+        try {
+            this.executor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        this.executor = null;
+    }
+
+    public boolean isEnabled() {
+        return this.executor != null;
+    }
+
+    public Path getDirectory() {
+        return this.directory;
+    }
+
+    /**
+     * Encodes a completed window and queues it to be written to disk.
+     *
+     * @param window the window
+     * @param mode the sampler mode
+     * @param interval the sampler interval
+     * @param threadDumper the thread dumper metadata
+     * @param dataAggregator the data aggregator holding the window's data
+     * @param statistics the statistics for the window, if measured
+     */
+    public void write(int window, SamplerMode mode, int interval, SamplerMetadata.ThreadDumper threadDumper, DataAggregator dataAggregator, WindowStatistics statistics) {
+        ExecutorService executor = this.executor;
+        if (executor == null) {
+            return;
+        }
+
+        Map<String, Integer> stringIndexes = new HashMap<>();
+        List<String> strings = new ArrayList<>();
+
+        HistoryWindow.Builder proto = HistoryWindow.newBuilder()
+                .setWindow(window)
+                .setSamplerMode(mode.asProto())
+                .setInterval(interval)
+                .setThreadDumper(threadDumper)
+                .setDataAggregator(dataAggregator.getMetadata());
+
+        if (statistics != null) {
+            proto.setStatistics(statistics);
+        }
+
+        boolean empty = true;
+        // the sampler is still running, so don't finish the aggregator
+        for (ThreadNode thread : dataAggregator.snapshotData()) {
+            HistoryThreadNode threadProto = thread.toHistoryProto(window, string -> stringIndexes.computeIfAbsent(string, s -> {
+                strings.add(s);
+                return strings.size() - 1;
+            }));
+            if (threadProto != null) {
+                proto.addThreads(threadProto);
+                empty = false;
+            }
+        }
+
+        if (empty) {
+            return;
+        }
+
+        proto.addAllStrings(strings);
+        HistoryWindow record = proto.build();
+        executor.execute(() -> append(record));
+    }
+
+    /**
+     * Reads the windows between the given times from the history, and merges them into a profile.
+     *
+     * @param from the start of the time range, in unix millis
+     * @param to the end of the time range, in unix millis
+     * @return the profile, or null if there is no data for the time range
+     * @throws IOException if an error occurs reading the history
+     */
+    public HistoryProfile read(long from, long to) throws IOException {
+        int fromWindow = ProfilingWindowUtils.unixMillisToWindow(from);
+        int toWindow = ProfilingWindowUtils.unixMillisToWindow(to);
+
+        HistoryDataAggregator dataAggregator = new HistoryDataAggregator();
+        for (Path file : listSegments()) {
+            int firstWindow = firstWindow(file);
+            if (firstWindow <= toWindow && firstWindow + SEGMENT_WINDOWS > fromWindow) {
+                readSegment(file, fromWindow, toWindow, dataAggregator);
+            }
+        }
+
+        if (dataAggregator.isEmpty()) {
+            return null;
+        }
+        return new HistoryProfile(this.platform, dataAggregator);
+    }
+
+    /**
+     * Gets a summary of the history currently on disk.
+     *
+     * @return the summary
+     * @throws IOException if an error occurs listing the history
+     */
+    public Summary summarise() throws IOException {
+        List<Path> segments = listSegments();
+        long size = 0;
+        for (Path segment : segments) {
+            size += Files.size(segment);
+        }
+
+        long oldest = segments.isEmpty() ? -1 : firstWindow(segments.get(0)) * (ProfilingWindowUtils.WINDOW_SIZE_SECONDS * 1000L);
+        return new Summary(segments.size(), size, oldest);
+    }
+
+    private void append(HistoryWindow record) {
+        try {
+            int window = record.getWindow();
+            if (this.current == null || window < this.current.firstWindow || window >= this.current.firstWindow + SEGMENT_WINDOWS) {
+                closeSegment();
+                this.current = Segment.create(this.directory, window);
+                applyRetention();
+            }
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (OutputStream out = new DeflaterOutputStream(bytes)) {
+                record.writeTo(out);
+            }
+
+            // flushed straight away, so a crash loses at most the record being written
+            DataOutputStream out = this.current.out;
+            out.writeInt(window);
+            out.writeInt(bytes.size());
+            bytes.writeTo(out);
+            out.flush();
+        } catch (Exception e) {
+            this.platform.getPlugin().log(Level.WARNING, "Unable to write to the profiling history: " + e);
+            closeSegment();
+        }
+    }
+
+    private void closeSegment() {
+        if (this.current != null) {
+            try {
+                this.current.out.close();
+            } catch (IOException e) {
+                // ignore
+            }
+            this.current = null;
+        }
+    }
+
+    private void applyRetention() {
+        try {
+            List<Path> segments = listSegments();
+            long[] sizes = new long[segments.size()];
+            long totalSize = 0;
+            for (int i = 0; i < segments.size(); i++) {
+                sizes[i] = Files.size(segments.get(i));
+                totalSize += sizes[i];
+            }
+
+            int oldestWindowToKeep = ProfilingWindowUtils.unixMillisToWindow(System.currentTimeMillis() - this.maxAge);
+            Path currentFile = this.current != null ? this.current.file : null;
+
+            // oldest first
+            for (int i = 0; i < segments.size(); i++) {
+                Path segment = segments.get(i);
+                boolean expired = firstWindow(segment) + SEGMENT_WINDOWS <= oldestWindowToKeep;
+                if ((!expired && totalSize <= this.maxSize) || segment.equals(currentFile)) {
+                    break;
+                }
+
+                Files.deleteIfExists(segment);
+                totalSize -= sizes[i];
+            }
+        } catch (IOException e) {
+            this.platform.getPlugin().log(Level.WARNING, "Unable to apply retention to the profiling history: " + e);
+        }
+    }
+
+    private List<Path> listSegments() throws IOException {
+        if (!Files.isDirectory(this.directory)) {
+            return new ArrayList<>();
+        }
+
+        try (Stream<Path> files = Files.list(this.directory)) {
+            return files.filter(file -> file.getFileName().toString().endsWith(FILE_EXTENSION))
+                    .filter(file -> firstWindow(file) != -1)
+                    .sorted(Comparator.comparingInt(ProfilingHistory::firstWindow).thenComparing(Path::toString))
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private void readSegment(Path file, int fromWindow, int toWindow, HistoryDataAggregator dataAggregator) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                this.platform.getPlugin().log(Level.WARNING, "Skipping unrecognised profiling history segment " + file.getFileName());
+                return;
+            }
+
+            while (true) {
+                int window;
+                byte[] data;
+                try {
+                    window = in.readInt();
+                    int length = in.readInt();
+                    if (window < fromWindow || window > toWindow) {
+                        skipFully(in, length);
+                        continue;
+                    }
+                    data = new byte[length];
+                    in.readFully(data);
+                } catch (EOFException e) {
+                    // end of the segment, or a record which was never finished (e.g. after a crash)
+                    return;
+                }
+
+                try (InflaterInputStream recordIn = new InflaterInputStream(new ByteArrayInputStream(data))) {
+                    dataAggregator.merge(HistoryWindow.parseFrom(recordIn));
+                }
+            }
+        } catch (EOFException e) {
+            // segment was created, but the header was never written
+        }
+    }
+
+    private static void skipFully(DataInputStream in, int length) throws IOException {
+        int remaining = length;
+        while (remaining > 0) {
+            int skipped = in.skipBytes(remaining);
+            if (skipped <= 0) {
+                throw new EOFException();
+            }
+            remaining -= skipped;
+        }
+    }
+
+    /**
+     * Parses the first window of a segment from its file name.
+     *
+     * @param file the segment file
+     * @return the first window, or -1 if the file isn't a segment
+     */
+    private static int firstWindow(Path file) {
+        String name = file.getFileName().toString();
+        int end = name.indexOf('-');
+        if (end == -1) {
+            end = name.length() - FILE_EXTENSION.length();
+        }
+        try {
+            return Integer.parseInt(name.substring(0, end));
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            return -1;
+        }
+    }
+
+    private static final class Segment {
+        private final Path file;
+        private final int firstWindow;
+        private final DataOutputStream out;
+
+        private Segment(Path file, int firstWindow, DataOutputStream out) {
+            this.file = file;
+            this.firstWindow = firstWindow;
+            this.out = out;
+        }
+
+        static Segment create(Path directory, int firstWindow) throws IOException {
+            Files.createDirectories(directory);
+
+            // segments are never appended to after they have been closed, in case the last record
+            // wasn't finished - a segment for the same window (e.g. after a quick restart) gets a suffix
+            for (int i = 0; ; i++) {
+                Path file = directory.resolve(firstWindow + (i == 0 ? "" : "-" + i) + FILE_EXTENSION);
+                OutputStream fileOut;
+                try {
+                    fileOut = Files.newOutputStream(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+                } catch (FileAlreadyExistsException e) {
+                    continue;
+                }
+
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.flush();
+                return new Segment(file, firstWindow, out);
+            }
+        }
+    }
+
+    public static final class Summary {
+        private final int segments;
+        private final long size;
+        private final long oldestTime;
+
+        Summary(int segments, long size, long oldestTime) {
+            this.segments = segments;
+            this.size = size;
+            this.oldestTime = oldestTime;
+        }
+
+        public int segments() {
+            return this.segments;
+        }
+
+        public long size() {
+            return this.size;
+        }
+
+        /**
+         * Gets the start time of the oldest segment in the history.
+         *
+         * @return the time in unix millis, or -1 if the history is empty
+         */
+        public long oldestTime() {
+            return this.oldestTime;
+        }
+    }
+}
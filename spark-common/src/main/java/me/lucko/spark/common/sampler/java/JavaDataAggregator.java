@@ -37,9 +37,9 @@ import java.util.concurrent.TimeUnit;
 public abstract class JavaDataAggregator extends AbstractDataAggregator {
 
     /** A describer for java.lang.StackTraceElement */
-    private static final StackTraceNode.Describer<StackTraceElement> STACK_TRACE_DESCRIBER = (element, parent) -> {
+    private final StackTraceNode.Describer<StackTraceElement> stackTraceDescriber = (element, parent) -> {
         int parentLineNumber = parent == null ? StackTraceNode.NULL_LINE_NUMBER : parent.getLineNumber();
-        return new StackTraceNode.Description(element.getClassName(), element.getMethodName(), element.getLineNumber(), parentLineNumber);
+        return this.descriptions.intern(element.getClassName(), element.getMethodName(), element.getLineNumber(), parentLineNumber);
     };
 
     /** The worker pool for inserting stack nodes */
@@ -80,7 +80,7 @@ public abstract class JavaDataAggregator extends AbstractDataAggregator {
 
         try {
             ThreadNode node = getNode(this.threadGrouper.getGroup(threadInfo.getThreadId(), threadInfo.getThreadName()));
-            node.log(STACK_TRACE_DESCRIBER, threadInfo.getStackTrace(), this.interval, window);
+            node.log(this.stackTraceDescriber, threadInfo.getStackTrace(), this.interval, window);
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -25,7 +25,9 @@ import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import me.lucko.spark.common.SparkPlatform;
 import me.lucko.spark.common.sampler.AbstractSampler;
 import me.lucko.spark.common.sampler.SamplerMode;
+import me.lucko.spark.common.sampler.SamplerOverhead;
 import me.lucko.spark.common.sampler.SamplerSettings;
+import me.lucko.spark.common.sampler.aggregator.DataAggregator;
 import me.lucko.spark.common.sampler.window.ProfilingWindowUtils;
 import me.lucko.spark.common.sampler.window.WindowStatisticsCollector;
 import me.lucko.spark.common.tick.TickHook;
@@ -49,11 +51,12 @@ import java.util.function.IntPredicate;
 public class JavaSampler extends AbstractSampler implements Runnable {
     private static final AtomicInteger THREAD_ID = new AtomicInteger(0);
 
-    /** The worker pool for inserting stack nodes */
+    /** The worker pool for sampling, and for processing window rotations */
     private final ScheduledExecutorService workerPool = Executors.newScheduledThreadPool(
             6, new ThreadFactoryBuilder()
                     .setNameFormat("spark-java-sampler-" + THREAD_ID.getAndIncrement() + "-%d")
                     .setUncaughtExceptionHandler(SparkThreadFactory.EXCEPTION_HANDLER)
+                    .setThreadFactory(this.overhead.threadFactory())
                     .build()
     );
 
@@ -115,6 +118,8 @@ public class JavaSampler extends AbstractSampler implements Runnable {
             this.windowStatisticsCollector.measureNow(this.lastWindow.get());
         }
 
+        // record the final cpu/allocation values before the sampler threads terminate
+        this.overhead.poll();
         this.workerPool.shutdown();
     }
 
@@ -132,69 +137,87 @@ public class JavaSampler extends AbstractSampler implements Runnable {
             }
 
             int window = ProfilingWindowUtils.unixMillisToWindow(time);
+
+            long dumpStart = System.nanoTime();
             ThreadInfo[] threadDumps = this.threadDumper.dumpThreads(this.threadBean);
-            this.workerPool.execute(new InsertDataTask(threadDumps, window));
+            this.overhead.record(SamplerOverhead.Operation.THREAD_DUMP, dumpStart);
+
+            // insert the data directly on the sampling thread - each stack is walked into the
+            // call tree once and the dump can be discarded straight away, rather than being
+            // queued up in the worker pool.
+            // if inserting takes longer than the interval, the next sample is delayed
+            // instead of a backlog of dumps building up in memory.
+            long insertStart = System.nanoTime();
+            insertData(threadDumps, window);
+            this.overhead.record(SamplerOverhead.Operation.INSERT, insertStart);
         } catch (Throwable t) {
             stop(false);
             this.future.completeExceptionally(t);
         }
     }
 
-    @Override
-    public void attachSocket(ViewerSocket socket) {
-        super.attachSocket(socket);
-
-        if (this.socketStatisticsTask == null) {
-            this.socketStatisticsTask = this.workerPool.scheduleAtFixedRate(this::sendStatisticsToSocket, 10, 10, TimeUnit.SECONDS);
+    private void insertData(ThreadInfo[] threadDumps, int window) {
+        for (ThreadInfo threadInfo : threadDumps) {
+            if (threadInfo == null || threadInfo.getThreadName() == null || threadInfo.getStackTrace() == null) {
+                continue;
+            }
+            this.dataAggregator.insertData(threadInfo, window);
         }
-    }
 
-    private final class InsertDataTask implements Runnable {
-        private final ThreadInfo[] threadDumps;
-        private final int window;
+        // if we have just stepped over into a new window...
+        int previousWindow = this.lastWindow.get();
+        if (window > previousWindow) {
+            this.lastWindow.set(window);
 
-        InsertDataTask(ThreadInfo[] threadDumps, int window) {
-            this.threadDumps = threadDumps;
-            this.window = window;
-        }
+            if (previousWindow != 0) {
+                // record the start time for the new window
+                this.windowStatisticsCollector.recordWindowStartTime(window);
 
-        @Override
-        public void run() {
-            for (ThreadInfo threadInfo : this.threadDumps) {
-                if (threadInfo.getThreadName() == null || threadInfo.getStackTrace() == null) {
-                    continue;
-                }
-                JavaSampler.this.dataAggregator.insertData(threadInfo, this.window);
+                // the rest of the rotation is handled by the worker pool, so it doesn't delay sampling
+                this.workerPool.execute(() -> rotateWindow(previousWindow, window));
             }
+        }
+    }
 
-            // if we have just stepped over into a new window...
-            int previousWindow = JavaSampler.this.lastWindow.getAndUpdate(previous -> Math.max(this.window, previous));
-            if (previousWindow != 0 && previousWindow != this.window) {
+    private void rotateWindow(int previousWindow, int window) {
+        // collect statistics for the previous window
+        this.windowStatisticsCollector.measureNow(previousWindow);
 
-                // record the start time for the new window
-                JavaSampler.this.windowStatisticsCollector.recordWindowStartTime(this.window);
+        // persist the previous window before it is eventually pruned
+        writeWindowToHistory(previousWindow);
 
-                // collect statistics for the previous window
-                JavaSampler.this.windowStatisticsCollector.measureNow(previousWindow);
+        // prune data older than the history size
+        IntPredicate predicate = ProfilingWindowUtils.keepHistoryBefore(window);
+        this.dataAggregator.pruneData(predicate);
+        this.windowStatisticsCollector.pruneStatistics(predicate);
 
-                // prune data older than the history size
-                IntPredicate predicate = ProfilingWindowUtils.keepHistoryBefore(this.window);
-                JavaSampler.this.dataAggregator.pruneData(predicate);
-                JavaSampler.this.windowStatisticsCollector.pruneStatistics(predicate);
+        processWindowRotate();
+    }
 
-                JavaSampler.this.workerPool.execute(JavaSampler.this::processWindowRotate);
-            }
+    @Override
+    public void attachSocket(ViewerSocket socket) {
+        super.attachSocket(socket);
+
+        if (this.socketStatisticsTask == null) {
+            this.socketStatisticsTask = this.workerPool.scheduleAtFixedRate(this::sendStatisticsToSocket, 10, 10, TimeUnit.SECONDS);
         }
     }
 
+    @Override
+    protected DataAggregator getDataAggregator() {
+        return this.dataAggregator;
+    }
+
     @Override
     public SamplerData toProto(SparkPlatform platform, ExportProps exportProps) {
+        long exportStart = System.nanoTime();
         SamplerData.Builder proto = SamplerData.newBuilder();
         if (exportProps.channelInfo() != null) {
             proto.setChannelInfo(exportProps.channelInfo());
         }
         writeMetadataToProto(proto, platform, exportProps.creator(), exportProps.comment(), this.dataAggregator);//TODO
         writeDataToProto(proto, this.dataAggregator, exportProps.mergeMode().get(), exportProps.classSourceLookup().get());
+        this.overhead.record(SamplerOverhead.Operation.EXPORT, exportStart);
         return proto.build();
     }
 
@@ -28,18 +28,28 @@ import me.lucko.spark.common.tick.TickHook;
 import me.lucko.spark.proto.SparkSamplerProtos.SamplerMetadata;
 
 import java.lang.management.ThreadInfo;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Implementation of {@link DataAggregator} which supports only including sampling data from "ticks"
  * which exceed a certain threshold in duration.
+ *
+ * <p>Samples are only ever added by the sampling thread, so they are appended to the buffer
+ * for the current tick without locking. When the tick changes, the buffer is sealed and
+ * handed to the worker pool. Exports may seal the buffer for the tick in progress from
+ * another thread; the sampling thread notices this when it next appends and continues the
+ * tick in a new buffer.</p>
  */
 public class TickedDataAggregator extends JavaDataAggregator {
 
+    /** The number of tick buffers kept for reuse, must be a power of two */
+    private static final int RING_SIZE = 16;
+
     /** Used to monitor the current "tick" of the server */
     private final TickHook tickHook;
 
@@ -52,12 +62,11 @@ public class TickedDataAggregator extends JavaDataAggregator {
     /** Counts the number of ticks aggregated */
     private WindowStatisticsCollector.ExplicitTickCounter tickCounter;
 
-    // state
-    private int currentTick = -1;
-    private TickList currentData = null;
+    /** Buffers that can be reused, indexed by tick number. Only accessed by the sampling thread */
+    private final TickBuffer[] ring = new TickBuffer[RING_SIZE];
 
-    // guards currentData
-    private final Object mutex = new Object();
+    /** The buffer for the current tick */
+    private volatile TickBuffer current = null;
 
     public TickedDataAggregator(ExecutorService workerPool, ThreadGrouper threadGrouper, int interval, boolean ignoreSleeping, boolean ignoreNative, TickHook tickHook, int tickLengthThreshold) {
         super(workerPool, threadGrouper, interval, ignoreSleeping, ignoreNative);
@@ -75,10 +84,7 @@ public class TickedDataAggregator extends JavaDataAggregator {
     @Override
     public SamplerMetadata.DataAggregator getMetadata() {
         // push the current tick (so numberOfTicks is accurate)
-        synchronized (this.mutex) {
-            pushCurrentTick(Runnable::run);
-            this.currentData = null;
-        }
+        pushCurrentTick();
 
         return SamplerMetadata.DataAggregator.newBuilder()
                 .setType(SamplerMetadata.DataAggregator.Type.TICKED)
@@ -88,71 +94,180 @@ public class TickedDataAggregator extends JavaDataAggregator {
                 .build();
     }
 
+    // only called by the sampling thread
     @Override
     public void insertData(ThreadInfo threadInfo, int window) {
-        synchronized (this.mutex) {
-            int tick = this.tickHook.getCurrentTick();
-            if (this.currentTick != tick || this.currentData == null) {
-                pushCurrentTick(this.workerPool);
-                this.currentTick = tick;
-                this.currentData = new TickList(this.expectedSize, window);
+        int tick = this.tickHook.getCurrentTick();
+
+        TickBuffer buffer = this.current;
+        if (buffer == null || buffer.tick != tick) {
+            if (buffer != null) {
+                int size = buffer.seal();
+                if (size != -1) {
+                    push(buffer, size, this.workerPool);
+                }
             }
+            buffer = nextBuffer(tick, window, false);
+        }
 
-            this.currentData.addData(threadInfo);
+        while (!buffer.add(threadInfo)) {
+            // the tick was pushed by an export while it was still in progress,
+            // so it has already been included - carry on in a new buffer (which
+            // may itself be pushed before the sample is added, so keep trying)
+            buffer = nextBuffer(tick, window, true);
         }
     }
 
-    // guarded by 'mutex'
-    private void pushCurrentTick(Executor executor) {
-        TickList currentData = this.currentData;
-        if (currentData == null) {
+    private TickBuffer nextBuffer(int tick, int window, boolean included) {
+        int slot = tick & (RING_SIZE - 1);
+        TickBuffer buffer = this.ring[slot];
+        if (buffer == null || !buffer.released) {
+            // the buffer previously in this slot is still waiting to be processed
+            buffer = new TickBuffer(this.expectedSize);
+            this.ring[slot] = buffer;
+        }
+        buffer.reset(tick, window, included);
+        this.current = buffer;
+        return buffer;
+    }
+
+    private void push(TickBuffer buffer, int size, Executor executor) {
+        // approximate how long the tick lasted, and don't push data below the threshold
+        if (!buffer.included && (long) size * this.interval < this.tickLengthThreshold) {
+            buffer.release(size);
             return;
         }
 
-        // approximate how long the tick lasted
-        int tickLengthMicros = currentData.getList().size() * this.interval;
+        if (!buffer.included) {
+            this.tickCounter.increment();
+        }
+        executor.execute(() -> buffer.run(size));
+    }
 
-        // don't push data below the threshold
-        if (tickLengthMicros < this.tickLengthThreshold) {
+    /**
+     * Pushes the data for the tick in progress, if the tick has already exceeded the threshold.
+     *
+     * <p>Can be called from any thread.</p>
+     */
+    private void pushCurrentTick() {
+        TickBuffer buffer = this.current;
+        if (buffer == null) {
             return;
         }
 
-        executor.execute(currentData);
-        this.tickCounter.increment();
+        long minSize = (this.tickLengthThreshold + this.interval - 1) / this.interval;
+        int size = buffer.sealIfOver(minSize);
+        if (size != -1) {
+            push(buffer, size, Runnable::run);
+        }
     }
 
     @Override
     public List<ThreadNode> exportData() {
         // push the current tick
-        synchronized (this.mutex) {
-            pushCurrentTick(Runnable::run);
-        }
+        pushCurrentTick();
 
         return super.exportData();
     }
 
-    private final class TickList implements Runnable {
-        private final List<ThreadInfo> list;
-        private final int window;
+    /**
+     * A buffer of the samples for a single tick.
+     *
+     * <p>Samples are appended by the sampling thread. The number of samples and whether the
+     * buffer has been sealed are held together in {@link #count}, so that sealing (from any
+     * thread) and appending can't both claim the same sample.</p>
+     */
+    private final class TickBuffer {
+        private static final int SEALED = Integer.MIN_VALUE;
+
+        /** The number of samples in the buffer, with the {@link #SEALED} bit set once sealed */
+        private final AtomicInteger count = new AtomicInteger();
+        private volatile ThreadInfo[] samples;
+        /** If the buffer has been processed, and can be reused */
+        private volatile boolean released = true;
 
-        TickList(int expectedSize, int window) {
-            this.list = new ArrayList<>(expectedSize);
+        private int tick;
+        private int window;
+        /** If earlier samples from the same tick have already been included */
+        private boolean included;
+
+        TickBuffer(int expectedSize) {
+            this.samples = new ThreadInfo[expectedSize];
+        }
+
+        void reset(int tick, int window, boolean included) {
+            this.tick = tick;
             this.window = window;
+            this.included = included;
+            this.released = false;
+            this.count.set(0);
         }
 
-        @Override
-        public void run() {
-            for (ThreadInfo data : this.list) {
-                writeData(data, this.window);
+        // only called by the sampling thread
+        boolean add(ThreadInfo data) {
+            int size = this.count.get();
+            if (size < 0) {
+                return false;
             }
+
+            ThreadInfo[] samples = this.samples;
+            if (size == samples.length) {
+                samples = Arrays.copyOf(samples, size * 2);
+                this.samples = samples;
+            }
+            samples[size] = data;
+
+            // fails if the buffer was sealed since the count was read
+            return this.count.compareAndSet(size, size + 1);
         }
 
-        public List<ThreadInfo> getList() {
-            return this.list;
+        /**
+         * Seals the buffer, preventing any more samples from being added.
+         *
+         * @return the number of samples in the buffer, or -1 if it was already sealed
+         */
+        int seal() {
+            while (true) {
+                int size = this.count.get();
+                if (size < 0) {
+                    return -1;
+                }
+                if (this.count.compareAndSet(size, size | SEALED)) {
+                    return size;
+                }
+            }
+        }
+
+        /**
+         * Seals the buffer if it would be included, i.e. it contains at least
+         * {@code minSize} samples or the tick has already been included.
+         *
+         * @param minSize the minimum number of samples
+         * @return the number of samples in the buffer, or -1 if it was not sealed
+         */
+        int sealIfOver(long minSize) {
+            while (true) {
+                int size = this.count.get();
+                if (size < 0 || (!this.included && size < minSize)) {
+                    return -1;
+                }
+                if (this.count.compareAndSet(size, size | SEALED)) {
+                    return size;
+                }
+            }
+        }
+
+        void run(int size) {
+            ThreadInfo[] samples = this.samples;
+            for (int i = 0; i < size; i++) {
+                writeData(samples[i], this.window);
+            }
+            release(size);
         }
 
-        public void addData(ThreadInfo data) {
-            this.list.add(data);
+        void release(int size) {
+            Arrays.fill(this.samples, 0, size, null);
+            this.released = true;
         }
     }
 }
@@ -23,52 +23,126 @@ package me.lucko.spark.common.sampler.node;
 import me.lucko.spark.common.sampler.window.ProtoTimeEncoder;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
-import java.util.Map;
-import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.LongAdder;
 import java.util.function.IntPredicate;
+import java.util.function.Predicate;
 
 /**
  * Encapsulates a timed node in the sampling stack.
+ *
+ * <p>Nodes store their children in an open-addressed hash table and their
+ * per-window times in a pair of sorted primitive arrays, instead of using
+ * a map per node. This keeps the footprint of large trees (in particular
+ * the long-running background profiler) small.</p>
+ *
+ * <p>Nodes are not thread-safe - writes are guarded by the owning {@link ThreadNode}.
+ * Slots in the children table are only ever filled in (never cleared in place), so
+ * {@link #getChildren()} can safely be called outside of the lock to obtain a snapshot.</p>
+ *
+ * <p>The live viewer exports the same tree every time the profiling window rotates, when most
+ * of it has not changed. Each node keeps its children as they were last exported (i.e. after
+ * merging), which are reused until time is next logged against the node or its children.</p>
  */
 public abstract class AbstractNode {
 
     protected static final int MAX_STACK_DEPTH = Integer.getInteger("spark.maxStackDepth", 300);
 
-    /** A map of the nodes children */
-    private final Map<StackTraceNode.Description, StackTraceNode> children = new ConcurrentHashMap<>();
+    private static final StackTraceNode[] EMPTY_CHILDREN = new StackTraceNode[0];
+    private static final int[] EMPTY_WINDOWS = new int[0];
+    private static final long[] EMPTY_TIMES = new long[0];
+
+    /** The initial capacity of the children table, once the first child is added */
+    private static final int INITIAL_CHILDREN_CAPACITY = 4;
+
+    /** An open-addressed (linear probing) hash table of the nodes children, keyed by description */
+    // length is always zero or a power of two
+    private StackTraceNode[] children = EMPTY_CHILDREN;
+    /** The number of children in the table */
+    private int childrenCount;
+
+    /** The children as they were last exported, or null if they need to be exported again */
+    private StackTraceNode[] exportedChildren = null;
+    /** If the node or its children have changed since {@link #exportedChildren} was computed */
+    private boolean exportDirty = true;
 
-    /** The accumulated sample time for this node, measured in microseconds */
-    // Integer key = the window (effectively System.currentTimeMillis() / 60_000)
-    // LongAdder value = accumulated time in microseconds
-    private final Map<Integer, LongAdder> times = new ConcurrentHashMap<>();
+    /** The windows that have been logged for this node, in ascending order */
+    // (effectively System.currentTimeMillis() / 60_000)
+    private int[] windows = EMPTY_WINDOWS;
+    /** The accumulated sample time for each window, measured in microseconds */
+    // index i corresponds to windows[i]
+    private long[] times = EMPTY_TIMES;
+    /** The number of windows in use */
+    private int windowCount;
 
     /**
-     * Gets the time accumulator for a given window
+     * Adds time to the accumulator for a given window
      *
      * @param window the window
-     * @return the accumulator
+     * @param time the time to add
      */
-    protected LongAdder getTimeAccumulator(int window) {
-        LongAdder adder = this.times.get(window);
-        if (adder == null) {
-            adder = new LongAdder();
-            this.times.put(window, adder);
+    protected void addTime(int window, long time) {
+        // time is always added to every node on the path of a new sample, so this marks the path
+        this.exportDirty = true;
+
+        int count = this.windowCount;
+
+        // fast path: samples are almost always logged against the latest window
+        if (count != 0 && this.windows[count - 1] == window) {
+            this.times[count - 1] += time;
+            return;
+        }
+
+        int idx = Arrays.binarySearch(this.windows, 0, count, window);
+        if (idx >= 0) {
+            this.times[idx] += time;
+            return;
+        }
+
+        int insertAt = -(idx + 1);
+        if (count == this.windows.length) {
+            int newCapacity = count == 0 ? 1 : count * 2;
+            this.windows = Arrays.copyOf(this.windows, newCapacity);
+            this.times = Arrays.copyOf(this.times, newCapacity);
         }
-        return adder;
+        if (insertAt < count) {
+            System.arraycopy(this.windows, insertAt, this.windows, insertAt + 1, count - insertAt);
+            System.arraycopy(this.times, insertAt, this.times, insertAt + 1, count - insertAt);
+        }
+        this.windows[insertAt] = window;
+        this.times[insertAt] = time;
+        this.windowCount = count + 1;
     }
 
     /**
      * Gets the time windows that have been logged for this node.
      *
-     * @return the time windows
+     * @return the time windows, in ascending order
+     */
+    public int[] getTimeWindows() {
+        return Arrays.copyOf(this.windows, this.windowCount);
+    }
+
+    /**
+     * Gets the time logged for this node in the given window.
+     *
+     * @param window the window
+     * @return the time, or zero if nothing was logged in the window
+     */
+    public long getTime(int window) {
+        int idx = Arrays.binarySearch(this.windows, 0, this.windowCount, window);
+        return idx >= 0 ? this.times[idx] : 0;
+    }
+
+    /**
+     * Gets if any time windows have been logged for this node.
+     *
+     * @return true if there are time windows
      */
-    public Set<Integer> getTimeWindows() {
-        return this.times.keySet();
+    public boolean hasTimeWindows() {
+        return this.windowCount != 0;
     }
 
     /**
@@ -78,7 +152,30 @@ public abstract class AbstractNode {
      * @return true if any time windows were removed
      */
     public boolean removeTimeWindows(IntPredicate predicate) {
-        return this.times.keySet().removeIf(predicate::test);
+        int count = this.windowCount;
+        int kept = 0;
+        for (int i = 0; i < count; i++) {
+            if (!predicate.test(this.windows[i])) {
+                this.windows[kept] = this.windows[i];
+                this.times[kept] = this.times[i];
+                kept++;
+            }
+        }
+
+        if (kept == count) {
+            return false;
+        }
+
+        this.exportDirty = true;
+        if (kept == 0) {
+            this.windows = EMPTY_WINDOWS;
+            this.times = EMPTY_TIMES;
+        } else if (kept <= this.windows.length / 4) {
+            this.windows = Arrays.copyOf(this.windows, kept);
+            this.times = Arrays.copyOf(this.times, kept);
+        }
+        this.windowCount = kept;
+        return true;
     }
 
     /**
@@ -87,19 +184,134 @@ public abstract class AbstractNode {
      * @return the total times
      */
     protected double[] encodeTimesForProto(ProtoTimeEncoder encoder) {
-        return encoder.encode(this.times);
+        return encoder.encode(this.windows, this.times, this.windowCount);
     }
 
     public Collection<StackTraceNode> getChildren() {
-        return this.children.values();
+        StackTraceNode[] table = this.children;
+        if (table.length == 0) {
+            return Collections.emptyList();
+        }
+
+        List<StackTraceNode> list = new ArrayList<>(this.childrenCount);
+        for (StackTraceNode child : table) {
+            if (child != null) {
+                list.add(child);
+            }
+        }
+        return list;
     }
 
     protected StackTraceNode resolveChild(StackTraceNode.Description description) {
-        StackTraceNode result = this.children.get(description); // fast path
-        if (result != null) {
-            return result;
+        StackTraceNode[] table = this.children;
+        if (table.length != 0) {
+            int mask = table.length - 1;
+            for (int i = spread(description.hashCode()) & mask; ; i = (i + 1) & mask) {
+                StackTraceNode child = table[i];
+                if (child == null) {
+                    break;
+                }
+                if (child.getDescription().equals(description)) {
+                    return child;
+                }
+            }
+        }
+
+        StackTraceNode result = new StackTraceNode(description);
+        addChild(result);
+        return result;
+    }
+
+    private void addChild(StackTraceNode child) {
+        // keep the load factor at or below 0.5
+        if ((this.childrenCount + 1) * 2 > this.children.length) {
+            resizeChildren(Math.max(INITIAL_CHILDREN_CAPACITY, this.children.length * 2));
+        }
+        insertChild(this.children, child);
+        this.childrenCount++;
+        this.exportDirty = true;
+    }
+
+    private void resizeChildren(int newCapacity) {
+        StackTraceNode[] newTable = new StackTraceNode[newCapacity];
+        for (StackTraceNode child : this.children) {
+            if (child != null) {
+                insertChild(newTable, child);
+            }
+        }
+        this.children = newTable;
+    }
+
+    private static void insertChild(StackTraceNode[] table, StackTraceNode child) {
+        int mask = table.length - 1;
+        int i = spread(child.getDescription().hashCode()) & mask;
+        while (table[i] != null) {
+            i = (i + 1) & mask;
+        }
+        table[i] = child;
+    }
+
+    private static int spread(int hash) {
+        // the low bits of the description hash are weak, mix in the high bits
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * Removes children from this node if they pass the given {@code predicate} test.
+     *
+     * <p>The predicate is tested exactly once for each child.</p>
+     *
+     * @param predicate the predicate
+     * @return true if any children were removed
+     */
+    protected boolean removeChildren(Predicate<StackTraceNode> predicate) {
+        StackTraceNode[] table = this.children;
+
+        // lazily allocated when the first child is removed
+        StackTraceNode[] survivors = null;
+        int kept = 0;
+
+        for (int i = 0; i < table.length; i++) {
+            StackTraceNode child = table[i];
+            if (child == null) {
+                continue;
+            }
+
+            if (predicate.test(child)) {
+                if (survivors == null) {
+                    survivors = new StackTraceNode[this.childrenCount];
+                    for (int j = 0; j < i; j++) {
+                        if (table[j] != null) {
+                            survivors[kept++] = table[j];
+                        }
+                    }
+                }
+            } else if (survivors != null) {
+                survivors[kept++] = child;
+            }
+        }
+
+        if (survivors == null) {
+            return false;
+        }
+
+        // rebuild the table rather than removing entries in place, see class javadoc
+        StackTraceNode[] newTable = EMPTY_CHILDREN;
+        if (kept != 0) {
+            int capacity = INITIAL_CHILDREN_CAPACITY;
+            while (kept * 2 > capacity) {
+                capacity *= 2;
+            }
+            newTable = new StackTraceNode[capacity];
+            for (int i = 0; i < kept; i++) {
+                insertChild(newTable, survivors[i]);
+            }
         }
-        return this.children.computeIfAbsent(description, StackTraceNode::new);
+
+        this.children = newTable;
+        this.childrenCount = kept;
+        this.exportDirty = true;
+        return true;
     }
 
     /**
@@ -108,24 +320,51 @@ public abstract class AbstractNode {
      * @param other the other node
      */
     protected void merge(AbstractNode other) {
-        other.times.forEach((key, value) -> getTimeAccumulator(key).add(value.longValue()));
-        for (Map.Entry<StackTraceNode.Description, StackTraceNode> child : other.children.entrySet()) {
-            resolveChild(child.getKey()).merge(child.getValue());
+        for (int i = 0; i < other.windowCount; i++) {
+            addTime(other.windows[i], other.times[i]);
+        }
+        for (StackTraceNode child : other.children) {
+            if (child != null) {
+                resolveChild(child.getDescription()).merge(child);
+            }
         }
     }
 
-    protected List<StackTraceNode> exportChildren(MergeMode mergeMode) {
-        if (this.children.isEmpty()) {
+    /**
+     * Gets the children of this node, with any children that should be merged according
+     * to the {@code mergeMode} merged together (as they would be exported).
+     *
+     * <p>The tree itself is not modified.</p>
+     *
+     * @param mergeMode the merge mode
+     * @return the children
+     */
+    public List<StackTraceNode> exportChildren(MergeMode mergeMode) {
+        if (this.childrenCount == 0) {
             return Collections.emptyList();
         }
 
-        List<StackTraceNode> list = new ArrayList<>(this.children.size());
+        List<StackTraceNode> list = new ArrayList<>(this.childrenCount);
+        // whether each element of the list is a copy, created to be merged into
+        boolean[] copied = new boolean[this.childrenCount];
 
         outer:
-        for (StackTraceNode child : this.children.values()) {
+        for (StackTraceNode child : this.children) {
+            if (child == null) {
+                continue;
+            }
+
             // attempt to find an existing node we can merge into
-            for (StackTraceNode other : list) {
+            for (int i = 0; i < list.size(); i++) {
+                StackTraceNode other = list.get(i);
                 if (mergeMode.shouldMerge(other, child)) {
+                    // merge into a copy, so that exporting doesn't modify the tree
+                    // (the same tree is exported again on every window rotation)
+                    if (!copied[i]) {
+                        other = other.copy();
+                        list.set(i, other);
+                        copied[i] = true;
+                    }
                     other.merge(child);
                     continue outer;
                 }
@@ -138,4 +377,34 @@ public abstract class AbstractNode {
         return list;
     }
 
+    /**
+     * Gets the children of this node as they would be exported, like {@link #exportChildren(MergeMode)},
+     * reusing the result of the previous call if nothing has changed since.
+     *
+     * <p>The tree is only ever modified by adding time to each node on a path, or by removing time
+     * windows from whole subtrees, so if this node is unchanged, so are all of its descendants
+     * (including the nodes merged into the copies returned last time).</p>
+     *
+     * @param mergeMode the merge mode, which must merge in the same way as on the previous call
+     * @return the children
+     * @see #clearExportedChildren()
+     */
+    List<StackTraceNode> exportChildrenCached(MergeMode mergeMode) {
+        StackTraceNode[] children = this.exportedChildren;
+        if (children == null || this.exportDirty) {
+            children = exportChildren(mergeMode).toArray(EMPTY_CHILDREN);
+            this.exportedChildren = children;
+            this.exportDirty = false;
+        }
+        return Arrays.asList(children);
+    }
+
+    /**
+     * Clears the children cached by {@link #exportChildrenCached(MergeMode)}.
+     */
+    void clearExportedChildren() {
+        this.exportedChildren = null;
+        this.exportDirty = true;
+    }
+
 }
@@ -0,0 +1,146 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.sampler.node;
+
+/**
+ * Interns {@link StackTraceNode.Description}s, so that each distinct frame is only
+ * allocated once, rather than once per frame per sample.
+ *
+ * <p>Lookups are lock-free and do not allocate when the frame has been seen before.
+ * Insertions are synchronized.</p>
+ */
+public final class DescriptionTable {
+    private static final int INITIAL_CAPACITY = 1024;
+
+    /** An open-addressed (linear probing) hash table of descriptions. Length is always a power of two */
+    private volatile StackTraceNode.Description[] table = new StackTraceNode.Description[INITIAL_CAPACITY];
+
+    /** The number of descriptions in the table - guarded by 'this' */
+    private int size;
+
+    /**
+     * Gets the canonical description for a frame from the Java sampler.
+     *
+     * @param className the class name
+     * @param methodName the method name
+     * @param lineNumber the line number
+     * @param parentLineNumber the line number of the parent frame
+     * @return the description
+     */
+    public StackTraceNode.Description intern(String className, String methodName, int lineNumber, int parentLineNumber) {
+        int hash = StackTraceNode.Description.hash(className, methodName, lineNumber, parentLineNumber);
+
+        StackTraceNode.Description[] table = this.table;
+        int mask = table.length - 1;
+        for (int i = spread(hash) & mask; ; i = (i + 1) & mask) {
+            StackTraceNode.Description description = table[i];
+            if (description == null) {
+                break;
+            }
+            if (description.matches(hash, className, methodName, lineNumber, parentLineNumber)) {
+                return description;
+            }
+        }
+
+        return insert(new StackTraceNode.Description(className, methodName, lineNumber, parentLineNumber));
+    }
+
+    /**
+     * Gets the canonical description for a frame from the async-profiler sampler.
+     *
+     * @param className the class name
+     * @param methodName the method name
+     * @param methodDescription the method description
+     * @return the description
+     */
+    public StackTraceNode.Description intern(String className, String methodName, String methodDescription) {
+        int hash = StackTraceNode.Description.hash(className, methodName, methodDescription);
+
+        StackTraceNode.Description[] table = this.table;
+        int mask = table.length - 1;
+        for (int i = spread(hash) & mask; ; i = (i + 1) & mask) {
+            StackTraceNode.Description description = table[i];
+            if (description == null) {
+                break;
+            }
+            if (description.matches(hash, className, methodName, methodDescription)) {
+                return description;
+            }
+        }
+
+        return insert(new StackTraceNode.Description(className, methodName, methodDescription));
+    }
+
+    /**
+     * Gets the number of distinct descriptions in the table.
+     *
+     * @return the size
+     */
+    public synchronized int size() {
+        return this.size;
+    }
+
+    private synchronized StackTraceNode.Description insert(StackTraceNode.Description description) {
+        // another thread may have inserted the same description (or resized the table)
+        // since the lock-free lookup, so probe again whilst holding the lock
+        StackTraceNode.Description[] table = this.table;
+        int mask = table.length - 1;
+        int i = spread(description.hashCode()) & mask;
+        for (StackTraceNode.Description existing; (existing = table[i]) != null; i = (i + 1) & mask) {
+            if (existing.equals(description)) {
+                return existing;
+            }
+        }
+
+        // descriptions only have final fields, so are safely published to racing readers
+        table[i] = description;
+
+        if (++this.size * 2 > table.length) {
+            resize(table.length * 2);
+        }
+        return description;
+    }
+
+    // guarded by 'this'
+    private void resize(int newCapacity) {
+        StackTraceNode.Description[] oldTable = this.table;
+        StackTraceNode.Description[] newTable = new StackTraceNode.Description[newCapacity];
+        int mask = newCapacity - 1;
+
+        for (StackTraceNode.Description description : oldTable) {
+            if (description != null) {
+                int i = spread(description.hashCode()) & mask;
+                while (newTable[i] != null) {
+                    i = (i + 1) & mask;
+                }
+                newTable[i] = description;
+            }
+        }
+
+        this.table = newTable;
+    }
+
+    private static int spread(int hash) {
+        // the low bits of the 31-based hash are weak, mix in the high bits
+        return hash ^ (hash >>> 16);
+    }
+
+}
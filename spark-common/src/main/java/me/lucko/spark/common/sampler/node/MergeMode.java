@@ -77,8 +77,8 @@ public final class MergeMode {
         }
 
         // are the method descriptions the same? (is it the same method?)
-        String desc1 = this.methodDisambiguator.disambiguate(n1).map(MethodDisambiguator.MethodDescription::getDesc).orElse(null);
-        String desc2 = this.methodDisambiguator.disambiguate(n2).map(MethodDisambiguator.MethodDescription::getDesc).orElse(null);
+        String desc1 = n1.resolveMethodDescription(this.methodDisambiguator);
+        String desc2 = n2.resolveMethodDescription(this.methodDisambiguator);
 
         if (desc1 == null && desc2 == null) {
             return true;
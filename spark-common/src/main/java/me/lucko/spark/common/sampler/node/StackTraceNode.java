@@ -41,10 +41,22 @@ public final class StackTraceNode extends AbstractNode {
     /** A description of the element */
     private final Description description;
 
+    /** The method description resolved by a {@link MethodDisambiguator}, cached between exports */
+    private String resolvedMethodDescription;
+    /** If {@link #resolvedMethodDescription} has been computed */
+    private boolean methodDescriptionResolved;
+
+    /** This node as a proto without any times or children, cached between exports */
+    private SparkSamplerProtos.StackTraceNode exportTemplate;
+
     public StackTraceNode(Description description) {
         this.description = description;
     }
 
+    Description getDescription() {
+        return this.description;
+    }
+
     public String getClassName() {
         return this.description.className;
     }
@@ -65,16 +77,103 @@ public final class StackTraceNode extends AbstractNode {
         return this.description.parentLineNumber;
     }
 
+    /**
+     * Gets the description of the method this node represents, using the
+     * {@code disambiguator} if one was not recorded by the sampler.
+     *
+     * <p>The result is cached, as disambiguating a method may involve reading the class
+     * file, and the same nodes are exported every time the profiling window rotates.</p>
+     *
+     * @param disambiguator the method disambiguator
+     * @return the method description, or null if it could not be determined
+     */
+    public @Nullable String resolveMethodDescription(MethodDisambiguator disambiguator) {
+        if (this.description.methodDescription != null) {
+            return this.description.methodDescription;
+        }
+
+        if (!this.methodDescriptionResolved) {
+            this.resolvedMethodDescription = disambiguator.disambiguate(this)
+                    .map(MethodDisambiguator.MethodDescription::getDesc)
+                    .orElse(null);
+            this.methodDescriptionResolved = true;
+        }
+        return this.resolvedMethodDescription;
+    }
+
+    /**
+     * Creates a deep copy of this node, to be used as the target of a merge.
+     *
+     * @return the copy
+     */
+    StackTraceNode copy() {
+        StackTraceNode copy = new StackTraceNode(this.description);
+        copy.resolvedMethodDescription = this.resolvedMethodDescription;
+        copy.methodDescriptionResolved = this.methodDescriptionResolved;
+        copy.exportTemplate = this.exportTemplate;
+        copy.merge(this);
+        return copy;
+    }
+
     public SparkSamplerProtos.StackTraceNode toProto(MergeMode mergeMode, ProtoTimeEncoder timeEncoder, Iterable<Integer> childrenRefs) {
-        SparkSamplerProtos.StackTraceNode.Builder proto = SparkSamplerProtos.StackTraceNode.newBuilder()
-                .setClassName(this.description.className)
-                .setMethodName(this.description.methodName);
+        SparkSamplerProtos.StackTraceNode.Builder proto = toProtoBuilder(mergeMode);
 
         double[] times = encodeTimesForProto(timeEncoder);
         for (double time : times) {
             proto.addTimes(time);
         }
 
+        proto.addAllChildrenRefs(childrenRefs);
+
+        return proto.build();
+    }
+
+    /**
+     * Converts this node to a proto, like {@link #toProto(MergeMode, ProtoTimeEncoder, Iterable)},
+     * but reusing the description written by the previous export.
+     *
+     * @param mergeMode the merge mode, which must merge in the same way as on the previous call
+     * @param timeEncoder the time encoder
+     * @param childrenRefs the refs of the node's children
+     * @return the proto
+     * @see #clearExportedChildren()
+     */
+    SparkSamplerProtos.StackTraceNode toProtoCached(MergeMode mergeMode, ProtoTimeEncoder timeEncoder, Iterable<Integer> childrenRefs) {
+        SparkSamplerProtos.StackTraceNode template = this.exportTemplate;
+        if (template == null) {
+            template = toProtoBuilder(mergeMode).build();
+            this.exportTemplate = template;
+        }
+
+        SparkSamplerProtos.StackTraceNode.Builder proto = template.toBuilder();
+
+        double[] times = encodeTimesForProto(timeEncoder);
+        for (double time : times) {
+            proto.addTimes(time);
+        }
+
+        proto.addAllChildrenRefs(childrenRefs);
+
+        return proto.build();
+    }
+
+    @Override
+    void clearExportedChildren() {
+        super.clearExportedChildren();
+        this.exportTemplate = null;
+    }
+
+    /**
+     * Creates a proto builder describing this node, without any times or children.
+     *
+     * @param mergeMode the merge mode
+     * @return the proto builder
+     */
+    public SparkSamplerProtos.StackTraceNode.Builder toProtoBuilder(MergeMode mergeMode) {
+        SparkSamplerProtos.StackTraceNode.Builder proto = SparkSamplerProtos.StackTraceNode.newBuilder()
+                .setClassName(this.description.className)
+                .setMethodName(this.description.methodName);
+
         if (this.description.lineNumber >= 0) {
             proto.setLineNumber(this.description.lineNumber);
         }
@@ -83,17 +182,12 @@ public final class StackTraceNode extends AbstractNode {
             proto.setParentLineNumber(this.description.parentLineNumber);
         }
 
-        if (this.description.methodDescription != null) {
-            proto.setMethodDesc(this.description.methodDescription);
-        } else {
-            mergeMode.getMethodDisambiguator().disambiguate(this)
-                    .map(MethodDisambiguator.MethodDescription::getDesc)
-                    .ifPresent(proto::setMethodDesc);
+        String methodDescription = resolveMethodDescription(mergeMode.getMethodDisambiguator());
+        if (methodDescription != null) {
+            proto.setMethodDesc(methodDescription);
         }
 
-        proto.addAllChildrenRefs(childrenRefs);
-
-        return proto.build();
+        return proto;
     }
 
     /**
@@ -138,7 +232,7 @@ public final class StackTraceNode extends AbstractNode {
             this.methodDescription = null;
             this.lineNumber = lineNumber;
             this.parentLineNumber = parentLineNumber;
-            this.hash = Objects.hash(this.className, this.methodName, this.lineNumber, this.parentLineNumber);
+            this.hash = hash(className, methodName, lineNumber, parentLineNumber);
         }
 
         // Constructor used by the async-profiler sampler
@@ -148,7 +242,52 @@ public final class StackTraceNode extends AbstractNode {
             this.methodDescription = methodDescription;
             this.lineNumber = StackTraceNode.NULL_LINE_NUMBER;
             this.parentLineNumber = StackTraceNode.NULL_LINE_NUMBER;
-            this.hash = Objects.hash(this.className, this.methodName, this.methodDescription);
+            this.hash = hash(className, methodName, methodDescription);
+        }
+
+        // Constructor used when reading exported data, which can have both a line number and a method description
+        public Description(String className, String methodName, String methodDescription, int lineNumber, int parentLineNumber) {
+            this.className = className;
+            this.methodName = methodName;
+            this.methodDescription = methodDescription;
+            this.lineNumber = lineNumber;
+            this.parentLineNumber = parentLineNumber;
+            this.hash = 31 * hash(className, methodName, lineNumber, parentLineNumber) + Objects.hashCode(methodDescription);
+        }
+
+        // equivalent to Objects.hash(className, methodName, lineNumber, parentLineNumber), without the varargs array
+        static int hash(String className, String methodName, int lineNumber, int parentLineNumber) {
+            int result = 31 + className.hashCode();
+            result = 31 * result + methodName.hashCode();
+            result = 31 * result + lineNumber;
+            result = 31 * result + parentLineNumber;
+            return result;
+        }
+
+        // equivalent to Objects.hash(className, methodName, methodDescription), without the varargs array
+        static int hash(String className, String methodName, String methodDescription) {
+            int result = 31 + className.hashCode();
+            result = 31 * result + methodName.hashCode();
+            result = 31 * result + (methodDescription == null ? 0 : methodDescription.hashCode());
+            return result;
+        }
+
+        boolean matches(int hash, String className, String methodName, int lineNumber, int parentLineNumber) {
+            return this.hash == hash &&
+                    this.methodDescription == null &&
+                    this.lineNumber == lineNumber &&
+                    this.parentLineNumber == parentLineNumber &&
+                    this.className.equals(className) &&
+                    this.methodName.equals(methodName);
+        }
+
+        boolean matches(int hash, String className, String methodName, String methodDescription) {
+            return this.hash == hash &&
+                    this.lineNumber == StackTraceNode.NULL_LINE_NUMBER &&
+                    this.parentLineNumber == StackTraceNode.NULL_LINE_NUMBER &&
+                    this.className.equals(className) &&
+                    this.methodName.equals(methodName) &&
+                    Objects.equals(this.methodDescription, methodDescription);
         }
 
         @Override
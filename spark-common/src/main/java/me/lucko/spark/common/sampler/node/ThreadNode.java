@@ -25,13 +25,14 @@ import me.lucko.spark.common.util.IndexedListBuilder;
 import me.lucko.spark.proto.SparkSamplerProtos;
 
 import java.util.ArrayDeque;
-import java.util.Collection;
+import java.util.ArrayList;
 import java.util.Deque;
-import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Queue;
+import java.util.function.DoubleToLongFunction;
 import java.util.function.IntPredicate;
+import java.util.function.ToIntFunction;
 
 /**
  * The root of a sampling stack for a given thread / thread group.
@@ -48,6 +49,11 @@ public final class ThreadNode extends AbstractNode {
      */
     public String label;
 
+    /**
+     * The merge mode used by the last export, or null if the thread hasn't been exported
+     */
+    private MergeMode exportMergeMode;
+
     public ThreadNode(String name) {
         this.name = name;
     }
@@ -64,21 +70,28 @@ public final class ThreadNode extends AbstractNode {
         this.label = label;
     }
 
+    @Override
+    public synchronized int[] getTimeWindows() {
+        return super.getTimeWindows();
+    }
+
     /**
      * Logs the given stack trace against this node and its children.
      *
+     * <p>Calls are serialised on this node, as the underlying tree is not thread-safe.</p>
+     *
      * @param describer the function that describes the elements of the stack
      * @param stack the stack
      * @param time the total time to log
      * @param window the window
      * @param <T> the stack trace element type
      */
-    public <T> void log(StackTraceNode.Describer<T> describer, T[] stack, long time, int window) {
+    public synchronized <T> void log(StackTraceNode.Describer<T> describer, T[] stack, long time, int window) {
         if (stack.length == 0) {
             return;
         }
 
-        getTimeAccumulator(window).add(time);
+        addTime(window, time);
 
         AbstractNode node = this;
         T previousElement = null;
@@ -87,7 +100,7 @@ public final class ThreadNode extends AbstractNode {
             T element = stack[(stack.length - 1) - offset];
 
             node = node.resolveChild(describer.describe(element, previousElement));
-            node.getTimeAccumulator(window).add(time);
+            node.addTime(window, time);
 
             previousElement = element;
         }
@@ -99,42 +112,35 @@ public final class ThreadNode extends AbstractNode {
      * @param predicate the predicate to use to test the time windows
      * @return true if this node is now empty
      */
-    public boolean removeTimeWindowsRecursively(IntPredicate predicate) {
+    public synchronized boolean removeTimeWindowsRecursively(IntPredicate predicate) {
         Queue<AbstractNode> queue = new ArrayDeque<>();
         queue.add(this);
 
         while (!queue.isEmpty()) {
             AbstractNode node = queue.remove();
-            Collection<StackTraceNode> children = node.getChildren();
 
             boolean needToProcessChildren = false;
 
-            for (Iterator<StackTraceNode> it = children.iterator(); it.hasNext(); ) {
-                StackTraceNode child = it.next();
-
+            for (StackTraceNode child : node.getChildren()) {
                 boolean windowsWereRemoved = child.removeTimeWindows(predicate);
-                boolean childIsNowEmpty = child.getTimeWindows().isEmpty();
-
-                if (childIsNowEmpty) {
-                    it.remove();
-                    continue;
-                }
-
                 if (windowsWereRemoved) {
                     needToProcessChildren = true;
                 }
             }
 
+            // remove any children that are now empty
+            node.removeChildren(child -> !child.hasTimeWindows());
+
             if (needToProcessChildren) {
-                queue.addAll(children);
+                queue.addAll(node.getChildren());
             }
         }
 
         removeTimeWindows(predicate);
-        return getTimeWindows().isEmpty();
+        return !hasTimeWindows();
     }
 
-    public SparkSamplerProtos.ThreadNode toProto(MergeMode mergeMode, ProtoTimeEncoder timeEncoder) {
+    public synchronized SparkSamplerProtos.ThreadNode toProto(MergeMode mergeMode, ProtoTimeEncoder timeEncoder) {
         SparkSamplerProtos.ThreadNode.Builder proto = SparkSamplerProtos.ThreadNode.newBuilder()
                 .setName(getThreadLabel());
 
@@ -167,6 +173,13 @@ public final class ThreadNode extends AbstractNode {
         //   ]
         //
 
+        // the merged children and descriptions of each node are cached between exports, see
+        // AbstractNode#exportChildrenCached - they only need to be cleared if nodes are merged differently
+        if (this.exportMergeMode == null || this.exportMergeMode.separateParentCalls() != mergeMode.separateParentCalls()) {
+            clearExportCaches();
+        }
+        this.exportMergeMode = mergeMode;
+
         // the flattened array of nodes
         IndexedListBuilder<SparkSamplerProtos.StackTraceNode> nodesArray = new IndexedListBuilder<>();
 
@@ -175,7 +188,7 @@ public final class ThreadNode extends AbstractNode {
 
         // push the thread node's children to the stack
         List<Integer> childrenRefs = new LinkedList<>();
-        for (StackTraceNode child : exportChildren(mergeMode)) {
+        for (StackTraceNode child : exportChildrenCached(mergeMode)) {
             stack.push(new Node(child, childrenRefs));
         }
 
@@ -185,7 +198,7 @@ public final class ThreadNode extends AbstractNode {
 
             // on the first visit, just push this node's children and leave it on the stack
             if (node.firstVisit) {
-                for (StackTraceNode child : node.stackTraceNode.exportChildren(mergeMode)) {
+                for (StackTraceNode child : node.stackTraceNode.exportChildrenCached(mergeMode)) {
                     stack.push(new Node(child, node.childrenRefs));
                 }
                 node.firstVisit = false;
@@ -195,7 +208,7 @@ public final class ThreadNode extends AbstractNode {
             // convert StackTraceNode to a proto
             // - at this stage, we have already visited this node's children
             // - the refs for each child are stored in node.childrenRefs
-            SparkSamplerProtos.StackTraceNode childProto = node.stackTraceNode.toProto(mergeMode, timeEncoder, node.childrenRefs);
+            SparkSamplerProtos.StackTraceNode childProto = node.stackTraceNode.toProtoCached(mergeMode, timeEncoder, node.childrenRefs);
 
             // add the child proto to the nodes array, and record the ref in the parent
             int childIndex = nodesArray.add(childProto);
@@ -211,6 +224,176 @@ public final class ThreadNode extends AbstractNode {
         return proto.build();
     }
 
+    private void clearExportCaches() {
+        Deque<AbstractNode> stack = new ArrayDeque<>();
+        stack.push(this);
+        while (!stack.isEmpty()) {
+            AbstractNode node = stack.pop();
+            node.clearExportedChildren();
+            for (StackTraceNode child : node.getChildren()) {
+                stack.push(child);
+            }
+        }
+    }
+
+    /**
+     * Reads a thread node from an exported proto, e.g. a profile which was saved to a file.
+     *
+     * @param proto the proto
+     * @param timeWindows the windows which the times in the proto correspond to
+     * @param valueTransformer converts the exported times back to the values logged by the sampler
+     * @return the thread node
+     */
+    public static ThreadNode fromProto(SparkSamplerProtos.ThreadNode proto, List<Integer> timeWindows, DoubleToLongFunction valueTransformer) {
+        ThreadNode thread = new ThreadNode(proto.getName());
+        addTimesFromProto(thread, proto.getTimesList(), timeWindows, valueTransformer);
+
+        List<SparkSamplerProtos.StackTraceNode> nodes = proto.getChildrenList();
+
+        // the nodes which still need to have their children read, paired with their proto
+        Deque<AbstractNode> parents = new ArrayDeque<>();
+        Deque<List<Integer>> parentChildrenRefs = new ArrayDeque<>();
+        parents.push(thread);
+        parentChildrenRefs.push(proto.getChildrenRefsList());
+
+        while (!parents.isEmpty()) {
+            AbstractNode parent = parents.pop();
+            for (int ref : parentChildrenRefs.pop()) {
+                SparkSamplerProtos.StackTraceNode nodeProto = nodes.get(ref);
+                String methodDescription = nodeProto.getMethodDesc();
+
+                StackTraceNode.Description description = methodDescription.isEmpty()
+                        ? new StackTraceNode.Description(nodeProto.getClassName(), nodeProto.getMethodName(), nodeProto.getLineNumber(), nodeProto.getParentLineNumber())
+                        : new StackTraceNode.Description(nodeProto.getClassName(), nodeProto.getMethodName(), methodDescription, nodeProto.getLineNumber(), nodeProto.getParentLineNumber());
+
+                StackTraceNode node = parent.resolveChild(description);
+                addTimesFromProto(node, nodeProto.getTimesList(), timeWindows, valueTransformer);
+
+                parents.push(node);
+                parentChildrenRefs.push(nodeProto.getChildrenRefsList());
+            }
+        }
+
+        return thread;
+    }
+
+    private static void addTimesFromProto(AbstractNode node, List<Double> times, List<Integer> timeWindows, DoubleToLongFunction valueTransformer) {
+        for (int i = 0; i < times.size() && i < timeWindows.size(); i++) {
+            double time = times.get(i);
+            if (time != 0) {
+                node.addTime(timeWindows.get(i), valueTransformer.applyAsLong(time));
+            }
+        }
+    }
+
+    /**
+     * Converts the time logged in a single window to a proto, to be written to the profiling history.
+     *
+     * <p>Only the nodes which have time in the window are included, and the strings
+     * describing each node are written to a table shared by all threads in the window.</p>
+     *
+     * @param window the window
+     * @param strings returns the index of a string in the shared table
+     * @return the proto, or null if no time was logged in the window
+     */
+    public synchronized SparkSamplerProtos.HistoryThreadNode toHistoryProto(int window, ToIntFunction<String> strings) {
+        long time = getTime(window);
+        if (time == 0) {
+            return null;
+        }
+
+        SparkSamplerProtos.HistoryThreadNode.Builder proto = SparkSamplerProtos.HistoryThreadNode.newBuilder()
+                .setName(getThreadLabel())
+                .setTime(time);
+
+        // depth-first pre-order traversal, so each node is immediately followed by its children
+        Deque<StackTraceNode> stack = new ArrayDeque<>(childrenInWindow(this, window));
+        while (!stack.isEmpty()) {
+            StackTraceNode node = stack.pop();
+            List<StackTraceNode> children = childrenInWindow(node, window);
+
+            SparkSamplerProtos.HistoryStackTraceNode.Builder nodeProto = SparkSamplerProtos.HistoryStackTraceNode.newBuilder()
+                    .setClassName(strings.applyAsInt(node.getClassName()))
+                    .setMethodName(strings.applyAsInt(node.getMethodName()))
+                    .setLineNumber(node.getLineNumber())
+                    .setParentLineNumber(node.getParentLineNumber())
+                    .setTime(node.getTime(window))
+                    .setChildrenCount(children.size());
+
+            if (node.getMethodDescription() != null) {
+                nodeProto.setMethodDesc(strings.applyAsInt(node.getMethodDescription()) + 1);
+            }
+
+            proto.addNodes(nodeProto);
+            for (StackTraceNode child : children) {
+                stack.push(child);
+            }
+        }
+
+        return proto.build();
+    }
+
+    /**
+     * Merges a window read from the profiling history into this node.
+     *
+     * @param proto the proto, as written by {@link #toHistoryProto(int, ToIntFunction)}
+     * @param window the window
+     * @param strings the shared string table
+     * @param descriptions the table to intern descriptions with
+     */
+    public synchronized void mergeHistoryProto(SparkSamplerProtos.HistoryThreadNode proto, int window, List<String> strings, DescriptionTable descriptions) {
+        addTime(window, proto.getTime());
+
+        // the nodes which are still waiting for children to be read, innermost first
+        Deque<PendingParent> parents = new ArrayDeque<>();
+
+        for (SparkSamplerProtos.HistoryStackTraceNode nodeProto : proto.getNodesList()) {
+            while (!parents.isEmpty() && parents.peek().remainingChildren == 0) {
+                parents.pop();
+            }
+
+            AbstractNode parent = this;
+            if (!parents.isEmpty()) {
+                PendingParent pending = parents.peek();
+                pending.remainingChildren--;
+                parent = pending.node;
+            }
+
+            String className = strings.get(nodeProto.getClassName());
+            String methodName = strings.get(nodeProto.getMethodName());
+            StackTraceNode.Description description = nodeProto.getMethodDesc() != 0
+                    ? descriptions.intern(className, methodName, strings.get(nodeProto.getMethodDesc() - 1))
+                    : descriptions.intern(className, methodName, nodeProto.getLineNumber(), nodeProto.getParentLineNumber());
+
+            StackTraceNode node = parent.resolveChild(description);
+            node.addTime(window, nodeProto.getTime());
+
+            if (nodeProto.getChildrenCount() != 0) {
+                parents.push(new PendingParent(node, nodeProto.getChildrenCount()));
+            }
+        }
+    }
+
+    private static List<StackTraceNode> childrenInWindow(AbstractNode node, int window) {
+        List<StackTraceNode> children = new ArrayList<>();
+        for (StackTraceNode child : node.getChildren()) {
+            if (child.getTime(window) != 0) {
+                children.add(child);
+            }
+        }
+        return children;
+    }
+
+    private static final class PendingParent {
+        private final AbstractNode node;
+        private int remainingChildren;
+
+        private PendingParent(AbstractNode node, int remainingChildren) {
+            this.node = node;
+            this.remainingChildren = remainingChildren;
+        }
+    }
+
     private static final class Node {
         private final StackTraceNode stackTraceNode;
         private boolean firstVisit = true;
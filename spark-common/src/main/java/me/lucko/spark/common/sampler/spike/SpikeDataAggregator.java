@@ -0,0 +1,66 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.sampler.spike;
+
+import com.google.common.util.concurrent.MoreExecutors;
+
+import me.lucko.spark.common.sampler.ThreadGrouper;
+import me.lucko.spark.common.sampler.java.JavaDataAggregator;
+import me.lucko.spark.proto.SparkSamplerProtos.SamplerMetadata;
+
+import java.lang.management.ThreadInfo;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link JavaDataAggregator} for the samples frozen into a {@link SpikeProfile}.
+ *
+ * <p>The samples are inserted by the recorder thread all at once, so there is no need for a worker pool.</p>
+ */
+class SpikeDataAggregator extends JavaDataAggregator {
+
+    /** The tick length threshold which caused the spike to be recorded, measured in microseconds */
+    private final long tickLengthThreshold;
+
+    /** The number of ticks included in the profile */
+    private final int ticks;
+
+    SpikeDataAggregator(ThreadGrouper threadGrouper, int interval, int tickLengthThreshold, int ticks) {
+        super(MoreExecutors.newDirectExecutorService(), threadGrouper, interval, false, false);
+        this.tickLengthThreshold = TimeUnit.MILLISECONDS.toMicros(tickLengthThreshold);
+        this.ticks = ticks;
+    }
+
+    @Override
+    public SamplerMetadata.DataAggregator getMetadata() {
+        return SamplerMetadata.DataAggregator.newBuilder()
+                .setType(SamplerMetadata.DataAggregator.Type.TICKED)
+                .setThreadGrouper(this.threadGrouper.asProto())
+                .setTickLengthThreshold(this.tickLengthThreshold)
+                .setNumberOfIncludedTicks(this.ticks)
+                .build();
+    }
+
+    @Override
+    public void insertData(ThreadInfo threadInfo, int window) {
+        writeData(threadInfo, window);
+    }
+
+}
@@ -0,0 +1,124 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.sampler.spike;
+
+import me.lucko.spark.common.SparkPlatform;
+import me.lucko.spark.common.sampler.AbstractSampler;
+import me.lucko.spark.common.sampler.SamplerMode;
+import me.lucko.spark.common.sampler.SamplerSettings;
+import me.lucko.spark.common.sampler.aggregator.DataAggregator;
+import me.lucko.spark.proto.SparkSamplerProtos.SamplerData;
+
+import java.util.Locale;
+
+/**
+ * The samples recorded by the {@link SpikeRecorder} around one or more slow ticks, frozen into
+ * a profile that can be exported like any other {@link me.lucko.spark.common.sampler.Sampler}.
+ *
+ * <p>The profile is complete as soon as it is created, so it can't be started or stopped.</p>
+ */
+public class SpikeProfile extends AbstractSampler {
+
+    private final SpikeDataAggregator dataAggregator;
+
+    /** The time of the last sample in the profile */
+    private final long endTime;
+
+    /** The first tick which went over the threshold */
+    private final int tick;
+
+    /** The number of ticks which went over the threshold */
+    private final int slowTicks;
+
+    /** The duration of the slowest tick, in milliseconds */
+    private final double maxDuration;
+
+    SpikeProfile(SparkPlatform platform, SamplerSettings settings, SpikeDataAggregator dataAggregator, long startTime, long endTime, int tick, int slowTicks, double maxDuration) {
+        super(platform, settings);
+        this.dataAggregator = dataAggregator;
+        this.startTime = startTime;
+        this.endTime = endTime;
+        this.tick = tick;
+        this.slowTicks = slowTicks;
+        this.maxDuration = maxDuration;
+        this.stopped = true;
+        this.future.complete(this);
+    }
+
+    public int getTick() {
+        return this.tick;
+    }
+
+    public int getSlowTicks() {
+        return this.slowTicks;
+    }
+
+    public double getMaxDuration() {
+        return this.maxDuration;
+    }
+
+    /**
+     * Gets a short description of the spike, used as the comment when exporting without one.
+     *
+     * @return the description
+     */
+    public String describe() {
+        String description = String.format(Locale.ENGLISH, "Lag spike at tick %d, slowest tick took %.1fms", this.tick, this.maxDuration);
+        if (this.slowTicks > 1) {
+            description += " (" + this.slowTicks + " slow ticks)";
+        }
+        return description;
+    }
+
+    @Override
+    public void start() {
+        throw new UnsupportedOperationException("Spike profiles are recorded by the spike recorder");
+    }
+
+    @Override
+    public void stop(boolean cancelled) {
+        // already complete
+    }
+
+    @Override
+    protected long getEndTime() {
+        return this.endTime;
+    }
+
+    @Override
+    protected DataAggregator getDataAggregator() {
+        return this.dataAggregator;
+    }
+
+    @Override
+    public SamplerData toProto(SparkPlatform platform, ExportProps exportProps) {
+        SamplerData.Builder proto = SamplerData.newBuilder();
+        String comment = exportProps.comment() != null ? exportProps.comment() : describe();
+        writeMetadataToProto(proto, platform, exportProps.creator(), comment, this.dataAggregator);
+        writeDataToProto(proto, this.dataAggregator, exportProps.mergeMode().get(), exportProps.classSourceLookup().get());
+        return proto.build();
+    }
+
+    @Override
+    public SamplerMode getMode() {
+        return SamplerMode.EXECUTION;
+    }
+}
@@ -0,0 +1,329 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.sampler.spike;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import me.lucko.spark.common.SparkPlatform;
+import me.lucko.spark.common.platform.PlatformInfo;
+import me.lucko.spark.common.sampler.SamplerSettings;
+import me.lucko.spark.common.sampler.ThreadDumper;
+import me.lucko.spark.common.sampler.ThreadGrouper;
+import me.lucko.spark.common.sampler.window.ProfilingWindowUtils;
+import me.lucko.spark.common.tick.TickHook;
+import me.lucko.spark.common.tick.TickReporter;
+import me.lucko.spark.common.util.Configuration;
+import me.lucko.spark.common.util.SparkThreadFactory;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * An always-on "flight recorder" for slow ticks.
+ *
+ * <p>The game thread is sampled into a ring buffer holding the last few seconds of samples, each
+ * tagged with the tick it was taken in. When the {@link TickReporter} reports a tick over the
+ * threshold, the samples for that tick and a few ticks either side of it are frozen into a
+ * {@link SpikeProfile}, which can be exported later.</p>
+ *
+ * <p>Slow ticks only cost the game thread an enqueue - the samples are taken, and spikes are
+ * frozen, on the recorder's own thread. Slow ticks which are close together are merged into a
+ * single spike.</p>
+ */
+public class SpikeRecorder implements TickReporter.Callback, AutoCloseable {
+
+    private static final String OPTION_ENABLED = "spikeRecorder";
+    private static final String OPTION_INTERVAL = "spikeRecorderInterval";
+    private static final String OPTION_HISTORY = "spikeRecorderHistorySeconds";
+    private static final String OPTION_THRESHOLD = "spikeRecorderThreshold";
+    private static final String OPTION_CONTEXT_TICKS = "spikeRecorderContextTicks";
+    private static final String OPTION_THREAD_DUMPER = "spikeRecorderThreadDumper";
+
+    /** The number of spike profiles to keep */
+    private static final int MAX_SPIKES = 10;
+
+    private final SparkPlatform platform;
+    private final boolean enabled;
+
+    /** The interval to wait between samples, in microseconds */
+    private final int interval;
+
+    /** The tick duration over which a tick is considered a spike, in milliseconds */
+    private final int threshold;
+
+    /** The number of ticks before and after the slow ticks to include in a spike */
+    private final int contextTicks;
+
+    private final ThreadDumper threadDumper;
+    private final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+    private final ThreadGrouper threadGrouper = ThreadGrouper.BY_POOL;
+
+    /** The ring buffer of samples, only accessed by the recorder thread */
+    private final Sample[] samples;
+    private long sampleCount = 0;
+
+    /** Slow ticks reported by the game thread, waiting to be picked up by the recorder thread */
+    private final Queue<SlowTick> slowTicks = new ConcurrentLinkedQueue<>();
+
+    /** The spike currently being recorded, only accessed by the recorder thread */
+    private PendingSpike pending = null;
+
+    /** The recorded spikes, oldest first */
+    private final Deque<SpikeProfile> spikes = new ConcurrentLinkedDeque<>();
+
+    private TickHook tickHook;
+    private TickReporter tickReporter;
+    private ScheduledExecutorService executor;
+
+    public SpikeRecorder(SparkPlatform platform, Configuration configuration) {
+        this.platform = platform;
+
+        PlatformInfo.Type type = platform.getPlugin().getPlatformInfo().getType();
+        this.enabled = type != PlatformInfo.Type.CLIENT && configuration.getBoolean(OPTION_ENABLED, type == PlatformInfo.Type.SERVER);
+
+        int intervalMillis = Math.max(1, configuration.getInteger(OPTION_INTERVAL, 10));
+        int historySeconds = Math.max(1, configuration.getInteger(OPTION_HISTORY, 10));
+        this.interval = intervalMillis * 1000;
+        this.threshold = configuration.getInteger(OPTION_THRESHOLD, 100);
+        this.contextTicks = Math.max(0, configuration.getInteger(OPTION_CONTEXT_TICKS, 3));
+
+        ThreadDumper threadDumper = ThreadDumper.parseConfigSetting(configuration.getString(OPTION_THREAD_DUMPER, "default"));
+        // spikes are slow ticks, so only sample the game thread unless configured otherwise
+        this.threadDumper = threadDumper != null ? threadDumper : platform.getPlugin().getGameThreadDumper();
+
+        this.samples = new Sample[historySeconds * 1000 / intervalMillis];
+        for (int i = 0; i < this.samples.length; i++) {
+            this.samples[i] = new Sample();
+        }
+    }
+
+    /**
+     * Starts recording, if enabled and supported by the platform.
+     */
+    public void start() {
+        if (!this.enabled) {
+            return;
+        }
+
+        this.tickHook = this.platform.getTickHook();
+        this.tickReporter = this.platform.getTickReporter();
+        if (this.tickHook == null || this.tickReporter == null) {
+            return;
+        }
+
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("spark-spike-recorder")
+                .setDaemon(true)
+                .setUncaughtExceptionHandler(SparkThreadFactory.EXCEPTION_HANDLER)
+                .build()
+        );
+        this.tickReporter.addCallback(this);
+        this.executor.scheduleAtFixedRate(this::sample, 0, this.interval, TimeUnit.MICROSECONDS);
+    }
+
+    @Override
+    public void close() {
+        if (this.executor != null) {
+            this.tickReporter.removeCallback(this);
+            this.executor.shutdown();
+            this.executor = null;
+        }
+    }
+
+    public boolean isRunning() {
+        return this.executor != null;
+    }
+
+    public int getThreshold() {
+        return this.threshold;
+    }
+
+    /**
+     * Gets the recorded spikes, oldest first.
+     *
+     * @return the spikes
+     */
+    public List<SpikeProfile> getSpikes() {
+        return new ArrayList<>(this.spikes);
+    }
+
+    public void clearSpikes() {
+        this.spikes.clear();
+    }
+
+    @Override
+    public void onTick(double duration) {
+        if (duration >= this.threshold) {
+            // the tick hook has already been incremented for this tick, so this
+            // matches the tick that samples taken during it were tagged with
+            this.slowTicks.add(new SlowTick(this.tickHook.getCurrentTick(), duration));
+        }
+    }
+
+    private void sample() {
+        try {
+            int tick = this.tickHook.getCurrentTick();
+            long time = System.currentTimeMillis();
+            ThreadInfo[] threads = this.threadDumper.dumpThreads(this.threadBean);
+
+            Sample sample = this.samples[(int) (this.sampleCount++ % this.samples.length)];
+            sample.tick = tick;
+            sample.time = time;
+            sample.threads = threads;
+
+            processSlowTicks(tick);
+        } catch (Throwable e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void processSlowTicks(int currentTick) {
+        SlowTick slowTick;
+        while ((slowTick = this.slowTicks.poll()) != null) {
+            if (this.pending != null && slowTick.tick > this.pending.lastTick + this.contextTicks) {
+                // too far from the pending spike to be merged into it
+                PendingSpike spike = this.pending;
+                this.pending = null;
+                freeze(spike);
+            }
+
+            if (this.pending == null) {
+                this.pending = new PendingSpike(slowTick, this.sampleCount);
+            } else {
+                this.pending.add(slowTick);
+            }
+        }
+
+        if (this.pending == null) {
+            return;
+        }
+
+        // freeze once all the samples for the trailing ticks have been taken, or if the
+        // spike has gone on for so long that its first samples are about to be overwritten
+        boolean complete = currentTick > this.pending.lastTick + this.contextTicks;
+        boolean tooLong = this.sampleCount - this.pending.firstSample >= this.samples.length / 2;
+        if (complete || tooLong) {
+            PendingSpike spike = this.pending;
+            this.pending = null;
+            freeze(spike);
+        }
+    }
+
+    private void freeze(PendingSpike spike) {
+        int fromTick = spike.firstTick - this.contextTicks;
+        int toTick = spike.lastTick + this.contextTicks;
+
+        SpikeDataAggregator dataAggregator = new SpikeDataAggregator(this.threadGrouper, this.interval, this.threshold, toTick - fromTick + 1);
+        long startTime = -1;
+        long endTime = -1;
+
+        // walk the ring buffer from the oldest sample to the newest
+        int size = (int) Math.min(this.sampleCount, this.samples.length);
+        for (long i = this.sampleCount - size; i < this.sampleCount; i++) {
+            Sample sample = this.samples[(int) (i % this.samples.length)];
+            if (sample.tick < fromTick || sample.tick > toTick) {
+                continue;
+            }
+
+            int window = ProfilingWindowUtils.unixMillisToWindow(sample.time);
+            for (ThreadInfo threadInfo : sample.threads) {
+                if (threadInfo == null || threadInfo.getThreadName() == null || threadInfo.getStackTrace() == null) {
+                    continue;
+                }
+                dataAggregator.insertData(threadInfo, window);
+            }
+
+            if (startTime == -1) {
+                startTime = sample.time;
+            }
+            endTime = sample.time;
+        }
+
+        if (startTime == -1) {
+            // no samples were taken during the spike
+            return;
+        }
+
+        SamplerSettings settings = new SamplerSettings(this.interval, this.threadDumper, this.threadGrouper, -1, false);
+        this.spikes.addLast(new SpikeProfile(this.platform, settings, dataAggregator, startTime, endTime, spike.firstTick, spike.count, spike.maxDuration));
+        while (this.spikes.size() > MAX_SPIKES) {
+            this.spikes.pollFirst();
+        }
+
+        this.platform.getPlugin().log(Level.INFO, String.format(Locale.ENGLISH,
+                "Recorded a lag spike at tick %d (slowest tick took %.1fms), run '/%s spikes' to view it",
+                spike.firstTick, spike.maxDuration, this.platform.getPlugin().getCommandName()
+        ));
+    }
+
+    /**
+     * A sample in the ring buffer. Instances are reused as the buffer wraps around.
+     */
+    private static final class Sample {
+        int tick;
+        long time;
+        ThreadInfo[] threads;
+    }
+
+    private static final class SlowTick {
+        final int tick;
+        final double duration;
+
+        SlowTick(int tick, double duration) {
+            this.tick = tick;
+            this.duration = duration;
+        }
+    }
+
+    private static final class PendingSpike {
+        final int firstTick;
+        final long firstSample;
+        int lastTick;
+        int count = 1;
+        double maxDuration;
+
+        PendingSpike(SlowTick tick, long firstSample) {
+            this.firstTick = tick.tick;
+            this.firstSample = firstSample;
+            this.lastTick = tick.tick;
+            this.maxDuration = tick.duration;
+        }
+
+        void add(SlowTick tick) {
+            this.lastTick = Math.max(this.lastTick, tick.tick);
+            this.count++;
+            this.maxDuration = Math.max(this.maxDuration, tick.duration);
+        }
+    }
+
+}
@@ -20,18 +20,14 @@
 
 package me.lucko.spark.common.sampler.window;
 
-import me.lucko.spark.common.sampler.async.jfr.Dictionary;
 import me.lucko.spark.common.sampler.node.ThreadNode;
 
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
-import java.util.concurrent.atomic.LongAdder;
 import java.util.function.LongToDoubleFunction;
-import java.util.stream.IntStream;
 
 /**
- * Encodes a map of int->double into a double array.
+ * Encodes a set of (window -> time) values into a double array.
  */
 public class ProtoTimeEncoder {
 
@@ -40,25 +36,16 @@ public class ProtoTimeEncoder {
 
     /** A sorted array of all possible keys to encode */
     private final int[] keys;
-    /** A map of key value -> index in the keys array */
-    private final Map<Integer, Integer> keysToIndex;
 
     public ProtoTimeEncoder(LongToDoubleFunction valueTransformer, List<ThreadNode> sourceData) {
         this.valueTransformer = valueTransformer;
 
         // get an array of all keys that show up in the source data
         this.keys = sourceData.stream()
-                .map(n -> n.getTimeWindows().stream().mapToInt(i -> i))
-                .reduce(IntStream.empty(), IntStream::concat)
+                .flatMapToInt(n -> Arrays.stream(n.getTimeWindows()))
                 .distinct()
                 .sorted()
                 .toArray();
-
-        // construct a reverse index lookup
-        this.keysToIndex = new HashMap<>(this.keys.length);
-        for (int i = 0; i < this.keys.length; i++) {
-            this.keysToIndex.put(this.keys[i], i);
-        }
     }
 
     /**
@@ -71,26 +58,30 @@ public class ProtoTimeEncoder {
     }
 
     /**
-     * Encode a {@link Dictionary} (map) of times/durations into a double array.
+     * Encode an array of times/durations into a double array.
      *
-     * @param times a dictionary of times (unix-time millis -> duration in microseconds)
+     * @param windows the windows (keys), in ascending order
+     * @param times the times (duration in microseconds) for each window
+     * @param size the number of entries in {@code windows}/{@code times} to encode
      * @return the times encoded as a double array
      */
-    public double[] encode(Map<Integer, LongAdder> times) {
+    public double[] encode(int[] windows, long[] times, int size) {
         // construct an array of values - length needs to exactly match the
         // number of keys, even if some values are zero.
         double[] array = new double[this.keys.length];
 
-        times.forEach((key, value) -> {
+        for (int i = 0; i < size; i++) {
+            int key = windows[i];
+
             // get the index for the given key
-            Integer idx = this.keysToIndex.get(key);
-            if (idx == null) {
-                throw new RuntimeException("No index for key " + key + " in " + this.keysToIndex.keySet());
+            int idx = Arrays.binarySearch(this.keys, key);
+            if (idx < 0) {
+                throw new RuntimeException("No index for key " + key + " in " + Arrays.toString(this.keys));
             }
 
             // store in the array
-            array[idx] = this.valueTransformer.applyAsDouble(value.longValue());
-        });
+            array[idx] = this.valueTransformer.applyAsDouble(times[i]);
+        }
 
         return array;
     }
@@ -123,6 +123,16 @@ public class WindowStatisticsCollector {
         this.stats.computeIfAbsent(window, this::measure);
     }
 
+    /**
+     * Records statistics for the given window which were measured previously.
+     *
+     * @param window the window
+     * @param statistics the statistics
+     */
+    public void recordStatistics(int window, SparkProtos.WindowStatistics statistics) {
+        this.stats.put(window, statistics);
+    }
+
     /**
      * Ensures that the exported map has statistics (even if they are zeroed) for all windows.
      *
@@ -169,6 +179,9 @@ public class WindowStatisticsCollector {
             if (mspt != null) {
                 builder.setMsptMedian(mspt.median());
                 builder.setMsptMax(mspt.max());
+                builder.setMsptPercentile95(mspt.percentile95th());
+                builder.setMsptPercentile99(mspt.percentile(0.99));
+                builder.setMsptPercentile999(mspt.percentile(0.999));
             }
         }
 
@@ -26,7 +26,7 @@ import java.util.concurrent.CopyOnWriteArraySet;
 public abstract class AbstractTickHook implements TickHook {
 
     private final Set<Callback> tasks = new CopyOnWriteArraySet<>();
-    private int tick = 0;
+    private volatile int tick = 0;
 
     protected void onTick() {
         for (Callback r : this.tasks) {
@@ -0,0 +1,175 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.util;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.LongConsumer;
+
+/**
+ * Compresses a stream as a sequence of independently compressed blocks, several at a time.
+ *
+ * <p>The input is read, and the output written, in order on the calling thread, while the blocks
+ * themselves are compressed by a pool of worker threads. At most two blocks per worker are in
+ * memory at once.</p>
+ */
+final class BlockCompressor {
+
+    /**
+     * Compresses a single block.
+     */
+    interface Codec {
+
+        /**
+         * Compresses a block.
+         *
+         * @param data the buffer holding the block
+         * @param length the length of the block
+         * @param previous the buffer holding the previous block, or null for the first block
+         * @param previousLength the length of the previous block
+         * @return the compressed block
+         * @throws IOException if an error occurs
+         */
+        byte[] compress(byte[] data, int length, byte[] previous, int previousLength) throws IOException;
+    }
+
+    private final int blockSize;
+    private final int threads;
+    private final Codec codec;
+
+    BlockCompressor(int blockSize, int threads, Codec codec) {
+        this.blockSize = blockSize;
+        this.threads = Math.max(1, threads);
+        this.codec = codec;
+    }
+
+    /**
+     * Compresses the input into the output.
+     *
+     * @param in the input
+     * @param out the output, which the compressed blocks are written to in order
+     * @param blockListener called on the calling thread with each block of input as it is read, may be null
+     * @param progress called with the number of input bytes written so far after each block
+     * @return the total number of input bytes
+     * @throws IOException if an error occurs
+     */
+    long compress(InputStream in, OutputStream out, BlockListener blockListener, LongConsumer progress) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(this.threads, new ThreadFactoryBuilder()
+                .setNameFormat("spark-compression-%d")
+                .setDaemon(true)
+                .setUncaughtExceptionHandler(SparkThreadFactory.EXCEPTION_HANDLER)
+                .build()
+        );
+
+        Queue<Block> pending = new ArrayDeque<>();
+        long read = 0;
+        long written = 0;
+        try {
+            byte[] previous = null;
+            int previousLength = 0;
+            while (true) {
+                byte[] data = new byte[this.blockSize];
+                int length = readFully(in, data);
+                if (length == 0 && previous != null) {
+                    break;
+                }
+                if (blockListener != null) {
+                    blockListener.onBlock(data, length);
+                }
+                read += length;
+
+                byte[] prev = previous;
+                int prevLength = previousLength;
+                pending.add(new Block(length, executor.submit(() -> this.codec.compress(data, length, prev, prevLength))));
+                previous = data;
+                previousLength = length;
+
+                while (pending.size() >= this.threads * 2) {
+                    written += pending.remove().writeTo(out);
+                    progress.accept(written);
+                }
+                if (length < this.blockSize) {
+                    break;
+                }
+            }
+
+            while (!pending.isEmpty()) {
+                written += pending.remove().writeTo(out);
+                progress.accept(written);
+            }
+            return read;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static int readFully(InputStream in, byte[] buf) throws IOException {
+        int length = 0;
+        while (length < buf.length) {
+            int r = in.read(buf, length, buf.length - length);
+            if (r == -1) {
+                break;
+            }
+            length += r;
+        }
+        return length;
+    }
+
+    interface BlockListener {
+        void onBlock(byte[] data, int length);
+    }
+
+    private static final class Block {
+        private final int inputLength;
+        private final Future<byte[]> future;
+
+        Block(int inputLength, Future<byte[]> future) {
+            this.inputLength = inputLength;
+            this.future = future;
+        }
+
+        int writeTo(OutputStream out) throws IOException {
+            try {
+                out.write(this.future.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                throw new IOException(cause);
+            }
+            return this.inputLength;
+        }
+    }
+}
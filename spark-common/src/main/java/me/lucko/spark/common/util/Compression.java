@@ -20,22 +20,100 @@
 
 package me.lucko.spark.common.util;
 
+import org.tukaani.xz.LZMA2Options;
+import org.tukaani.xz.LZMAOutputStream;
+import org.tukaani.xz.XZOutputStream;
+
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.function.LongConsumer;
-import java.util.zip.GZIPOutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
 
 public enum Compression {
     GZIP {
+        /** Deflate can only refer back 32KB, so there is no point in a larger dictionary */
+        private static final int DICTIONARY_SIZE = 32 * 1024;
+
         @Override
-        public Path compress(Path file, LongConsumer progressHandler) throws IOException {
+        public Path compress(Path file, int threads, LongConsumer progressHandler) throws IOException {
             Path compressedFile = file.getParent().resolve(file.getFileName().toString() + ".gz");
             try (InputStream in = Files.newInputStream(file)) {
                 try (OutputStream out = Files.newOutputStream(compressedFile)) {
-                    try (GZIPOutputStream compressionOut = new GZIPOutputStream(out, 1024 * 64)) {
+                    // pigz-style: each block is deflated independently (primed with the end of the previous
+                    // block as a dictionary) and ends on a byte boundary, so they can just be concatenated
+                    out.write(new byte[]{0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff});
+
+                    CRC32 crc = new CRC32();
+                    BlockCompressor compressor = new BlockCompressor(256 * 1024, threads, (data, length, previous, previousLength) -> {
+                        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+                        try {
+                            if (previous != null) {
+                                int dictionaryLength = Math.min(DICTIONARY_SIZE, previousLength);
+                                deflater.setDictionary(previous, previousLength - dictionaryLength, dictionaryLength);
+                            }
+                            deflater.setInput(data, 0, length);
+
+                            ByteArrayOutputStream compressed = new ByteArrayOutputStream(length / 2 + 64);
+                            byte[] buf = new byte[64 * 1024];
+                            int n;
+                            do {
+                                n = deflater.deflate(buf, 0, buf.length, Deflater.SYNC_FLUSH);
+                                compressed.write(buf, 0, n);
+                            } while (n == buf.length);
+                            return compressed.toByteArray();
+                        } finally {
+                            deflater.end();
+                        }
+                    });
+                    long size = compressor.compress(in, out, (data, length) -> crc.update(data, 0, length), progressHandler);
+
+                    // an empty final block, followed by the trailer
+                    out.write(new byte[]{0x03, 0x00});
+                    writeIntLE(out, (int) crc.getValue());
+                    writeIntLE(out, (int) size);
+                }
+            }
+            return compressedFile;
+        }
+    },
+    XZ {
+        @Override
+        public Path compress(Path file, int threads, LongConsumer progressHandler) throws IOException {
+            Path compressedFile = file.getParent().resolve(file.getFileName().toString() + ".xz");
+            try (InputStream in = Files.newInputStream(file)) {
+                try (OutputStream out = Files.newOutputStream(compressedFile)) {
+                    // each block is written as a separate xz stream - a sequence of
+                    // concatenated streams is itself a valid .xz file
+                    int blockSize = 4 * 1024 * 1024;
+                    LZMA2Options options = new LZMA2Options();
+                    options.setDictSize(blockSize);
+
+                    BlockCompressor compressor = new BlockCompressor(blockSize, threads, (data, length, previous, previousLength) -> {
+                        ByteArrayOutputStream compressed = new ByteArrayOutputStream(length / 4 + 64);
+                        try (XZOutputStream compressionOut = new XZOutputStream(compressed, options)) {
+                            compressionOut.write(data, 0, length);
+                        }
+                        return compressed.toByteArray();
+                    });
+                    compressor.compress(in, out, null, progressHandler);
+                }
+            }
+            return compressedFile;
+        }
+    },
+    LZMA {
+        @Override
+        public Path compress(Path file, int threads, LongConsumer progressHandler) throws IOException {
+            // the .lzma format has no way to join separately compressed blocks, so this is always single threaded
+            Path compressedFile = file.getParent().resolve(file.getFileName().toString() + ".lzma");
+            try (InputStream in = Files.newInputStream(file)) {
+                try (OutputStream out = Files.newOutputStream(compressedFile)) {
+                    try (LZMAOutputStream compressionOut = new LZMAOutputStream(out, new LZMA2Options(), true)) {
                         copy(in, compressionOut, progressHandler);
                     }
                 }
@@ -43,36 +121,28 @@ public enum Compression {
             return compressedFile;
         }
     };
-    // XZ {
-    //     @Override
-    //     public Path compress(Path file, LongConsumer progressHandler) throws IOException {
-    //         Path compressedFile = file.getParent().resolve(file.getFileName().toString() + ".xz");
-    //         try (InputStream in = Files.newInputStream(file)) {
-    //             try (OutputStream out = Files.newOutputStream(compressedFile)) {
-    //                 try (XZOutputStream compressionOut = new XZOutputStream(out, new LZMA2Options())) {
-    //                     copy(in, compressionOut, progressHandler);
-    //                 }
-    //             }
-    //         }
-    //         return compressedFile;
-    //     }
-    // },
-    // LZMA {
-    //     @Override
-    //     public Path compress(Path file, LongConsumer progressHandler) throws IOException {
-    //         Path compressedFile = file.getParent().resolve(file.getFileName().toString() + ".lzma");
-    //         try (InputStream in = Files.newInputStream(file)) {
-    //             try (OutputStream out = Files.newOutputStream(compressedFile)) {
-    //                 try (LZMAOutputStream compressionOut = new LZMAOutputStream(out, new LZMA2Options(), true)) {
-    //                     copy(in, compressionOut, progressHandler);
-    //                 }
-    //             }
-    //         }
-    //         return compressedFile;
-    //     }
-    // };
 
-    public abstract Path compress(Path file, LongConsumer progressHandler) throws IOException;
+    public Path compress(Path file, LongConsumer progressHandler) throws IOException {
+        return compress(file, 1, progressHandler);
+    }
+
+    /**
+     * Compresses a file, writing the output alongside it.
+     *
+     * @param file the file
+     * @param threads the number of threads to compress with, where supported
+     * @param progressHandler called with the number of (uncompressed) bytes compressed so far
+     * @return the compressed file
+     * @throws IOException if an error occurs
+     */
+    public abstract Path compress(Path file, int threads, LongConsumer progressHandler) throws IOException;
+
+    private static void writeIntLE(OutputStream out, int value) throws IOException {
+        out.write(value);
+        out.write(value >>> 8);
+        out.write(value >>> 16);
+        out.write(value >>> 24);
+    }
 
     private static long copy(InputStream from, OutputStream to, LongConsumer progress) throws IOException {
         byte[] buf = new byte[1024 * 64];
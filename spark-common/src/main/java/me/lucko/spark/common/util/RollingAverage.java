@@ -22,73 +22,118 @@ package me.lucko.spark.common.util;
 
 import me.lucko.spark.api.statistic.misc.DoubleAverageInfo;
 
-import java.math.BigDecimal;
-import java.math.RoundingMode;
-import java.util.ArrayDeque;
 import java.util.Arrays;
-import java.util.Queue;
 
+/**
+ * A {@link DoubleAverageInfo} over the most recent {@code windowSize} samples.
+ *
+ * <p>Samples are kept in a ring buffer. The mean is calculated from a running
+ * (compensated) sum, and the min and max are tracked with monotonic queues, so all three
+ * are O(1). Percentiles sort a copy of the samples (without holding the lock, so adding
+ * samples isn't held up), which is kept until the next sample is added so that several
+ * percentiles can be read for the price of one sort.</p>
+ */
 public class RollingAverage implements DoubleAverageInfo {
 
-    private final Queue<BigDecimal> samples;
     private final int windowSize;
-    private BigDecimal total = BigDecimal.ZERO;
+
+    /** Ring buffer of samples, the oldest sample is at {@code (count - size) % windowSize} */
+    private final double[] samples;
+    /** The number of samples in the window */
+    private int size = 0;
+    /** The total number of samples ever added, also the sequence number of the next sample */
+    private long count = 0;
+
+    /** The sum of the samples in the window, with a Kahan compensation term */
+    private double total = 0;
+    private double totalCompensation = 0;
+
+    /** Sequence numbers of the samples that could become the min/max, as the window moves */
+    private final MonotonicQueue minQueue;
+    private final MonotonicQueue maxQueue;
+
+    /** The samples in ascending order, or null if a sample has been added since it was computed */
+    private double[] sortedSamples = null;
 
     public RollingAverage(int windowSize) {
+        if (windowSize <= 0) {
+            throw new IllegalArgumentException("Invalid window size " + windowSize);
+        }
         this.windowSize = windowSize;
-        this.samples = new ArrayDeque<>(this.windowSize + 1);
+        this.samples = new double[windowSize];
+        this.minQueue = new MonotonicQueue(windowSize, false);
+        this.maxQueue = new MonotonicQueue(windowSize, true);
     }
 
     public int getSamples() {
         synchronized (this) {
-            return this.samples.size();
+            return this.size;
         }
     }
 
-    public void add(BigDecimal num) {
+    public void add(double num) {
         synchronized (this) {
-            this.total = this.total.add(num);
-            this.samples.add(num);
-            if (this.samples.size() > this.windowSize) {
-                this.total = this.total.subtract(this.samples.remove());
+            int index = (int) (this.count % this.windowSize);
+
+            if (this.size == this.windowSize) {
+                addToTotal(-this.samples[index]);
+            } else {
+                this.size++;
+            }
+            this.samples[index] = num;
+            addToTotal(num);
+
+            long sequence = this.count++;
+            long oldest = this.count - this.size;
+            this.minQueue.add(sequence, oldest);
+            this.maxQueue.add(sequence, oldest);
+
+            if (index == this.windowSize - 1) {
+                // recompute the total once per lap, so rounding errors can't accumulate indefinitely
+                recomputeTotal();
             }
+
+            this.sortedSamples = null;
+        }
+    }
+
+    // Kahan summation
+    private void addToTotal(double value) {
+        double y = value - this.totalCompensation;
+        double t = this.total + y;
+        this.totalCompensation = (t - this.total) - y;
+        this.total = t;
+    }
+
+    private void recomputeTotal() {
+        this.total = 0;
+        this.totalCompensation = 0;
+        for (int i = 0; i < this.size; i++) {
+            addToTotal(this.samples[i]);
         }
     }
 
     @Override
     public double mean() {
         synchronized (this) {
-            if (this.samples.isEmpty()) {
+            if (this.size == 0) {
                 return 0;
             }
-            BigDecimal divisor = BigDecimal.valueOf(this.samples.size());
-            return this.total.divide(divisor, 30, RoundingMode.HALF_UP).doubleValue();
+            return this.total / this.size;
         }
     }
 
     @Override
     public double max() {
         synchronized (this) {
-            BigDecimal max = null;
-            for (BigDecimal sample : this.samples) {
-                if (max == null || sample.compareTo(max) > 0) {
-                    max = sample;
-                }
-            }
-            return max == null ? 0 : max.doubleValue();
+            return this.size == 0 ? 0 : this.maxQueue.peek();
         }
     }
 
     @Override
     public double min() {
         synchronized (this) {
-            BigDecimal min = null;
-            for (BigDecimal sample : this.samples) {
-                if (min == null || sample.compareTo(min) < 0) {
-                    min = sample;
-                }
-            }
-            return min == null ? 0 : min.doubleValue();
+            return this.size == 0 ? 0 : this.minQueue.peek();
         }
     }
 
@@ -98,17 +143,83 @@ public class RollingAverage implements DoubleAverageInfo {
             throw new IllegalArgumentException("Invalid percentile " + percentile);
         }
 
-        BigDecimal[] sortedSamples;
+        double[] sortedSamples;
+        boolean cached;
+        long count;
         synchronized (this) {
-            if (this.samples.isEmpty()) {
+            if (this.size == 0) {
                 return 0;
             }
-            sortedSamples = this.samples.toArray(new BigDecimal[0]);
+
+            sortedSamples = this.sortedSamples;
+            cached = sortedSamples != null;
+            if (!cached) {
+                sortedSamples = Arrays.copyOf(this.samples, this.size);
+            }
+            // the number of samples ever added doubles as a modification counter
+            count = this.count;
+        }
+
+        if (!cached) {
+            // sort outside the lock, so add() (on the tick thread) isn't blocked while it runs
+            Arrays.sort(sortedSamples);
+            synchronized (this) {
+                // only cache the result if no samples were added in the meantime
+                if (this.count == count) {
+                    this.sortedSamples = sortedSamples;
+                }
+            }
         }
-        Arrays.sort(sortedSamples);
 
         int rank = (int) Math.ceil(percentile * (sortedSamples.length - 1));
-        return sortedSamples[rank].doubleValue();
+        return sortedSamples[rank];
+    }
+
+    /**
+     * A queue of sample sequence numbers whose values are in ascending (for the min) or
+     * descending (for the max) order, so the head is always the min/max of the window.
+     */
+    private final class MonotonicQueue {
+        private final long[] sequences;
+        private final boolean max;
+        private int head = 0;
+        private int size = 0;
+
+        MonotonicQueue(int capacity, boolean max) {
+            this.sequences = new long[capacity];
+            this.max = max;
+        }
+
+        private double value(long sequence) {
+            return RollingAverage.this.samples[(int) (sequence % RollingAverage.this.windowSize)];
+        }
+
+        void add(long sequence, long oldest) {
+            // drop the head if it has left the window
+            if (this.size != 0 && this.sequences[this.head] < oldest) {
+                this.head = (this.head + 1) % this.sequences.length;
+                this.size--;
+            }
+
+            // drop samples from the tail which can no longer be the min/max, as the new sample
+            // is at least as small/large and will stay in the window for longer
+            double value = value(sequence);
+            while (this.size != 0) {
+                int tail = (this.head + this.size - 1) % this.sequences.length;
+                double tailValue = value(this.sequences[tail]);
+                if (this.max ? tailValue > value : tailValue < value) {
+                    break;
+                }
+                this.size--;
+            }
+
+            this.sequences[(this.head + this.size) % this.sequences.length] = sequence;
+            this.size++;
+        }
+
+        double peek() {
+            return value(this.sequences[this.head]);
+        }
     }
 
 }
@@ -0,0 +1,387 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package me.lucko.spark.common.ws;
+
+import me.lucko.spark.common.sampler.node.AbstractNode;
+import me.lucko.spark.common.sampler.node.MergeMode;
+import me.lucko.spark.common.sampler.node.StackTraceNode;
+import me.lucko.spark.common.sampler.node.ThreadNode;
+import me.lucko.spark.proto.SparkProtos.WindowStatistics;
+import me.lucko.spark.proto.SparkSamplerProtos;
+import me.lucko.spark.proto.SparkWebSocketProtos.ServerUpdateSamplerDelta;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.function.LongToDoubleFunction;
+
+/**
+ * Encodes changes to the sampler data as {@link ServerUpdateSamplerDelta}s, relative
+ * to a full payload that was previously sent to the viewer.
+ *
+ * <p>For each thread, the encoder remembers the nodes the viewer knows about, in the
+ * order of the thread's children array. Nodes are identified by their parent and the
+ * same attributes {@link MergeMode} uses to merge nodes, so they can be matched up with
+ * the (merged) nodes in the full payload.</p>
+ *
+ * <p>Each delta contains the complete times for every window that could have changed
+ * since the previous payload, and the nodes that have been created since.</p>
+ */
+public final class SamplerDeltaEncoder {
+
+    /** The merge mode used to produce the full payload */
+    private final MergeMode mergeMode;
+    /** The id of the full payload */
+    private final String basePayloadId;
+    /** The known nodes for each thread, keyed by thread label */
+    private final Map<String, ThreadState> threads = new HashMap<>();
+
+    /** The number of deltas encoded since the full payload */
+    private int sequence = 0;
+    /** The latest window included in the previous payload */
+    private int lastWindow;
+
+    public SamplerDeltaEncoder(MergeMode mergeMode, String basePayloadId, SparkSamplerProtos.SamplerData fullPayload) {
+        this.mergeMode = mergeMode;
+        this.basePayloadId = basePayloadId;
+
+        this.lastWindow = Integer.MIN_VALUE;
+        for (int window : fullPayload.getTimeWindowsList()) {
+            this.lastWindow = Math.max(this.lastWindow, window);
+        }
+
+        for (SparkSamplerProtos.ThreadNode thread : fullPayload.getThreadsList()) {
+            this.threads.put(thread.getName(), ThreadState.fromProto(thread));
+        }
+    }
+
+    /**
+     * Gets the number of deltas that have been encoded since the full payload.
+     *
+     * @return the number of deltas
+     */
+    public int getSequence() {
+        return this.sequence;
+    }
+
+    /**
+     * Encodes the changes since the previous payload.
+     *
+     * @param data the thread data, with labels set
+     * @param timeWindows all windows that are present in the data, in ascending order
+     * @param valueTransformer the function to transform times with
+     * @param windowStatistics the statistics for each window
+     * @return the delta
+     */
+    public ServerUpdateSamplerDelta encode(List<ThreadNode> data, int[] timeWindows, LongToDoubleFunction valueTransformer, Map<Integer, WindowStatistics> windowStatistics) {
+        // windows that could have changed: the window that was in progress during the previous payload, and any after it
+        int from = Arrays.binarySearch(timeWindows, this.lastWindow);
+        if (from < 0) {
+            from = -(from + 1);
+        }
+        int[] changedWindows = Arrays.copyOfRange(timeWindows, from, timeWindows.length);
+
+        ServerUpdateSamplerDelta.Builder proto = ServerUpdateSamplerDelta.newBuilder()
+                .setBasePayloadId(this.basePayloadId)
+                .setSequence(++this.sequence);
+
+        for (int window : timeWindows) {
+            proto.addTimeWindows(window);
+        }
+        for (int window : changedWindows) {
+            WindowStatistics statistics = windowStatistics.get(window);
+            if (statistics != null) {
+                proto.putTimeWindowStatistics(window, statistics);
+            }
+        }
+
+        if (changedWindows.length != 0) {
+            for (ThreadNode thread : data) {
+                ThreadState state = this.threads.computeIfAbsent(thread.getThreadLabel(), name -> new ThreadState());
+
+                ServerUpdateSamplerDelta.ThreadDelta threadDelta;
+                synchronized (thread) { // the tree is guarded by the ThreadNode
+                    threadDelta = encodeThread(thread, state, changedWindows, valueTransformer);
+                }
+                if (threadDelta != null) {
+                    proto.addThreads(threadDelta);
+                }
+            }
+
+            this.lastWindow = timeWindows[timeWindows.length - 1];
+        }
+
+        return proto.build();
+    }
+
+    private ServerUpdateSamplerDelta.ThreadDelta encodeThread(ThreadNode thread, ThreadState state, int[] windows, LongToDoubleFunction valueTransformer) {
+        long[] threadTimes = sumTimes(Collections.singletonList(thread), windows);
+        if (threadTimes == null) {
+            return null;
+        }
+
+        ServerUpdateSamplerDelta.ThreadDelta.Builder proto = ServerUpdateSamplerDelta.ThreadDelta.newBuilder()
+                .setName(thread.getThreadLabel());
+
+        ServerUpdateSamplerDelta.WindowTimes.Builder[] columns = new ServerUpdateSamplerDelta.WindowTimes.Builder[windows.length];
+        for (int i = 0; i < windows.length; i++) {
+            columns[i] = ServerUpdateSamplerDelta.WindowTimes.newBuilder()
+                    .setWindow(windows[i])
+                    .setThreadTime(valueTransformer.applyAsDouble(threadTimes[i]));
+        }
+
+        // Walk the tree in the same groups that the full export merges nodes into.
+        // A group with no time in any of the changed windows can't contain any new nodes
+        // or changed times (every node has the times of its descendants), so is skipped.
+        Queue<Group> queue = new ArrayDeque<>();
+        queue.add(new Group(-1, Collections.singletonList(thread)));
+
+        while (!queue.isEmpty()) {
+            Group group = queue.remove();
+
+            Map<Key, List<AbstractNode>> childGroups = new LinkedHashMap<>();
+            for (AbstractNode member : group.members) {
+                for (StackTraceNode child : member.getChildren()) {
+                    childGroups.computeIfAbsent(key(child), k -> new ArrayList<>(1)).add(child);
+                }
+            }
+
+            for (Map.Entry<Key, List<AbstractNode>> entry : childGroups.entrySet()) {
+                List<AbstractNode> members = entry.getValue();
+
+                long[] times = sumTimes(members, windows);
+                if (times == null) {
+                    continue;
+                }
+
+                Key key = entry.getKey();
+                int ref = state.find(group.ref, key);
+                if (ref == -1) {
+                    ref = state.add(group.ref, key);
+                    proto.addNewNodes(ServerUpdateSamplerDelta.NewNode.newBuilder()
+                            .setParentRef(group.ref)
+                            .setNode(((StackTraceNode) members.get(0)).toProtoBuilder(this.mergeMode))
+                            .build()
+                    );
+                }
+
+                for (int i = 0; i < windows.length; i++) {
+                    if (times[i] != 0) {
+                        columns[i].addRefs(ref).addTimes(valueTransformer.applyAsDouble(times[i]));
+                    }
+                }
+
+                queue.add(new Group(ref, members));
+            }
+        }
+
+        for (ServerUpdateSamplerDelta.WindowTimes.Builder column : columns) {
+            proto.addTimes(column);
+        }
+        return proto.build();
+    }
+
+    /**
+     * Sums the times of the given nodes in each window.
+     *
+     * @param nodes the nodes
+     * @param windows the windows
+     * @return the times, or null if they are all zero
+     */
+    private static long[] sumTimes(List<? extends AbstractNode> nodes, int[] windows) {
+        long[] times = new long[windows.length];
+        boolean empty = true;
+        for (AbstractNode node : nodes) {
+            for (int i = 0; i < windows.length; i++) {
+                long time = node.getTime(windows[i]);
+                if (time != 0) {
+                    times[i] += time;
+                    empty = false;
+                }
+            }
+        }
+        return empty ? null : times;
+    }
+
+    private Key key(StackTraceNode node) {
+        int parentLineNumber = this.mergeMode.separateParentCalls() ? Math.max(node.getParentLineNumber(), 0) : 0;
+        return new Key(
+                node.getClassName(),
+                node.getMethodName(),
+                node.resolveMethodDescription(this.mergeMode.getMethodDisambiguator()),
+                parentLineNumber
+        );
+    }
+
+    /**
+     * A set of nodes in the tree that are exported as a single node.
+     */
+    private static final class Group {
+        private final int ref;
+        private final List<? extends AbstractNode> members;
+
+        private Group(int ref, List<? extends AbstractNode> members) {
+            this.ref = ref;
+            this.members = members;
+        }
+    }
+
+    /**
+     * The attributes that identify a node amongst its siblings once merged.
+     *
+     * @see MergeMode#shouldMerge(StackTraceNode, StackTraceNode)
+     */
+    private static final class Key {
+        private final String className;
+        private final String methodName;
+        private final String methodDescription;
+        private final int parentLineNumber;
+        private final int hash;
+
+        private Key(String className, String methodName, String methodDescription, int parentLineNumber) {
+            this.className = className;
+            this.methodName = methodName;
+            this.methodDescription = methodDescription;
+            this.parentLineNumber = parentLineNumber;
+
+            int hash = 31 + className.hashCode();
+            hash = 31 * hash + methodName.hashCode();
+            hash = 31 * hash + Objects.hashCode(methodDescription);
+            hash = 31 * hash + parentLineNumber;
+            this.hash = hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key key = (Key) o;
+            return this.hash == key.hash &&
+                    this.parentLineNumber == key.parentLineNumber &&
+                    this.className.equals(key.className) &&
+                    this.methodName.equals(key.methodName) &&
+                    Objects.equals(this.methodDescription, key.methodDescription);
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hash;
+        }
+    }
+
+    /**
+     * The nodes of a thread that the viewer knows about.
+     *
+     * <p>Nodes are numbered in the order they appear in the thread's children array, and
+     * looked up by (parent ref, key) in an open-addressed table.</p>
+     */
+    private static final class ThreadState {
+        private static final int INITIAL_CAPACITY = 16;
+
+        /** The parent ref of each node */
+        private int[] parents = new int[INITIAL_CAPACITY];
+        /** The key of each node */
+        private Key[] keys = new Key[INITIAL_CAPACITY];
+        /** The number of nodes */
+        private int size = 0;
+
+        /** Hash table of ref + 1, zero if the slot is empty */
+        private int[] table = new int[INITIAL_CAPACITY * 2];
+
+        static ThreadState fromProto(SparkSamplerProtos.ThreadNode thread) {
+            List<SparkSamplerProtos.StackTraceNode> nodes = thread.getChildrenList();
+
+            int[] parents = new int[nodes.size()];
+            Arrays.fill(parents, -1);
+            for (int i = 0; i < nodes.size(); i++) {
+                for (int childRef : nodes.get(i).getChildrenRefsList()) {
+                    parents[childRef] = i;
+                }
+            }
+
+            ThreadState state = new ThreadState();
+            for (int i = 0; i < nodes.size(); i++) {
+                SparkSamplerProtos.StackTraceNode node = nodes.get(i);
+                String methodDescription = node.getMethodDesc();
+                state.add(parents[i], new Key(
+                        node.getClassName(),
+                        node.getMethodName(),
+                        methodDescription.isEmpty() ? null : methodDescription,
+                        node.getParentLineNumber()
+                ));
+            }
+            return state;
+        }
+
+        int find(int parent, Key key) {
+            int mask = this.table.length - 1;
+            for (int i = hash(parent, key) & mask; ; i = (i + 1) & mask) {
+                int ref = this.table[i] - 1;
+                if (ref == -1) {
+                    return -1;
+                }
+                if (this.parents[ref] == parent && this.keys[ref].equals(key)) {
+                    return ref;
+                }
+            }
+        }
+
+        int add(int parent, Key key) {
+            int ref = this.size++;
+            if (ref == this.parents.length) {
+                this.parents = Arrays.copyOf(this.parents, ref * 2);
+                this.keys = Arrays.copyOf(this.keys, ref * 2);
+            }
+            this.parents[ref] = parent;
+            this.keys[ref] = key;
+
+            if (this.size * 2 > this.table.length) {
+                this.table = new int[this.table.length * 2];
+                for (int i = 0; i < this.size; i++) {
+                    insert(i);
+                }
+            } else {
+                insert(ref);
+            }
+            return ref;
+        }
+
+        private void insert(int ref) {
+            int mask = this.table.length - 1;
+            int i = hash(this.parents[ref], this.keys[ref]) & mask;
+            while (this.table[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            this.table[i] = ref + 1;
+        }
+
+        private static int hash(int parent, Key key) {
+            int hash = 31 * parent + key.hashCode();
+            return hash ^ (hash >>> 16);
+        }
+    }
+}
@@ -36,6 +36,7 @@ import me.lucko.spark.proto.SparkWebSocketProtos.PacketWrapper;
 import me.lucko.spark.proto.SparkWebSocketProtos.ServerConnectResponse;
 import me.lucko.spark.proto.SparkWebSocketProtos.ServerPong;
 import me.lucko.spark.proto.SparkWebSocketProtos.ServerUpdateSamplerData;
+import me.lucko.spark.proto.SparkWebSocketProtos.ServerUpdateSamplerDelta;
 import me.lucko.spark.proto.SparkWebSocketProtos.ServerUpdateStatistics;
 
 import java.security.PublicKey;
@@ -53,6 +54,9 @@ public class ViewerSocket implements ViewerSocketConnection.Listener, AutoClosea
     /** Once established, expect a ping at least once every 30 seconds */
     private static final long SOCKET_ESTABLISHED_TIMEOUT = TimeUnit.SECONDS.toMillis(30);
 
+    /** The maximum number of deltas to send before sending the full sampler data again */
+    private static final int MAX_DELTAS_BETWEEN_FULL_PAYLOADS = 10;
+
     /** The spark platform */
     private final SparkPlatform platform;
     /** The export props to use when exporting the sampler data */
@@ -65,6 +69,13 @@ public class ViewerSocket implements ViewerSocketConnection.Listener, AutoClosea
     private long lastPing = 0;
     private String lastPayloadId = null;
 
+    /** Encodes deltas relative to the last full payload, null if the next payload should be full */
+    private SamplerDeltaEncoder deltaEncoder = null;
+    /** If all clients that have connected support deltas */
+    private volatile boolean deltasSupported = true;
+    /** Set when a client connects, as it won't have seen the deltas since the last full payload */
+    private volatile boolean fullPayloadRequired = false;
+
     public ViewerSocket(SparkPlatform platform, BytesocksClient client, Sampler.ExportProps exportProps) throws Exception {
         this.platform = platform;
         this.exportProps = exportProps;
@@ -114,10 +125,26 @@ public class ViewerSocket implements ViewerSocketConnection.Listener, AutoClosea
         }
 
         try {
+            if (this.fullPayloadRequired || !this.deltasSupported) {
+                this.fullPayloadRequired = false;
+                this.deltaEncoder = null;
+            }
+
+            SamplerDeltaEncoder deltaEncoder = this.deltaEncoder;
+            if (deltaEncoder != null && deltaEncoder.getSequence() < MAX_DELTAS_BETWEEN_FULL_PAYLOADS) {
+                sendUpdatedSamplerDelta(sampler.toDeltaProto(deltaEncoder));
+                return;
+            }
+
             SparkSamplerProtos.SamplerData samplerData = sampler.toProto(this.platform, this.exportProps);
             String key = this.platform.getBytebinClient().postContent(samplerData, MediaTypes.SPARK_SAMPLER_MEDIA_TYPE, "live").key();
             sendUpdatedSamplerData(key);
+
+            if (this.deltasSupported) {
+                this.deltaEncoder = new SamplerDeltaEncoder(this.exportProps.mergeMode().get(), key, samplerData);
+            }
         } catch (Exception e) {
+            this.deltaEncoder = null;
             this.platform.getPlugin().log(Level.WARNING, "Error whilst sending updated sampler data to the socket");
             e.printStackTrace();
         }
@@ -177,6 +204,15 @@ public class ViewerSocket implements ViewerSocketConnection.Listener, AutoClosea
         this.lastPayloadId = payloadId;
     }
 
+    /**
+     * Sends a message to the socket with the changes to the sampler data since the last payload
+     *
+     * @param delta the delta
+     */
+    public void sendUpdatedSamplerDelta(ServerUpdateSamplerDelta delta) {
+        this.socket.sendPacket(builder -> builder.setServerUpdateSamplerDelta(delta));
+    }
+
     /**
      * Sends a message to the socket with updated statistics
      *
@@ -221,6 +257,12 @@ public class ViewerSocket implements ViewerSocketConnection.Listener, AutoClosea
 
         this.lastPing = System.currentTimeMillis();
 
+        // the client will load the last full payload, so send another full payload next time
+        if (!packet.getSupportsSamplerDelta()) {
+            this.deltasSupported = false;
+        }
+        this.fullPayloadRequired = true;
+
         String clientId = packet.getClientId();
         log("Client connected: clientId=" + clientId + ", keyhash=" + hashPublicKey(publicKey) + ", desc=" + packet.getDescription());
 
@@ -0,0 +1,29 @@
+package io.github.cong;
+
+import me.lucko.spark.common.platform.world.AbstractChunkInfo;
+import me.lucko.spark.common.platform.world.CountMap;
+
+import java.util.HashMap;
+
+/**
+ * A square block of tiles, and the units and buildings in it.
+ *
+ * <p>Entities are keyed by a name which already includes their type and team.</p>
+ */
+public class MindustryChunkInfo extends AbstractChunkInfo<String> {
+    private final CountMap<String> entityCounts = new CountMap.Simple<>(new HashMap<>());
+
+    MindustryChunkInfo(int x, int z) {
+        super(x, z);
+    }
+
+    @Override
+    public CountMap<String> getEntityCounts() {
+        return this.entityCounts;
+    }
+
+    @Override
+    public String entityTypeName(String type) {
+        return type;
+    }
+}
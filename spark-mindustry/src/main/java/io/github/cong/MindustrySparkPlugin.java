@@ -6,8 +6,13 @@ import arc.util.Log;
 import me.lucko.spark.common.SparkPlatform;
 import me.lucko.spark.common.SparkPlugin;
 import me.lucko.spark.common.monitor.ping.PlayerPingProvider;
+import me.lucko.spark.common.monitor.tick.SparkTickStatistics;
 import me.lucko.spark.common.monitor.tick.TickStatistics;
 import me.lucko.spark.common.platform.PlatformInfo;
+import me.lucko.spark.common.platform.world.WorldInfoProvider;
+import me.lucko.spark.common.sampler.ThreadDumper;
+import me.lucko.spark.common.tick.TickHook;
+import me.lucko.spark.common.tick.TickReporter;
 import mindustry.Vars;
 import mindustry.entities.EntityGroup;
 import mindustry.gen.Groups;
@@ -24,12 +29,21 @@ import static mindustry.Vars.dataDirectory;
 @SuppressWarnings("unused")
 public class MindustrySparkPlugin extends Plugin implements SparkPlugin {
 
+    /** The number of times per second the server updates the game */
+    private static final int TPS = 60;
+
     private SparkPlatform platform;
+    private MindustryWorldInfoProvider worldInfoProvider;
+    private final ThreadDumper.GameThread gameThreadDumper = new ThreadDumper.GameThread();
     private final ScheduledExecutorService executor = Executors.newScheduledThreadPool(16);
 
     //called when game initializes
     @Override
     public void init(){
+        // plugins are initialised on the thread which runs the update loop
+        this.gameThreadDumper.setThread(Thread.currentThread());
+        this.worldInfoProvider = new MindustryWorldInfoProvider();
+        this.worldInfoProvider.start();
         this.platform = new SparkPlatform(this);
         this.platform.enable();
     }
@@ -121,9 +135,29 @@ public class MindustrySparkPlugin extends Plugin implements SparkPlugin {
         return new MindustryPlatformInfo();
     }
 
+    @Override
+    public ThreadDumper getGameThreadDumper() {
+        return this.gameThreadDumper.get();
+    }
+
+    @Override
+    public TickHook createTickHook() {
+        return new MindustryTickHook();
+    }
+
+    @Override
+    public TickReporter createTickReporter() {
+        return new MindustryTickReporter();
+    }
+
     @Override
     public TickStatistics createTickStatistics() {
-        return new MindustryTickStatistics(executor);
+        return new SparkTickStatistics(TPS);
+    }
+
+    @Override
+    public WorldInfoProvider createWorldInfoProvider() {
+        return this.worldInfoProvider;
     }
 
     @Override
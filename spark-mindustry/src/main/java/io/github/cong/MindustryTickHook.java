@@ -0,0 +1,35 @@
+package io.github.cong;
+
+import arc.ApplicationListener;
+import arc.Core;
+import me.lucko.spark.common.tick.AbstractTickHook;
+
+/**
+ * Counts the updates of the application loop, which is the server's "tick loop".
+ *
+ * <p>The hook is registered as the first application listener, so each tick is counted
+ * before the game logic for that update runs.</p>
+ */
+public class MindustryTickHook extends AbstractTickHook implements ApplicationListener {
+    private boolean closed = false;
+
+    @Override
+    public void update() {
+        if (this.closed) {
+            return;
+        }
+        onTick();
+    }
+
+    @Override
+    public void start() {
+        // listeners can't be modified while the loop iterates them, so register between updates
+        Core.app.post(() -> Core.app.getListeners().insert(0, this));
+    }
+
+    @Override
+    public void close() {
+        this.closed = true;
+        Core.app.post(() -> Core.app.removeListener(this));
+    }
+}
@@ -0,0 +1,45 @@
+package io.github.cong;
+
+import arc.ApplicationListener;
+import arc.Core;
+import me.lucko.spark.common.tick.SimpleTickReporter;
+
+/**
+ * Measures how long each update of the application loop takes.
+ *
+ * <p>A listener registered first marks the start of the update, and one registered last marks
+ * the end, so the duration covers the game logic, networking and every other listener that was
+ * registered when spark started, but not the time the loop sleeps between updates.</p>
+ */
+public class MindustryTickReporter extends SimpleTickReporter {
+    private final ApplicationListener startListener = new ApplicationListener() {
+        @Override
+        public void update() {
+            onStart();
+        }
+    };
+    private final ApplicationListener endListener = new ApplicationListener() {
+        @Override
+        public void update() {
+            onEnd();
+        }
+    };
+
+    @Override
+    public void start() {
+        // listeners can't be modified while the loop iterates them, so register between updates
+        Core.app.post(() -> {
+            Core.app.getListeners().insert(0, this.startListener);
+            Core.app.addListener(this.endListener);
+        });
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        Core.app.post(() -> {
+            Core.app.removeListener(this.startListener);
+            Core.app.removeListener(this.endListener);
+        });
+    }
+}
@@ -0,0 +1,236 @@
+package io.github.cong;
+
+import arc.ApplicationListener;
+import arc.Core;
+import arc.Events;
+import arc.func.Cons;
+import me.lucko.spark.common.platform.world.CountMap;
+import me.lucko.spark.common.platform.world.WorldInfoProvider;
+import mindustry.Vars;
+import mindustry.game.EventType;
+import mindustry.game.Team;
+import mindustry.gen.Building;
+import mindustry.gen.Groups;
+import mindustry.gen.Unit;
+import mindustry.world.Tile;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps a running census of the units and buildings on the current map, grouped into
+ * {@link MindustryChunkInfo chunks} of {@link #CHUNK_SIZE} x {@link #CHUNK_SIZE} tiles.
+ *
+ * <p>Polling never touches the main thread, it only reads the census:</p>
+ * <ul>
+ *     <li>Buildings are counted from tile change events, so the counts are kept exactly up to date
+ *     for the cost of a map update per placed or removed building. The map is only scanned once,
+ *     when a world is loaded.</li>
+ *     <li>Units move between chunks every tick, so they can't be tracked from events. Instead, up
+ *     to {@link #UNITS_PER_UPDATE} units are packed into a long (team, type and chunk) at the end
+ *     of each update, and a completed sweep of the unit group is published for readers. The unit
+ *     counts therefore lag behind by (at most) one sweep.</li>
+ * </ul>
+ */
+public class MindustryWorldInfoProvider implements WorldInfoProvider, ApplicationListener {
+    private static final int CHUNK_SHIFT = 4;
+    private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    private static final int UNITS_PER_UPDATE = 512;
+
+    private static final int KIND_UNIT = 0;
+    private static final int KIND_BUILDING = 1;
+
+    private static final long[] NO_UNITS = new long[0];
+
+    /** Building counts, by type key, for each chunk key. Only written to on the main thread. */
+    private final Map<Long, CountMap<Integer>> buildings = new ConcurrentHashMap<>();
+    private final AtomicInteger totalBuildings = new AtomicInteger();
+
+    /** The last complete sweep of the unit group */
+    private volatile long[] units = NO_UNITS;
+    /** The sweep in progress. Only accessed on the main thread. */
+    private long[] sweep = new long[64];
+    private int sweepSize = 0;
+    private int sweepCursor = 0;
+
+    private final Cons<EventType.WorldLoadEvent> onWorldLoad = e -> rebuild();
+    private final Cons<EventType.ResetEvent> onReset = e -> reset();
+    private final Cons<EventType.TilePreChangeEvent> onTilePreChange = e -> updateBuilding(e.tile, -1);
+    private final Cons<EventType.TileChangeEvent> onTileChange = e -> updateBuilding(e.tile, 1);
+    private final Cons<EventType.BuildTeamChangeEvent> onTeamChange = e -> {
+        addBuilding(e.build, e.previous, -1);
+        addBuilding(e.build, e.build.team, 1);
+    };
+
+    /**
+     * Starts keeping the census. Must be called on the main thread.
+     */
+    public void start() {
+        Events.on(EventType.WorldLoadEvent.class, this.onWorldLoad);
+        Events.on(EventType.ResetEvent.class, this.onReset);
+        Events.on(EventType.TilePreChangeEvent.class, this.onTilePreChange);
+        Events.on(EventType.TileChangeEvent.class, this.onTileChange);
+        Events.on(EventType.BuildTeamChangeEvent.class, this.onTeamChange);
+        // listeners can't be modified while the loop iterates them, so register between updates
+        Core.app.post(() -> Core.app.addListener(this));
+
+        if (Vars.state.isGame()) {
+            rebuild();
+        }
+    }
+
+    /**
+     * Stops keeping the census.
+     */
+    public void close() {
+        Events.remove(EventType.WorldLoadEvent.class, this.onWorldLoad);
+        Events.remove(EventType.ResetEvent.class, this.onReset);
+        Events.remove(EventType.TilePreChangeEvent.class, this.onTilePreChange);
+        Events.remove(EventType.TileChangeEvent.class, this.onTileChange);
+        Events.remove(EventType.BuildTeamChangeEvent.class, this.onTeamChange);
+        Core.app.post(() -> Core.app.removeListener(this));
+    }
+
+    @Override
+    public boolean mustCallSync() {
+        // the census is safe to read from any thread
+        return false;
+    }
+
+    @Override
+    public CountsResult pollCounts() {
+        if (!Vars.state.isGame()) {
+            return null;
+        }
+
+        int players = Groups.player.size();
+        int chunks = chunkCount(Vars.world.width()) * chunkCount(Vars.world.height());
+        return new CountsResult(players, this.units.length, this.totalBuildings.get(), chunks);
+    }
+
+    @Override
+    public ChunksResult<MindustryChunkInfo> pollChunks() {
+        if (!Vars.state.isGame()) {
+            return null;
+        }
+
+        Map<Long, MindustryChunkInfo> chunks = new HashMap<>();
+        Map<Integer, String> names = new HashMap<>();
+
+        this.buildings.forEach((chunkKey, counts) -> {
+            MindustryChunkInfo chunk = null;
+            for (Map.Entry<Integer, AtomicInteger> entry : counts.asMap().entrySet()) {
+                int count = entry.getValue().get();
+                if (count <= 0) {
+                    continue;
+                }
+                if (chunk == null) {
+                    chunk = chunks.computeIfAbsent(chunkKey, MindustryWorldInfoProvider::newChunk);
+                }
+                chunk.getEntityCounts().add(names.computeIfAbsent(entry.getKey(), MindustryWorldInfoProvider::typeName), count);
+            }
+        });
+
+        for (long unit : this.units) {
+            long chunkKey = unit & 0xFFFFFFFFL;
+            int type = (int) (unit >>> 32);
+            chunks.computeIfAbsent(chunkKey, MindustryWorldInfoProvider::newChunk)
+                    .getEntityCounts().increment(names.computeIfAbsent(type, MindustryWorldInfoProvider::typeName));
+        }
+
+        ChunksResult<MindustryChunkInfo> result = new ChunksResult<>();
+        result.put(Vars.state.map.name(), new ArrayList<>(chunks.values()));
+        return result;
+    }
+
+    @Override
+    public void update() {
+        if (!Vars.state.isGame()) {
+            return;
+        }
+
+        // units removed mid-sweep can shift the group, so a unit may (rarely) be missed or counted twice
+        int size = Groups.unit.size();
+        int end = Math.min(size, this.sweepCursor + UNITS_PER_UPDATE);
+        if (this.sweep.length < this.sweepSize + (end - this.sweepCursor)) {
+            this.sweep = Arrays.copyOf(this.sweep, Math.max(this.sweep.length * 2, size));
+        }
+
+        for (int i = this.sweepCursor; i < end; i++) {
+            Unit unit = Groups.unit.index(i);
+            this.sweep[this.sweepSize++] = pack(typeKey(KIND_UNIT, unit.team.id, unit.type.id), unit.tileX(), unit.tileY());
+        }
+        this.sweepCursor = end;
+
+        if (this.sweepCursor >= size) {
+            this.units = this.sweepSize == 0 ? NO_UNITS : Arrays.copyOf(this.sweep, this.sweepSize);
+            this.sweepSize = 0;
+            this.sweepCursor = 0;
+        }
+    }
+
+    private void rebuild() {
+        reset();
+        for (int i = 0, size = Groups.build.size(); i < size; i++) {
+            Building build = Groups.build.index(i);
+            addBuilding(build, build.team, 1);
+        }
+    }
+
+    private void reset() {
+        this.buildings.clear();
+        this.totalBuildings.set(0);
+        this.units = NO_UNITS;
+        this.sweepSize = 0;
+        this.sweepCursor = 0;
+    }
+
+    private void updateBuilding(Tile tile, int delta) {
+        // multi-tile buildings are only counted at their center tile
+        Building build = tile.build;
+        if (build != null && build.tile == tile) {
+            addBuilding(build, build.team, delta);
+        }
+    }
+
+    private void addBuilding(Building build, Team team, int delta) {
+        int type = typeKey(KIND_BUILDING, team.id, build.block.id);
+        long chunkKey = pack(0, build.tileX(), build.tileY());
+        this.buildings.computeIfAbsent(chunkKey, k -> new CountMap.Simple<>(new ConcurrentHashMap<>())).add(type, delta);
+        this.totalBuildings.addAndGet(delta);
+    }
+
+    private static int typeKey(int kind, int team, int contentId) {
+        return (kind << 24) | ((team & 0xFF) << 16) | (contentId & 0xFFFF);
+    }
+
+    private static long pack(int type, int tileX, int tileY) {
+        int x = (tileX >> CHUNK_SHIFT) & 0xFFFF;
+        int z = (tileY >> CHUNK_SHIFT) & 0xFFFF;
+        return ((long) type << 32) | ((long) x << 16) | z;
+    }
+
+    private static MindustryChunkInfo newChunk(long chunkKey) {
+        return new MindustryChunkInfo((short) (chunkKey >>> 16), (short) chunkKey);
+    }
+
+    private static String typeName(int type) {
+        int kind = type >>> 24;
+        Team team = Team.get((type >>> 16) & 0xFF);
+        int contentId = type & 0xFFFF;
+
+        String name = kind == KIND_UNIT
+                ? Vars.content.unit(contentId).name
+                : Vars.content.block(contentId).name;
+        return name + " (" + team.name + ")";
+    }
+
+    private static int chunkCount(int tiles) {
+        return (tiles + CHUNK_SIZE - 1) >> CHUNK_SHIFT;
+    }
+}